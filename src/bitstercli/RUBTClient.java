@@ -7,13 +7,16 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import bitstergui.Gui;
 
 import libbitster.BencodingException;
+import libbitster.Funnel;
 import libbitster.Janitor;
 import libbitster.Log;
 import libbitster.Manager;
+import libbitster.Sheriff;
 import libbitster.TorrentInfo;
 import libbitster.UserInterface;
 
@@ -25,6 +28,8 @@ public class RUBTClient {
   
   private static boolean cli = false;
   private static boolean gui = true;
+  private static String storage = null;
+  private static int trackerPort = -1;
   
   private static boolean processSwitch(String arg) {
     if(arg.equals("-color")) {
@@ -42,6 +47,21 @@ public class RUBTClient {
       cli = false;
       gui = false;
     }
+    else if(arg.startsWith("-storage=")) {
+      storage = arg.substring("-storage=".length());
+      if(!Arrays.asList(Funnel.STORAGE_KINDS).contains(storage)) {
+        Log.e("Error: storage must be one of " + Arrays.toString(Funnel.STORAGE_KINDS));
+        System.exit(1);
+      }
+    }
+    else if(arg.startsWith("-tracker=")) {
+      try {
+        trackerPort = Integer.parseInt(arg.substring("-tracker=".length()));
+      } catch (NumberFormatException e) {
+        Log.e("Error: -tracker takes a port number");
+        System.exit(1);
+      }
+    }
     else {
       return false;
     }
@@ -67,6 +87,19 @@ public class RUBTClient {
       }
     }
     
+    // run a tracker for the LAN, on TCP and UDP, if asked to
+    if(trackerPort >= 0) {
+      try {
+        Sheriff sheriff = new Sheriff(trackerPort, trackerPort);
+        sheriff.start();
+        Log.info("Tracking on port " + sheriff.port());
+      } catch (IOException e) {
+        Log.e("Error: could not start tracker on port " + trackerPort + ": " + e.getMessage());
+        return;
+      }
+      if(argTorrent == null) return; // just the tracker, then
+    }
+
     // check if we have a valid number of arguments
     if(!gui && argTorrent == null) {
       Log.e("Error: Invalid number of arguments.");
@@ -127,7 +160,7 @@ public class RUBTClient {
         
         ui.start();
         
-        final Manager manager = new Manager(metainfo, dest, ui);
+        final Manager manager = new Manager(metainfo, dest, ui, storage);
         manager.start();
       } catch (IOException e) {
         Log.e("Error: unable to read torrent file.");
@@ -73,7 +73,7 @@ public class Gui extends Actor implements UserInterface {
     String file = manager.getFileName();
     String status = manager.getLeft() > 0 ? "downloading" : "seeding";
     String size = ((int)((manager.getSize()/1024.0/1024.0)*100))/100.0 + "MB";
-    int progress = (100 * manager.getDownloaded()) / manager.getSize();
+    int progress = (int)((100 * manager.getDownloaded()) / manager.getSize());
     int seed = manager.getSeeds();
     int leech = manager.getBrokerCount() - seed;
     double ratio = 0;
@@ -103,7 +103,7 @@ public class Gui extends Actor implements UserInterface {
       @SuppressWarnings("unchecked")
       HashMap<String, Object> payload = (HashMap<String, Object>)memo.getPayload();
       Manager manager = (Manager)memo.getSender();
-      int uploaded = (Integer)payload.get("uploaded");
+      long uploaded = (Long)payload.get("uploaded");
       
       int row = managerToRowIndex.get(manager);
       if(row >= 0)
@@ -113,8 +113,8 @@ public class Gui extends Actor implements UserInterface {
       @SuppressWarnings("unchecked")
       HashMap<String, Object> payload = (HashMap<String, Object>)memo.getPayload();
       Manager manager = (Manager)memo.getSender();
-      int downloaded = (Integer)payload.get("downloaded");
-      int left = (Integer)payload.get("left");
+      long downloaded = (Long)payload.get("downloaded");
+      long left = (Long)payload.get("left");
 
       int row = managerToRowIndex.get(manager);
 
@@ -0,0 +1,215 @@
+package libbitster;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Singleton.  Decides when every torrent's {@link Deputy} announces, so that
+ * hundreds of torrents started together don't hit their trackers together,
+ * then again in lockstep every interval after.
+ *
+ * <ul>
+ * <li>Each reannounce lands at a random point within JITTER of its
+ *     interval, so synchronized waves spread out within a few rounds.</li>
+ * <li>Announces are released at no more than a fixed rate across all
+ *     torrents; the rest wait their turn.</li>
+ * <li>Among announces that are due, torrents short of peers go first, and
+ *     their interval is shortened, though never below the tracker's
+ *     min interval.</li>
+ * </ul>
+ *
+ * A Deputy hands over the memo it wants back and gets it posted when its
+ * time comes, as with {@link Util#setTimeout}.  Each Deputy has at most one
+ * announce scheduled; scheduling another replaces it.
+ */
+public class AnnounceScheduler extends Actor {
+  /** Announces released per second, across all torrents */
+  public static final int DEFAULT_RATE = 20;
+  /** How far either way of its interval a reannounce may land */
+  public static final double JITTER = 0.1;
+  /** Torrents with fewer peers than this announce sooner and go first */
+  public static final int LOW_PEERS = 10;
+  /** The fraction of its interval a torrent short of peers waits */
+  public static final double LOW_PEERS_FACTOR = 0.25;
+
+  private static AnnounceScheduler instance;
+
+  private final Random random = new Random();
+  private int rate;
+  private double tokens;
+  private long refilled = -1;
+
+  // Scheduled announces by when they're due, and the same by who they're for
+  private final PriorityQueue<Entry> waiting = new PriorityQueue<Entry>();
+  private final HashMap<Actor, Entry> entries = new HashMap<Actor, Entry>();
+  // Announces that are due, starving torrents first
+  private final PriorityQueue<Entry> due = new PriorityQueue<Entry>(11, Entry.BY_PRIORITY);
+
+  // Metrics
+  private long released = 0;
+  private long delayed = 0;     // released later than due, for the rate
+  private long hurried = 0;
+
+  /** An announce waiting to be released. */
+  private static class Entry implements Comparable<Entry> {
+    final Actor target;
+    final Memo memo;
+    final long at;       // when it's due
+    final long earliest; // the tracker's min interval since the last one
+    final boolean starving;
+    boolean cancelled = false;
+
+    Entry (Actor target, Memo memo, long at, long earliest, boolean starving) {
+      this.target = target;
+      this.memo = memo;
+      this.at = at;
+      this.earliest = earliest;
+      this.starving = starving;
+    }
+
+    public int compareTo (Entry o) { return Long.compare(at, o.at); }
+
+    static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+      public int compare (Entry a, Entry b) {
+        if (a.starving != b.starving) return a.starving ? -1 : 1;
+        return Long.compare(a.at, b.at);
+      }
+    };
+  }
+
+  public AnnounceScheduler () {
+    this(DEFAULT_RATE);
+  }
+
+  /** @param rate announces released per second */
+  public AnnounceScheduler (int rate) {
+    super();
+    this.rate = rate;
+    this.tokens = rate;
+  }
+
+  /** The shared scheduler, started the first time it's asked for. */
+  public static synchronized AnnounceScheduler getInstance () {
+    if (instance == null) {
+      instance = new AnnounceScheduler();
+      instance.start();
+    }
+    return instance;
+  }
+
+  /** Stops the shared scheduler, if there is one. */
+  public static synchronized void off () {
+    if (instance != null) instance.shutdown();
+    instance = null;
+  }
+
+  /**
+   * Schedules an announce.
+   * @param target the Deputy to post the memo to
+   * @param memo what to post when it's time
+   * @param delay how long from now, in ms, before jitter
+   * @param minInterval the tracker's min interval in ms, or 0
+   * @param peers how many peers the torrent has now
+   * @param periodic whether to jitter the delay and shorten it for a
+   *        torrent short of peers; a retry or the first announce is sent as
+   *        asked
+   */
+  public void schedule (Actor target, Memo memo, long delay, long minInterval, int peers, boolean periodic) {
+    schedule(target, memo, delay, minInterval, peers, periodic, System.currentTimeMillis());
+  }
+
+  /** @see #schedule(Actor, Memo, long, long, int, boolean) */
+  public synchronized void schedule (Actor target, Memo memo, long delay, long minInterval,
+                                     int peers, boolean periodic, long now) {
+    boolean starving = peers < LOW_PEERS;
+    if (periodic) {
+      if (starving) delay = (long) (delay * LOW_PEERS_FACTOR);
+      delay += (long) ((random.nextDouble() * 2 - 1) * JITTER * delay);
+    }
+    long earliest = now + minInterval;
+    Entry e = new Entry(target, memo, Math.max(now + delay, earliest), earliest, starving);
+
+    Entry old = entries.put(target, e);
+    if (old != null) old.cancelled = true;
+    waiting.add(e);
+  }
+
+  /**
+   * Brings a torrent's next announce forward to now, or to as soon as its
+   * tracker's min interval allows, and to the front of the line.
+   * @return false if it had nothing scheduled
+   */
+  public boolean hurry (Actor target) {
+    return hurry(target, System.currentTimeMillis());
+  }
+
+  /** @see #hurry(Actor) */
+  public synchronized boolean hurry (Actor target, long now) {
+    Entry old = entries.get(target);
+    if (old == null) return false;
+    long at = Math.max(now, old.earliest);
+    if (at >= old.at && old.starving) return true;
+    old.cancelled = true;
+    Entry e = new Entry(target, old.memo, Math.min(old.at, at), old.earliest, true);
+    entries.put(target, e);
+    waiting.add(e);
+    hurried++;
+    return true;
+  }
+
+  /** Forgets a torrent's scheduled announce, ie when it's stopping. */
+  public synchronized void cancel (Actor target) {
+    Entry old = entries.remove(target);
+    if (old != null) old.cancelled = true;
+  }
+
+  /** Changes how many announces a second are released. */
+  public synchronized void setRate (int rate) {
+    this.rate = rate;
+  }
+
+  /**
+   * Posts the announces that are due, as many as the rate allows.
+   * @return the number posted
+   */
+  public synchronized int release (long now) {
+    if (refilled >= 0 && now > refilled) tokens = Math.min(rate, tokens + (now - refilled) * rate / 1000.0);
+    refilled = Math.max(refilled, now);
+
+    while (!waiting.isEmpty() && waiting.peek().at <= now) {
+      Entry e = waiting.poll();
+      if (!e.cancelled) due.add(e);
+    }
+
+    int n = 0;
+    while (!due.isEmpty() && tokens >= 1) {
+      Entry e = due.poll();
+      if (e.cancelled) continue;
+      entries.remove(e.target);
+      tokens--;
+      n++;
+      released++;
+      if (now - e.at > 1000) delayed++;
+      e.target.post(e.memo);
+    }
+    return n;
+  }
+
+  protected void idle () {
+    release(System.currentTimeMillis());
+    try { Thread.sleep(50); } catch (InterruptedException e) {}
+  }
+
+  /** Announces scheduled and not yet released. */
+  public synchronized int pending () { return entries.size(); }
+  public synchronized long released () { return released; }
+  public synchronized long delayed () { return delayed; }
+  public synchronized long hurried () { return hurried; }
+
+  public synchronized String toString () {
+    return "Announces: " + entries.size() + " scheduled, " + due.size() + " due, "
+      + released + " released, " + delayed + " held back by the rate, " + hurried + " hurried";
+  }
+}
@@ -0,0 +1,233 @@
+package libbitster;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A cursor over bencoded data in a {@code ByteBuffer}.  Unlike
+ * {@link Bencoder2}, nothing is copied: byte strings come back as slices of
+ * the underlying buffer and integers as {@code long}s, so a metainfo file's
+ * `pieces` string, say, is never duplicated.
+ *
+ * The low-level interface is a pull parser: {@link #next()} steps over one
+ * token at a time and reports what it was.  On top of that, {@link #find}
+ * seeks to a key in the current dictionary, {@link #raw()} returns the encoded
+ * bytes of a whole value (ie to hash the info dictionary), and {@link #read()}
+ * materializes a value as {@code HashMap}s, {@code ArrayList}s,
+ * {@code ByteBuffer} slices and {@code Long}s.
+ *
+ * <pre>
+ *   BencodeReader r = new BencodeReader(buffer);
+ *   r.next();                               // DICTIONARY
+ *   if (r.find(Util.s("interval")) &amp;&amp; r.next() == BencodeReader.INTEGER)
+ *     interval = r.integer();
+ * </pre>
+ */
+public final class BencodeReader {
+  // Token types returned by `next` and `peek`.
+  public static final int DICTIONARY = 0; // start of a dictionary
+  public static final int INTEGER = 1;
+  public static final int STRING = 2;
+  public static final int LIST = 3;       // start of a list
+  public static final int END = 4;        // end of a dictionary or list
+  public static final int EOF = 5;        // end of the input
+
+  private final ByteBuffer in;
+  private final int limit;
+  private int pos;
+
+  // Value of the last STRING or INTEGER token
+  private ByteBuffer string;
+  private long integer;
+
+  /** Reads from the buffer's position to its limit.  The buffer itself is
+   *  left untouched. */
+  public BencodeReader (ByteBuffer in) {
+    this.in = in;
+    this.pos = in.position();
+    this.limit = in.limit();
+  }
+
+  public BencodeReader (byte[] in) {
+    this(ByteBuffer.wrap(in));
+  }
+
+  /** Absolute offset of the cursor in the underlying buffer. */
+  public int position () { return pos; }
+
+  /** Type of the next token, without consuming it. */
+  public int peek () throws BencodingException {
+    if (pos >= limit) return EOF;
+    byte b = in.get(pos);
+    switch (b) {
+      case 'd': return DICTIONARY;
+      case 'l': return LIST;
+      case 'i': return INTEGER;
+      case 'e': return END;
+      default:
+        if (b >= '0' && b <= '9') return STRING;
+        throw new BencodingException("Unexpected '" + (char) b + "' at position " + pos);
+    }
+  }
+
+  /**
+   * Consumes the next token.  After a STRING or INTEGER its value is
+   * available from {@link #string()} or {@link #integer()}.
+   * @return the token type
+   */
+  public int next () throws BencodingException {
+    int type = peek();
+    switch (type) {
+      case DICTIONARY:
+      case LIST:
+      case END:
+        pos++;
+      break;
+
+      case INTEGER:
+        pos++;
+        integer = parseLong('e');
+      break;
+
+      case STRING:
+        long declared = parseLong(':');
+        if (declared < 0 || declared > limit - pos)
+          throw new BencodingException("String of length " + declared + " overruns the input at position " + pos);
+        int length = (int) declared;
+        string = slice(pos, length);
+        pos += length;
+      break;
+    }
+    return type;
+  }
+
+  /** The last string read, as a slice of the input. */
+  public ByteBuffer string () { return string; }
+
+  /** The last integer read. */
+  public long integer () { return integer; }
+
+  /** Parses a decimal number up to (and past) the given terminator. */
+  private long parseLong (char terminator) throws BencodingException {
+    int start = pos;
+    boolean negative = false;
+    long value = 0;
+
+    if (pos < limit && in.get(pos) == '-') {
+      negative = true;
+      pos++;
+    }
+
+    while (true) {
+      if (pos >= limit)
+        throw new BencodingException("Unterminated number at position " + start);
+      byte b = in.get(pos++);
+      if (b == terminator) break;
+      if (b < '0' || b > '9')
+        throw new BencodingException("Expected a digit, found '" + (char) b + "' at position " + (pos - 1));
+      if (value > (Long.MAX_VALUE - 9) / 10)
+        throw new BencodingException("Number too large at position " + start);
+      value = value * 10 + (b - '0');
+    }
+
+    if (pos - start == (negative ? 2 : 1))
+      throw new BencodingException("Empty number at position " + start);
+    return negative ? -value : value;
+  }
+
+  private ByteBuffer slice (int start, int length) {
+    ByteBuffer s = in.duplicate();
+    s.limit(start + length).position(start);
+    return s.slice();
+  }
+
+  /** Skips over the next complete value. */
+  public void skip () throws BencodingException {
+    int depth = 0;
+    do {
+      switch (next()) {
+        case DICTIONARY:
+        case LIST:
+          depth++;
+        break;
+        case END:
+          depth--;
+        break;
+        case EOF:
+          throw new BencodingException("Unexpected end of input");
+      }
+    } while (depth > 0);
+  }
+
+  /** Consumes the next complete value and returns its encoded form as a slice
+   *  of the input. */
+  public ByteBuffer raw () throws BencodingException {
+    int start = pos;
+    skip();
+    return slice(start, pos - start);
+  }
+
+  /**
+   * Seeks forward through the dictionary we are in to the given key, leaving
+   * the cursor on its value.  Keys are sorted in a well-formed dictionary,
+   * but we don't rely on it.
+   * @return false if the dictionary ended without the key, in which case
+   *         the closing END has been consumed
+   */
+  public boolean find (ByteBuffer key) throws BencodingException {
+    while (true) {
+      int type = next();
+      if (type == END) return false;
+      if (type != STRING)
+        throw new BencodingException("Expected a dictionary key at position " + pos);
+      if (string.equals(key)) return true;
+      skip();
+    }
+  }
+
+  /**
+   * Materializes the next value.
+   * @return a {@code HashMap}, {@code ArrayList}, {@code ByteBuffer} slice
+   *         or {@code Long}
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public Object read () throws BencodingException {
+    switch (next()) {
+      case STRING:
+        return string;
+
+      case INTEGER:
+        return Long.valueOf(integer);
+
+      case LIST:
+        ArrayList list = new ArrayList();
+        while (peek() != END) list.add(read());
+        next();
+        return list;
+
+      case DICTIONARY:
+        HashMap map = new HashMap();
+        while (true) {
+          int type = next();
+          if (type == END) break;
+          if (type != STRING)
+            throw new BencodingException("Expected a dictionary key at position " + pos);
+          ByteBuffer key = string;
+          map.put(key, read());
+        }
+        return map;
+
+      case END:
+        throw new BencodingException("Unexpected 'e' at position " + (pos - 1));
+
+      default:
+        throw new BencodingException("Unexpected end of input");
+    }
+  }
+
+  /** Decodes a complete bencoded value. */
+  public static Object decode (ByteBuffer in) throws BencodingException {
+    return new BencodeReader(in).read();
+  }
+}
@@ -0,0 +1,266 @@
+package libbitster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bencodes values in a single pass, either into a growable buffer that can be
+ * reset and reused, or straight through to an {@code OutputStream}.  Unlike
+ * {@link Bencoder2#encode}, which builds and concatenates an array for every
+ * node, each byte is written exactly once.
+ *
+ * Values can be written whole with {@link #write(Object)}, which accepts any
+ * {@code Map} (keys as {@code ByteBuffer}s or {@code String}s), {@code List},
+ * {@code Number} (as a {@code long}), {@code ByteBuffer}, {@code byte[]} or
+ * {@code String}, and emits dictionary keys in canonical raw-byte order.  Or
+ * they can be streamed with {@link #startDictionary()}, {@link #startList()},
+ * {@link #string}, {@link #integer} and {@link #end()}, in which case the
+ * caller is responsible for key order.
+ */
+public final class BencodeWriter {
+  private byte[] buf;
+  private int count = 0;
+  private final OutputStream out;
+
+  // Scratch space for formatting numbers
+  private final byte[] digits = new byte[20];
+
+  /** Orders keys by their raw bytes, compared unsigned, as BEP 3 requires. */
+  private static final Comparator<ByteBuffer> KEY_ORDER = new Comparator<ByteBuffer>() {
+    public int compare (ByteBuffer a, ByteBuffer b) {
+      int n = Math.min(a.remaining(), b.remaining());
+      if (a.hasArray() && b.hasArray()) {
+        byte[] x = a.array(), y = b.array();
+        int i = a.arrayOffset() + a.position(), j = b.arrayOffset() + b.position();
+        for (int end = i + n; i < end; i++, j++) {
+          if (x[i] != y[j]) return (x[i] & 0xFF) - (y[j] & 0xFF);
+        }
+      } else {
+        for (int i = 0; i < n; i++) {
+          int x = a.get(a.position() + i) & 0xFF, y = b.get(b.position() + i) & 0xFF;
+          if (x != y) return x - y;
+        }
+      }
+      return a.remaining() - b.remaining();
+    }
+  };
+
+  /** Writes into a growable buffer. */
+  public BencodeWriter () { this(256); }
+
+  /** Writes into a growable buffer with the given initial capacity. */
+  public BencodeWriter (int capacity) {
+    buf = new byte[Math.max(capacity, 32)];
+    out = null;
+  }
+
+  /** Writes through to a stream, buffering up to 8k at a time.  Call
+   *  {@link #flush()} when done. */
+  public BencodeWriter (OutputStream out) {
+    buf = new byte[8192];
+    this.out = out;
+  }
+
+  /** Convenience: bencodes a value into a new array. */
+  public static byte[] encode (Object o) throws BencodingException {
+    return new BencodeWriter().write(o).toByteArray();
+  }
+
+  // Output buffer management
+
+  private void ensure (int n) throws BencodingException {
+    if (count + n <= buf.length) return;
+
+    if (out != null) {
+      flush();
+      if (n <= buf.length) return;
+    }
+
+    int size = buf.length;
+    while (size < count + n) size <<= 1;
+    buf = Arrays.copyOf(buf, size);
+  }
+
+  private void put (byte b) throws BencodingException {
+    ensure(1);
+    buf[count++] = b;
+  }
+
+  private void put (byte[] b, int off, int len) throws BencodingException {
+    if (out != null && len > buf.length) {
+      // Big strings go straight to the stream.
+      flush();
+      try { out.write(b, off, len); }
+      catch (IOException e) { throw new BencodingException(e.getMessage()); }
+      return;
+    }
+    ensure(len);
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  private void putLong (long value) throws BencodingException {
+    if (value == Long.MIN_VALUE) {
+      byte[] b = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+      put(b, 0, b.length);
+      return;
+    }
+    if (value < 0) {
+      put((byte) '-');
+      value = -value;
+    }
+    int n = digits.length;
+    do {
+      digits[--n] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    put(digits, n, digits.length - n);
+  }
+
+  /** Pushes anything buffered out to the stream, if we're writing to one. */
+  public void flush () throws BencodingException {
+    if (out == null) return;
+    try {
+      out.write(buf, 0, count);
+      out.flush();
+    } catch (IOException e) { throw new BencodingException(e.getMessage()); }
+    count = 0;
+  }
+
+  /** Number of bytes held in the buffer. */
+  public int size () { return count; }
+
+  /** Empties the buffer so the writer (and its storage) can be reused. */
+  public BencodeWriter reset () {
+    count = 0;
+    return this;
+  }
+
+  /** Copy of what has been written so far. */
+  public byte[] toByteArray () { return Arrays.copyOf(buf, count); }
+
+  /** What has been written so far, without copying.  Only valid until the
+   *  next write or reset. */
+  public ByteBuffer toByteBuffer () { return ByteBuffer.wrap(buf, 0, count); }
+
+  // Streaming interface
+
+  public BencodeWriter startDictionary () throws BencodingException {
+    put((byte) 'd');
+    return this;
+  }
+
+  public BencodeWriter startList () throws BencodingException {
+    put((byte) 'l');
+    return this;
+  }
+
+  public BencodeWriter end () throws BencodingException {
+    put((byte) 'e');
+    return this;
+  }
+
+  public BencodeWriter integer (long value) throws BencodingException {
+    put((byte) 'i');
+    putLong(value);
+    put((byte) 'e');
+    return this;
+  }
+
+  /** Writes the remaining bytes of the buffer, leaving its position alone. */
+  public BencodeWriter string (ByteBuffer value) throws BencodingException {
+    int length = value.remaining();
+    putLong(length);
+    put((byte) ':');
+    if (value.hasArray()) {
+      put(value.array(), value.arrayOffset() + value.position(), length);
+    } else {
+      ensure(length);
+      value.duplicate().get(buf, count, length);
+      count += length;
+    }
+    return this;
+  }
+
+  public BencodeWriter string (byte[] value) throws BencodingException {
+    putLong(value.length);
+    put((byte) ':');
+    put(value, 0, value.length);
+    return this;
+  }
+
+  public BencodeWriter string (String value) throws BencodingException {
+    return string(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // Whole values
+
+  /** Bencodes a complete value; see the class comment for accepted types. */
+  public BencodeWriter write (Object o) throws BencodingException {
+    if (o instanceof ByteBuffer) return string((ByteBuffer) o);
+    if (o instanceof Number) return integer(((Number) o).longValue());
+    if (o instanceof byte[]) return string((byte[]) o);
+    if (o instanceof String) return string((String) o);
+    if (o instanceof Map) return dictionary((Map<?, ?>) o);
+    if (o instanceof List) {
+      startList();
+      for (Object item : (List<?>) o) write(item);
+      return end();
+    }
+    throw new BencodingException("Error: Object not of valid type for Bencoding.");
+  }
+
+  private BencodeWriter dictionary (Map<?, ?> map) throws BencodingException {
+    Entry[] entries = new Entry[map.size()];
+    int n = 0;
+    for (Map.Entry<?, ?> e : map.entrySet()) {
+      Object key = e.getKey();
+      ByteBuffer k;
+      if (key instanceof ByteBuffer)
+        k = (ByteBuffer) key;
+      else if (key instanceof String)
+        k = ByteBuffer.wrap(((String) key).getBytes(StandardCharsets.UTF_8));
+      else
+        throw new BencodingException("Error: Dictionary keys must be byte strings.");
+      entries[n++] = new Entry(k, e.getValue());
+    }
+    Arrays.sort(entries);
+
+    startDictionary();
+    for (int i = 0; i < n; i++) {
+      string(entries[i].key);
+      write(entries[i].value);
+    }
+    return end();
+  }
+
+  /** A dictionary entry with its key normalized to bytes, for sorting.  The
+   *  first eight bytes of the key are packed into a long so most comparisons
+   *  never touch the buffers. */
+  private static final class Entry implements Comparable<Entry> {
+    final ByteBuffer key;
+    final Object value;
+    final long prefix;
+
+    Entry (ByteBuffer key, Object value) {
+      this.key = key;
+      this.value = value;
+
+      long p = 0;
+      int n = Math.min(8, key.remaining());
+      for (int i = 0; i < n; i++) p = (p << 8) | (key.get(key.position() + i) & 0xFF);
+      this.prefix = p << (8 * (8 - n));
+    }
+
+    public int compareTo (Entry o) {
+      if (prefix != o.prefix) return Long.compareUnsigned(prefix, o.prefix);
+      return KEY_ORDER.compare(key, o.key);
+    }
+  }
+}
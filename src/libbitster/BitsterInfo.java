@@ -22,7 +22,7 @@ public final class BitsterInfo {
   
   private static BitsterInfo instance = null;
   private File info;
-  private HashMap<String, Integer> uploadStats;
+  private HashMap<String, Long> uploadStats;
   private HashMap<File, File> downloads;
   
   @SuppressWarnings("unchecked")
@@ -38,7 +38,7 @@ public final class BitsterInfo {
         
         // If file is valid
         if(readUploadStats instanceof HashMap<?,?>) {
-          uploadStats = (HashMap<String, Integer>) readUploadStats;
+          uploadStats = readUploadStats((HashMap<String, Number>) readUploadStats);
         }
         if(readDownloads instanceof HashMap<?,?>) {
           downloads = (HashMap<File, File>) readDownloads;
@@ -53,7 +53,7 @@ public final class BitsterInfo {
         
         ois.close();
       } catch (Exception e) {
-        uploadStats = new HashMap<String, Integer>();
+        uploadStats = new HashMap<String, Long>();
         downloads = new HashMap<File, File>();
         info.delete();
       }
@@ -67,7 +67,7 @@ public final class BitsterInfo {
     // but if it's not there, we're a-okay!
     else {
       Log.w("No metadata.bitster.dat found.");
-      uploadStats = new HashMap<String, Integer>();
+      uploadStats = new HashMap<String, Long>();
       downloads = new HashMap<File, File>();
     }
   }
@@ -77,10 +77,10 @@ public final class BitsterInfo {
    * @param infoHash the torrent info hash
    * @return the amount the user has uploaded across instances
    */
-  public Integer getUploadData(ByteBuffer infoHash) {
+  public Long getUploadData(ByteBuffer infoHash) {
     if(!uploadStats.containsKey(Util.buff2str(infoHash))) {
       Log.d("New infohash. Inserting...");
-      uploadStats.put(Util.buff2str(infoHash), 0);
+      uploadStats.put(Util.buff2str(infoHash), 0L);
     }
     return uploadStats.get(Util.buff2str(infoHash));
   }
@@ -90,7 +90,7 @@ public final class BitsterInfo {
    * @param infoHash The info hash to update
    * @param upload the new upload amount, in bytes
    */
-  public void setUploadData(ByteBuffer infoHash, Integer upload) {
+  public void setUploadData(ByteBuffer infoHash, Long upload) {
     uploadStats.put(Util.buff2str(infoHash), upload);
   }
   
@@ -115,6 +115,15 @@ public final class BitsterInfo {
     return downloads.entrySet();
   }
   
+  /** Older metadata files stored upload stats as Integers; widen them. */
+  private static HashMap<String, Long> readUploadStats(HashMap<String, Number> stats) {
+    HashMap<String, Long> widened = new HashMap<String, Long>();
+    for(Entry<String, Number> e : stats.entrySet()) {
+      widened.put(e.getKey(), e.getValue().longValue());
+    }
+    return widened;
+  }
+  
   /** returns instance and instantiates it if called for the first time */ 
   public static BitsterInfo getInstance() {
     if(instance == null) {
@@ -39,21 +39,49 @@ public class Broker extends Actor {
 
   public int piecesReceived = 0;
   public float speed = 0;
+  private long received = 0;   // bytes of blocks, for the Manager's PeerPool
+
+  // Per-request deadlines, from how long the peer takes to answer, and
+  // whether it's snubbing us: a request to it expired.  Snubbed peers get no
+  // new requests (besides a single probe) and are passed over for
+  // optimistic unchoke until they deliver a block again.
+  private final RequestTimer timer = new RequestTimer();
+
+  // Peer exchange (BEP 11), over the extension protocol (BEP 10)
+  /** Our extension message id for ut_pex */
+  public static final int UT_PEX = 1;
+  /** Time between PEX messages to a peer, in ms, as the BEP asks */
+  public static final int PEX_INTERVAL = 60000;
+  /** Most peers added, or dropped, in one PEX message */
+  public static final int PEX_MAX = 50;
+
+  private final boolean outgoing;      // we dialed them
+  private boolean extended = false;    // sent our extension handshake
+  private int pexId = 0;               // their id for ut_pex, 0 if none
+  private int listenPort = 0;          // theirs, from their extension handshake
+  private long pexDue = Long.MAX_VALUE;
+  private HashSet<Long> pexSent = new HashSet<Long>(); // peers we've told them of
+
 
 
   private LinkedList<Message> outbox;
 
-  // Pieces we've requested from the peer. Heinous, I know, but it works.
-  private HashMap<String, Message> requests;
+  // Blocks we've requested from the peer, and when each went out.
+  private RequestTable requests;
 
-  public Broker (SocketChannel sc, Manager manager, Message bitfield) {
+  /**
+   * Takes on a connection a peer made to us.
+   * @param handshake theirs, as the {@link Doorman} read it
+   */
+  public Broker (SocketChannel sc, ByteBuffer handshake, Manager manager, Message bitfield) {
     super();
     Log.i("Broker: accepting");
 
-    requests = new HashMap<String, Message>();
+    requests = new RequestTable();
     outbox = new LinkedList<Message>();
     peer = new Protocol(
       sc, 
+      handshake,
       manager.getInfoHash(), 
       manager.getPeerId(), 
       manager.getOverlord()
@@ -61,6 +89,7 @@ public class Broker extends Actor {
     peer.establish();
     peer.send(bitfield);
     this.manager = manager;
+    outgoing = false;
     state = "check";
     Util.setTimeout(120000, new Memo("keepalive", null, this));
 
@@ -73,7 +102,7 @@ public class Broker extends Actor {
     super();
     Log.info("Broker init for host: " + host);
 
-    requests = new HashMap<String, Message>();
+    requests = new RequestTable();
     outbox = new LinkedList<Message>();
 
     peer = new Protocol(
@@ -87,6 +116,7 @@ public class Broker extends Actor {
     peer.send(bitfield);
 
     this.manager = manager;
+    outgoing = true;
     state = "normal";
     Util.setTimeout(120000, new Memo("keepalive", null, this));
     Util.setTimeout(20000, new Memo("calcSpeed", null, this));
@@ -95,12 +125,14 @@ public class Broker extends Actor {
   }
 
   /** Receive a memo */
+  @SuppressWarnings("unchecked")
   protected void receive (Memo memo) {
     if (memo.getType().equals("request")) {
+      Message m = (Message) memo.getPayload();
+      // Already in flight to this peer: it's counted and sent once already
+      if (!requests.add(m.getIndex(), m.getBegin(), m.getBlockLength())) return;
       numQueued += 1;
       this.signal("broker numQueued", numQueued, this);
-      Message m = (Message) memo.getPayload();
-      requests.put(m.getIndex() + ":" + m.getBegin(), m);
       if (choked) {
         Log.info("We're choked, queuing message");
         outbox.add(m);
@@ -108,7 +140,7 @@ public class Broker extends Actor {
 
       else {
         //Log.info("Sending " + m);
-        peer.send(m);
+        sendRequest(m);
       }
     }
 
@@ -160,6 +192,19 @@ public class Broker extends Actor {
       } else Log.info("Peer not connected, not sending have.");
     }
 
+    // received from Manager when it's time to tell the peer who else we're
+    // connected to
+    // payload = the packed addresses of those peers
+    else if (memo.getType().equals("pex")) {
+      sendPex((Set<Long>) memo.getPayload());
+    }
+
+    // received from Manager to drop the connection, eg. when the connect
+    // takes too long
+    else if (memo.getType().equals("abort")) {
+      if (!state.equals("error")) error(new Exception((String) memo.getPayload()));
+    }
+
     else if (memo.getType().equals("calcSpeed")) {
       // Rough speed calculation
       speed = (float) piecesReceived / 20.0f;
@@ -173,9 +218,70 @@ public class Broker extends Actor {
     exception = e;
     peer.close();
 
-    if (requests.size() > 0) {
-      for (Message m : requests.values()) {
-        manager.post(new Memo("blockFail", m, this));
+    failRequests();
+  }
+
+  /** Hand every outstanding request back to the manager. */
+  private void failRequests () {
+    // Drop the copies waiting in the outbox too, or one could still go out
+    // after the Manager has asked for the same block again
+    Iterator<Message> waiting = outbox.iterator();
+    while (waiting.hasNext()) if (waiting.next().getType() == Message.REQUEST) waiting.remove();
+
+    if (requests.size() == 0) return;
+
+    for (int i = 0, l = requests.capacity(); i < l; i++) {
+      if (!requests.occupied(i)) continue;
+      manager.post(new Memo("blockFail", Message.createRequest(
+        requests.index(i), requests.begin(i), requests.length(i)
+      ), this));
+    }
+    requests.clear();
+  }
+
+  /** Write a request out to the peer and start its clock.  Requests which
+   *  were failed while waiting in the outbox are dropped. */
+  private void sendRequest (Message m) {
+    if (!requests.contains(m.getIndex(), m.getBegin())) return;
+    requests.markSent(m.getIndex(), m.getBegin(), System.currentTimeMillis());
+    peer.send(m);
+  }
+
+  /** How long a request to this peer may stay outstanding, in ms. */
+  public long requestTimeout () { return timer.timeout(); }
+
+  /** Fail any requests which have outlived their deadline, and snub the peer
+   *  if there were any. */
+  private void expireRequests () {
+    if (requests.size() == 0) return;
+
+    long now = System.currentTimeMillis();
+    long timeout = timer.timeout();
+    boolean expired = false;
+
+    for (int i = 0, l = requests.capacity(); i < l; i++) {
+      if (!requests.occupied(i)) continue;
+      long then = requests.sentAt(i);
+      if (then == 0 || now - then < timeout) continue;
+
+      Message m = Message.createRequest(
+        requests.index(i), requests.begin(i), requests.length(i)
+      );
+      requests.removeAt(i);
+      Log.warning("Request " + m + " to " + Util.buff2str(peer.getPeerId()) +
+        " timed out after " + timeout + "ms");
+      manager.post(new Memo("blockFail", m, this));
+      numQueued -= 1;
+      expired = true;
+    }
+
+    if (expired) {
+      this.signal("broker numQueued", numQueued, this);
+      // Backs off so the single probe request we allow gets more time.
+      if (timer.expired()) {
+        Log.warning("Peer " + Util.buff2str(peer.getPeerId()) + " snubbed us");
+        updateManager();
+        this.signal("broker snubbed", true, this);
       }
     }
   }
@@ -239,13 +345,29 @@ public class Broker extends Actor {
 
       // Send pieces to our `Manager`.
       case Message.PIECE:
-        numQueued -= 1;
         piecesReceived += 1;
-        this.signal("broker numQueued", numQueued, this);
-        requests.remove(message.getIndex() + ":" + message.getBegin());
+        received += message.getBlockLength();
+        long then = requests.remove(message.getIndex(), message.getBegin());
+        if (then >= 0) {
+          numQueued -= 1;
+          this.signal("broker numQueued", numQueued, this);
+        }
+        if (then > 0) timer.sample(System.currentTimeMillis() - then);
+
+        // Any delivery, even of a request we already gave up on, means the
+        // peer is alive again.
+        if (timer.delivered()) {
+          Log.info("Peer " + Util.buff2str(peer.getPeerId()) + " is no longer snubbing us");
+          updateManager();
+          this.signal("broker snubbed", false, this);
+        }
         manager.post(new Memo("block", message, this));
       break;
 
+      case Message.EXTENDED:
+        extended(message);
+      break;
+
       case Message.REQUEST:
         // Post a "request" memo to Manager, which passes it on as
         // a "block" memo to Funnel, who grabs the block and forwards
@@ -256,18 +378,21 @@ public class Broker extends Actor {
         // we're choking them.  They should know better.
         else error(new Exception("protocol error"));
       break;
+
+      // The peer doesn't want a block after all; the Manager drops it if
+      // it's still holding the request back
+      case Message.CANCEL:
+        manager.post(new Memo("cancel", message, this));
+      break;
     }
 
     if (choked) {
       // If we're choked, assume any pending requests have been discarded by
       // the peer.
       if (requests.size() > 0) {
-        Iterator <Message> i = requests.values().iterator();
-        while (i.hasNext()) {
-          Message item = i.next();
-          manager.post(new Memo("blockFail", item, this));
-          i.remove();
-        }
+        failRequests();
+        numQueued = 0;
+        this.signal("broker numQueued", numQueued, this);
       }
     }
   }
@@ -277,7 +402,7 @@ public class Broker extends Actor {
     while ((m = peer.receive()) != null) message(m); // grab any available msgs
 
     if (state.equals("check") && peer.getPeerId() != null) {
-      if (!manager.addPeer(peer.getAddress(), this)) {
+      if (!manager.addPeer(peer.getKey(), this)) {
         // Peer has already been added
         Log.error("Dropping duplicate connection to " + 
           Util.buff2str(peer.getPeerId()));
@@ -288,6 +413,20 @@ public class Broker extends Actor {
       }
     }
 
+    // Offer peer exchange to peers that speak the extension protocol
+    if (!extended && peer.getPeerId() != null && peer.supportsExtensions() && !state.equals("error")) {
+      extended = true;
+      try {
+        BencodeWriter w = new BencodeWriter();
+        w.startDictionary();
+        w.string("m").startDictionary().string("ut_pex").integer(UT_PEX).end();
+        w.string("p").integer(manager.getListenPort());
+        w.string("v").string("Bitster");
+        w.end();
+        peer.send(Message.createExtended(0, w.toByteBuffer()));
+      } catch (BencodingException e) {} // can't happen
+    }
+
     if (peer.getState().equals("error")) {
       if (state != "error") { // we haven't displayed the error msg yet
         Log.error("Peer " + Util.buff2str(peer.getPeerId()) + " protocol " +
@@ -304,10 +443,85 @@ public class Broker extends Actor {
       while (i.hasNext()) {
         Message msg = i.next();
         Log.debug("Sending " + msg);
-        peer.send(msg);
+        if (msg.getType() == Message.REQUEST) sendRequest(msg);
+        else peer.send(msg);
         i.remove();
       }
     } 
+
+    expireRequests();
+  }
+
+  /** Handles an extension message: their extension handshake, or PEX. */
+  @SuppressWarnings("rawtypes")
+  private void extended (Message message) {
+    Map dict;
+    try {
+      dict = (Map) BencodeReader.decode(message.getBlock());
+    } catch (Exception e) {
+      Log.warning("Bad extension message from " + Util.buff2str(peer.getPeerId()));
+      return;
+    }
+
+    if (message.getExtendedId() == 0) {
+      Object m = dict.get(Util.s("m"));
+      Object p = dict.get(Util.s("p"));
+      if (p instanceof Number) listenPort = ((Number) p).intValue();
+      if (m instanceof Map) {
+        Object id = ((Map) m).get(Util.s("ut_pex"));
+        pexId = id instanceof Number ? ((Number) id).intValue() : 0;
+        if (pexId > 0 && pexDue == Long.MAX_VALUE) pexDue = System.currentTimeMillis();
+      }
+    }
+
+    else if (message.getExtendedId() == UT_PEX) {
+      Object added = dict.get(Util.s("added"));
+      if (!(added instanceof ByteBuffer)) return;
+      ByteBuffer compact = ((ByteBuffer) added).duplicate();
+      ArrayList<Long> peers = new ArrayList<Long>();
+      while (compact.remaining() >= 6 && peers.size() < PEX_MAX)
+        peers.add((compact.getInt() & 0xFFFFFFFFL) << 16 | (compact.getShort() & 0xFFFF));
+      if (!peers.isEmpty()) manager.post(new Memo("pex", peers, this));
+    }
+  }
+
+  /**
+   * Tells the peer which peers we've connected to, or stopped being
+   * connected to, since we last said, up to PEX_MAX of each.
+   */
+  private void sendPex (Set<Long> current) {
+    pexDue = System.currentTimeMillis() + PEX_INTERVAL;
+    long self = dialable();
+    ByteBuffer added = ByteBuffer.allocate(6 * PEX_MAX);
+    ByteBuffer dropped = ByteBuffer.allocate(6 * PEX_MAX);
+    int n = 0;
+    for (long key : current) {
+      if (n == PEX_MAX) break;
+      if (key == self || !pexSent.add(key)) continue;
+      added.putInt((int) (key >>> 16)).putShort((short) key);
+      n++;
+    }
+    for (Iterator<Long> i = pexSent.iterator(); i.hasNext() && dropped.hasRemaining(); ) {
+      long key = i.next();
+      if (current.contains(key)) continue;
+      dropped.putInt((int) (key >>> 16)).putShort((short) key);
+      i.remove();
+    }
+    added.flip();
+    dropped.flip();
+    if (!added.hasRemaining() && !dropped.hasRemaining()) return;
+
+    byte[] flags = new byte[added.remaining() / 6];
+    Arrays.fill(flags, (byte) 0x10); // we reached them, so they take connections
+    try {
+      BencodeWriter w = new BencodeWriter();
+      w.startDictionary();
+      w.string("added").string(added);
+      w.string("added.f").string(flags);
+      w.string("dropped").string(dropped);
+      w.end();
+      peer.send(Message.createExtended(pexId, w.toByteBuffer()));
+    } catch (BencodingException e) {} // can't happen
   }
 
   private void checkInterested () {
@@ -329,6 +543,7 @@ public class Broker extends Actor {
     this.watch("broker choking", manager);
     this.watch("broker interested", manager);
     this.watch("broker interesting", manager);
+    this.watch("broker snubbed", manager);
   }
 
   /** Checks to see if the peer has this piece. */
@@ -341,10 +556,27 @@ public class Broker extends Actor {
   public boolean choking () { return choking; }
   public boolean interested () { return interested; }
   public boolean interesting () { return interesting; }
+  public boolean snubbed () { return timer.snubbed(); }
   public String state () { return state; }
   public int numQueued () { return numQueued; }
   public ByteBuffer peerId () { return peer.getPeerId(); }
   public String address() { return peer.getAddress(); }
+  public long key() { return peer.getKey(); }
+  /**
+   * The address other peers can reach this one at, packed as in a
+   * {@link PeerPool}: where we dialed it, or its listen port if it dialed
+   * us and told us.  -1 if we don't know.
+   */
+  public long dialable() {
+    long key = peer.getKey();
+    if (outgoing || key < 0) return key;
+    if (listenPort <= 0 || listenPort > 0xFFFF) return -1;
+    return (key & ~0xFFFFL) | listenPort;
+  }
+  /** Whether it's time to send this peer a PEX message */
+  public boolean pexDue(long now) { return pexId > 0 && now >= pexDue; }
+  /** Bytes of blocks the peer has sent us */
+  public long received() { return received; }
   public BitSet bitfield() { return this.pieces; }
   
   /**
@@ -365,6 +597,6 @@ public class Broker extends Actor {
    * @return a String representation of this object.
    */
   public String toString () {
-    return "Broker [" + Util.buff2str(peer.getPeerId()) + "] choked: " + choked + " choking: " + choking +" interested: " + interested +" interesting: " + interesting + " speed: " + speed;
+    return "Broker [" + Util.buff2str(peer.getPeerId()) + "] choked: " + choked + " choking: " + choking +" interested: " + interested +" interesting: " + interesting + " snubbed: " + timer.snubbed() + " speed: " + speed;
   }
 }
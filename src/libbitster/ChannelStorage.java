@@ -0,0 +1,202 @@
+package libbitster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Storage over the files of a torrent using positional {@link FileChannel}
+ * I/O.  A read or write is split at file boundaries and each part goes
+ * straight between the caller's buffer and the file at its offset, so pieces
+ * spanning several files need no staging copy.
+ *
+ * A torrent can have thousands of files, so rather than hold a descriptor for
+ * each, at most `maxOpen` channels are kept open and the least recently used
+ * is closed to make room.  Files are created, at their full (sparse) length,
+ * the first time they're written, except empty files which are created up
+ * front; reading a file that doesn't exist yet gives zeros.
+ *
+ * Positional reads and writes don't touch a channel's position, so several
+ * threads can use the same channel at once.  Only the cache of open channels
+ * is locked.  A thread may find its channel closed under it when another
+ * thread evicts it, in which case it simply reopens the file and carries on.
+ */
+public class ChannelStorage implements Storage {
+  public static final int DEFAULT_MAX_OPEN = 64;
+
+  private final FileLayout layout;
+  private final File[] files;
+  private final LinkedHashMap<Integer, FileChannel> open;
+  private boolean closed = false;
+
+  /**
+   * @param layout The files of the torrent
+   * @param dest The file to save a single-file torrent as, or the directory
+   *             to save a multi-file torrent in
+   */
+  public ChannelStorage (FileLayout layout, File dest) throws IOException {
+    this(layout, dest, DEFAULT_MAX_OPEN);
+  }
+
+  public ChannelStorage (FileLayout layout, File dest, final int maxOpen) throws IOException {
+    if (maxOpen < 1) throw new IllegalArgumentException("Need at least one open file");
+    this.layout = layout;
+
+    files = new File[layout.count()];
+    for (int i = 0; i < files.length; i++) files[i] = layout.file(dest, i);
+
+    // Access-ordered, so the eldest entry is the least recently used.
+    open = new LinkedHashMap<Integer, FileChannel>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry (Map.Entry<Integer, FileChannel> eldest) {
+        if (size() <= maxOpen) return false;
+        try { eldest.getValue().close(); }
+        catch (IOException e) { Log.e("Couldn't close " + files[eldest.getKey()] + ": " + e.getMessage()); }
+        return true;
+      }
+    };
+
+    // Nothing will ever be written to an empty file, so make it now.
+    for (int i = 0; i < files.length; i++) {
+      if (layout.length(i) == 0 && !files[i].exists()) {
+        mkdirs(files[i]);
+        files[i].createNewFile();
+      }
+    }
+  }
+
+  private static void mkdirs (File f) throws IOException {
+    File parent = f.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+      throw new IOException("Couldn't create directory " + parent);
+  }
+
+  public long size () { return layout.size(); }
+
+  /** Number of channels currently open. */
+  public synchronized int openFiles () { return open.size(); }
+
+  /**
+   * The channel for a file, opening it if need be.
+   * @param create Whether to create the file if it doesn't exist
+   * @return the channel, or null if the file doesn't exist and `create` is false
+   */
+  private synchronized FileChannel channel (int file, boolean create) throws IOException {
+    if (closed) throw new IOException("Storage is closed");
+    FileChannel channel = open.get(file);
+    if (channel != null) return channel;
+
+    File f = files[file];
+    if (!f.exists()) {
+      if (!create) return null;
+      mkdirs(f);
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    if (raf.length() < layout.length(file)) raf.setLength(layout.length(file));
+    channel = raf.getChannel();
+    open.put(file, channel);
+    return channel;
+  }
+
+  /** Drops a channel that turned out to be closed from the cache, if it's
+   *  still there, so the next lookup opens a fresh one. */
+  private synchronized void forget (int file, FileChannel channel) {
+    if (open.get(file) == channel) open.remove(file);
+  }
+
+  private void check (long offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > size())
+      throw new IndexOutOfBoundsException(
+        "Range " + offset + "+" + length + " is outside storage of " + size() + " bytes"
+      );
+  }
+
+  public void read (long offset, ByteBuffer dst) throws IOException {
+    check(offset, dst.remaining());
+    while (dst.hasRemaining()) {
+      int file = layout.fileAt(offset);
+      long at = offset - layout.offset(file);
+      int n = (int) Math.min(dst.remaining(), layout.length(file) - at);
+
+      int limit = dst.limit();
+      dst.limit(dst.position() + n);
+      while (dst.hasRemaining()) {
+        FileChannel channel = channel(file, false);
+        if (channel == null) break;
+        try {
+          if (channel.read(dst, at + n - dst.remaining()) < 0) break;
+        }
+        catch (ClosedByInterruptException e) { throw e; }
+        catch (ClosedChannelException e) { forget(file, channel); }
+      }
+      while (dst.hasRemaining()) dst.put((byte) 0); // missing or short file
+      dst.limit(limit);
+
+      offset += n;
+    }
+  }
+
+  public void write (long offset, ByteBuffer src) throws IOException {
+    check(offset, src.remaining());
+    while (src.hasRemaining()) {
+      int file = layout.fileAt(offset);
+      long at = offset - layout.offset(file);
+      int n = (int) Math.min(src.remaining(), layout.length(file) - at);
+
+      int limit = src.limit();
+      src.limit(src.position() + n);
+      while (src.hasRemaining()) {
+        FileChannel channel = channel(file, true);
+        try { channel.write(src, at + n - src.remaining()); }
+        catch (ClosedByInterruptException e) { throw e; }
+        catch (ClosedChannelException e) { forget(file, channel); }
+      }
+      src.limit(limit);
+
+      offset += n;
+    }
+  }
+
+  public synchronized void force () throws IOException {
+    for (FileChannel channel : open.values()) channel.force(false);
+  }
+
+  /** Flushes the files the range touches, reopening any that were closed
+   *  to make room for others since they were written. */
+  public void force (long offset, long length) throws IOException {
+    long end = Math.min(offset + length, size());
+    while (offset < end) {
+      int file = layout.fileAt(offset);
+      FileChannel channel = channel(file, false);
+      if (channel != null) {
+        try { channel.force(false); }
+        catch (ClosedByInterruptException e) { throw e; }
+        catch (ClosedChannelException e) { forget(file, channel); continue; }
+      }
+      offset = layout.offset(file) + layout.length(file);
+    }
+  }
+
+  public synchronized void close () throws IOException {
+    closed = true;
+    IOException failure = null;
+    for (Iterator<FileChannel> it = open.values().iterator(); it.hasNext(); ) {
+      FileChannel channel = it.next();
+      try {
+        channel.force(false);
+        channel.close();
+      } catch (IOException e) { failure = e; }
+      it.remove();
+    }
+    if (failure != null) throw failure;
+  }
+}
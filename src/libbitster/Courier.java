@@ -0,0 +1,93 @@
+package libbitster;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads blocks out of storage for uploading.  A handful of couriers, each on
+ * its own thread, serve every {@link Funnel} in the process, all taking memos
+ * off one shared queue, so blocks are served in parallel with each other and
+ * with the Funnels writing new pieces, without threads for every torrent.
+ * An idle courier sleeps on the queue until there's something in it.
+ *
+ * A Funnel hands a "block" memo over wrapped in one of its own: the outer
+ * memo's sender is the Funnel to read from and its payload is the original
+ * memo, whose sender gets the block back as the Funnel used to send it.
+ * Couriers also read whole pieces into a Funnel's {@link PieceCache} on a
+ * "readahead" memo from it.
+ */
+public class Courier extends Actor {
+  /** Number of couriers, shared by all torrents */
+  public static final int COURIERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private static final LinkedBlockingQueue<Memo> shared = new LinkedBlockingQueue<Memo>();
+  private static Courier[] couriers;
+
+  /** Hands a memo from a Funnel to the couriers, starting them if need be. */
+  static void deliver (Memo memo) {
+    synchronized (Courier.class) {
+      if (couriers == null) {
+        couriers = new Courier[COURIERS];
+        for (int i = 0; i < couriers.length; i++) {
+          couriers[i] = new Courier();
+          couriers[i].start();
+        }
+      }
+    }
+    shared.offer(memo);
+  }
+
+  /** Stops the couriers, if they're running. */
+  public static synchronized void off () {
+    if (couriers == null) return;
+    for (Courier c : couriers) c.shutdown();
+    couriers = null;
+  }
+
+  /** Memos waiting for a courier */
+  public static int backlog () { return shared.size(); }
+
+  private Courier () {
+    super();
+  }
+
+  /** Couriers only read, so they never need to hold the process open. */
+  @Override
+  public synchronized void start () {
+    Thread t = new Thread(this, "courier");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  protected void receive (Memo memo) {
+    Funnel funnel = (Funnel) memo.getSender();
+    if (memo.getType().equals("readahead")) {
+      funnel.readAhead((Integer) memo.getPayload());
+      return;
+    }
+    if (!memo.getType().equals("block")) return;
+
+    Memo request = (Memo) memo.getPayload();
+    Message msg = (Message) request.getPayload();
+    try {
+      ByteBuffer block = funnel.get(msg.getIndex(), msg.getBegin(), msg.getBlockLength());
+      Object[] response = { msg, block };
+      request.getSender().post(new Memo("block", response, funnel));
+    } catch (IllegalArgumentException e) {
+      Log.e("Invalid block request: " + e.getMessage());
+    } catch (IndexOutOfBoundsException e) {
+      Log.e("Invalid block request: " + e.getMessage());
+    } catch (IllegalStateException e) {
+      Log.e("Couldn't serve block: " + e.getMessage());
+    }
+  }
+
+  /** Waits on the shared queue; wakes now and then to notice a shutdown. */
+  protected void idle () {
+    try {
+      Memo memo = shared.poll(1, TimeUnit.SECONDS);
+      if (memo != null) receive(memo);
+    } catch (InterruptedException e) {}
+  }
+}
@@ -1,19 +1,24 @@
 package libbitster;
 
-import java.io.DataInputStream;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Deputy is the {@link Actor} that communicates with the Tracker.
  * It communicates the list of peers to the Manager upon request.
+ * Announces are sent through the shared {@link Marshal}, and the Deputy is
+ * ticked by its Manager rather than running a thread of its own.
+ * With an announce-list (BEP 12) each announce goes to the best few trackers
+ * of the first tier that has any not backing off, all at once, and on to
+ * the next tier if none of them answers.
+ * The swarm's size, from announces and from scraping the best tracker every
+ * SCRAPE_INTERVAL, is passed on to the Manager in "swarm" memos.
  * @author Martin Miralles-Cordal
  *
  */
@@ -23,11 +28,25 @@ public class Deputy extends Actor {
   // 'error': error occurred, exception property will be populated
   // 'normal': operating normally (may add more such states later)
 
-  private String announceURL;
+  /** Most trackers of one tier announced to at once */
+  public static final int MAX_PARALLEL = 4;
+  /** Seconds between announces when no tracker has said */
+  public static final int DEFAULT_INTERVAL = 1800;
+  /** Seconds between scrapes */
+  public static final int SCRAPE_INTERVAL = 900;
+
+  // The announce-list: tiers of trackers, each tier shuffled (BEP 12)
+  private ArrayList<ArrayList<Tracker>> tiers = new ArrayList<ArrayList<Tracker>>();
   private String infoHash;
+  private ByteBuffer infoHashBytes;
   private int listenPort;
   private int announceInterval = -1;
+  private int minInterval = 0;        // s, the longest any tracker asked for
   private Manager manager;
+  private boolean halting = false;
+
+  // Announces sent to the Marshal and not yet answered, by URL
+  private HashMap<String, Announce> pending = new HashMap<String, Announce>();
 
   public Exception exception;         // set to an exception if one occurs
 
@@ -41,16 +60,35 @@ public class Deputy extends Actor {
       this.listenPort = port;
       this.manager = manager;
 
-      // assemble our announce URL from metainfo
-      announceURL = metainfo.announce_url.getProtocol() + "://" +
-        metainfo.announce_url.getHost() + ":" + metainfo.announce_url.getPort()
-        + metainfo.announce_url.getPath();
+      // assemble our announce URLs from metainfo; udp trackers take the
+      // same query, which the Marshal packs into a datagram
+      for(int i = 0; i < metainfo.announce_list.size(); i++)
+      {
+        ArrayList<Tracker> tier = new ArrayList<Tracker>();
+        for(String url : metainfo.announce_list.get(i))
+        {
+          URI tracker = URI.create(url);
+          tier.add(new Tracker(tracker.getScheme() + "://" +
+            tracker.getHost() +
+            (tracker.getPort() == -1 ? "" : ":" + tracker.getPort())
+            + (tracker.getRawPath() == null ? "" : tracker.getRawPath()), i));
+        }
+        Collections.shuffle(tier);
+        tiers.add(tier);
+      }
 
       // encode our info hash
-      infoHash = escapeURL(metainfo.info_hash);
-      
-      // posts a memo to itself to announce when thread starts
-      this.post(new Memo("announce", Util.s("&event=started"), this));
+      infoHashBytes = metainfo.info_hash;
+      infoHash = escapeURL(infoHashBytes.duplicate());
+
+      // find out how big the swarm is before we're in it
+      scrape();
+      scheduleScrape();
+
+      // the first announce goes out as soon as the AnnounceScheduler lets
+      // it, so torrents started together don't all announce at once
+      AnnounceScheduler.getInstance().schedule(this,
+        new Memo("announce", Util.s("&event=started"), this), 0, 0, 0, false);
   }
 
   /**
@@ -90,140 +128,457 @@ public class Deputy extends Actor {
   @Override
   protected void receive (Memo memo)
   {
-    // special force reannounce request from Manager.
+    // the Manager is short of peers and wants more, as soon as the tracker's
+    // min interval allows.
     // payload = null
     if (memo.getType().equals("list")) {
-      announce();
+      if(!AnnounceScheduler.getInstance().hurry(this) && pending.isEmpty() && !halting)
+        announce(null, true);
     }
     
-    // periodic reannounce request sent from the Timeout from itself
+    // periodic reannounce request sent from the AnnounceScheduler from itself
     // calls announce(payload)
     else if (memo.getType().equals("announce") && memo.getSender() == this)
     {
-      boolean result = false;
       if(memo.getPayload() instanceof ByteBuffer)
-        result = announce((ByteBuffer) memo.getPayload());
+        announce((ByteBuffer) memo.getPayload(), true);
       else
-        result = announce();
-      
-      if(result)
-      {
-        Util.setTimeout(announceInterval * 1000, new Memo("announce", null, this));
-      }
+        announce(null, true);
+    }
+
+    // time to scrape again, from ourselves
+    else if (memo.getType().equals("scrape") && memo.getSender() == this) {
+      if(halting) return;
+      scrape();
+      scheduleScrape();
+    }
+
+    // a tracker's count of the swarm, from the Marshal
+    // payload = {announce URL, info hash, seeders, leechers, completed}
+    else if (memo.getType().equals("scraped") && memo.getSender() instanceof Marshal) {
+      Object[] payload = (Object[]) memo.getPayload();
+      for(Tracker t : trackers())
+        if(t.url().equals(payload[0]))
+          t.swarm((Integer) payload[2], (Integer) payload[3], (Integer) payload[4]);
+      reportSwarm();
     }
 
     else if (memo.getType().equals("done")) {
-      announce(Util.s("&event=completed"));
+      announce(Util.s("&event=completed"), false);
     }
     
     else if (memo.getType().equals("halt")) {
-      announce(Util.s("&event=stopped"));
-      manager.post(new Memo("done", null, this));
-      shutdown();
+      halting = true;
+      AnnounceScheduler.getInstance().cancel(this);
+      if(!announce(Util.s("&event=stopped"), false))
+        stopped();
+    }
+
+    // the tracker's answer to one of our announces, from the Marshal
+    // payload = {url, body}
+    else if (memo.getType().equals("response") && memo.getSender() instanceof Marshal) {
+      Object[] payload = (Object[]) memo.getPayload();
+      Announce a = pending.remove(payload[0]);
+      if(a != null)
+        response(a, (ByteBuffer) payload[1]);
+    }
+
+    // the answer of a udp tracker, from the Marshal
+    // payload = {url, interval, leechers, seeders, compact peers}
+    else if (memo.getType().equals("announced") && memo.getSender() instanceof Marshal) {
+      Object[] payload = (Object[]) memo.getPayload();
+      Announce a = pending.remove(payload[0]);
+      if(a == null) return;
+      try {
+        a.tracker.swarm((Integer) payload[3], (Integer) payload[2], -1);
+        answered(a, parsePeers((ByteBuffer) payload[4]), (Integer) payload[1]);
+      } catch (IllegalArgumentException e) {
+        failed(a, "invalid tracker response");
+      }
+    }
+
+    // an announce failed, from the Marshal
+    // payload = {url, reason}
+    else if (memo.getType().equals("error") && memo.getSender() instanceof Marshal) {
+      Object[] payload = (Object[]) memo.getPayload();
+      Announce a = pending.remove(payload[0]);
+      if(a != null)
+        failed(a, (String) payload[1]);
     }
   }
 
   /**
-   * Sends an HTTP GET request and gets fresh info from the tracker.
+   * The Deputy doesn't run a thread of its own; its {@link Manager} ticks it,
+   * and announces go out through the shared {@link Marshal}.  So there's
+   * nothing to do, and no reason to sleep, when there are no memos.
    */
-  private boolean announce()
+  @Override
+  protected void idle () {}
+
+  /** Tells the manager we're done with the tracker, and stops. */
+  private void stopped ()
   {
-    return announce(null);
+    manager.post(new Memo("done", null, this));
+    shutdown();
   }
 
-  @SuppressWarnings({ "unchecked", "rawtypes" })
   /**
-   * Sends an HTTP GET request and gets fresh info from the tracker.
+   * Starts a round of announces.  The answers come back later as memos from
+   * the {@link Marshal}.
    * @param args extra parameters for the HTTP GET request. Must start with "&".
+   * @param periodic whether the next announce should be scheduled from the
+   *        trackers' responses
+   * @return false if there is no tracker to announce to
+   */
+  private boolean announce(ByteBuffer args, boolean periodic)
+  {
+    Log.info("Contacting tracker...");
+
+    // no longer in init state, may switch to error later
+    this.setState("normal");
+
+    Round round = new Round(args, periodic);
+
+    // The trackers we've been talking to are the ones to hear we're
+    // leaving, or that we've finished, however they've been doing lately.
+    if(round.stopping || round.completed)
+    {
+      ArrayList<Tracker> known = new ArrayList<Tracker>();
+      for(ArrayList<Tracker> tier : tiers)
+        for(Tracker t : tier)
+          if(t.successes() > 0) known.add(t);
+      for(Tracker t : known) send(round, t);
+      if(round.outstanding > 0) return true;
+      if(round.stopping) return false;
+    }
+
+    if(send(round, 0)) return true;
+    if(periodic) retryLater(round);
+    return false;
+  }
+
+  /**
+   * Announces to the best few trackers of the first tier, from `from` on,
+   * that has any not backing off from an earlier failure.
+   * @return false if every tracker is backing off
    */
-  private boolean announce(ByteBuffer args)
+  private boolean send(Round round, int from)
   {
-    if(announceURL == null)
-      return false;
-    else
+    long now = System.currentTimeMillis();
+    for(int i = from; i < tiers.size(); i++)
     {
-      Log.info("Contacting tracker...");
+      ArrayList<Tracker> ready = new ArrayList<Tracker>();
+      for(Tracker t : tiers.get(i))
+        if(t.ready(now)) ready.add(t);
+      if(ready.isEmpty()) continue;
+
+      // Best first; trackers still working on an earlier announce of ours
+      // will answer that, and it answers this round too.
+      Collections.sort(ready, BY_SCORE);
+      round.tier = i;
+      for(Tracker t : ready.subList(0, Math.min(MAX_PARALLEL, ready.size())))
+      {
+        Announce busy = inFlight(t);
+        if(busy != null)
+          busy.round.periodic |= round.periodic;
+        else
+          send(round, t);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static final Comparator<Tracker> BY_SCORE = new Comparator<Tracker>() {
+    public int compare(Tracker a, Tracker b) {
+      return Double.compare(b.score(), a.score());
+    }
+  };
 
-      // no longer in init state, may switch to error later
-      this.setState("normal");
+  /** The announce a tracker hasn't answered yet, if any. */
+  private Announce inFlight(Tracker t)
+  {
+    for(Announce a : pending.values())
+      if(a.tracker == t) return a;
+    return null;
+  }
 
-      StringBuffer finalURL = new StringBuffer();
-      // add announce URL
-      finalURL.append(announceURL);
+  /** Sends one tracker an announce, as part of a round. */
+  private void send(Round round, Tracker tracker)
+  {
+    StringBuffer finalURL = new StringBuffer();
+    // add announce URL
+    finalURL.append(tracker.url());
 
-      // add info hash
-      finalURL.append("?info_hash=");
-      finalURL.append(infoHash);
+    // add info hash
+    finalURL.append("?info_hash=");
+    finalURL.append(infoHash);
 
-      // add peer ID
-      finalURL.append("&peer_id=");
-      finalURL.append(escapeURL(Util.buff2str(manager.getPeerId())));
+    // add peer ID
+    finalURL.append("&peer_id=");
+    finalURL.append(escapeURL(Util.buff2str(manager.getPeerId())));
 
-      // add port
-      finalURL.append("&port=");
-      finalURL.append(this.listenPort);
+    // add port
+    finalURL.append("&port=");
+    finalURL.append(this.listenPort);
 
-      // add uploaded
-      finalURL.append("&uploaded=");
-      finalURL.append(manager.getUploaded());
+    // add uploaded
+    finalURL.append("&uploaded=");
+    finalURL.append(manager.getUploaded());
 
-      // add downloaded
-      finalURL.append("&downloaded=");
-      finalURL.append(manager.getDownloaded());
+    // add downloaded
+    finalURL.append("&downloaded=");
+    finalURL.append(manager.getDownloaded());
 
-      // add amount left
-      finalURL.append("&left=");
-      finalURL.append(manager.getLeft());
-      
-      if(args != null)
+    // add amount left
+    finalURL.append("&left=");
+    finalURL.append(manager.getLeft());
+    
+    if(round.args != null)
+    {
+      finalURL.append(Util.buff2str(round.args));
+    }
+
+    String url = finalURL.toString();
+    if(pending.containsKey(url))
+      return; // the same announce is already on its way
+
+    pending.put(url, new Announce(round, tracker));
+    round.outstanding++;
+    Log.info("Announce URL = " + url);
+    Marshal.getInstance().post(new Memo("get", url, this));
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  /**
+   * Handles an HTTP tracker's answer to an announce.
+   */
+  private void response(Announce a, ByteBuffer body)
+  {
+    try {
+      // bdecode response
+      Map response = (Map) BencodeReader.decode(body);
+
+      Object failure = response.get(Util.s("failure reason"));
+      if(failure instanceof ByteBuffer)
       {
-        finalURL.append(Util.buff2str(args));
+        byte[] reason = new byte[((ByteBuffer) failure).remaining()];
+        ((ByteBuffer) failure).duplicate().get(reason);
+        failed(a, "tracker refused announce: " + new String(reason));
+        return;
       }
 
-      try {
-        // send request to tracker
-        Log.info("Announce URL = " + finalURL.toString());
-        URL tracker = new URL(finalURL.toString());
-        URLConnection trackerConn = tracker.openConnection();
-
-        // read response
-        byte[] bytes = new byte[trackerConn.getContentLength()];
-        DataInputStream dis = new DataInputStream(trackerConn.getInputStream());
-        dis.readFully(bytes);
-
-        // bdecode response
-        Map response = (Map) Bencoder2.decode(bytes);
-
-        // get our peer list and work it into something nicer
-        Object rawPeers = response.get(Util.s("peers"));
-        ArrayList<Map<String,Object>> peers = null;
-        if(rawPeers instanceof ArrayList<?>)
-          peers = parsePeers((ArrayList<Map>) rawPeers);
-        else if(rawPeers instanceof ByteBuffer)
-          peers = parsePeers((ByteBuffer) rawPeers);
-        
-        // send updated peer list to manager
-        if(!Util.buff2str(args).equals("&event=stopped"))
-          manager.post(new Memo("peers", peers, this));
-
-        // get our announce interval
-        announceInterval = (Integer) response.get(Util.s("interval"));
-        return true;
-      } catch (MalformedURLException e) {
-        error(e, "Error: malformed announce URL " + finalURL.toString());
-      } catch (IOException e) {
-        Log.error("Warning: Unable to communicate with tracker. Retrying in 60 seconds...");
-        
-        // Try again in a minute
-        Util.setTimeout(60000, new Memo("announce", args, this));
-      } catch (BencodingException e) {
-        error(e, "Error: invalid tracker response.");
-      }
-      return false;
+      // get our peer list and work it into something nicer
+      Object rawPeers = response.get(Util.s("peers"));
+      ArrayList<Map<String,Object>> peers = null;
+      if(rawPeers instanceof ArrayList<?>)
+        peers = parsePeers((ArrayList<Map>) rawPeers);
+      else if(rawPeers instanceof ByteBuffer)
+        peers = parsePeers((ByteBuffer) rawPeers);
+      
+      // get our announce interval, and how soon we may announce again
+      Object interval = response.get(Util.s("interval"));
+      Object min = response.get(Util.s("min interval"));
+      if(min instanceof Number)
+        a.round.minInterval = Math.max(a.round.minInterval, ((Number) min).intValue());
+
+      // and how big the swarm is, if it says
+      Object complete = response.get(Util.s("complete"));
+      Object incomplete = response.get(Util.s("incomplete"));
+      a.tracker.swarm(complete instanceof Number ? ((Number) complete).intValue() : -1,
+        incomplete instanceof Number ? ((Number) incomplete).intValue() : -1, -1);
+      answered(a, peers, interval instanceof Number ? ((Number) interval).intValue() : -1);
+    } catch (BencodingException e) {
+      error(e, "Error: invalid tracker response.");
+      failed(a, "invalid tracker response");
+    } catch (RuntimeException e) {
+      error(e, "Error: invalid tracker response.");
+      failed(a, "invalid tracker response");
     }
   }
 
-  private ArrayList<Map<String, Object>> parsePeers(ByteBuffer rawPeers) {
+  /**
+   * Passes on the peers from a tracker's answer; the Manager merges them
+   * with what other trackers said.
+   * @param interval seconds until the next announce, or -1 if not given
+   */
+  private void answered(Announce a, ArrayList<Map<String, Object>> peers, int interval)
+  {
+    a.tracker.succeeded(System.currentTimeMillis() - a.sent,
+      peers == null ? 0 : peers.size(), interval);
+
+    // send updated peer list to manager
+    if(peers != null && !halting)
+      manager.post(new Memo("peers", peers, this));
+    reportSwarm();
+
+    Round round = a.round;
+    round.answered = true;
+    if(interval > 0 && (round.interval < 0 || interval < round.interval))
+      round.interval = interval;
+    finished(round);
+  }
+
+  /** Notes an announce that got no useful answer. */
+  private void failed(Announce a, String why)
+  {
+    long delay = a.tracker.failed(System.currentTimeMillis());
+    Log.error("Warning: Unable to communicate with tracker " + a.tracker.url()
+      + " (" + why + "). Not trying it again for " + delay / 1000 + " seconds.");
+    finished(a.round);
+  }
+
+  /**
+   * Counts off an answered announce.  Once the whole round is in: schedules
+   * the next one if it was answered, or moves on to the next tier if not.
+   */
+  private void finished(Round round)
+  {
+    if(--round.outstanding > 0) return;
+
+    if(round.stopping)
+    {
+      stopped();
+      return;
+    }
+    if(halting) return;
+
+    if(round.answered)
+    {
+      if(round.interval > 0) announceInterval = round.interval;
+      minInterval = round.minInterval;
+      if(round.periodic)
+        AnnounceScheduler.getInstance().schedule(this, new Memo("announce", null, this),
+          (announceInterval > 0 ? announceInterval : DEFAULT_INTERVAL) * 1000L,
+          minInterval * 1000L, peerCount(), true);
+    }
+    else if(!send(round, round.tier + 1) && round.periodic)
+    {
+      this.setState("error");
+      retryLater(round);
+    }
+  }
+
+  /** Tries a round again when the first tracker is done backing off. */
+  private void retryLater(Round round)
+  {
+    long soonest = Long.MAX_VALUE;
+    for(ArrayList<Tracker> tier : tiers)
+      for(Tracker t : tier)
+        soonest = Math.min(soonest, t.retryAt());
+    long delay = Math.max(1000, soonest - System.currentTimeMillis());
+    Log.error("Warning: No tracker answered. Retrying in " + delay / 1000 + " seconds...");
+    AnnounceScheduler.getInstance().schedule(this, new Memo("announce", round.args, this),
+      delay, minInterval * 1000L, peerCount(), false);
+  }
+
+  /**
+   * The peer count the AnnounceScheduler goes by.  A torrent whose swarm
+   * has no one more to offer isn't short of peers, however few it has, so
+   * announcing sooner wouldn't help it.
+   */
+  private int peerCount()
+  {
+    return manager.wantsPeers() ? manager.getPeerCount() : AnnounceScheduler.LOW_PEERS;
+  }
+
+  /**
+   * Asks the best tracker that can be scraped how big the swarm is.  The
+   * answer comes back later as a "scraped" memo from the {@link Marshal}.
+   */
+  private void scrape()
+  {
+    long now = System.currentTimeMillis();
+    for(ArrayList<Tracker> tier : tiers)
+    {
+      ArrayList<Tracker> ready = new ArrayList<Tracker>();
+      for(Tracker t : tier)
+        if(t.ready(now) && Marshal.scrapeUrl(t.url()) != null) ready.add(t);
+      if(ready.isEmpty()) continue;
+
+      Collections.sort(ready, BY_SCORE);
+      Marshal.getInstance().post(new Memo("scrape",
+        new Object[] { ready.get(0).url(), infoHashBytes }, this));
+      return;
+    }
+  }
+
+  /**
+   * Scrapes again at the next multiple of SCRAPE_INTERVAL by the clock,
+   * when every other torrent does, so that the Marshal asks each tracker
+   * about all of them in one request.
+   */
+  private void scheduleScrape()
+  {
+    long period = SCRAPE_INTERVAL * 1000L;
+    Util.setTimeout((int) (period - System.currentTimeMillis() % period),
+      new Memo("scrape", null, this));
+  }
+
+  /**
+   * Tells the Manager how big the swarm is: the most any tracker has said,
+   * since each may only know part of it.
+   */
+  private void reportSwarm()
+  {
+    int seeders = -1, leechers = -1, completed = -1;
+    for(Tracker t : trackers())
+    {
+      seeders = Math.max(seeders, t.seeders());
+      leechers = Math.max(leechers, t.leechers());
+      completed = Math.max(completed, t.completed());
+    }
+    if(seeders >= 0 && !halting)
+      manager.post(new Memo("swarm", new int[] { seeders, leechers, completed }, this));
+  }
+
+  /** The trackers, for status logging. */
+  public ArrayList<Tracker> trackers()
+  {
+    ArrayList<Tracker> all = new ArrayList<Tracker>();
+    for(ArrayList<Tracker> tier : tiers)
+      all.addAll(tier);
+    return all;
+  }
+
+  /** One announce, to as many trackers as it takes to get an answer. */
+  private static class Round {
+    final ByteBuffer args;
+    boolean periodic;
+    final boolean stopping;
+    final boolean completed;
+    int tier = 0;           // the tier it was last sent to
+    int outstanding = 0;    // announces not yet answered
+    boolean answered = false;
+    int interval = -1;      // the shortest any tracker asked for
+    int minInterval = 0;    // the longest min interval any tracker gave
+
+    Round (ByteBuffer args, boolean periodic) {
+      this.args = args;
+      this.periodic = periodic;
+      String event = args == null ? "" : Util.buff2str(args);
+      this.stopping = event.equals("&event=stopped");
+      this.completed = event.equals("&event=completed");
+    }
+  }
+
+  /** An announce to one tracker, waiting for its answer. */
+  private static class Announce {
+    final Round round;
+    final Tracker tracker;
+    final long sent = System.currentTimeMillis();
+
+    Announce (Round round, Tracker tracker) {
+      this.round = round;
+      this.tracker = tracker;
+    }
+  }
+
+  /**
+   * Turns a compact peer list, 6 bytes per peer, into the same shape as a
+   * dictionary peer list.
+   */
+  public static ArrayList<Map<String, Object>> parsePeers(ByteBuffer rawPeers) {
     if(rawPeers.remaining() % 6 != 0) {
       throw new IllegalArgumentException("Invalid binary peer list");
     }
@@ -271,12 +626,14 @@ public class Deputy extends Actor {
 
       // get this peer's ip
       ByteBuffer ip_bytes = (ByteBuffer) rawPeerList.get(i).get(Util.s("ip"));
-      String ip = new String(ip_bytes.array());
+      byte[] ip_array = new byte[ip_bytes.remaining()];
+      ip_bytes.duplicate().get(ip_array);
+      String ip = new String(ip_array);
       peerInfo.put("ip", ip);
 
       // get this peer's port
-      Integer port = (Integer) rawPeerList.get(i).get(Util.s("port"));
-      peerInfo.put("port", port);
+      Number port = (Number) rawPeerList.get(i).get(Util.s("port"));
+      peerInfo.put("port", port.intValue());
 
       // add it to our peer list
       processedPeerList.add(peerInfo);
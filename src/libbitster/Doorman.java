@@ -0,0 +1,233 @@
+package libbitster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Singleton.  Listens on one port for every torrent, so how many torrents
+ * can take incoming connections isn't limited by how many ports we try.
+ *
+ * Each connection's handshake is read here, on one thread selecting with
+ * its own {@link Overlord}.  The info hash in it picks the torrent, and the
+ * connection is handed, with the handshake, to that torrent's
+ * {@link Manager} as an "incoming" memo; the Manager's Broker carries on
+ * from there without reading the handshake again.  Connections for
+ * torrents we don't have, that don't send a handshake in time, or that send
+ * something else are closed.
+ */
+public class Doorman extends Actor implements Communicator {
+  /** Ports tried, in order, for the shared listen port */
+  public static final int FIRST_PORT = 6881, LAST_PORT = 6889;
+  /** Length of a handshake with the standard 19-byte protocol id */
+  public static final int HANDSHAKE_LENGTH = 68;
+  /** How long a connection has to send its handshake, in ms */
+  public static final int HANDSHAKE_TIMEOUT = 10000;
+  /** Most connections waiting on a handshake at once */
+  public static final int MAX_WAITING = 512;
+
+  private static Doorman instance;
+
+  private final Overlord overlord = new Overlord();
+  private final ServerSocketChannel listen;
+
+  // Torrents by info hash.  Managers register from their own threads.
+  private final HashMap<ByteBuffer, Actor> torrents = new HashMap<ByteBuffer, Actor>();
+  private final ArrayList<Visitor> waiting = new ArrayList<Visitor>();
+  private long lastSweep = System.currentTimeMillis();
+
+  // Metrics
+  private volatile long accepted = 0;
+  private volatile long handedOff = 0;
+  private volatile long unknown = 0;   // asked for a torrent we don't have
+  private volatile long dropped = 0;   // bad or late handshakes, or no room
+
+  /** A connection whose handshake we're waiting for. */
+  private class Visitor implements Communicator {
+    final SocketChannel channel;
+    final ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+    final long since = System.currentTimeMillis();
+
+    Visitor (SocketChannel channel) { this.channel = channel; }
+
+    public boolean onReadable () {
+      try {
+        // Never reads past the handshake; what follows is the Broker's
+        if (channel.read(handshake) < 0) throw new IOException("eof");
+      } catch (IOException e) {
+        drop();
+        return false;
+      }
+      if (handshake.position() > 0 && handshake.get(0) != 19) {
+        drop();
+        return false;
+      }
+      if (handshake.hasRemaining()) return true;
+
+      waiting.remove(this);
+      overlord.unregister(channel);
+      Actor manager = lookup(ByteBuffer.wrap(handshake.array(), 28, 20));
+      if (manager == null) {
+        unknown++;
+        close();
+        return false;
+      }
+      handshake.flip();
+      manager.post(new Memo("incoming", new Object[] { channel, handshake }, Doorman.this));
+      handedOff++;
+      return false;
+    }
+
+    void drop () {
+      waiting.remove(this);
+      dropped++;
+      close();
+    }
+
+    void close () {
+      try { channel.close(); } catch (IOException e) {}
+    }
+
+    public boolean onWritable () { return true; }
+    public boolean onAcceptable () { return false; }
+    public boolean onConnectable () { return false; }
+  }
+
+  /**
+   * Listens on the given port.
+   * @param port the port, or 0 for any free one
+   */
+  public Doorman (int port) throws IOException {
+    super();
+    listen = ServerSocketChannel.open();
+    listen.socket().setReuseAddress(true);
+    listen.socket().bind(new InetSocketAddress(port), 1024);
+    listen.configureBlocking(false);
+    overlord.register(listen, this, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * The shared Doorman, started the first time it's asked for on the first
+   * free port from FIRST_PORT to LAST_PORT.
+   * @return null if none of them is free
+   */
+  public static synchronized Doorman getInstance () {
+    if (instance == null) {
+      for (int port = FIRST_PORT; port <= LAST_PORT && instance == null; port++) {
+        try { instance = new Doorman(port); }
+        catch (IOException e) {} // taken; try the next
+      }
+      if (instance != null) instance.start();
+    }
+    return instance;
+  }
+
+  /** Stops the shared Doorman, if there is one. */
+  public static synchronized void off () {
+    if (instance != null) instance.post(new Memo("halt", null, null));
+    instance = null;
+  }
+
+  public int port () { return listen.socket().getLocalPort(); }
+
+  /**
+   * Sends connections for a torrent to the given Manager.
+   * @return false if another Manager has the torrent
+   */
+  public synchronized boolean register (ByteBuffer infoHash, Actor manager) {
+    ByteBuffer key = copy(infoHash);
+    Actor other = torrents.get(key);
+    if (other != null && other != manager) return false;
+    torrents.put(key, manager);
+    return true;
+  }
+
+  /** Stops sending connections for a torrent to the given Manager. */
+  public synchronized void unregister (ByteBuffer infoHash, Actor manager) {
+    ByteBuffer key = copy(infoHash);
+    if (torrents.get(key) == manager) torrents.remove(key);
+  }
+
+  private synchronized Actor lookup (ByteBuffer infoHash) {
+    return torrents.get(infoHash);
+  }
+
+  private static ByteBuffer copy (ByteBuffer b) {
+    byte[] bytes = new byte[20];
+    ByteBuffer d = b.duplicate();
+    d.position(0);
+    d.get(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /** Wakes the selector, so a memo doesn't wait out a select(). */
+  @Override
+  public void post (Memo memo) {
+    super.post(memo);
+    overlord.wakeup();
+  }
+
+  protected void receive (Memo memo) {
+    if (memo.getType().equals("halt")) {
+      for (Visitor v : waiting) v.close();
+      waiting.clear();
+      try { listen.close(); } catch (IOException e) {}
+      overlord.close();
+      shutdown();
+    }
+  }
+
+  protected void idle () {
+    if (!listen.isOpen()) return;
+    overlord.communicate(100);
+
+    // Close connections that are taking too long to say what they want
+    long now = System.currentTimeMillis();
+    if (now - lastSweep > 1000) {
+      lastSweep = now;
+      ArrayList<Visitor> late = new ArrayList<Visitor>();
+      for (Visitor v : waiting) if (now - v.since > HANDSHAKE_TIMEOUT) late.add(v);
+      for (Visitor v : late) v.drop();
+    }
+  }
+
+  public boolean onAcceptable () {
+    try {
+      SocketChannel sc;
+      while ((sc = listen.accept()) != null) {
+        accepted++;
+        if (waiting.size() >= MAX_WAITING) {
+          dropped++;
+          sc.close();
+          continue;
+        }
+        sc.configureBlocking(false);
+        Visitor v = new Visitor(sc);
+        if (overlord.register(sc, v, SelectionKey.OP_READ)) waiting.add(v);
+        else sc.close();
+      }
+    } catch (IOException e) {}
+    return true;
+  }
+
+  public boolean onReadable () { return true; }
+  public boolean onWritable () { return true; }
+  public boolean onConnectable () { return false; }
+
+  public long accepted () { return accepted; }
+  public long handedOff () { return handedOff; }
+  public long unknown () { return unknown; }
+  public long dropped () { return dropped; }
+  public synchronized int torrents () { return torrents.size(); }
+
+  public String toString () {
+    return "Doorman on port " + port() + ": " + torrents() + " torrents, " + accepted
+      + " accepted, " + handedOff + " handed off, " + unknown + " for unknown torrents, "
+      + dropped + " dropped";
+  }
+}
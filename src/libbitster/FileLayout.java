@@ -0,0 +1,136 @@
+package libbitster;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Where the files of a torrent sit in its byte stream.  The files of a
+ * multi-file torrent are concatenated and then cut into pieces with no regard
+ * for file boundaries, so one piece may span several files and one file many
+ * pieces.  This maps offsets in the stream to files and back, and tracks how
+ * many pieces each file still needs so we can tell when a file is complete.
+ */
+public class FileLayout {
+  private final boolean multiFile;
+  private final String[] paths;
+  private final long[] lengths;
+  private final long[] offsets; // offsets[i] is where file i starts; one extra at the end
+  private final int pieceLength;
+  private final int pieceCount;
+
+  // Per-file completion
+  private final int[] missing;  // pieces each file still needs
+  private final BitSet done;    // pieces we've counted
+  private int completed = 0;
+
+  public FileLayout (TorrentInfo info) {
+    this(info.multi_file, info.file_paths, info.file_lengths, info.piece_length);
+  }
+
+  /**
+   * @param multiFile Whether the files live in a directory of their own
+   * @param paths The path of each file, '/' separated
+   * @param lengths The length of each file
+   * @param pieceLength The length of every piece but the last
+   */
+  public FileLayout (boolean multiFile, String[] paths, long[] lengths, int pieceLength) {
+    if (paths.length != lengths.length || paths.length == 0)
+      throw new IllegalArgumentException("Need one length per path, and at least one file");
+
+    this.multiFile = multiFile;
+    this.paths = paths;
+    this.lengths = lengths;
+    this.pieceLength = pieceLength;
+
+    offsets = new long[lengths.length + 1];
+    for (int i = 0; i < lengths.length; i++) offsets[i + 1] = offsets[i] + lengths[i];
+    pieceCount = (int) ((size() + pieceLength - 1) / pieceLength);
+
+    missing = new int[lengths.length];
+    for (int i = 0; i < lengths.length; i++) {
+      missing[i] = lengths[i] == 0 ? 0 : lastPiece(i) - firstPiece(i) + 1;
+      if (missing[i] == 0) completed++;
+    }
+    done = new BitSet(pieceCount);
+  }
+
+  public int count () { return lengths.length; }
+  public boolean isMultiFile () { return multiFile; }
+  public String path (int file) { return paths[file]; }
+  public long length (int file) { return lengths[file]; }
+  public long offset (int file) { return offsets[file]; }
+  public long size () { return offsets[lengths.length]; }
+  public int pieceCount () { return pieceCount; }
+
+  /**
+   * Where a file lives on disk.  A single-file torrent is saved as `dest`
+   * itself; the files of a multi-file torrent go under `dest` as a directory.
+   */
+  public File file (File dest, int file) {
+    if (!multiFile) return dest;
+    return new File(dest, paths[file].replace('/', File.separatorChar));
+  }
+
+  /** Index of the file holding the byte at the given offset.  Empty files
+   *  hold no bytes so are never returned. */
+  public int fileAt (long offset) {
+    if (offset < 0 || offset >= size())
+      throw new IndexOutOfBoundsException("Offset " + offset + " is outside the torrent");
+
+    // Last file starting at or before the offset; empty files share their
+    // start with the next one, so the search skips past them.
+    int lo = 0, hi = lengths.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (offsets[mid] <= offset) lo = mid;
+      else hi = mid - 1;
+    }
+    return lo;
+  }
+
+  /** First piece holding any of the given file.  Meaningless for an empty file. */
+  public int firstPiece (int file) {
+    return (int) (offsets[file] / pieceLength);
+  }
+
+  /** Last piece holding any of the given file.  Meaningless for an empty file. */
+  public int lastPiece (int file) {
+    return (int) ((offsets[file + 1] - 1) / pieceLength);
+  }
+
+  /** Files the given piece holds some of, in order. */
+  public List<Integer> filesOf (int piece) {
+    List<Integer> files = new ArrayList<Integer>(2);
+    long start = (long) piece * pieceLength;
+    long end = Math.min(start + pieceLength, size());
+    for (int f = fileAt(start); f < lengths.length && offsets[f] < end; f++) {
+      if (lengths[f] > 0) files.add(f);
+    }
+    return files;
+  }
+
+  /**
+   * Records that we have a piece.
+   * @return the files this piece completed, if any
+   */
+  public List<Integer> pieceDone (int piece) {
+    List<Integer> finished = new ArrayList<Integer>(1);
+    if (done.get(piece)) return finished;
+    done.set(piece);
+
+    for (int f : filesOf(piece)) {
+      if (--missing[f] == 0) {
+        completed++;
+        finished.add(f);
+      }
+    }
+    return finished;
+  }
+
+  public boolean fileComplete (int file) { return missing[file] == 0; }
+
+  /** Number of files we have in full, counting empty ones. */
+  public int completedFiles () { return completed; }
+}
@@ -3,35 +3,91 @@ package libbitster;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
-import java.io.*;
+import java.util.BitSet;
 
 /** Assembles pieces together into a file, actually runs the piece verification,
- *  and can write the completed data to a file.
+ *  and can write the completed data to a file.  Multi-file torrents are written
+ *  into a directory, with pieces split across the files they span, and a
+ *  "file complete" memo is posted as each file is finished.
+ *  
+ *  Blocks for uploading are read by the {@link Courier}s, a few threads
+ *  shared by every Funnel, rather than by the Funnel, so serving blocks
+ *  doesn't wait on, or hold up, writing pieces.  Only pieces that have been
+ *  verified are served.
+ *  When a peer asks for the start of a piece the couriers read the whole
+ *  piece into a {@link PieceCache}, so the blocks asked for next come from
+ *  memory rather than stalling on the disk.
+ *  
+ *  Verified pieces are written behind: they queue up in a {@link WriteBehind}
+ *  while memos keep arriving, and are written together, neighbours joined,
+ *  once the Funnel runs out of memos or has a full write's worth.  Writes are
+ *  forced to disk on a byte or time threshold rather than only on "save".
+ *  
+ *  Blocks of unfinished pieces are written to their place in storage as they
+ *  arrive, in "block data" memos, and recorded in a {@link PartialPieces}
+ *  file beside the download.  Once the piece is finished only the blocks not
+ *  already on disk are written, usually just the last.  How many bytes of
+ *  "block data" have been dealt with is reported back in "blocks written"
+ *  memos, so the creator can count them against its write budget.  On
+ *  restart each partly downloaded piece is read back and handed to the
+ *  creator in a "partial" memo, so only its missing blocks need downloading
+ *  again.
  *  @author Theodore Surgent
  */
 public class Funnel extends Actor {
   private static final int defaultBlockSize = 16384;
-  private int size;
+  private long size;
   private int pieceSize;
   private int pieceCount;
-  private ByteBuffer[] hashes;
-  private RandomAccessFile file;
-  private MappedByteBuffer dest;
+  private TorrentInfo info;
+  private FileLayout layout;
+  private Storage dest;
+  
+  // Pieces on disk that have passed their hash check; guarded by itself
+  private final BitSet verified = new BitSet();
+  
+  // Verified pieces read ahead for uploading
+  private final PieceCache cache = new PieceCache();
+  
+  // Verified pieces waiting to be written
+  private WriteBehind writer;
+  
+  // Blocks of unfinished pieces on disk; null when nothing outlives us
+  private PartialPieces partial;
+  
+  // Bytes of "block data" dealt with but not yet reported, and to whom
+  private long blockBytes = 0;
+  private Actor blockSender;
+  
+  /** Storage kinds that can be asked for by name */
+  public static final String[] STORAGE_KINDS = { "mmap", "channel", "memory" };
   
   /**
-   * Creates Funnel representing a single file being downloaded
-   * @param size The size of the expected file
-   * @param pieceSize The size of each piece being received except possibly the last (usually 2^14 or 16KB)
+   * Creates Funnel representing the file or files being downloaded, using
+   * the default storage for the torrent
+   * @param info The torrent's metainfo
+   * @param dest The file to save to, or for a multi-file torrent the directory
+   * @param creator Who to tell which pieces are already done
    * @throws IOException 
    */
   public Funnel(TorrentInfo info, File dest, Actor creator) throws IOException {
+    this(info, dest, creator, null);
+  }
+  
+  /**
+   * Creates Funnel representing the file or files being downloaded
+   * @param info The torrent's metainfo
+   * @param dest The file to save to, or for a multi-file torrent the directory
+   * @param creator Who to tell which pieces are already done
+   * @param storage One of {@link #STORAGE_KINDS}, or null for the default
+   * @throws IOException 
+   */
+  public Funnel(TorrentInfo info, File dest, Actor creator, String storage) throws IOException {
     size = info.file_length;
     pieceSize = info.piece_length;
-    pieceCount =  (int)Math.ceil((double)size / (double)pieceSize);
-    hashes = info.piece_hashes;
+    pieceCount = (int)((size + pieceSize - 1) / pieceSize);
+    this.info = info;
     
     if(size < 0 || pieceSize < 0 || size < pieceSize) {
       String msg = "Bad size arguments in Funnel constructor";
@@ -39,22 +95,119 @@ public class Funnel extends Actor {
       throw new IllegalArgumentException(msg);
     }
     
-    if(!dest.exists())
-        dest.createNewFile();
-    
-    this.file = new RandomAccessFile(dest, "rw");
-    this.dest = file.getChannel().map(MapMode.READ_WRITE, 0, size);
+    layout = new FileLayout(info);
+
+    if(storage == null)
+      storage = defaultStorage(info);
+
+    // A file we are creating can't have anything in it worth checking
+    boolean fresh = storage.equals("memory") || !dest.exists() ||
+      (!info.multi_file && dest.length() == 0);
+    this.dest = openStorage(storage, layout, dest);
+    writer = new WriteBehind(this.dest, pieceSize);
+    Log.info("Funnel using " + storage + " storage");
+
+    if(!storage.equals("memory")) {
+      File record = partialsFile(dest);
+      if(fresh && record.exists() && !record.delete())
+        Log.warning("Couldn't delete stale " + record);
+      partial = new PartialPieces(record, defaultBlockSize);
+    }
 
-    ArrayList<Piece> donePieces = new ArrayList<Piece>();
+    BitSet donePieces = new BitSet(pieceCount);
     
-    for(int i = 0; i < pieceCount; ++i) {
+    for(int i = 0; i < pieceCount && !fresh; ++i) {
       Piece p = getPieceNoValidate(i); //Avoid spitting hash fails to the log
       
-      if(p.isValid())
-        donePieces.add(p);
+      if(p.isValid()) {
+        donePieces.set(i);
+        layout.pieceDone(i);
+      }
     }
+    markVerified(donePieces);
+    
+    // Partial pieces first, so they're counted before the creator resumes
+    if(partial != null)
+      restorePartials(donePieces, creator);
+    
     Log.info("Funnel initialized.");
     creator.post(new Memo("pieces", donePieces, this));
+    
+    for(int i = 0; i < layout.count(); ++i) {
+      if(layout.fileComplete(i))
+        creator.post(new Memo("file complete", Integer.valueOf(i), this));
+    }
+  }
+
+  /** Where the record of partly downloaded pieces is kept for a download */
+  public static File partialsFile(File dest) {
+    return new File(dest.getPath() + ".parts");
+  }
+  
+  /**
+   * Reads back the blocks of each partly downloaded piece and posts them to
+   * the creator as a "partial" Piece.  Pieces that turn out to be complete
+   * but corrupt, or whose record doesn't fit the piece, are forgotten.
+   */
+  private void restorePartials(BitSet donePieces, Actor creator) {
+    for(Integer index : new ArrayList<Integer>(partial.pieces())) {
+      int n = index.intValue();
+      if(n >= pieceCount || donePieces.get(n)) {
+        partial.remove(n);
+        continue;
+      }
+      
+      int requestedPieceSize = (n < pieceCount - 1) ? pieceSize : lastPieceSize();
+      int blockSize = Math.min(defaultBlockSize, requestedPieceSize);
+      Piece piece = new Piece(info.piece_hashes, info.hashOffset(n), n, blockSize, requestedPieceSize);
+      BitSet have = partial.get(n);
+      try {
+        for(int b = have.nextSetBit(0); b >= 0; b = have.nextSetBit(b + 1)) {
+          int begin = b * blockSize;
+          ByteBuffer block = ByteBuffer.allocate(Math.min(blockSize, requestedPieceSize - begin));
+          dest.read((long)n * pieceSize + begin, block);
+          block.flip();
+          piece.addBlock(begin, block);
+        }
+      } catch (Exception e) {
+        Log.warning("Dropping partial piece " + n + ": " + e.getMessage());
+        partial.remove(n);
+        continue;
+      }
+      
+      if(piece.finished()) {
+        partial.remove(n); // it would have passed the hash check
+        continue;
+      }
+      creator.post(new Memo("partial", piece, this));
+    }
+    if(partial.changed())
+      savePartials();
+  }
+  
+  /**
+   * Memory maps single files, where the whole torrent can stay mapped, and
+   * uses positional channel I/O for multi-file torrents, which may have more
+   * files than we want mapped or open at once.
+   */
+  public static String defaultStorage(TorrentInfo info) {
+    return info.multi_file ? "channel" : "mmap";
+  }
+  
+  /**
+   * Opens a storage backend by name
+   * @param kind One of {@link #STORAGE_KINDS}
+   * @param layout The files of the torrent
+   * @param dest The file or directory to save to; ignored for "memory"
+   */
+  public static Storage openStorage(String kind, FileLayout layout, File dest) throws IOException {
+    if(kind.equals("mmap"))
+      return new MappedStorage(layout, dest);
+    if(kind.equals("channel"))
+      return new ChannelStorage(layout, dest);
+    if(kind.equals("memory"))
+      return new MemoryStorage(layout.size());
+    throw new IllegalArgumentException("Unknown storage " + kind);
   }
 
   /**
@@ -68,6 +221,19 @@ public class Funnel extends Actor {
         throw new IllegalArgumentException("Funnel expects a Piece");
 
       Piece piece = (Piece)memo.getPayload();
+      
+      // Blocks that came in "block data" memos are on disk already, so only
+      // the rest are written, usually just the last; the piece isn't queued
+      boolean written = false;
+      if(partial != null && partial.get(piece.getNumber()) != null) {
+        if(!writeMissing(piece)) {
+          partial.remove(piece.getNumber());
+          memo.getSender().post(new Memo("write_fail", Integer.valueOf(piece.getNumber()), this));
+          return;
+        }
+        written = true;
+      }
+      
       if(!piece.isValid()) {
         //throw new IllegalArgumentException("The piece being recieved by Funnel is not valid");
         Log.error("Piece " + piece.getNumber() + " failed hash check");
@@ -75,6 +241,10 @@ public class Funnel extends Actor {
         //Notify the sender
         memo.getSender().post(new Memo("hash_fail", Integer.valueOf(piece.getNumber()), this));
         
+        //Its blocks on disk are no good either
+        if(partial != null)
+          partial.remove(piece.getNumber());
+        
         return;
       }
       if(!piece.finished())
@@ -85,22 +255,41 @@ public class Funnel extends Actor {
       
       //This is a little fancy around the part with the modulus operator
       //Basically it just gets the minimum number of bytes that the last piece should contain
-      if(piece.getNumber() == pieceCount - 1 && piece.getData().length < ((size - 1) % pieceSize) + 1)
+      if(piece.getNumber() == pieceCount - 1 && piece.getData().length < lastPieceSize())
         throw new IllegalArgumentException("Piece " + piece.getNumber() + " is too small");
 
-      // Send a memo back to the Manager so it can forward it to each broker
-      memo.getSender().post(new Memo("have", memo.getPayload(), this));
-      setPiece(piece);
+      if(written) {
+        stored(memo);
+        return;
+      }
+      writer.add(memo);
+      if(writer.full())
+        commit();
 
     }
+    else if(memo.getType().equals("block data")) {
+      Message msg = (Message)memo.getPayload();
+      writeBlock(msg.getIndex(), msg.getBegin(), msg.getBlock());
+      
+      // Written or not, we're done with it
+      blockSender = memo.getSender();
+      blockBytes += msg.getBlock().limit();
+      if(blockBytes >= WriteBehind.MAX_WRITE)
+        reportBlocks();
+    }
     else if(memo.getType().equals("save")) {
-      dest.force();
-      Log.info("Funnel saved data");
+      commit();
+      try {
+        writer.flush();
+        Log.info("Funnel saved data");
+      } catch (IOException e) { Log.error("Funnel couldn't save data: " + e.getMessage()); }
+      savePartials();
     }
     else if(memo.getType().equals("halt")) {
+      commit();
       Log.info("Funnel shutting down");
-      dest.force();
-      try { file.close(); } catch (IOException e) { e.printStackTrace(); }
+      try { dest.close(); } catch (IOException e) { e.printStackTrace(); }
+      savePartials();
       shutdown();
       memo.getSender().post(new Memo("done", null, this));
     }
@@ -113,58 +302,243 @@ public class Funnel extends Actor {
       
       Integer index = (Integer) memo.getPayload();
       
+      if(writer.isPending(index.intValue()))
+        commit();
       memo.getSender().post(new Memo("piece", getPiece(index.intValue()), this));
     }
+  }
+
+  /** Writes out whatever has queued up, and forces it to disk if it's time. */
+  protected void idle () { 
+    commit();
+    reportBlocks();
+    if(writer.flushDue()) {
+      try {
+        writer.flush();
+      } catch (IOException e) { Log.error("Funnel couldn't flush data: " + e.getMessage()); }
+      savePartials();
+    }
+    try { Thread.sleep(100); } catch (InterruptedException e) {} 
+  }
+
+  /**
+   * Writes the queued pieces and, now they can be served, tells whoever sent
+   * each one that we have it and which files it finished.  Pieces that
+   * couldn't be written are sent back in "write_fail" memos, to be
+   * downloaded again.
+   */
+  private void commit() {
+    if(writer.depth() == 0)
+      return;
+    ArrayList<Memo> failed = new ArrayList<Memo>();
+    for(Memo memo : writer.write(failed))
+      stored(memo);
+    
+    for(Memo memo : failed) {
+      int number = ((Piece)memo.getPayload()).getNumber();
+      // Whatever of it is on disk can't be trusted either
+      if(partial != null)
+        partial.remove(number);
+      memo.getSender().post(new Memo("write_fail", Integer.valueOf(number), this));
+    }
+  }
+  
+  /**
+   * Marks a verified piece that's been written as done, and tells whoever
+   * sent it that we have it and which files it finished.
+   */
+  private void stored(Memo memo) {
+    Piece piece = (Piece)memo.getPayload();
+    synchronized(verified) {
+      verified.set(piece.getNumber());
+    }
+    if(partial != null)
+      partial.remove(piece.getNumber());
     
-    else if(memo.getType().equals("block")) {
-      Message msg = (Message) memo.getPayload();
+    // Send a memo back to the Manager so it can forward it to each broker.
+    // Only now that it's stored can peers be served from it.
+    memo.getSender().post(new Memo("have", piece, this));
+    
+    for(int file : layout.pieceDone(piece.getNumber())) {
+      Log.info("Finished " + layout.path(file));
+      memo.getSender().post(new Memo("file complete", Integer.valueOf(file), this));
+    }
+  }
+  
+  /**
+   * Writes the blocks of a finished piece that weren't written as they
+   * came in.
+   * @return false if one couldn't be written
+   */
+  private boolean writeMissing(Piece piece) {
+    int index = piece.getNumber();
+    BitSet onDisk = partial.get(index);
+    int blockSize = partial.blockSize();
+    byte[] data = piece.getData();
+    for(int begin = 0; begin < data.length; begin += blockSize) {
+      if(onDisk.get(begin / blockSize))
+        continue;
+      int length = Math.min(blockSize, data.length - begin);
+      long offset = (long)index * pieceSize + begin;
       try {
-        Piece p = getPiece(msg.getIndex());
-        ByteBuffer stoof = ByteBuffer.wrap(p.getBlock(msg.getBegin(), msg.getBlockLength()));
-        Object[] response = { msg, stoof };
-        memo.getSender().post(new Memo("block", response, this));
-      } catch(IllegalArgumentException e) {
-        Log.e("Invalid block request: " + e.getMessage());
+        dest.write(offset, ByteBuffer.wrap(data, begin, length));
+      } catch (Exception e) {
+        Log.error("Couldn't write block " + begin + " of piece " + index + ": " + e.getMessage());
+        return false;
       }
+      writer.written(offset, length);
     }
+    return true;
   }
-
-  protected void idle () { 
-    try { Thread.sleep(100); } catch (InterruptedException e) {} 
+  
+  /**
+   * Tells whoever sent "block data" how many bytes of it we're done with,
+   * so it can stop counting them against its write budget.
+   */
+  private void reportBlocks() {
+    if(blockBytes == 0)
+      return;
+    blockSender.post(new Memo("blocks written", Long.valueOf(blockBytes), this));
+    blockBytes = 0;
+  }
+  
+  /**
+   * Writes a block of an unfinished piece to its place in storage and
+   * records it, to be saved once it's been forced to disk.
+   */
+  private void writeBlock(int index, int begin, ByteBuffer block) {
+    if(partial == null || index < 0 || index >= pieceCount ||
+        isVerified(index) || writer.isPending(index))
+      return;
+    
+    ByteBuffer data = block.duplicate();
+    data.rewind();
+    int length = data.remaining();
+    long offset = (long)index * pieceSize + begin;
+    try {
+      dest.write(offset, data);
+    } catch (Exception e) {
+      Log.error("Couldn't write block " + begin + " of piece " + index + ": " + e.getMessage());
+      return;
+    }
+    writer.written(offset, length);
+    partial.add(index, begin);
+  }
+  
+  /** Saves the record of partial pieces, if it's changed.  Only call once
+   *  the blocks it lists have been forced to disk. */
+  private void savePartials() {
+    if(partial == null)
+      return;
+    try {
+      partial.save();
+    } catch (IOException e) { Log.error("Couldn't save partial pieces: " + e.getMessage()); }
+  }
+  
+  /**
+   * Sets when written pieces are forced to disk, bounding how much a crash
+   * can lose.
+   * @see WriteBehind#setFlushPolicy(long, long)
+   */
+  public void setFlushPolicy(long bytes, long millis) {
+    writer.setFlushPolicy(bytes, millis);
+  }
+  
+  /** The queue of pieces being written, for its metrics */
+  public WriteBehind getWriter() {
+    return writer;
   }
 
   /**
-   * Gets a part of a piece, or a block within a piece
+   * "block" memos go straight to the couriers; everything else is handled
+   * by the Funnel's own thread.
+   */
+  public void post(Memo memo) {
+    if(memo.getType().equals("block"))
+      Courier.deliver(new Memo("block", memo, this));
+    else
+      super.post(memo);
+  }
+  
+  /**
+   * Gets a part of a piece, or a block within a piece.  Serves it from the
+   * cache if the piece has been read ahead, or else reads straight from
+   * storage at the block's offset, without reading or hashing the rest of the
+   * piece.  Asking for the start of a piece has the couriers read the rest of
+   * it ahead.  Safe to call from any thread.
    * @param pieceNumber The index of the desired piece
    * @param start The byte offset from the start of the piece
    * @param length The number of bytes to get
+   * @throws IllegalArgumentException if we don't have the piece
    */
   public ByteBuffer get(int pieceNumber, int start, int length) {
     if(pieceNumber < 0 || pieceNumber >= pieceCount)
       throw new IndexOutOfBoundsException("pieceNumber is out of bounds");
 
-    Piece piece = getPiece(pieceNumber);
-
-    if(piece == null)
-      throw new IllegalStateException("Piece " + pieceNumber + "has not been recieved yet");
+    if(!isVerified(pieceNumber))
+      throw new IllegalArgumentException("Piece " + pieceNumber + " has not been received yet");
 
-    byte[] data = piece.getData();
+    int requestedPieceSize = (pieceNumber < pieceCount - 1) ? pieceSize : lastPieceSize();
 
-    if(start < 0 || start > data.length)
+    if(start < 0 || start > requestedPieceSize)
       throw new IndexOutOfBoundsException("start is out of bounds");
-    if(length < 0 || (start + length) > data.length)
+    if(length < 0 || length > requestedPieceSize - start)
       throw new IndexOutOfBoundsException("length is either < 0 or too large");
 
-    ByteBuffer buff = ByteBuffer.allocate(length);
+    ByteBuffer cached = cache.get(pieceNumber, start, length);
+    if(cached != null)
+      return cached;
 
-    for(int i = start, l = start + length; i < l; ++i)
-      buff.put(data[i]);
+    if(start == 0 && cache.claim(pieceNumber, requestedPieceSize))
+      Courier.deliver(new Memo("readahead", Integer.valueOf(pieceNumber), this));
 
+    ByteBuffer buff = ByteBuffer.allocate(length);
+    try {
+      dest.read((long)pieceNumber * pieceSize + start, buff);
+    } catch (IOException e) {
+      throw new IllegalStateException("Couldn't read piece " + pieceNumber + ": " + e.getMessage());
+    }
     buff.rewind();
 
     return buff;
   }
   
+  /**
+   * Reads a whole verified piece into the cache.  Called by the couriers on
+   * a "readahead" memo, after {@link #get} has claimed the piece.
+   */
+  void readAhead(int pieceNumber) {
+    int requestedPieceSize = (pieceNumber < pieceCount - 1) ? pieceSize : lastPieceSize();
+    ByteBuffer data = ByteBuffer.allocate(requestedPieceSize);
+    try {
+      dest.read((long)pieceNumber * pieceSize, data);
+    } catch (IOException e) {
+      cache.release(pieceNumber);
+      Log.error("Couldn't read ahead piece " + pieceNumber + ": " + e.getMessage());
+      return;
+    }
+    data.rewind();
+    cache.put(pieceNumber, data);
+  }
+  
+  /** The cache blocks are uploaded from, for its metrics */
+  public PieceCache getCache() {
+    return cache;
+  }
+  
+  /** Whether a piece is stored and has passed its hash check */
+  public boolean isVerified(int pieceNumber) {
+    synchronized(verified) {
+      return verified.get(pieceNumber);
+    }
+  }
+  
+  private void markVerified(BitSet pieces) {
+    synchronized(verified) {
+      verified.or(pieces);
+    }
+  }
+  
   /**
    * Returns the requested piece
    * @param pieceNumber The index of the Piece to get
@@ -197,19 +571,23 @@ public class Funnel extends Actor {
       throw new IndexOutOfBoundsException(msg);
     }
     
-    int requestedPieceSize = (pieceNumber < pieceCount - 1) ? pieceSize : ((size - 1) % pieceSize) + 1;
+    int requestedPieceSize = (pieceNumber < pieceCount - 1) ? pieceSize : lastPieceSize();
     
     byte[] data = new byte[requestedPieceSize];
-    dest.position(pieceNumber*pieceSize);
-    dest.get(data, 0, data.length);
-    Piece piece = new Piece(data, hashes[pieceNumber].array(), pieceNumber, defaultBlockSize);
+    try {
+      dest.read((long)pieceNumber * pieceSize, ByteBuffer.wrap(data));
+    } catch (IOException e) {
+      String msg = "Couldn't read piece " + pieceNumber + ": " + e.getMessage();
+      Log.error(msg);
+      throw new IllegalStateException(msg);
+    }
+    Piece piece = new Piece(data, info.piece_hashes, info.hashOffset(pieceNumber), pieceNumber, Math.min(defaultBlockSize, data.length));
     
     return piece;
   }
   
-  private void setPiece(Piece p) {
-    byte[] data = p.getData();
-    dest.position(p.getNumber() * pieceSize);
-    dest.put(data, 0, data.length);
+  /** The number of bytes in the last piece, which may be short */
+  private int lastPieceSize() {
+    return (int)((size - 1) % pieceSize) + 1;
   }
 }
@@ -0,0 +1,216 @@
+package libbitster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Singleton.  Shares out what all torrents together may use: connections,
+ * upload slots, and download and upload bandwidth.  Every REBALANCE ms it
+ * looks at each running {@link Manager}'s weight and how much of each it
+ * could use, works out its share, and posts it to the Manager as an
+ * "allocate" memo.
+ *
+ * <ul>
+ * <li>Each torrent first gets a small floor, so one that has been quiet
+ *     can get going again.</li>
+ * <li>The rest goes by weight, but no torrent gets more than it could use;
+ *     what it leaves goes to the others, again by weight.</li>
+ * <li>Anything still left over is shared out by weight too, up to the
+ *     most one torrent may have, so a torrent can grow into it before the
+ *     next rebalance.</li>
+ * </ul>
+ *
+ * Bandwidth is unlimited unless a rate is set.  The per-torrent limits of
+ * {@link PeerPool} and the global ones it enforces still hold.
+ */
+public class Governor extends Actor {
+  /** Time between rebalances, in ms */
+  public static final int REBALANCE = 10000;
+  /** Upload slots across all torrents, unless set otherwise */
+  public static final int DEFAULT_UPLOAD_SLOTS = 40;
+  /** Most upload slots one torrent gets */
+  public static final int MAX_UPLOAD_SLOTS = 4;
+  /** Fewest connections a torrent gets, if there are enough to go round */
+  public static final int MIN_CONNECTIONS = 5;
+  /** Fewest upload slots a torrent gets, if there are enough to go round */
+  public static final int MIN_UPLOAD_SLOTS = 1;
+  /** Least bandwidth a torrent gets, in bytes/s: a block a second */
+  public static final int MIN_RATE = 16384;
+
+  private static Governor instance;
+
+  private volatile int connections = PeerPool.GLOBAL_CONNECTIONS;
+  private volatile int uploadSlots = DEFAULT_UPLOAD_SLOTS;
+  private volatile long downloadRate = 0;   // bytes/s, 0 for no limit
+  private volatile long uploadRate = 0;
+  private long lastRebalance = 0;
+
+  // Metrics
+  private long rebalances = 0;
+  private int torrents = 0;
+
+  /** The shared Governor, started the first time it's asked for. */
+  public static synchronized Governor getInstance () {
+    if (instance == null) {
+      instance = new Governor();
+      instance.start();
+    }
+    return instance;
+  }
+
+  /** Stops the shared Governor, if there is one. */
+  public static synchronized void off () {
+    if (instance != null) instance.shutdown();
+    instance = null;
+  }
+
+  /** Sets the connections all torrents may have together. */
+  public void setConnections (int connections) {
+    this.connections = connections;
+    post(new Memo("rebalance", null, this));
+  }
+
+  /** Sets the upload slots all torrents may have together. */
+  public void setUploadSlots (int uploadSlots) {
+    this.uploadSlots = uploadSlots;
+    post(new Memo("rebalance", null, this));
+  }
+
+  /** Sets the download rate of all torrents together, in bytes/s; 0 for no limit. */
+  public void setDownloadRate (long rate) {
+    this.downloadRate = rate;
+    post(new Memo("rebalance", null, this));
+  }
+
+  /** Sets the upload rate of all torrents together, in bytes/s; 0 for no limit. */
+  public void setUploadRate (long rate) {
+    this.uploadRate = rate;
+    post(new Memo("rebalance", null, this));
+  }
+
+  protected void receive (Memo memo) {
+    if (memo.getType().equals("rebalance")) lastRebalance = 0;
+  }
+
+  protected void idle () {
+    long now = System.currentTimeMillis();
+    if (now - lastRebalance >= REBALANCE) {
+      lastRebalance = now;
+      rebalance(Janitor.getInstance().managers());
+    }
+    try { Thread.sleep(100); } catch (InterruptedException e) {}
+  }
+
+  /** Works out every running torrent's shares and tells it. */
+  public void rebalance (Collection<Manager> managers) {
+    ArrayList<Manager> running = new ArrayList<Manager>();
+    for (Manager m : managers)
+      if (m.getState().equals("downloading") || m.getState().equals("seeding")) running.add(m);
+    int n = running.size();
+    rebalances++;
+    torrents = n;
+    if (n == 0) return;
+
+    double[] weights = new double[n];
+    long[][] demands = new long[4][n];
+    for (int i = 0; i < n; i++) {
+      Manager m = running.get(i);
+      weights[i] = m.getWeight();
+      demands[0][i] = m.getConnectionDemand();
+      demands[1][i] = m.getUploadSlotDemand();
+      demands[2][i] = m.getDownloadDemand();
+      demands[3][i] = m.getUploadDemand();
+    }
+
+    long[] conns = share(connections, weights, demands[0], MIN_CONNECTIONS, PeerPool.MAX_CONNECTIONS);
+    long[] slots = share(uploadSlots, weights, demands[1], MIN_UPLOAD_SLOTS, MAX_UPLOAD_SLOTS);
+    long[] down = downloadRate > 0 ? share(downloadRate, weights, demands[2], MIN_RATE, Long.MAX_VALUE) : null;
+    long[] up = uploadRate > 0 ? share(uploadRate, weights, demands[3], MIN_RATE, Long.MAX_VALUE) : null;
+
+    for (int i = 0; i < n; i++) {
+      // A share of a limited rate is never 0, which would mean no limit
+      long[] allocation = {
+        conns[i],
+        slots[i],
+        down == null ? 0 : Math.max(1, down[i]),
+        up == null ? 0 : Math.max(1, up[i])
+      };
+      running.get(i).post(new Memo("allocate", allocation, this));
+    }
+  }
+
+  /**
+   * Shares out a total by weight: first a floor each, then up to what each
+   * could use, then what's left up to what each may have.
+   * @param total what there is to share
+   * @param weights how much each counts for
+   * @param demands what each could use
+   * @param floor what each gets first, if there's enough for everyone
+   * @param max the most any one gets
+   * @return each one's share; they add up to no more than the total
+   */
+  public static long[] share (long total, double[] weights, long[] demands, long floor, long max) {
+    int n = weights.length;
+    long[] shares = new long[n];
+    if (n == 0 || total <= 0) return shares;
+
+    floor = Math.min(Math.min(floor, max), total / n);
+    long left = total - floor * n;
+    long[] wants = new long[n];
+    long[] caps = new long[n];
+    for (int i = 0; i < n; i++) {
+      shares[i] = floor;
+      wants[i] = Math.min(Math.max(demands[i], floor), max);
+      caps[i] = max;
+    }
+    left = fill(shares, left, weights, wants);
+    fill(shares, left, weights, caps);
+    return shares;
+  }
+
+  /**
+   * Water-fills: shares out what's left by weight, none going past its
+   * limit, handing what one can't take to the rest, until it's all gone or
+   * everyone is full.
+   * @return what's still left
+   */
+  private static long fill (long[] shares, long left, double[] weights, long[] limits) {
+    int n = shares.length;
+    while (left > 0) {
+      double weight = 0;
+      for (int i = 0; i < n; i++) if (shares[i] < limits[i]) weight += weights[i];
+      if (weight <= 0) break;
+
+      long given = 0;
+      for (int i = 0; i < n; i++) {
+        if (shares[i] >= limits[i]) continue;
+        long s = Math.min((long) (left * (weights[i] / weight)), limits[i] - shares[i]);
+        shares[i] += s;
+        given += s;
+      }
+
+      // What rounding leaves goes one at a time, first come first served
+      if (given == 0) {
+        for (int i = 0; i < n && left > given; i++) {
+          if (shares[i] < limits[i] && weights[i] > 0) {
+            shares[i]++;
+            given++;
+          }
+        }
+        if (given == 0) break;
+      }
+      left -= given;
+    }
+    return left;
+  }
+
+  public long rebalances () { return rebalances; }
+
+  public String toString () {
+    return "Governor: " + torrents + " torrents sharing " + connections + " connections, "
+      + uploadSlots + " upload slots, "
+      + (downloadRate == 0 ? "unlimited" : (downloadRate >> 10) + " KB/s") + " down, "
+      + (uploadRate == 0 ? "unlimited" : (uploadRate >> 10) + " KB/s") + " up, "
+      + rebalances + " rebalances";
+  }
+}
@@ -7,6 +7,11 @@ import java.nio.*;
 // author: Russ Frank
 
 public class Handshake {
+  // Reserved bit saying we speak the extension protocol (BEP 10): 0x10 of
+  // the sixth reserved byte, the 26th of the handshake
+  private static final int EXTENSION_BYTE = 25;
+  private static final int EXTENSION_BIT = 0x10;
+
   public static boolean bufferEquals (ByteBuffer a, ByteBuffer b, int num) {
     try {
       for (int i = 0; i < num; i++) if (a.get() != b.get()) return false;
@@ -50,6 +55,14 @@ public class Handshake {
     return peerId;
   }
 
+  // ## extensions
+  // Whether the peer that sent a handshake speaks the extension protocol
+
+  public static boolean extensions (ByteBuffer handshake) {
+    return handshake.limit() > EXTENSION_BYTE
+      && (handshake.get(EXTENSION_BYTE) & EXTENSION_BIT) != 0;
+  }
+
   // ## create
   // Creates a handshake ByteBuffer
 
@@ -60,8 +73,9 @@ public class Handshake {
     ByteBuffer handshake = ByteBuffer.allocate(68);
     handshake.put((byte) 19);
     handshake.put("BitTorrent protocol".getBytes());
-    handshake.putInt(0);  // 8 bytes with value 0
-    handshake.putInt(0);  // TODO: do this in a non-shitty way
+    byte[] reserved = new byte[8];
+    reserved[EXTENSION_BYTE - 20] = EXTENSION_BIT;
+    handshake.put(reserved);
 
     handshake.put(infoHash);
     handshake.put(peerId);
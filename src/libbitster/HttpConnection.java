@@ -0,0 +1,172 @@
+package libbitster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One persistent HTTP/1.1 connection to a tracker, driven by the
+ * {@link Marshal}'s {@link Overlord}.  It carries one request at a time and,
+ * if the tracker allows it, stays open afterwards for the next announce to
+ * the same host, saving a TCP handshake per announce.
+ */
+public class HttpConnection implements Communicator {
+  private String state; // states:
+  // 'connecting': waiting for the TCP connection
+  // 'busy': sending a request or reading its response
+  // 'idle': open and waiting for another request
+  // 'closed': done with, for good or because of an error
+
+  private final Marshal marshal;
+  private final Overlord overlord;
+  private final String host;
+  private final int port;
+  private SocketChannel channel;
+
+  private Marshal.Request request;
+  private ByteBuffer out;
+  private HttpResponse response;
+  private final ByteBuffer in = ByteBuffer.allocate(16384);
+
+  private int served = 0;  // responses completed on this connection
+  private long idleSince;
+
+  /** Starts connecting; the request is sent once connected. */
+  public HttpConnection (Marshal marshal, Overlord overlord, String host, int port, Marshal.Request first) {
+    this.marshal = marshal;
+    this.overlord = overlord;
+    this.host = host;
+    this.port = port;
+    this.request = first;
+    state = "connecting";
+
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      if (channel.connect(new InetSocketAddress(host, port))) {
+        overlord.register(channel, this, 0);
+        connected();
+      } else if (!overlord.register(channel, this, SelectionKey.OP_CONNECT)) {
+        throw new IOException("selector registration failed");
+      }
+    } catch (Exception e) { fail(e.toString()); }
+  }
+
+  public String state () { return state; }
+  public boolean idle () { return state.equals("idle"); }
+  public boolean closed () { return state.equals("closed"); }
+  public long idleSince () { return idleSince; }
+  public Marshal.Request current () { return request; }
+  public int served () { return served; }
+
+  /** Sends a request on an idle connection. */
+  public void send (Marshal.Request r) {
+    request = r;
+    connected();
+  }
+
+  private void connected () {
+    state = "busy";
+    String target = request.uri.getRawPath();
+    if (target == null || target.length() == 0) target = "/";
+    if (request.uri.getRawQuery() != null) target += "?" + request.uri.getRawQuery();
+
+    String hostHeader = port == 80 ? host : host + ":" + port;
+    out = Util.s(
+      "GET " + target + " HTTP/1.1\r\n" +
+      "Host: " + hostHeader + "\r\n" +
+      "User-Agent: Bitster\r\n" +
+      "Accept-Encoding: gzip\r\n" +
+      "Connection: keep-alive\r\n\r\n"
+    );
+    response = new HttpResponse();
+    overlord.interest(channel, SelectionKey.OP_WRITE);
+  }
+
+  public boolean onConnectable () {
+    try {
+      if (!channel.finishConnect()) return true;
+      connected();
+      return true;
+    } catch (IOException e) { fail(e.toString()); return false; }
+  }
+
+  public boolean onWritable () {
+    try {
+      marshal.counted(channel.write(out), 0);
+      if (!out.hasRemaining()) overlord.interest(channel, SelectionKey.OP_READ);
+      return true;
+    } catch (IOException e) { fail(e.toString()); return false; }
+  }
+
+  public boolean onReadable () {
+    try {
+      int n = channel.read(in);
+      if (n < 0) {
+        // An idle connection the tracker has given up on
+        if (response == null) { close(); return false; }
+        if (response.eof()) { complete(); return false; }
+
+        // A kept-alive connection closed before answering: the tracker
+        // timed it out just as we reused it, so the request can go again.
+        if (served > 0 && response.empty()) {
+          Marshal.Request r = request;
+          request = null;
+          close();
+          marshal.retry(r);
+          return false;
+        }
+        fail("connection closed mid-response");
+        return false;
+      }
+      marshal.counted(0, n);
+      if (response == null) { // nothing is expected while idle
+        in.clear();
+        return true;
+      }
+
+      in.flip();
+      boolean done = response.feed(in);
+      in.compact();
+      if (done) complete();
+      return true;
+    } catch (IOException e) { fail(e.toString()); return false; }
+  }
+
+  public boolean onAcceptable () { return false; }
+
+  /** Hands the finished response to the Marshal and either waits for the
+   *  next request or closes. */
+  private void complete () {
+    Marshal.Request r = request;
+    HttpResponse done = response;
+    request = null;
+    response = null;
+    served++;
+
+    if (done.keepAlive() && channel.isOpen()) {
+      state = "idle";
+      idleSince = System.currentTimeMillis();
+      overlord.interest(channel, SelectionKey.OP_READ); // to notice a close
+    } else {
+      close();
+    }
+    marshal.finished(r, done);
+  }
+
+  /** Fails the current request, if any, and closes. */
+  public void fail (String why) {
+    Marshal.Request r = request;
+    request = null;
+    close();
+    if (r != null) marshal.failed(r, why);
+  }
+
+  public void close () {
+    state = "closed";
+    try { if (channel != null) channel.close(); } catch (IOException e) {}
+  }
+}
@@ -0,0 +1,216 @@
+package libbitster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Parses an HTTP/1.1 response incrementally, as its bytes come off a
+ * non-blocking socket.  Handles bodies delimited by Content-Length, by
+ * chunked transfer encoding, or by the server closing the connection, and
+ * undoes gzip or deflate content encoding once the body is complete.
+ */
+public class HttpResponse {
+  /** Largest response we'll hold, so a broken tracker can't eat the heap */
+  public static final int MAX_SIZE = 4 << 20;
+
+  // Parser states
+  private static final int STATUS = 0;
+  private static final int HEADERS = 1;
+  private static final int BODY = 2;       // Content-Length body
+  private static final int CHUNK_SIZE = 3;
+  private static final int CHUNK_DATA = 4;
+  private static final int CHUNK_END = 5;  // CRLF after a chunk's data
+  private static final int TRAILERS = 6;
+  private static final int UNTIL_CLOSE = 7;
+  private static final int DONE = 8;
+
+  private int state = STATUS;
+  private String version;
+  private int status;
+  private String reason;
+  private final HashMap<String, String> headers = new HashMap<String, String>();
+
+  private final StringBuilder line = new StringBuilder();
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private long remaining;  // of the body or current chunk
+  private int size = 0;
+  private boolean untilClose = false;
+
+  /**
+   * Consumes as much of `in` as belongs to this response.
+   * @return true once the response is complete; anything left in `in` is
+   *         the start of the next response
+   * @throws IOException if the response is malformed or too large
+   */
+  public boolean feed (ByteBuffer in) throws IOException {
+    while (in.hasRemaining() && state != DONE) {
+      switch (state) {
+        case BODY:
+        case CHUNK_DATA:
+        case UNTIL_CLOSE: {
+          int n = state == UNTIL_CLOSE ? in.remaining() : (int) Math.min(in.remaining(), remaining);
+          grow(n);
+          if (in.hasArray()) {
+            body.write(in.array(), in.arrayOffset() + in.position(), n);
+            in.position(in.position() + n);
+          } else {
+            byte[] b = new byte[n];
+            in.get(b);
+            body.write(b, 0, n);
+          }
+          if (state == UNTIL_CLOSE) break;
+          remaining -= n;
+          if (remaining == 0) state = state == BODY ? DONE : CHUNK_END;
+          break;
+        }
+        default: {
+          String l = readLine(in);
+          if (l != null) line(l);
+        }
+      }
+    }
+    return state == DONE;
+  }
+
+  /**
+   * Tells the parser the connection was closed.
+   * @return true if that completed the response
+   */
+  public boolean eof () {
+    if (state == UNTIL_CLOSE) state = DONE;
+    return state == DONE;
+  }
+
+  /** Whether nothing of the response has arrived yet. */
+  public boolean empty () {
+    return state == STATUS && line.length() == 0;
+  }
+
+  private void grow (int n) throws IOException {
+    size += n;
+    if (size > MAX_SIZE) throw new IOException("Response is larger than " + MAX_SIZE + " bytes");
+  }
+
+  /** Reads up to the next CRLF, or returns null if it hasn't arrived yet. */
+  private String readLine (ByteBuffer in) throws IOException {
+    while (in.hasRemaining()) {
+      char c = (char) (in.get() & 0xFF);
+      grow(1);
+      if (c == '\n') {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') end--;
+        String l = line.substring(0, end);
+        line.setLength(0);
+        return l;
+      }
+      line.append(c);
+    }
+    return null;
+  }
+
+  private void line (String l) throws IOException {
+    switch (state) {
+      case STATUS:
+        String[] parts = l.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+          throw new IOException("Bad status line: " + l);
+        version = parts[0];
+        try { status = Integer.parseInt(parts[1]); }
+        catch (NumberFormatException e) { throw new IOException("Bad status line: " + l); }
+        reason = parts.length > 2 ? parts[2] : "";
+        state = HEADERS;
+        break;
+
+      case HEADERS:
+        if (l.length() > 0) {
+          int colon = l.indexOf(':');
+          if (colon <= 0) throw new IOException("Bad header: " + l);
+          headers.put(l.substring(0, colon).trim().toLowerCase(), l.substring(colon + 1).trim());
+          break;
+        }
+        // 1xx responses have no body; skip them and wait for the real one
+        if (status >= 100 && status < 200) {
+          headers.clear();
+          state = STATUS;
+        }
+        else if (status == 204 || status == 304) state = DONE;
+        else if ("chunked".equalsIgnoreCase(header("transfer-encoding"))) state = CHUNK_SIZE;
+        else if (header("content-length") != null) {
+          try { remaining = Long.parseLong(header("content-length")); }
+          catch (NumberFormatException e) { throw new IOException("Bad Content-Length"); }
+          if (remaining < 0 || remaining > MAX_SIZE) throw new IOException("Bad Content-Length");
+          state = remaining == 0 ? DONE : BODY;
+        }
+        else {
+          state = UNTIL_CLOSE;
+          untilClose = true;
+        }
+        break;
+
+      case CHUNK_SIZE:
+        int semi = l.indexOf(';');
+        String hex = (semi >= 0 ? l.substring(0, semi) : l).trim();
+        try { remaining = Long.parseLong(hex, 16); }
+        catch (NumberFormatException e) { throw new IOException("Bad chunk size: " + l); }
+        if (remaining < 0) throw new IOException("Bad chunk size: " + l);
+        state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+        break;
+
+      case CHUNK_END:
+        if (l.length() > 0) throw new IOException("Missing CRLF after chunk");
+        state = CHUNK_SIZE;
+        break;
+
+      case TRAILERS:
+        if (l.length() == 0) state = DONE;
+        break;
+    }
+  }
+
+  public int status () { return status; }
+  public String reason () { return reason; }
+
+  /** A header's value, by case-insensitive name, or null. */
+  public String header (String name) {
+    return headers.get(name.toLowerCase());
+  }
+
+  /** Whether the connection can carry another request after this one. */
+  public boolean keepAlive () {
+    String connection = header("connection");
+    if ("HTTP/1.0".equals(version))
+      return connection != null && connection.equalsIgnoreCase("keep-alive");
+    return !untilClose && (connection == null || !connection.equalsIgnoreCase("close"));
+  }
+
+  /** The body, decoded if it was sent compressed. */
+  public byte[] body () throws IOException {
+    byte[] raw = body.toByteArray();
+    String encoding = header("content-encoding");
+    if (encoding == null || encoding.equalsIgnoreCase("identity")) return raw;
+
+    InputStream in;
+    if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip"))
+      in = new GZIPInputStream(new ByteArrayInputStream(raw));
+    else if (encoding.equalsIgnoreCase("deflate"))
+      in = new InflaterInputStream(new ByteArrayInputStream(raw));
+    else
+      throw new IOException("Unsupported content encoding " + encoding);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length * 4);
+    byte[] buf = new byte[8192];
+    for (int n; (n = in.read(buf)) > 0; ) {
+      if (out.size() + n > MAX_SIZE)
+        throw new IOException("Decoded response is larger than " + MAX_SIZE + " bytes");
+      out.write(buf, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
@@ -1,5 +1,6 @@
 package libbitster;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -30,10 +31,14 @@ public class Janitor extends Actor {
     // Memo sent when manager is done shutting down
     if(memo.getType().equals("done")) {
       Log.info("Manager shut down.");
-      managers.remove(memo.getSender());
+      synchronized (managers) {
+        managers.remove(memo.getSender());
+      }
     }
     else if(memo.getType().equals("kill")) {
-      managers.clear();
+      synchronized (managers) {
+        managers.clear();
+      }
       Log.error("Timeout reached. Force quitting...");
     }
   }
@@ -44,7 +49,17 @@ public class Janitor extends Actor {
    */
   public void register(Manager m)
   {
-    managers.add(m);
+    synchronized (managers) {
+      managers.add(m);
+    }
+  }
+
+  /** The running {@link Manager}s, eg. for the {@link Governor} to share out among. */
+  public ArrayList<Manager> managers()
+  {
+    synchronized (managers) {
+      return new ArrayList<Manager>(managers);
+    }
   }
   
   public void unregister(Manager m)
@@ -85,6 +100,11 @@ public class Janitor extends Actor {
       Log.info("All managers report done. Shutting down...");
       this.state = "done";
       Util.shutdown();
+      Marshal.off();
+      Doorman.off();
+      Governor.off();
+      Courier.off();
+      AnnounceScheduler.off();
       BitsterInfo.getInstance().shutdown();
       shutdown();
     }
@@ -22,7 +22,9 @@ import java.net.*;
  *   "broker interested"
  *   "broker interesting"
  *   "broker numQueued"
+ *   "broker snubbed"
  *   "broker state"
+ *   "file complete"
  *   "have received"
  *   "piece received"
  *   "resume"
@@ -32,7 +34,7 @@ import java.net.*;
  * @author Theodore Surgent
  */
 
-public class Manager extends Actor implements Communicator {
+public class Manager extends Actor {
 
   private Broker optimisticUnchoke = null;
   private ArrayList<Broker> preferred; // preferred peers
@@ -57,25 +59,45 @@ public class Manager extends Actor implements Communicator {
   // Peer ID
   private final ByteBuffer peerId;
 
-  // Listens for incoming peer connections
-  private ServerSocketChannel listen;
+  // Hands us incoming peer connections, from the listen port all
+  // torrents share
+  private Doorman doorman;
 
-  // current list of peers
-  private ArrayList<Map<String, Object>> peers;
+  // every peer we've heard of, and which to connect to next
+  private PeerPool pool;
+  private long lastConnect = 0;
+  private boolean pex = true;        // peer exchange (BEP 11)
+  // the swarm as the trackers tell it, -1 until they do
+  private int swarmSeeders = -1, swarmLeechers = -1, swarmCompleted = -1;
   private LinkedList<Broker> brokers; // broker objects for peer communication
 
-  private ArrayList<Piece> pieces;
-  private Object[] piecesByAvailability;
-  private BitSet           received;
+  private PieceTable pieces;
+  private BitSet     received;
 
-  private HashMap<String, Broker> peersByAddress;
+  private HashMap<Long, Broker> peersByAddress;
 
   // torrent info
-  private int downloaded, left;
+  private long downloaded, left;
   private UserInterface ui;
 
   private Funnel funnel;
 
+  // finished pieces posted to the Funnel and not yet stored
+  private final WriteBudget writeBudget = new WriteBudget();
+
+  // our share of what all torrents may use, as the Governor gives it
+  private volatile double weight = 1;
+  private final RateLimit downloadLimit = new RateLimit();
+  private final RateLimit uploadLimit = new RateLimit();
+  private LinkedList<Memo> uploads = new LinkedList<Memo>(); // held back by uploadLimit
+  private HashMap<Broker, Integer> queuedUploads = new HashMap<Broker, Integer>();
+  // most requests held back for one peer; more than that are dropped
+  private static final int MAX_QUEUED_UPLOADS = 64;
+  private long lastMeasure = 0;
+  // how much of each we could use, for the Governor
+  private volatile int connectionDemand = 0, uploadSlotDemand = 0;
+  private volatile long downloadDemand = 0, uploadDemand = 0;
+
   // true if the torrent was already done when we started.
   // This is for suppressing "completed" messages when we're already seeding.
   boolean startedSeeding = false;
@@ -88,6 +110,17 @@ public class Manager extends Actor implements Communicator {
    * @param dest The file to save the download as
    */
   public Manager(TorrentInfo metainfo, File dest, UserInterface ui)
+  {
+    this(metainfo, dest, ui, null);
+  }
+
+  /**
+   * Instantiates the Manager with a particular storage backend.
+   * @param storage One of {@link Funnel#STORAGE_KINDS}, or null for the
+   * default
+   * @see #Manager(TorrentInfo, File, UserInterface)
+   */
+  public Manager(TorrentInfo metainfo, File dest, UserInterface ui, String storage)
   {
     super();
 
@@ -107,10 +140,11 @@ public class Manager extends Actor implements Communicator {
     overlord = new Overlord();
 
     brokers = new LinkedList<Broker>();
-    pieces = new ArrayList<Piece>();
-    received = new BitSet(metainfo.piece_hashes.length);
+
+    pieces = new PieceTable(metainfo, blockSize);
+    received = new BitSet(pieces.count());
     try {
-      funnel = new Funnel(metainfo, dest, this);
+      funnel = new Funnel(metainfo, dest, this, storage);
     } catch (IOException e1) {
       System.err.println("Error creating funnel");
       System.exit(1);
@@ -119,23 +153,11 @@ public class Manager extends Actor implements Communicator {
 
     // generate peer ID if we haven't already
     this.peerId = generatePeerID();
-    peersByAddress = new HashMap<String, Broker>();
+    peersByAddress = new HashMap<Long, Broker>();
+    pool = new PeerPool();
 
     Log.info("Our peer id: " + Util.buff2str(peerId));
 
-    int i, total = metainfo.file_length;
-    for (i = 0; i < metainfo.piece_hashes.length; i++) {
-      pieces.add(new Piece(
-        metainfo.piece_hashes[i].array(), 
-        i, 
-        blockSize, 
-        // If the last piece is truncated (which it probably is) total will
-        // be less than piece_length and will be the last piece's length.
-        Math.min(metainfo.piece_length, total)
-      ));
-      total -= metainfo.piece_length;
-    }
-
     Util.setTimeout(30000, new Memo("optimisticUnchoke", null, this));
     Util.setTimeout(60000, new Memo("status", null, this));
   }
@@ -144,36 +166,23 @@ public class Manager extends Actor implements Communicator {
   	if(left == 0) {
       this.startedSeeding = true;
     }
-    // We have all the piece objects, now populate our RPF array
-    piecesByAvailability = pieces.toArray();
 
-    // listen for connections, try ports 6881-6889, quite if all taken
-    for(int i = 6881; i < 6890; ++i)
-    {
-      try {
-        listen = ServerSocketChannel.open();
-        listen.socket().bind(new InetSocketAddress("0.0.0.0", i));
-        listen.configureBlocking(false);
-        break;
-      } 
-
-      catch (IOException e) {
-        if(i == 6890)
-        {
-          Log.warning("could not open a socket for listening");
-          shutdown();
-        }
-      }
+    // listen for connections on the shared port, quit if we can't
+    if (doorman == null) doorman = Doorman.getInstance();
+    if (doorman == null) {
+      Log.warning("could not open a socket for listening");
+      shutdown();
+      return;
     }
-
-    overlord.register(listen, this);
+    if (!doorman.register(getInfoHash(), this))
+      Log.warning("This torrent is already being downloaded; not taking incoming connections for it");
 
     state = "downloading";
     Janitor.getInstance().register(this);
+    Governor.getInstance();
 
     ui.addManager(this);    
-    deputy = new Deputy(metainfo, listen.socket().getLocalPort(), this);
-    deputy.start();
+    deputy = new Deputy(metainfo, getListenPort(), this);
   }
 
   @SuppressWarnings("unchecked")
@@ -187,42 +196,27 @@ public class Manager extends Actor implements Communicator {
       if(memo.getType().equals("peers"))
       { 
         Log.info("Received peer list");
-        peers = (ArrayList<Map<String, Object>>) memo.getPayload();
-        if (peers.isEmpty()) Log.warning("Peer list empty!");
-
-        Message bitfield = Message.createBitfield(received, metainfo.piece_hashes.length);
-
-        for(int i = 0; i < peers.size(); i++)
-        {
-          // find the right peer for part one
-          Map<String,Object> currPeer = peers.get(i);
-          String ip = (String) currPeer.get("ip");
-          String address = ip + ":" + currPeer.get("port");
-
-          if ((ip.equals("128.6.5.130") || ip.equals("128.6.5.131"))
-              && peersByAddress.get(address) == null)
-          {
-            try {
-              InetAddress inetip = InetAddress.getByName(ip);
-
-              // set up a broker
-              Broker b = new Broker(
-                inetip,
-                (Integer) currPeer.get("port"),
-                this,
-                bitfield
-              );
-              brokers.add(b);
-              peersByAddress.put(b.address(), b);
-              
-              this.signal("broker added", b, this);
-            } 
-
-            catch (UnknownHostException e) {
-              // Malformed ip, just ignore it
-            }
-          }
+        ArrayList<Map<String, Object>> fresh = (ArrayList<Map<String, Object>>) memo.getPayload();
+        if (fresh.isEmpty()) Log.warning("Peer list empty!");
+
+        // Each tracker knows part of the swarm; keep what all of them said.
+        // Peers given by host name rather than IPv4 address are skipped.
+        int added = 0;
+        for (Map<String, Object> p : fresh) {
+          long key = PeerPool.key((String) p.get("ip"), (Integer) p.get("port"));
+          if (pool.add(key, PeerPool.TRACKER)) added++;
         }
+        Log.info(added + " new peers, " + pool.size() + " known");
+        connect(System.currentTimeMillis());
+      }
+
+      // How big the swarm is, the most any tracker has said
+      // payload = {seeders, leechers, completed}
+      else if (memo.getType().equals("swarm")) {
+        int[] swarm = (int[]) memo.getPayload();
+        swarmSeeders = swarm[0];
+        swarmLeechers = swarm[1];
+        if (swarm[2] >= 0) swarmCompleted = swarm[2];
       }
 
       // Part 2: Deputy is done telling the tracker we're shutting down
@@ -238,9 +232,9 @@ public class Manager extends Actor implements Communicator {
       // Received from Brokers when they get a block.
       if (memo.getType().equals("block")) {
         Message msg = (Message) memo.getPayload();
-        Piece p = pieces.get(msg.getIndex());
+        Piece p = pieces.addBlock(msg.getIndex(), msg.getBegin(), msg.getBlock());
 
-        if (p.addBlock(msg.getBegin(), msg.getBlock())) {
+        if (p != null) {
           downloaded += msg.getBlockLength();
           left -= msg.getBlockLength();
           
@@ -253,12 +247,21 @@ public class Manager extends Actor implements Communicator {
             info.put("downloaded", downloaded);
             info.put("left", left);
           this.signal("block received", info, this);
+
+          // Store blocks as they come, so a restart doesn't lose them.  The
+          // last one arrives with the whole piece.
+          if (!p.finished()) {
+            funnel.post(new Memo("block data", msg, this));
+            writeBudget.add(msg.getBlockLength());
+          }
         }
 
-        if (p.finished()) {
+        if (p != null && p.finished()) {
           Log.info("Posting piece " + p.getNumber() + " to funnel");
           funnel.post(new Memo("piece", p, this));
+          writeBudget.add(pieces.sizeOf(p.getNumber()));
           received.set(p.getNumber());
+          pieces.setHave(p.getNumber());
           
           // Signal piece received
           HashMap<String, Object> info = new HashMap<String, Object>();
@@ -292,9 +295,10 @@ public class Manager extends Actor implements Communicator {
         }
 
         // If it's a choke message or the optimistic unchoke has disconnected
+        // or stopped delivering
         if(optimisticUnchoke != null && b.equals(optimisticUnchoke) 
-            && (b.choked() || b.state().equals("error"))) {
-          b.post(new Memo("choke", null, this));
+            && (b.choked() || b.snubbed() || b.state().equals("error"))) {
+          choke(b);
           optimisticUnchoke = null;
         }
 
@@ -305,7 +309,7 @@ public class Manager extends Actor implements Communicator {
           // Find a new peer to fill the upload slot and fill it
           Log.info("We are choked or peer is in an error state. Ceasing communication with " + Util.buff2str(b.peerId()));
           preferred.remove(b);
-          b.post(new Memo("choke", null, this));
+          choke(b);
           
           for (Broker n : brokers) {
             if (
@@ -324,13 +328,9 @@ public class Manager extends Actor implements Communicator {
       // sent when a Broker gets a bitfield message
       else if(memo.getType().equals("bitfield")) {
         BitSet field = (BitSet) memo.getPayload();
-        for(int i = 0; i < field.length(); i++) {
-          if(field.get(i)) {
-            Piece p = pieces.get(i);
-            p.incAvailable();
-          }
+        for(int i = field.nextSetBit(0); i >= 0 && i < pieces.count(); i = field.nextSetBit(i + 1)) {
+          pieces.incAvailable(i);
         }
-        Arrays.sort(piecesByAvailability);
         // Git dem peecazzz
         //request((Broker)memo.getSender());
         
@@ -344,9 +344,7 @@ public class Manager extends Actor implements Communicator {
       // sent when a Broker gets a have message
       else if(memo.getType().equals("have-message")) {
         int piece = (Integer) memo.getPayload();
-        Piece p = pieces.get(piece);
-        p.incAvailable();
-        Arrays.sort(piecesByAvailability);
+        if (piece >= 0 && piece < pieces.count()) pieces.incAvailable(piece);
         //request((Broker)memo.getSender());
         
         // Signal have received
@@ -356,26 +354,56 @@ public class Manager extends Actor implements Communicator {
         this.signal("have received", info, this);
       }
 
-      // Received from Brokers when a block has been requested
+      // Received from Brokers when a block has been requested.  It waits
+      // its turn if we're over our share of the upload bandwidth, unless
+      // the peer already has as many waiting as it may.
       else if (memo.getType().equals("request")) {
-        Message msg = (Message) memo.getPayload();
-        funnel.post(new Memo("block", memo.getPayload(), memo.getSender()));
-        this.addUploaded(msg.getBlockLength());
-        
-        //Signal block sent
-        HashMap<String, Object> info = new HashMap<String, Object>();
-          info.put("broker", (Broker)memo.getSender());
-          info.put("piece number", msg.getIndex());
-          info.put("uploaded", this.getUploaded());
-        this.signal("block sent", info, this);
+        Broker b = (Broker) memo.getSender();
+        if (uploads.isEmpty() && uploadLimit.allows(System.currentTimeMillis())) upload(memo);
+        else {
+          int queued = queuedUploads.containsKey(b) ? queuedUploads.get(b) : 0;
+          if (queued < MAX_QUEUED_UPLOADS) {
+            uploads.add(memo);
+            queuedUploads.put(b, queued + 1);
+          }
+        }
+      }
+
+      // A peer took back a request.  If it's still held back, forget it.
+      else if (memo.getType().equals("cancel")) {
+        Message m = (Message) memo.getPayload();
+        Iterator<Memo> i = uploads.iterator();
+        while (i.hasNext()) {
+          Memo u = i.next();
+          Message r = (Message) u.getPayload();
+          if (u.getSender() == memo.getSender() && r.getIndex() == m.getIndex()
+              && r.getBegin() == m.getBegin() && r.getBlockLength() == m.getBlockLength()) {
+            i.remove();
+            unqueue((Broker) u.getSender());
+            break;
+          }
+        }
+      }
+
+      // Peers a Broker's peer told us of by PEX
+      // payload = an ArrayList of packed addresses
+      else if (memo.getType().equals("pex")) {
+        if (!pex) return;
+        // Peers that dialed us are in the pool under the port they dialed
+        // from, not the one they listen on, which is what PEX tells us
+        HashSet<Long> connected = new HashSet<Long>();
+        for (Broker b : brokers) connected.add(b.dialable());
+        int added = 0;
+        for (long key : (ArrayList<Long>) memo.getPayload())
+          if (!connected.contains(key) && pool.add(key, PeerPool.PEX)) added++;
+        if (added > 0) connect(System.currentTimeMillis());
       }
 
       // Received from Brokers when they can't requested a block from a peer
       // anymore, ie when choked or when the connection is dropped.
       else if (memo.getType().equals("blockFail")) {
         Message m = (Message) memo.getPayload();
-        Piece p = pieces.get(m.getIndex());
-        p.blockFail(m.getBegin());
+        pieces.blockFail(m.getIndex(), m.getBegin());
         
         // Signal block fail
         HashMap<String, Object> info = new HashMap<String, Object>();
@@ -418,6 +446,11 @@ public class Manager extends Actor implements Communicator {
           info.put("interesting", memo.getPayload());
           this.signal("broker interesting", info, this);
         }
+        else if(memo.getType().equals("broker snubbed")) {
+          info.put("broker", (Broker)memo.getSender());
+          info.put("snubbed", memo.getPayload());
+          this.signal("broker snubbed", info, this);
+        }
       }
     }
 
@@ -426,15 +459,14 @@ public class Manager extends Actor implements Communicator {
      */
     else if (memo.getSender() == funnel) {
       if (memo.getType().equals("pieces")) {
-        ArrayList<Piece> ps = (ArrayList<Piece>) memo.getPayload();
+        BitSet done = (BitSet) memo.getPayload();
 
-        for(int i = 0, l = ps.size(); i < l; ++i) {
-          Piece p = ps.get(i);
-          int length = p.getData().length;
+        for(int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+          int length = pieces.sizeOf(i);
           downloaded += length;
           left -= length;
-          pieces.set(p.getNumber(), p);
-          received.set(p.getNumber());
+          pieces.setHave(i);
+          received.set(i);
         }
         Log.info("Resuming, " + left + " left to download.");
         initialize();
@@ -448,26 +480,106 @@ public class Manager extends Actor implements Communicator {
         this.signal("resume", info, this);
       }
 
+      // Received from Funnel, before "pieces", for each piece we had part of
+      // when we last stopped.
+      else if (memo.getType().equals("partial")) {
+        Piece p = (Piece) memo.getPayload();
+        int length = p.getCompletedBytes();
+        downloaded += length;
+        left -= length;
+        pieces.restore(p);
+      }
+
+      // Received from Funnel when a piece we posted turns out to be corrupt.
+      // Forget it so it gets downloaded again.
+      else if (memo.getType().equals("hash_fail")) {
+        int index = (Integer) memo.getPayload();
+        int length = pieces.sizeOf(index);
+        writeBudget.release(length);
+        downloaded -= length;
+        left += length;
+        pieces.reset(index);
+        received.clear(index);
+      }
+
+      // Received from Funnel when a piece we posted couldn't be stored.  It's
+      // no longer on disk, so forget it like a corrupt one, even if that
+      // means we weren't finished after all.
+      else if (memo.getType().equals("write_fail")) {
+        int index = (Integer) memo.getPayload();
+        int length = pieces.sizeOf(index);
+        Log.error("Piece " + index + " couldn't be stored, downloading it again");
+        writeBudget.release(length);
+        downloaded -= length;
+        left += length;
+        pieces.reset(index);
+        received.clear(index);
+        if (state.equals("seeding")) state = "downloading";
+      }
+
       // Received from Funnel when we successfully verify and store some piece.
       // We forward the message off to each Broker so they can inform peers.
       else if (memo.getType().equals("have")) {
+        writeBudget.release(pieces.sizeOf(((Piece) memo.getPayload()).getNumber()));
         for (Broker b : brokers) 
           b.post(new Memo("have", memo.getPayload(), this));
       }
 
+      // Received from Funnel once it's done with some "block data" memos.
+      // payload = the bytes of blocks in them
+      else if (memo.getType().equals("blocks written")) {
+        writeBudget.release((Long) memo.getPayload());
+      }
+
+      // Received from Funnel when every piece of one of the torrent's files
+      // has been verified and stored.
+      else if (memo.getType().equals("file complete")) {
+        int index = (Integer) memo.getPayload();
+        HashMap<String, Object> info = new HashMap<String, Object>();
+          info.put("index", index);
+          info.put("path", metainfo.file_paths[index]);
+        this.signal("file complete", info, this);
+      }
+
       // Part 3: Received from Funnel when we're ready to shut down.
       else if (memo.getType().equals("done") && memo.getSender().equals(funnel)) {
+        for (Broker b : brokers) b.close();
+        pool.clear();
         shutdown();
         Janitor.getInstance().post(new Memo("done", null, this));
       }
     }
 
+    // A peer that dialed the shared listen port, for our torrent
+    // payload = { its SocketChannel, its handshake }
+    else if (memo.getSender() instanceof Doorman) {
+      if (memo.getType().equals("incoming")) {
+        Object[] payload = (Object[]) memo.getPayload();
+        accept((SocketChannel) payload[0], (ByteBuffer) payload[1]);
+      }
+    }
+
+    // Our share of what all torrents may use
+    // payload = { connections, upload slots, download and upload bytes/s }
+    else if (memo.getSender() instanceof Governor) {
+      if (memo.getType().equals("allocate")) {
+        long[] allocation = (long[]) memo.getPayload();
+        pool.setMaxConnections((int) allocation[0]);
+        uploadSlots = (int) allocation[1];
+        downloadLimit.setRate(allocation[2]);
+        uploadLimit.setRate(allocation[3]);
+      }
+    }
+
     else if (memo.getSender() instanceof Janitor) {
       // Part 1: halt message from Janitor
       if (memo.getType().equals("halt"))
       {
         state = "shutdown";
-        try { listen.close(); } catch (IOException e) { e.printStackTrace(); }
+        if (doorman != null) doorman.unregister(getInfoHash(), this);
+        // Store what we've got now, alongside the stopped announce: a slow
+        // tracker can hold the Funnel's own halt past the Janitor's kill
+        funnel.post(new Memo("save", null, this));
         deputy.post(new Memo("halt", null, this));
       }
     }
@@ -490,7 +602,7 @@ public class Manager extends Actor implements Communicator {
             if (optimisticUnchoke.speed > item.speed) {
               // Promote him to a preferred peer.
               i.remove();
-              item.post(new Memo("choke", null, this));
+              choke(item);
               Log.info("Promoting our optimistic unchoke " + Util.buff2str(optimisticUnchoke.peerId()));
               preferred.add(optimisticUnchoke);
               break;
@@ -501,7 +613,7 @@ public class Manager extends Actor implements Communicator {
 
       // Choose a new optimistic unchoke.
       for (Broker b : brokers) {
-        if (!preferred.contains(b) && b.interested()) {
+        if (!preferred.contains(b) && b.interested() && !b.snubbed()) {
           optimisticUnchoke = b;
           Log.info("Chose a new optimistic unchoke: " + Util.buff2str(optimisticUnchoke.peerId()));
           b.post(new Memo("unchoke", null, this));
@@ -514,24 +626,88 @@ public class Manager extends Actor implements Communicator {
       for (Broker b : preferred) {
         Log.info("preferred: " + b);
       }
+      Log.info(funnel.getCache().toString());
+      Log.info(funnel.getWriter().toString());
+      Log.info(writeBudget.toString());
+      Log.info(AnnounceScheduler.getInstance().toString());
+      Log.info(pool.toString());
+      if (doorman != null) Log.info(doorman.toString());
+      Log.info(Governor.getInstance().toString());
+      Log.info("Download: " + downloadLimit + "; upload: " + uploadLimit + ", "
+        + uploads.size() + " blocks waiting");
+      if (swarmSeeders >= 0)
+        Log.info("Swarm: " + swarmSeeders + " seeders, " + swarmLeechers + " leechers, "
+          + swarmCompleted + " completed");
+      if (deputy != null) {
+        for (Tracker t : deputy.trackers()) Log.info(t.toString());
+      }
+      if (!state.equals("shutdown"))
+        Util.setTimeout(60000, new Memo("status", null, this));
     }
   }
 
+  /** Has the Funnel send a block a Broker's peer asked for. */
+  private void upload (Memo memo) {
+    Message msg = (Message) memo.getPayload();
+    funnel.post(new Memo("block", memo.getPayload(), memo.getSender()));
+    uploadLimit.spend(msg.getBlockLength());
+    this.addUploaded(msg.getBlockLength());
+
+    //Signal block sent
+    HashMap<String, Object> info = new HashMap<String, Object>();
+      info.put("broker", (Broker)memo.getSender());
+      info.put("piece number", msg.getIndex());
+      info.put("uploaded", this.getUploaded());
+    this.signal("block sent", info, this);
+  }
+
+  /** Chokes a peer, and forgets the requests we were holding back for it. */
+  private void choke (Broker b) {
+    b.post(new Memo("choke", null, this));
+    dropUploads(b);
+  }
+
+  /** Forgets the requests held back for a peer, so they aren't served late
+   *  or counted against our upload share. */
+  private void dropUploads (Broker b) {
+    if (queuedUploads.remove(b) == null) return;
+    Iterator<Memo> i = uploads.iterator();
+    while (i.hasNext()) if (i.next().getSender() == b) i.remove();
+  }
+
+  /** Counts one request less held back for a peer. */
+  private void unqueue (Broker b) {
+    Integer queued = queuedUploads.get(b);
+    if (queued == null) return;
+    if (queued <= 1) queuedUploads.remove(b);
+    else queuedUploads.put(b, queued - 1);
+  }
+
   private void request(Broker b) {
-    if (!b.choking() && !b.choked() && b.interested() && b.numQueued() < 5 && left > 0) {
+    // Hold off while the Funnel is too far behind storing what we've got.
+    if (writeBudget.throttled()) return;
+    // Or while we're over our share of the download bandwidth.
+    if (!downloadLimit.allows(System.currentTimeMillis())) return;
+
+    // Snubbed peers only get a single probe request at a time; if it comes
+    // back they're unsnubbed and get a full pipeline again.
+    int limit = b.snubbed() ? 1 : 5;
+
+    if (!b.choking() && !b.choked() && b.interested() && b.numQueued() < limit && left > 0) {
 
       // We are interested in the peer, we have less than 5 requests
       // queued on the peer, and we have more shit to download.  We should
       // queue up a request on the peer.
 
-      Piece p = next(b.bitfield());
+      int p = pieces.pick(b.bitfield());
 
-      if (p != null) {
-        int index = p.next();
+      if (p >= 0) {
+        int index = pieces.nextBlock(p);
 
         b.post(new Memo("request", Message.createRequest(
-          p.getNumber(), index * blockSize, p.sizeOf(index)
+          p, index * blockSize, pieces.sizeOf(p, index)
         ), this));
+        downloadLimit.spend(pieces.sizeOf(p, index));
       }
     }
   }
@@ -541,7 +717,11 @@ public class Manager extends Actor implements Communicator {
     overlord.communicate(100);
     try { Thread.sleep(50); } catch (InterruptedException e) {}
 
+    // our Deputy has no thread; its tracker traffic goes through the Marshal
+    if (deputy != null) deputy.tick();
+
     if (state.equals("downloading") || state.equals("seeding")) {
+      long now = System.currentTimeMillis();
       Iterator<Broker> i = brokers.iterator();
       Broker b;
 
@@ -549,22 +729,61 @@ public class Manager extends Actor implements Communicator {
         b = i.next();
         request(b);
         b.tick();
+
+        // Through the handshake: it counts as a connection rather than a
+        // connect in progress.  One that turns out to be us is never dialed
+        // again.
+        ByteBuffer id = b.peerId();
+        if (id != null) {
+          if (id.equals(peerId)) {
+            pool.ban(b.key());
+            b.post(new Memo("abort", "connected to ourselves", this));
+          }
+          else pool.connected(b.key(), now);
+        }
+
         if (b.state().equals("error")) {
           i.remove();
+          dropUploads(b);
+          pool.closed(b.key(), b.received(), now);
 
           // Updating our availability
           BitSet field = b.bitfield();
           if(field != null) {
-            for(int j = 0; j < field.length(); j++) {
-              if(!field.get(j)) {
-                Piece p = pieces.get(j);
-                p.decAvailable();
-              }
+            for(int j = field.nextSetBit(0); j >= 0 && j < pieces.count(); j = field.nextSetBit(j + 1)) {
+              pieces.decAvailable(j);
             }
           }
-          peersByAddress.put(b.address(), null);
+          if (peersByAddress.get(b.key()) == b) peersByAddress.remove(b.key());
+
+          // Running low with no one left to try: ask the trackers for
+          // more, when they'll let us
+          if (brokers.size() < AnnounceScheduler.LOW_PEERS && wantsPeers() && !pool.ready(now)
+              && deputy != null && !state.equals("shutdown"))
+            deputy.post(new Memo("list", null, this));
         }
       }
+
+      // Give up on connects that are taking too long, and make new ones
+      for (long key : pool.expired(now)) {
+        Broker late = peersByAddress.get(key);
+        if (late != null) late.post(new Memo("abort", "connect timed out", this));
+        else pool.closed(key, 0, now);
+      }
+      if (now - lastConnect >= 1000) {
+        connect(now);
+        exchange(now);
+      }
+
+      // Send the blocks that were held back, as the upload share allows
+      while (!uploads.isEmpty() && uploadLimit.allows(now)) {
+        Memo memo = uploads.poll();
+        Broker to = (Broker) memo.getSender();
+        unqueue(to);
+        // Choked or gone since it asked: too late to send
+        if (!to.choking() && !to.state().equals("error")) upload(memo);
+      }
+      if (now - lastMeasure >= 1000) measure(now);
     }
 
     if (state.equals("seeding")) {
@@ -601,27 +820,84 @@ public class Manager extends Actor implements Communicator {
     }
   }
 
-  public boolean onAcceptable () {
-    try {
-      Message bitfield = Message.createBitfield(received, metainfo.piece_hashes.length);
+  /**
+   * Dials the best candidates in the pool, as many as the limits allow, if
+   * the swarm has anyone we aren't connected to yet.
+   */
+  private void connect (long now) {
+    lastConnect = now;
+    if (state.equals("shutdown") || !wantsPeers()) return;
+
+    Message bitfield = null;
+    long key;
+    while ((key = pool.next(now)) >= 0) {
+      if (bitfield == null) bitfield = Message.createBitfield(received, metainfo.piece_count);
+      Broker b = new Broker(PeerPool.address(key), PeerPool.port(key), this, bitfield);
+      brokers.add(b);
+      peersByAddress.put(key, b);
+      this.signal("broker added", b, this);
+    }
+  }
 
-      SocketChannel newConnection = listen.accept();
-      newConnection.configureBlocking(false);
-      if (newConnection != null) {
-        Broker b = new Broker(newConnection, this, bitfield);
-        brokers.add(b);
-        this.signal("broker added", b, this);
-      }
-    } catch (IOException e) {
-      // connection failed, ignore
+  /**
+   * Works out how much of each shared resource we could use, for the
+   * {@link Governor}: the connections we have or could make, a slot for
+   * each peer that wants to download from us, and twice the bandwidth we've
+   * been using, while there's anything to use it for.
+   */
+  private void measure (long now) {
+    lastMeasure = now;
+    downloadLimit.measure(now);
+    uploadLimit.measure(now);
+
+    int interested = 0;
+    boolean unchoked = false;
+    for (Broker b : brokers) {
+      if (b.interesting()) interested++;
+      if (!b.choked() && b.interested()) unchoked = true;
     }
+    connectionDemand = pool.connections() + pool.halfOpen() + (wantsPeers() ? pool.waiting(now) : 0);
+    uploadSlotDemand = interested;
+    downloadDemand = left > 0 && unchoked
+      ? Math.max(Governor.MIN_RATE, 2 * downloadLimit.average()) : 0;
+    uploadDemand = interested > 0 || !uploads.isEmpty()
+      ? Math.max(Governor.MIN_RATE, 2 * uploadLimit.average()) : 0;
+  }
 
-    return true;
+  /**
+   * Tells the peers that are due a PEX message who else we're connected
+   * to.  Only peers we could tell others how to reach are passed on.
+   */
+  private void exchange (long now) {
+    if (!pex) return;
+    HashSet<Long> connected = null;
+    for (Broker b : brokers) {
+      if (!b.pexDue(now)) continue;
+      if (connected == null) {
+        connected = new HashSet<Long>();
+        for (Broker c : brokers) {
+          long key = c.dialable();
+          if (key >= 0 && c.peerId() != null && !c.state().equals("error")) connected.add(key);
+        }
+      }
+      b.post(new Memo("pex", connected, this));
+    }
   }
 
-  public boolean onReadable () { return false; }
-  public boolean onWritable () { return false; }
-  public boolean onConnectable () { return false; }
+  /** Takes on a connection a peer made to us, if there's room for it. */
+  private void accept (SocketChannel connection, ByteBuffer handshake) {
+    InetSocketAddress from = (InetSocketAddress) connection.socket().getRemoteSocketAddress();
+    if (from == null || !(state.equals("downloading") || state.equals("seeding"))
+        || !pool.accept(PeerPool.key(from.getAddress(), from.getPort()), System.currentTimeMillis())) {
+      try { connection.close(); } catch (IOException e) {} // no room
+      return;
+    }
+
+    Message bitfield = Message.createBitfield(received, metainfo.piece_count);
+    Broker b = new Broker(connection, handshake, this, bitfield);
+    brokers.add(b);
+    this.signal("broker added", b, this);
+  }
 
   /**
    * Generates a 20 character {@code byte} array for use as a
@@ -655,76 +931,47 @@ public class Manager extends Actor implements Communicator {
 
   /** Returns true if the given bitset is interesting to us.  Run by Brokers. */
   public boolean isInteresting (BitSet peer) {
-    Iterator<Piece> i = pieces.iterator();
-    Piece p;
-    while (i.hasNext()) {
-      p = i.next();
-      if (!p.finished() && peer.get(p.getNumber())) return true;
+    for (int i = peer.nextSetBit(0); i >= 0 && i < pieces.count(); i = peer.nextSetBit(i + 1)) {
+      if (!received.get(i)) return true;
     }
 
     return false;
   }
 
-  /**
-   * Get the next piece we need to download. Uses rarest-piece-first.
-   */
-  private Piece next (BitSet b) {
-    // list of rarest pieces. We return a random value in this.
-    Piece[] rarestPieces = new Piece[5];
-    int rpi = 0;
-    for(int i = 0; i < piecesByAvailability.length; i++) {
-      Piece p = (Piece) piecesByAvailability[i];
-      if (b.get(p.getNumber()) && !p.requested()) {
-        rarestPieces[rpi++] = p;
-      }
-      if(rpi == 5) {
-        break;
-      }
-    }
-
-    if(rpi > 0) {
-      Random r = new Random();
-      return rarestPieces[r.nextInt(rpi)];
-    }
-    else {
-      return null;
-    }
-  }
-
   /** Add a peer to our internal list of peer ids */
-  public boolean addPeer (String address, Broker b) {
+  public boolean addPeer (long address, Broker b) {
     if (peersByAddress.get(address) != null) return false;
 
     peersByAddress.put(address, b);
     return true;
   }
 
-  public int getDownloaded() {
+  public long getDownloaded() {
     return downloaded;
   }
 
-  public int getUploaded() {
+  public long getUploaded() {
     return BitsterInfo.getInstance().getUploadData(getInfoHash());
   }
 
-  public void addUploaded(int uploaded) {
+  public void addUploaded(long uploaded) {
     BitsterInfo.getInstance().setUploadData(getInfoHash(), getUploaded() + uploaded);    
   }
 
-  public int getLeft() {
+  public long getLeft() {
     return left;
   }
 
-  private void setLeft(int left) {
+  private void setLeft(long left) {
     this.left = left;
   }
   
-  public int getSize() {
+  public long getSize() {
     return metainfo.file_length;
   }
   
   public int getPieceCount() {
-    return metainfo.piece_hashes.length;
+    return metainfo.piece_count;
   }
   
   public int getBrokerCount() {
@@ -741,7 +988,7 @@ public class Manager extends Actor implements Communicator {
     LinkedList<Broker> brokers = (LinkedList<Broker>) this.brokers.clone();
     for(Broker b : brokers) {
       try {
-      if(b.bitfield().cardinality() == metainfo.piece_hashes.length)
+      if(b.bitfield().cardinality() == metainfo.piece_count)
         ++seeds;
       } catch(Exception e) {}
     }
@@ -758,7 +1005,60 @@ public class Manager extends Actor implements Communicator {
   }
 
   public String getState () { return state; }
+
+  /** The number of peers we're connected to. */
+  public int getPeerCount () { return brokers.size(); }
+  public PeerPool getPeerPool () { return pool; }
+  public int getListenPort () { return doorman.port(); }
+
+  /**
+   * Takes incoming connections through the given Doorman rather than the
+   * shared one, eg. to run several peers of one torrent in one process.
+   * Call before start().
+   */
+  public void setDoorman (Doorman doorman) { this.doorman = doorman; }
+
+  /** How much this torrent counts for against others, when the {@link Governor} shares out. */
+  public double getWeight () { return weight; }
+  /** Sets this torrent's weight; it's 1 unless set. */
+  public void setWeight (double weight) {
+    if (weight <= 0)
+      throw new IllegalArgumentException("Weight must be positive");
+    this.weight = weight;
+  }
+  /** Connections we have or could make now, as of the last second. */
+  public int getConnectionDemand () { return connectionDemand; }
+  /** Peers that want to download from us, as of the last second. */
+  public int getUploadSlotDemand () { return uploadSlotDemand; }
+  /** Download bandwidth we could use, in bytes/s. */
+  public long getDownloadDemand () { return downloadDemand; }
+  /** Upload bandwidth we could use, in bytes/s. */
+  public long getUploadDemand () { return uploadDemand; }
+  public RateLimit getDownloadLimit () { return downloadLimit; }
+  public RateLimit getUploadLimit () { return uploadLimit; }
+
+  /** Turns peer exchange on or off; it's on unless turned off. */
+  public void setPex (boolean pex) { this.pex = pex; }
+  /** The swarm's seeders as the trackers tell it, or -1 if they haven't. */
+  public int getSwarmSeeders () { return swarmSeeders; }
+  public int getSwarmLeechers () { return swarmLeechers; }
+  /** Downloads the trackers have seen finish, or -1 if they haven't said. */
+  public int getSwarmCompleted () { return swarmCompleted; }
+
+  /**
+   * Whether more peers would be any use, going by the swarm's size: not
+   * when we're seeding and no one is downloading, nor when we're already
+   * connected to as many peers as the swarm has.  True if we don't know.
+   */
+  public boolean wantsPeers () {
+    if (swarmSeeders < 0) return true;
+    if (left == 0) return swarmLeechers > 0;
+    return swarmSeeders + swarmLeechers > brokers.size();
+  }
+
   public Overlord getOverlord () { return overlord; }
+  public PieceCache getCache () { return funnel.getCache(); }
+  public WriteBudget getWriteBudget () { return writeBudget; }
 
   public String getFileName() { return dest.getName(); }
 
@@ -0,0 +1,205 @@
+package libbitster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage over memory-mapped files, of any size and any number.  A single
+ * {@code MappedByteBuffer} is indexed by {@code int} and so tops out at 2 GB;
+ * here each file is split into 1 GB windows which are mapped the first time
+ * they're touched, and reads and writes that straddle a window or file
+ * boundary are split across both.  All offsets are {@code long}s.
+ *
+ * A mapping outlives the file it was made from, so a file is only held open
+ * while a window is being mapped; torrents with thousands of files don't tie
+ * up thousands of descriptors.  Files are extended to their full size with
+ * {@link RandomAccessFile#setLength}, which leaves them sparse on filesystems
+ * that support it, so a 200 GB download only uses the disk it has filled.
+ *
+ * Each access works on its own view of a window, so any number of threads
+ * can read and write at once; only mapping a new window takes a lock.
+ */
+public class MappedStorage implements Storage {
+  /** Size of each mapped window.  A power of two so offsets split cheaply. */
+  public static final int WINDOW_SHIFT = 30;
+  public static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+
+  private final FileLayout layout;
+  private final File[] files;
+  private final int windowShift;
+  private final long windowSize;
+  private final AtomicReferenceArray<MappedByteBuffer>[] windows; // by file, then window
+
+  /** Maps a single file of the given size, creating it if need be. */
+  public MappedStorage (File dest, long size) throws IOException {
+    this(dest, size, WINDOW_SHIFT);
+  }
+
+  /** Maps a single file with a window of {@code 1 << windowShift} bytes.
+   *  Small windows are only useful for exercising the boundary handling. */
+  public MappedStorage (File dest, long size, int windowShift) throws IOException {
+    this(new FileLayout(false, new String[] { dest.getName() }, new long[] { size }, Integer.MAX_VALUE), dest, windowShift);
+  }
+
+  /**
+   * @param layout The files of the torrent
+   * @param dest The file to save a single-file torrent as, or the directory
+   *             to save a multi-file torrent in
+   */
+  public MappedStorage (FileLayout layout, File dest) throws IOException {
+    this(layout, dest, WINDOW_SHIFT);
+  }
+
+  public MappedStorage (FileLayout layout, File dest, int windowShift) throws IOException {
+    if (windowShift < 1 || windowShift > WINDOW_SHIFT)
+      throw new IllegalArgumentException("Bad window shift " + windowShift);
+
+    this.layout = layout;
+    this.windowShift = windowShift;
+    this.windowSize = 1L << windowShift;
+
+    files = new File[layout.count()];
+    windows = newWindows(layout.count());
+    for (int i = 0; i < files.length; i++) {
+      long length = layout.length(i);
+      if (length < 0)
+        throw new IllegalArgumentException("Negative length for " + layout.path(i));
+      long count = (length + windowSize - 1) >>> windowShift;
+      if (count > Integer.MAX_VALUE)
+        throw new IllegalArgumentException(layout.path(i) + " is too large to map");
+      windows[i] = new AtomicReferenceArray<MappedByteBuffer>((int) count);
+
+      files[i] = layout.file(dest, i);
+      open(i).close(); // create and size it now
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static AtomicReferenceArray<MappedByteBuffer>[] newWindows (int count) {
+    return new AtomicReferenceArray[count];
+  }
+
+  public long size () { return layout.size(); }
+
+  /** Opens a file, creating it and growing it to its full length if need be. */
+  private RandomAccessFile open (int file) throws IOException {
+    File f = files[file];
+    File parent = f.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+      throw new IOException("Couldn't create directory " + parent);
+
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    if (raf.length() != layout.length(file)) raf.setLength(layout.length(file));
+    return raf;
+  }
+
+  /** A view of the window holding the given offset into a file, mapping it if
+   *  necessary, positioned at that offset. */
+  private ByteBuffer window (int file, long at) throws IOException {
+    int w = (int) (at >>> windowShift);
+    MappedByteBuffer window = windows[file].get(w);
+    if (window == null) window = map(file, w);
+    ByteBuffer view = window.duplicate();
+    view.position((int) (at & (windowSize - 1)));
+    return view;
+  }
+
+  /** Maps a window, unless another thread beat us to it. */
+  private synchronized MappedByteBuffer map (int file, int w) throws IOException {
+    MappedByteBuffer window = windows[file].get(w);
+    if (window != null) return window;
+
+    long start = (long) w << windowShift;
+    RandomAccessFile raf = open(file);
+    try {
+      window = raf.getChannel().map(MapMode.READ_WRITE, start, Math.min(windowSize, layout.length(file) - start));
+    } finally {
+      raf.close();
+    }
+    windows[file].set(w, window);
+    return window;
+  }
+
+  /** How much of a range starting at `at` in a file lies in that offset's
+   *  window. */
+  private int span (int file, long at, int length) {
+    long inWindow = windowSize - (at & (windowSize - 1));
+    return (int) Math.min(length, Math.min(inWindow, layout.length(file) - at));
+  }
+
+  private void check (long offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > size())
+      throw new IndexOutOfBoundsException(
+        "Range " + offset + "+" + length + " is outside storage of " + size() + " bytes"
+      );
+  }
+
+  public void read (long offset, ByteBuffer dst) throws IOException {
+    int length = dst.remaining();
+    check(offset, length);
+    while (length > 0) {
+      int file = layout.fileAt(offset);
+      long at = offset - layout.offset(file);
+      int n = span(file, at, length);
+
+      ByteBuffer window = window(file, at);
+      window.limit(window.position() + n);
+      dst.put(window);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  public void write (long offset, ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    check(offset, length);
+    while (length > 0) {
+      int file = layout.fileAt(offset);
+      long at = offset - layout.offset(file);
+      int n = span(file, at, length);
+
+      ByteBuffer chunk = src.duplicate();
+      chunk.limit(chunk.position() + n);
+      window(file, at).put(chunk);
+      src.position(src.position() + n);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /** Flushes every mapped window to disk. */
+  public void force () {
+    for (AtomicReferenceArray<MappedByteBuffer> file : windows) {
+      for (int i = 0; i < file.length(); i++) {
+        MappedByteBuffer window = file.get(i);
+        if (window != null) window.force();
+      }
+    }
+  }
+
+  /** Flushes only the parts of the mapped windows that cover the range. */
+  public void force (long offset, long length) {
+    long end = Math.min(offset + length, size());
+    while (offset < end) {
+      int file = layout.fileAt(offset);
+      long at = offset - layout.offset(file);
+      int n = span(file, at, (int) Math.min(end - offset, Integer.MAX_VALUE));
+
+      MappedByteBuffer window = windows[file].get((int) (at >>> windowShift));
+      if (window != null) window.force((int) (at & (windowSize - 1)), n);
+      offset += n;
+    }
+  }
+
+  /** Flushes and drops every mapping.  The storage can't be used afterwards. */
+  public void close () {
+    force();
+    for (AtomicReferenceArray<MappedByteBuffer> file : windows)
+      for (int i = 0; i < file.length(); i++) file.set(i, null);
+  }
+}
@@ -0,0 +1,473 @@
+package libbitster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Singleton.  Talks to trackers on behalf of every torrent's {@link Deputy},
+ * on one thread, over non-blocking sockets selected on by its own
+ * {@link Overlord}.  Connections to each tracker host are kept alive and
+ * shared, so a hundred torrents on one tracker cost a handful of connections
+ * rather than a thread and a TCP handshake per announce.
+ *
+ * Send it a "get" memo whose payload is the full URL as a String.  It answers
+ * the sender with a "response" memo whose payload is {url, body} where body
+ * is a ByteBuffer, or an "error" memo whose payload is {url, reason}.
+ *
+ * udp:// announces go through a {@link UdpTracker} instead, and are answered
+ * with an "announced" memo whose payload is
+ * {url, interval, leechers, seeders, peers}, peers being the compact list.
+ *
+ * A "scrape" memo, payload {announce URL, info hash}, asks a tracker how big
+ * a torrent's swarm is.  Scrapes for the same tracker that arrive within
+ * SCRAPE_WINDOW of each other go out as one request, over HTTP by the
+ * /scrape convention or as a UDP scrape, and each sender is answered with a
+ * "scraped" memo whose payload is
+ * {announce URL, info hash, seeders, leechers, completed}.  Scrapes that
+ * fail are only logged; there'll be another.
+ */
+public class Marshal extends Actor {
+  /** Most connections open to one tracker host at once */
+  public static final int MAX_CONNECTIONS = 2;
+  /** How long a request may take before it fails, in ms */
+  public static final int TIMEOUT = 20000;
+  /** How long a stopped announce may take, in ms.  It's sent as we shut
+   *  down, and shouldn't hold that up past the Janitor's kill. */
+  public static final int STOPPED_TIMEOUT = 5000;
+  /** How long an unused connection is kept open, in ms */
+  public static final int KEEP_ALIVE = 60000;
+  /** How long a scrape waits for others to the same tracker, in ms */
+  public static final int SCRAPE_WINDOW = 500;
+  /** Most info hashes scraped in one request, what fits in a UDP reply */
+  public static final int MAX_SCRAPE = 74;
+
+  private static Marshal instance;
+
+  private final Overlord overlord = new Overlord();
+  private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+  private boolean halted = false;
+  private UdpTracker udp;
+  // Scrapes waiting for others to the same tracker, by scrape URL
+  private final HashMap<String, Scrape> scrapes = new HashMap<String, Scrape>();
+
+  // Metrics
+  private long requests = 0;
+  private long connectionsOpened = 0;
+  private long reused = 0;
+  private long failures = 0;
+  private long bytesSent = 0;
+  private long bytesReceived = 0;
+  private long scrapeRequests = 0;
+  private long scrapedHashes = 0;
+
+  /** A request waiting for, or being carried by, a connection. */
+  public static class Request {
+    public final String url;
+    public final URI uri;
+    public final Actor sender;
+    final long deadline;
+    boolean retried = false;
+    Scrape scrape;      // the info hashes asked after, for a scrape
+
+    Request (String url, URI uri, Actor sender) {
+      this.url = url;
+      this.uri = uri;
+      this.sender = sender;
+      this.deadline = System.currentTimeMillis() +
+        (url.contains("event=stopped") ? STOPPED_TIMEOUT : TIMEOUT);
+    }
+  }
+
+  /** Info hashes to be scraped from one tracker in one request. */
+  static class Scrape {
+    final String url;   // the scrape URL
+    final long due;
+    final ArrayList<ByteBuffer> hashes = new ArrayList<ByteBuffer>();
+    final ArrayList<String> announces = new ArrayList<String>();
+    final ArrayList<Actor> senders = new ArrayList<Actor>();
+
+    Scrape (String url, long due) {
+      this.url = url;
+      this.due = due;
+    }
+  }
+
+  /** The requests and connections for one host:port. */
+  private static class Host {
+    final String name;
+    final int port;
+    final LinkedList<Request> queue = new LinkedList<Request>();
+    final ArrayList<HttpConnection> connections = new ArrayList<HttpConnection>();
+
+    Host (String name, int port) {
+      this.name = name;
+      this.port = port;
+    }
+  }
+
+  public Marshal () {
+    super();
+  }
+
+  /** Wakes the selector, so a request doesn't wait out a select(). */
+  @Override
+  public void post (Memo memo) {
+    super.post(memo);
+    overlord.wakeup();
+  }
+
+  /** The shared Marshal, started the first time it's asked for. */
+  public static synchronized Marshal getInstance () {
+    if (instance == null) {
+      instance = new Marshal();
+      instance.start();
+    }
+    return instance;
+  }
+
+  /** Stops the shared Marshal, if there is one. */
+  public static synchronized void off () {
+    if (instance != null) instance.post(new Memo("halt", null, null));
+    instance = null;
+  }
+
+  protected void receive (Memo memo) {
+    if (memo.getType().equals("get")) {
+      String url = (String) memo.getPayload();
+      if (halted) {
+        reply(memo.getSender(), url, null, "shutting down");
+        return;
+      }
+      requests++;
+      URI uri;
+      try {
+        uri = new URI(url);
+      } catch (Exception e) {
+        reply(memo.getSender(), url, null, "malformed URL " + url);
+        return;
+      }
+
+      if ("http".equalsIgnoreCase(uri.getScheme()) && uri.getHost() != null) {
+        Request r = new Request(url, uri, memo.getSender());
+        host(uri).queue.add(r);
+        dispatch();
+      } else if ("udp".equalsIgnoreCase(uri.getScheme()) && uri.getHost() != null) {
+        Request r = new Request(url, uri, memo.getSender());
+        try {
+          udp().announce(r);
+        } catch (IOException e) {
+          failed(r, e.getMessage());
+        }
+      } else {
+        fetchBlocking(url, memo.getSender());
+      }
+    }
+
+    // payload = {announce URL, info hash}
+    else if (memo.getType().equals("scrape")) {
+      Object[] payload = (Object[]) memo.getPayload();
+      String announce = (String) payload[0];
+      String url = scrapeUrl(announce);
+      if (halted || url == null) {
+        Log.warning("Can't scrape " + announce);
+        return;
+      }
+      Scrape s = scrapes.get(url);
+      if (s == null) {
+        s = new Scrape(url, System.currentTimeMillis() + SCRAPE_WINDOW);
+        scrapes.put(url, s);
+      }
+      s.hashes.add((ByteBuffer) payload[1]);
+      s.announces.add(announce);
+      s.senders.add(memo.getSender());
+      if (s.hashes.size() >= MAX_SCRAPE) {
+        scrapes.remove(url);
+        scrape(s);
+      }
+    }
+
+    else if (memo.getType().equals("halt")) {
+      scrapes.clear();
+      for (Host h : hosts.values()) {
+        for (HttpConnection c : h.connections) c.close();
+        for (Request r : h.queue) reply(r.sender, r.url, null, "shutting down");
+      }
+      hosts.clear();
+      if (udp != null) udp.close();
+      overlord.close();
+      halted = true;
+      shutdown();
+    }
+  }
+
+  /**
+   * The URL a tracker is scraped at: for HTTP, the announce URL with the
+   * "announce" that starts its last path segment made "scrape", as trackers
+   * that support scraping have it.  UDP trackers are scraped where they're
+   * announced to.
+   * @return null if the tracker can't be scraped
+   */
+  public static String scrapeUrl (String announce) {
+    if (announce.regionMatches(true, 0, "udp://", 0, 6)) return announce;
+    if (!announce.regionMatches(true, 0, "http", 0, 4)) return null;
+    int query = announce.indexOf('?');
+    String path = query < 0 ? announce : announce.substring(0, query);
+    int slash = path.lastIndexOf('/');
+    if (slash < 0 || !path.startsWith("announce", slash + 1)) return null;
+    return path.substring(0, slash + 1) + "scrape" + announce.substring(slash + 9);
+  }
+
+  /** Sends a batch of scrapes. */
+  private void scrape (Scrape s) {
+    scrapeRequests++;
+    StringBuilder url = new StringBuilder(s.url);
+    // udp scrapes carry the info hashes in the datagram instead
+    if (!s.url.regionMatches(true, 0, "udp://", 0, 6)) {
+      char sep = s.url.indexOf('?') < 0 ? '?' : '&';
+      for (ByteBuffer hash : s.hashes) {
+        url.append(sep).append("info_hash=").append(Deputy.escapeURL(hash.duplicate()));
+        sep = '&';
+      }
+    }
+
+    Request r;
+    try {
+      r = new Request(url.toString(), new URI(url.toString()), null);
+    } catch (Exception e) {
+      Log.warning("Can't scrape " + s.url + ": malformed URL");
+      return;
+    }
+    r.scrape = s;
+    if (r.uri.getHost() == null) {
+      failed(r, "no host");
+    } else if ("udp".equalsIgnoreCase(r.uri.getScheme())) {
+      try {
+        udp().scrape(r);
+      } catch (IOException e) {
+        failed(r, e.getMessage());
+      }
+    } else {
+      host(r.uri).queue.add(r);
+      dispatch();
+    }
+  }
+
+  private Host host (URI uri) {
+    int port = uri.getPort() == -1 ? 80 : uri.getPort();
+    String key = uri.getHost().toLowerCase() + ":" + port;
+    Host h = hosts.get(key);
+    if (h == null) {
+      h = new Host(uri.getHost(), port);
+      hosts.put(key, h);
+    }
+    return h;
+  }
+
+  /** Puts queued requests on idle connections, opening new ones if allowed. */
+  private void dispatch () {
+    for (Host h : hosts.values()) {
+      for (Iterator<HttpConnection> it = h.connections.iterator(); it.hasNext(); )
+        if (it.next().closed()) it.remove();
+
+      while (!h.queue.isEmpty()) {
+        HttpConnection idle = null;
+        for (HttpConnection c : h.connections) if (c.idle()) { idle = c; break; }
+
+        if (idle != null) {
+          reused++;
+          idle.send(h.queue.poll());
+        } else if (h.connections.size() < MAX_CONNECTIONS) {
+          connectionsOpened++;
+          HttpConnection c = new HttpConnection(this, overlord, h.name, h.port, h.queue.poll());
+          if (!c.closed()) h.connections.add(c);
+        } else {
+          break;
+        }
+      }
+    }
+  }
+
+  protected void idle () {
+    if (halted) return;
+    overlord.communicate(20);
+    long now = System.currentTimeMillis();
+
+    for (Host h : hosts.values()) {
+      for (Iterator<Request> it = h.queue.iterator(); it.hasNext(); ) {
+        Request r = it.next();
+        if (now > r.deadline) {
+          it.remove();
+          failed(r, "timed out");
+        }
+      }
+      for (HttpConnection c : h.connections) {
+        Request r = c.current();
+        if (r != null && now > r.deadline) c.fail("timed out");
+        else if (c.idle() && now - c.idleSince() > KEEP_ALIVE) c.close();
+      }
+    }
+    if (udp != null) udp.check(now);
+
+    for (Iterator<Scrape> it = scrapes.values().iterator(); it.hasNext(); ) {
+      Scrape s = it.next();
+      if (now >= s.due) {
+        it.remove();
+        scrape(s);
+      }
+    }
+    dispatch();
+  }
+
+  /** The UDP tracker client, opened the first time it's needed. */
+  public UdpTracker udp () throws IOException {
+    if (udp == null) udp = new UdpTracker(this, overlord);
+    return udp;
+  }
+
+  /** Called by a connection with a complete response. */
+  void finished (Request r, HttpResponse response) {
+    if (response.status() != 200) {
+      failed(r, "HTTP " + response.status() + " " + response.reason());
+      return;
+    }
+    if (r.scrape != null) {
+      scraped(r, response);
+      return;
+    }
+    try {
+      reply(r.sender, r.url, ByteBuffer.wrap(response.body()), null);
+    } catch (IOException e) {
+      failed(r, e.getMessage());
+    }
+  }
+
+  /** Called by a connection whose request failed. */
+  void failed (Request r, String why) {
+    failures++;
+    if (r.scrape != null) Log.warning("Scrape of " + r.scrape.url + " failed: " + why);
+    reply(r.sender, r.url, null, why);
+  }
+
+  /** Called by a kept-alive connection that closed just as it was reused;
+   *  the request goes back in line once. */
+  void retry (Request r) {
+    if (r.retried) {
+      failed(r, "connection closed");
+      return;
+    }
+    r.retried = true;
+    host(r.uri).queue.addFirst(r);
+  }
+
+  /** Called by the {@link UdpTracker} with a tracker's answer. */
+  void announced (Request r, int interval, int leechers, int seeders, ByteBuffer peers) {
+    if (r.sender != null)
+      r.sender.post(new Memo("announced", new Object[] { r.url, interval, leechers, seeders, peers }, this));
+  }
+
+  /** Hands out the files of an HTTP scrape to whoever asked after them. */
+  @SuppressWarnings("rawtypes")
+  private void scraped (Request r, HttpResponse response) {
+    Map files;
+    try {
+      Object body = BencodeReader.decode(ByteBuffer.wrap(response.body()));
+      files = (Map) ((Map) body).get(Util.s("files"));
+      if (files == null) throw new ClassCastException();
+    } catch (Exception e) {
+      failed(r, "invalid scrape response");
+      return;
+    }
+    for (int i = 0; i < r.scrape.hashes.size(); i++) {
+      Object stats = files.get(r.scrape.hashes.get(i));
+      if (!(stats instanceof Map)) continue; // a torrent it doesn't track
+      scraped(r, i, count((Map) stats, "complete"), count((Map) stats, "incomplete"),
+        count((Map) stats, "downloaded"));
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static int count (Map stats, String key) {
+    Object n = stats.get(Util.s(key));
+    return n instanceof Number ? ((Number) n).intValue() : -1;
+  }
+
+  /** Called with one torrent's swarm from a scrape, by its place in the batch. */
+  void scraped (Request r, int i, int seeders, int leechers, int completed) {
+    scrapedHashes++;
+    Actor to = r.scrape.senders.get(i);
+    if (to != null)
+      to.post(new Memo("scraped", new Object[] { r.scrape.announces.get(i), r.scrape.hashes.get(i),
+        seeders, leechers, completed }, this));
+  }
+
+  /** Counts bytes sent to and received from trackers. */
+  void counted (int sent, int received) {
+    bytesSent += sent;
+    bytesReceived += received;
+  }
+
+  private void reply (Actor to, String url, ByteBuffer body, String error) {
+    if (to == null) return;
+    if (error == null)
+      to.post(new Memo("response", new Object[] { url, body }, this));
+    else
+      to.post(new Memo("error", new Object[] { url, error }, this));
+  }
+
+  /**
+   * Schemes we don't speak ourselves, such as https, go through
+   * {@link URLConnection} on a thread of their own.  The body is read to the
+   * end rather than trusting Content-Length, which chunked responses lack.
+   */
+  private void fetchBlocking (final String url, final Actor sender) {
+    final Marshal marshal = this;
+    new Thread() {
+      public void run () {
+        try {
+          URLConnection conn = new java.net.URL(url).openConnection();
+          conn.setConnectTimeout(TIMEOUT);
+          conn.setReadTimeout(TIMEOUT);
+          InputStream in = conn.getInputStream();
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          byte[] buf = new byte[8192];
+          for (int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+          in.close();
+          marshal.reply(sender, url, ByteBuffer.wrap(out.toByteArray()), null);
+        } catch (Exception e) {
+          marshal.reply(sender, url, null, e.toString());
+        }
+      }
+    }.start();
+  }
+
+  public long requests () { return requests; }
+  public long connectionsOpened () { return connectionsOpened; }
+  /** Requests sent over a connection kept alive from an earlier one */
+  public long reused () { return reused; }
+  public long failures () { return failures; }
+  /** Scrape requests sent, each for up to MAX_SCRAPE torrents */
+  public long scrapeRequests () { return scrapeRequests; }
+  /** Torrents a tracker has told us the swarm of by a scrape */
+  public long scrapedHashes () { return scrapedHashes; }
+  /** Bytes sent to trackers, not counting TCP, UDP and IP headers */
+  public long bytesSent () { return bytesSent; }
+  /** Bytes received from trackers, not counting TCP, UDP and IP headers */
+  public long bytesReceived () { return bytesReceived; }
+
+  /** Connections currently open, to every host */
+  public int openConnections () {
+    int n = 0;
+    for (Host h : hosts.values())
+      for (HttpConnection c : h.connections) if (!c.closed()) n++;
+    return n;
+  }
+}
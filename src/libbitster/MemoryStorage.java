@@ -0,0 +1,110 @@
+package libbitster;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage held entirely in off-heap memory, with nothing on disk.  The bytes
+ * live in direct buffers of up to 1 GB each, allocated the first time they're
+ * written, so they neither count against the heap nor get walked by the
+ * garbage collector.  Useful for seeding from RAM, for tests, and as a
+ * baseline when comparing the disk-backed storages.  Safe for concurrent use
+ * in the same way as {@link MappedStorage}.
+ */
+public class MemoryStorage implements Storage {
+  public static final int CHUNK_SHIFT = 30;
+
+  private final long size;
+  private final long chunkSize;
+  private final AtomicReferenceArray<ByteBuffer> chunks;
+
+  public MemoryStorage (long size) {
+    if (size < 0)
+      throw new IllegalArgumentException("Negative storage size " + size);
+    this.size = size;
+    this.chunkSize = 1L << CHUNK_SHIFT;
+
+    long count = (size + chunkSize - 1) >>> CHUNK_SHIFT;
+    chunks = new AtomicReferenceArray<ByteBuffer>((int) count);
+  }
+
+  public long size () { return size; }
+
+  /** A view of the chunk holding the given offset, positioned there.
+   *  @param allocate Whether to allocate the chunk if it doesn't exist
+   *  @return the view, or null if the chunk doesn't exist and `allocate` is false */
+  private ByteBuffer chunk (long offset, boolean allocate) {
+    int c = (int) (offset >>> CHUNK_SHIFT);
+    ByteBuffer chunk = chunks.get(c);
+    if (chunk == null) {
+      if (!allocate) return null;
+      chunk = allocate(c);
+    }
+    ByteBuffer view = chunk.duplicate();
+    view.position((int) (offset & (chunkSize - 1)));
+    return view;
+  }
+
+  /** Allocates a chunk, unless another thread beat us to it. */
+  private synchronized ByteBuffer allocate (int c) {
+    ByteBuffer chunk = chunks.get(c);
+    if (chunk == null) {
+      long start = (long) c << CHUNK_SHIFT;
+      chunk = ByteBuffer.allocateDirect((int) Math.min(chunkSize, size - start));
+      chunks.set(c, chunk);
+    }
+    return chunk;
+  }
+
+  private int span (long offset, int length) {
+    return (int) Math.min(length, chunkSize - (offset & (chunkSize - 1)));
+  }
+
+  private void check (long offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > size)
+      throw new IndexOutOfBoundsException(
+        "Range " + offset + "+" + length + " is outside storage of " + size + " bytes"
+      );
+  }
+
+  public void read (long offset, ByteBuffer dst) {
+    int length = dst.remaining();
+    check(offset, length);
+    while (length > 0) {
+      int n = span(offset, length);
+      ByteBuffer chunk = chunk(offset, false);
+      if (chunk == null) {
+        for (int i = 0; i < n; i++) dst.put((byte) 0);
+      } else {
+        chunk.limit(chunk.position() + n);
+        dst.put(chunk);
+      }
+      offset += n;
+      length -= n;
+    }
+  }
+
+  public void write (long offset, ByteBuffer src) {
+    int length = src.remaining();
+    check(offset, length);
+    while (length > 0) {
+      int n = span(offset, length);
+      ByteBuffer part = src.duplicate();
+      part.limit(part.position() + n);
+      chunk(offset, true).put(part);
+      src.position(src.position() + n);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /** Nothing to flush. */
+  public void force () {}
+
+  public void force (long offset, long length) {}
+
+  /** Lets the memory go. */
+  public void close () {
+    for (int i = 0; i < chunks.length(); i++) chunks.set(i, null);
+  }
+}
@@ -17,6 +17,7 @@ public class Message {
   private BitSet bitfield;
   //BitSet capacity() is a power of 2 it seems and length() is not what we want
   private int bitfieldByteLength;
+  private int extendedId = -1;
   ByteBuffer block;
 
   public static final int KEEP_ALIVE = -1;
@@ -28,6 +29,8 @@ public class Message {
   public static final int BITFIELD = 5;
   public static final int REQUEST = 6;
   public static final int PIECE = 7;
+  public static final int CANCEL = 8;
+  public static final int EXTENDED = 20;
   
   //toString()
   private static final String[] TYPES = { "CHOKE",
@@ -37,7 +40,8 @@ public class Message {
                                           "HAVE",
                                           "BITFIELD",
                                           "REQUEST", 
-                                          "PIECE" };
+                                          "PIECE",
+                                          "CANCEL" };
 
   /**
    * Creates a message from a ByteBuffer filled with serialized message data
@@ -76,6 +80,7 @@ public class Message {
           break;
 
           case REQUEST:
+          case CANCEL:
             index = from.getInt();
             begin = from.getInt();
             blockLength = from.getInt();
@@ -90,6 +95,14 @@ public class Message {
             block = ByteBuffer.wrap(bytes);
             blockLength = length - 9;
           break;
+
+          case EXTENDED:
+            //The extension message id, then a bencoded dictionary (BEP 10)
+            extendedId = from.get() & 0xFF;
+            byte[] payload = new byte[length - 2];
+            from.get(payload, 0, length - 2);
+            block = ByteBuffer.wrap(payload);
+          break;
         }
       }
 
@@ -159,6 +172,7 @@ public class Message {
       break;
 
       case REQUEST:
+      case CANCEL:
         buff = ByteBuffer.allocate(17);
         buff.putInt(13);
         buff.put((byte) type);
@@ -175,6 +189,14 @@ public class Message {
         buff.putInt(begin);
         buff.put(block);
       break;
+
+      case EXTENDED:
+        buff = ByteBuffer.allocate(6 + block.remaining());
+        buff.putInt(2 + block.remaining());
+        buff.put((byte) type);
+        buff.put((byte) extendedId);
+        buff.put(block.duplicate());
+      break;
     }
     
     buff.rewind();
@@ -187,7 +209,8 @@ public class Message {
    */
   public String toString () {
     
-    if(type > 7) return "";
+    if(type == EXTENDED) return "extended:" + extendedId;
+    if(type > CANCEL) return "";
     if(type < 0) return "keepalive";
     
     String str = TYPES[type].toLowerCase();
@@ -202,6 +225,7 @@ public class Message {
       break;
   
       case REQUEST:
+      case CANCEL:
         str += ":" + index + ":" + begin + ":" + blockLength;
       break;
   
@@ -287,6 +311,21 @@ public class Message {
     return msg;
   }
 
+  /**
+   * Creates a CANCEL message, taking back a request
+   * @param index The piece index
+   * @param begin The byte offset within the piece
+   * @param length The number of bytes
+   */
+  public static Message createCancel (int index, int begin, int length) {
+    Message msg = new Message(CANCEL);
+    msg.index = index;
+    msg.begin = begin;
+    msg.blockLength = length;
+    
+    return msg;
+  }
+
   /**
    * Creates a PIECE message
    * @param index The piece index
@@ -302,6 +341,19 @@ public class Message {
     return msg;
   }
 
+  /**
+   * Creates an EXTENDED message (BEP 10)
+   * @param id The extension message id, 0 for the extension handshake
+   * @param payload The bencoded dictionary
+   */
+  public static Message createExtended (int id, final ByteBuffer payload) {
+    Message msg = new Message(EXTENDED);
+    msg.extendedId = id;
+    msg.block = payload;
+
+    return msg;
+  }
+
   //TODO: more create*(), testing
   
   /**
@@ -356,6 +408,15 @@ public class Message {
     return block;
   }
   
+  /**
+   * Returns the extension message id for EXTENDED messages, otherwise -1;
+   * the payload is in getBlock()
+   * @return The extension message id
+   */
+  public int getExtendedId() {
+    return extendedId;
+  }
+
   /**
    * Returns the bitfield for BITFIELD messages, otherwise null
    * @return The bitfield
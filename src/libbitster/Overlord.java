@@ -54,4 +54,36 @@ public class Overlord {
       return true;
     } catch (Exception e) { return false; }
   }
+
+  /** Registers a channel for just the given operations, so that a socket
+   *  with nothing to send doesn't wake the selector for being writable. */
+  public boolean register (SelectableChannel sc, Communicator communicator, int ops) {
+    try {
+      sc.register(selector, ops, communicator);
+      return true;
+    } catch (Exception e) { return false; }
+  }
+
+  /** Changes the operations a registered channel is selected for. */
+  public void interest (SelectableChannel sc, int ops) {
+    SelectionKey key = sc.keyFor(selector);
+    if (key != null && key.isValid()) key.interestOps(ops);
+  }
+
+  /** Stops selecting on a channel, without closing it, so that it can be
+   *  handed to another Overlord. */
+  public void unregister (SelectableChannel sc) {
+    SelectionKey key = sc.keyFor(selector);
+    if (key != null) key.cancel();
+  }
+
+  /** Makes a communicate() in progress on another thread return at once. */
+  public void wakeup () {
+    selector.wakeup();
+  }
+
+  /** Closes the selector.  Channels still registered should be closed first. */
+  public void close () {
+    try { selector.close(); } catch (IOException e) {}
+  }
 }
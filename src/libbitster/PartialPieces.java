@@ -0,0 +1,150 @@
+package libbitster;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Remembers which blocks of unfinished pieces have been written to disk, so
+ * a restart can pick pieces up where they were left rather than throw away
+ * what was downloaded of them.  The {@link Funnel} writes each block to its
+ * final place in storage as it arrives, records it here, and saves this
+ * record beside the download once the blocks themselves have been forced to
+ * disk, so the record never claims more than the disk holds.
+ *
+ * The record is a bencoded dictionary holding the block size and a list of
+ * [piece, bitfield] pairs, written to a temporary file and renamed over the
+ * old one so a crash mid-save leaves the previous record intact.
+ */
+public class PartialPieces {
+  private static final String KEY_BLOCK_SIZE = "block size";
+  private static final String KEY_PIECES = "pieces";
+
+  private final File file;
+  private final int blockSize;
+  private final TreeMap<Integer, BitSet> pieces = new TreeMap<Integer, BitSet>();
+  private boolean changed = false;
+
+  /**
+   * Loads the record from `file`, if there is one.  A record that can't be
+   * read, or that was made with another block size, is ignored.
+   * @param file Where the record lives
+   * @param blockSize The size of the blocks being recorded
+   */
+  @SuppressWarnings("unchecked")
+  public PartialPieces (File file, int blockSize) {
+    this.file = file;
+    this.blockSize = blockSize;
+    if (!file.isFile()) return;
+
+    try {
+      Map<ByteBuffer, Object> record = (Map<ByteBuffer, Object>)
+        BencodeReader.decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+      Object size = record.get(key(KEY_BLOCK_SIZE));
+      if (!(size instanceof Long) || (Long) size != blockSize) {
+        Log.w("Ignoring " + file + ", it was made with another block size");
+        return;
+      }
+      for (Object entry : (List<Object>) record.get(key(KEY_PIECES))) {
+        List<Object> pair = (List<Object>) entry;
+        int piece = ((Long) pair.get(0)).intValue();
+        ByteBuffer bits = (ByteBuffer) pair.get(1);
+        byte[] bytes = new byte[bits.remaining()];
+        bits.get(bytes);
+        BitSet blocks = BitSet.valueOf(bytes);
+        if (piece >= 0 && !blocks.isEmpty()) pieces.put(piece, blocks);
+      }
+    } catch (Exception e) {
+      Log.w("Ignoring unreadable " + file + ": " + e.getMessage());
+      pieces.clear();
+    }
+  }
+
+  private static ByteBuffer key (String s) {
+    return ByteBuffer.wrap(s.getBytes());
+  }
+
+  public int blockSize () { return blockSize; }
+
+  /** Records a block, given by its offset within its piece, as written. */
+  public void add (int piece, int begin) {
+    BitSet blocks = pieces.get(piece);
+    if (blocks == null) {
+      blocks = new BitSet();
+      pieces.put(piece, blocks);
+    }
+    if (!blocks.get(begin / blockSize)) {
+      blocks.set(begin / blockSize);
+      changed = true;
+    }
+  }
+
+  /** Forgets a piece, ie once it's been verified or failed its hash check. */
+  public void remove (int piece) {
+    if (pieces.remove(piece) != null) changed = true;
+  }
+
+  /** The blocks written of a piece, or null if none are. */
+  public BitSet get (int piece) {
+    return pieces.get(piece);
+  }
+
+  /** The pieces with some blocks written, in order. */
+  public Set<Integer> pieces () {
+    return pieces.keySet();
+  }
+
+  /** Whether anything has changed since the last save. */
+  public boolean changed () { return changed; }
+
+  /**
+   * Writes the record out if it has changed, or deletes it once there's
+   * nothing left in it.  The blocks it lists must already be on disk.
+   */
+  public void save () throws IOException {
+    if (!changed) return;
+    if (pieces.isEmpty()) {
+      if (file.exists() && !file.delete())
+        throw new IOException("Couldn't delete " + file);
+      changed = false;
+      return;
+    }
+
+    ArrayList<Object> list = new ArrayList<Object>(pieces.size());
+    for (Map.Entry<Integer, BitSet> e : pieces.entrySet()) {
+      ArrayList<Object> pair = new ArrayList<Object>(2);
+      pair.add(Long.valueOf(e.getKey()));
+      pair.add(e.getValue().toByteArray());
+      list.add(pair);
+    }
+    HashMap<String, Object> record = new HashMap<String, Object>();
+    record.put(KEY_BLOCK_SIZE, Long.valueOf(blockSize));
+    record.put(KEY_PIECES, list);
+
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      BencodeWriter w = new BencodeWriter(out);
+      w.write(record);
+      w.flush();
+      out.getFD().sync();
+    } catch (BencodingException e) {
+      throw new IOException(e.getMessage());
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    changed = false;
+  }
+}
@@ -0,0 +1,346 @@
+package libbitster;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The peers a torrent could connect to, from trackers, PEX and incoming
+ * connections, and how each has done when we were connected.  Its
+ * {@link Manager} asks it which to dial next, and tells it how each
+ * connection went.
+ *
+ * <ul>
+ * <li>Candidates are tried best first: those that sent us the most, per
+ *     second, the last time, then those we know nothing about, then slow
+ *     ones and ones that have failed.</li>
+ * <li>Connections being set up, up to the end of the handshake, are limited
+ *     per torrent and across all torrents, as are connections in all, so a
+ *     big peer list doesn't open hundreds of sockets at once.</li>
+ * <li>An address that fails is left alone for a doubling delay, and
+ *     forgotten after MAX_FAILURES in a row.</li>
+ * </ul>
+ *
+ * Addresses are an IPv4 address and port packed into a long, as a compact
+ * peer list has them, rather than "ip:port" strings.
+ */
+public class PeerPool {
+  /** Where a candidate was heard of */
+  public static final int TRACKER = 0, PEX = 1, INCOMING = 2;
+
+  /** Most connects one torrent has in progress at once */
+  public static final int MAX_HALF_OPEN = 8;
+  /** Most connections one torrent has, counting those in progress, unless
+   *  the {@link Governor} gives it fewer */
+  public static final int MAX_CONNECTIONS = 50;
+  /** Most connects in progress at once, across all torrents */
+  public static final int GLOBAL_HALF_OPEN = 64;
+  /** Most connections, across all torrents */
+  public static final int GLOBAL_CONNECTIONS = 800;
+  /** How long a connect and handshake may take, in ms */
+  public static final int CONNECT_TIMEOUT = 15000;
+  /** Wait after a failure, or before reconnecting after a disconnect, in ms */
+  public static final int RETRY_BASE = 30000;
+  /** Longest wait between attempts, in ms */
+  public static final int RETRY_MAX = 30 * 60 * 1000;
+  /** Failures in a row before an address is forgotten */
+  public static final int MAX_FAILURES = 6;
+  /** Most candidates kept */
+  public static final int MAX_CANDIDATES = 2000;
+
+  // What a candidate we know nothing about is assumed to send, in bytes/s:
+  // a block a second, so it's tried before peers known to be slower.
+  private static final double UNKNOWN_RATE = 16384;
+  // Weight of the newest sample in the moving average
+  private static final double ALPHA = 0.5;
+
+  private static final int IDLE = 0, CONNECTING = 1, CONNECTED = 2;
+
+  // Across all torrents
+  private static int globalHalfOpen = 0;
+  private static int globalConnections = 0;
+
+  private final HashMap<Long, Candidate> candidates = new HashMap<Long, Candidate>();
+  private int halfOpen = 0;
+  private int connections = 0;
+  private int maxConnections = MAX_CONNECTIONS;
+
+  // Metrics
+  private long connects = 0;
+  private long failures = 0;
+  private long timeouts = 0;
+  private long forgotten = 0;
+
+  /** An address we might connect to. */
+  private static class Candidate {
+    final long key;
+    final int source;
+    int state = IDLE;
+    long since;            // when it started connecting, or connected
+    int failures = 0;      // in a row
+    long retryAt = 0;      // not before this time
+    double rate = -1;      // bytes/s received, moving average
+
+    Candidate (long key, int source) {
+      this.key = key;
+      this.source = source;
+    }
+
+    double score () {
+      return (rate < 0 ? UNKNOWN_RATE : rate) / (1 + failures);
+    }
+  }
+
+  /**
+   * Packs an address and port.
+   * @return -1 if it isn't IPv4
+   */
+  public static long key (InetAddress address, int port) {
+    if (!(address instanceof Inet4Address)) return -1;
+    byte[] ip = address.getAddress();
+    long a = ((ip[0] & 0xFFL) << 24) | ((ip[1] & 0xFF) << 16) | ((ip[2] & 0xFF) << 8) | (ip[3] & 0xFF);
+    return a << 16 | (port & 0xFFFF);
+  }
+
+  /**
+   * Packs a dotted quad and port, without a DNS lookup.
+   * @return -1 if ip isn't a dotted quad or port is out of range
+   */
+  public static long key (String ip, int port) {
+    if (port <= 0 || port > 0xFFFF) return -1;
+    String[] parts = ip.split("\\.");
+    if (parts.length != 4) return -1;
+    long a = 0;
+    for (String part : parts) {
+      int n;
+      try { n = Integer.parseInt(part); }
+      catch (NumberFormatException e) { return -1; }
+      if (n < 0 || n > 255) return -1;
+      a = a << 8 | n;
+    }
+    return a << 16 | port;
+  }
+
+  public static int port (long key) { return (int) (key & 0xFFFF); }
+
+  public static InetAddress address (long key) {
+    long a = key >>> 16;
+    byte[] ip = { (byte) (a >> 24), (byte) (a >> 16), (byte) (a >> 8), (byte) a };
+    try {
+      return InetAddress.getByAddress(ip);
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException(e); // can't happen with 4 bytes
+    }
+  }
+
+  public static String toString (long key) {
+    long a = key >>> 16;
+    return (a >> 24) + "." + ((a >> 16) & 0xFF) + "." + ((a >> 8) & 0xFF) + "." + (a & 0xFF)
+      + ":" + port(key);
+  }
+
+  /**
+   * Adds a candidate, unless we know it already or have too many.
+   * @return true if it's new
+   */
+  public boolean add (long key, int source) {
+    if (key < 0 || candidates.containsKey(key)) return false;
+    if (candidates.size() >= MAX_CANDIDATES && !evict()) return false;
+    candidates.put(key, new Candidate(key, source));
+    return true;
+  }
+
+  /** Forgets the worst idle candidate that has failed, to make room. */
+  private boolean evict () {
+    Candidate worst = null;
+    for (Candidate c : candidates.values())
+      if (c.state == IDLE && c.failures > 0 && (worst == null || c.score() < worst.score())) worst = c;
+    if (worst == null) return false;
+    candidates.remove(worst.key);
+    forgotten++;
+    return true;
+  }
+
+  /**
+   * Picks the best candidate to dial now, if the limits allow another
+   * connect, and counts it as connecting.
+   * @return its key, or -1 if there's none or no room
+   */
+  public long next (long now) {
+    if (halfOpen >= MAX_HALF_OPEN || halfOpen + connections >= maxConnections) return -1;
+
+    Candidate best = null;
+    for (Candidate c : candidates.values())
+      if (c.state == IDLE && now >= c.retryAt && (best == null || c.score() > best.score())) best = c;
+    if (best == null || !reserve(true)) return -1;
+
+    best.state = CONNECTING;
+    best.since = now;
+    halfOpen++;
+    connects++;
+    return best.key;
+  }
+
+  /** Whether there's a candidate that could be dialed now, room allowing. */
+  public boolean ready (long now) {
+    for (Candidate c : candidates.values())
+      if (c.state == IDLE && now >= c.retryAt) return true;
+    return false;
+  }
+
+  /** How many candidates could be dialed now, room allowing. */
+  public int waiting (long now) {
+    int n = 0;
+    for (Candidate c : candidates.values())
+      if (c.state == IDLE && now >= c.retryAt) n++;
+    return n;
+  }
+
+  /**
+   * Sets this torrent's share of the connections, up to MAX_CONNECTIONS.
+   * Connections over a smaller share are kept; no new ones are made until
+   * enough of them close.
+   */
+  public void setMaxConnections (int max) {
+    maxConnections = Math.max(0, Math.min(max, MAX_CONNECTIONS));
+  }
+
+  /** Notes that a connect we started got through the handshake. */
+  public void connected (long key, long now) {
+    Candidate c = candidates.get(key);
+    if (c == null || c.state != CONNECTING) return;
+    c.state = CONNECTED;
+    c.since = now;
+    c.failures = 0;
+    halfOpen--;
+    connections++;
+    synchronized (PeerPool.class) {
+      globalHalfOpen--;
+      globalConnections++;
+    }
+  }
+
+  /**
+   * Takes on a connection a peer made to us, if the limits allow it.
+   * @return false if it should be turned away
+   */
+  public boolean accept (long key, long now) {
+    if (key < 0 || halfOpen + connections >= maxConnections) return false;
+    Candidate c = candidates.get(key);
+    if (c != null && c.state != IDLE) return false;
+    if (c == null && candidates.size() >= MAX_CANDIDATES && !evict()) return false;
+    if (!reserve(false)) return false;
+
+    if (c == null) {
+      c = new Candidate(key, INCOMING);
+      candidates.put(key, c);
+    }
+    c.state = CONNECTED;
+    c.since = now;
+    connections++;
+    return true;
+  }
+
+  /**
+   * Notes that a connection ended.  One that never got through the
+   * handshake counts as a failure; one that did is rated by what it sent.
+   * @param received bytes of blocks the peer sent us
+   */
+  public void closed (long key, long received, long now) {
+    Candidate c = candidates.get(key);
+    if (c == null || c.state == IDLE) return;
+
+    if (c.state == CONNECTING) {
+      halfOpen--;
+      release(true);
+      failures++;
+      c.failures++;
+      long delay = Math.min((long) RETRY_MAX, (long) RETRY_BASE << Math.min(c.failures - 1, 20));
+      c.retryAt = Math.max(c.retryAt, now + delay);
+    } else {
+      connections--;
+      release(false);
+      long millis = now - c.since;
+      if (millis > 0) {
+        double rate = received * 1000.0 / millis;
+        c.rate = c.rate < 0 ? rate : ALPHA * rate + (1 - ALPHA) * c.rate;
+      }
+      c.retryAt = Math.max(c.retryAt, now + RETRY_BASE);
+    }
+    c.state = IDLE;
+
+    // A peer that dialed us did so from a port we can't dial back
+    if (c.source == INCOMING || c.failures >= MAX_FAILURES) {
+      candidates.remove(key);
+      forgotten++;
+    }
+  }
+
+  /** Never dials an address again, eg. because it turned out to be us. */
+  public void ban (long key) {
+    Candidate c = candidates.get(key);
+    if (c != null) c.retryAt = Long.MAX_VALUE;
+  }
+
+  /** The connects that have taken too long; the caller closes them. */
+  public ArrayList<Long> expired (long now) {
+    ArrayList<Long> late = new ArrayList<Long>();
+    if (halfOpen == 0) return late;
+    for (Candidate c : candidates.values()) {
+      if (c.state == CONNECTING && now - c.since > CONNECT_TIMEOUT) {
+        late.add(c.key);
+        timeouts++;
+      }
+    }
+    return late;
+  }
+
+  /** Lets go of every connection, for the global limits, when shutting down. */
+  public void clear () {
+    for (Iterator<Candidate> it = candidates.values().iterator(); it.hasNext(); ) {
+      Candidate c = it.next();
+      if (c.state == CONNECTING) release(true);
+      else if (c.state == CONNECTED) release(false);
+      it.remove();
+    }
+    halfOpen = connections = 0;
+  }
+
+  // Counts a connect or connection against the global limits, if there's room
+  private static synchronized boolean reserve (boolean connecting) {
+    if (globalHalfOpen + globalConnections >= GLOBAL_CONNECTIONS) return false;
+    if (connecting) {
+      if (globalHalfOpen >= GLOBAL_HALF_OPEN) return false;
+      globalHalfOpen++;
+    } else {
+      globalConnections++;
+    }
+    return true;
+  }
+
+  private static synchronized void release (boolean connecting) {
+    if (connecting) globalHalfOpen--;
+    else globalConnections--;
+  }
+
+  public int size () { return candidates.size(); }
+  public int halfOpen () { return halfOpen; }
+  public int connections () { return connections; }
+  public int maxConnections () { return maxConnections; }
+  public long connects () { return connects; }
+  public long failures () { return failures; }
+  public long timeouts () { return timeouts; }
+  public long forgotten () { return forgotten; }
+
+  public static synchronized int globalHalfOpen () { return globalHalfOpen; }
+  public static synchronized int globalConnections () { return globalConnections; }
+
+  public String toString () {
+    return "Peers: " + candidates.size() + " known, " + halfOpen + " connecting, "
+      + connections + " connected of " + maxConnections + ", " + connects + " connects, " + failures + " failed, "
+      + timeouts + " timed out, " + forgotten + " forgotten";
+  }
+}
@@ -3,7 +3,6 @@ package libbitster;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.BitSet;
 
 /** 
@@ -12,14 +11,23 @@ import java.util.BitSet;
  * @author Theodore Surgent
  * @author Martin Miralles-Cordal
  */
-public class Piece implements Comparable<Piece> {
+public class Piece {
   private int number;
   private int blockSize;
   private byte[] data;
-  private byte[] hash;
   private BitSet completed;
   private BitSet requested;
-  private int availability;
+
+  // Where our 20-byte SHA-1 lives.  Usually this is the torrent's packed hash
+  // array shared by every piece, rather than a copy of our own.
+  private byte[] hashes;
+  private int hashOffset;
+
+  // Number of blocks in the piece, and how many of them are set in
+  // `completed` and `requested`, so we never have to scan the bitsets.
+  private int blocks;
+  private int numCompleted;
+  private int numRequested;
 
   /** size of the whole piece */
   private int size;
@@ -31,7 +39,20 @@ public class Piece implements Comparable<Piece> {
    * @param number The piece index
    * @param blockSize The number of bytes to add to the piece at a time (generally 2^14 or 16KB)
    */
-  public Piece(byte[] data, byte[] hash, int number, int blockSize) {    //Sanity checks
+  public Piece(byte[] data, byte[] hash, int number, int blockSize) {
+    this(data, hash, 0, number, blockSize);
+  }
+
+  /**
+   * Creates a completed piece whose hash is stored in a shared array
+   * @param data The data associated with this piece
+   * @param hashes An array holding the 20-byte SHA-1 hash for this piece
+   * @param hashOffset The offset of this piece's hash within {@code hashes}
+   * @param number The piece index
+   * @param blockSize The number of bytes to add to the piece at a time (generally 2^14 or 16KB)
+   */
+  public Piece(byte[] data, byte[] hashes, int hashOffset, int number, int blockSize) {
+    //Sanity checks
     if(number < 0 || blockSize <= 0 || data.length <= 0)
       throw new IllegalArgumentException("Arguments must be > 0 (except number which may = 0)");
     if(blockSize > data.length)
@@ -42,18 +63,17 @@ public class Piece implements Comparable<Piece> {
 
     this.data = data;
     this.size = data.length;
-    this.hash = hash;
-    this.availability = 0;
+    this.hashes = hashes;
+    this.hashOffset = hashOffset;
 
     //One bit for each block
-    int blocks = (int)Math.ceil((double)size / (double)blockSize);
+    blocks = (int)Math.ceil((double)size / (double)blockSize);
     completed = new BitSet(blocks);
     requested = new BitSet(blocks);
 
-    for(int i = 0; i < blocks; ++i) {
-      completed.set(i);
-      requested.set(i);
-    }
+    completed.set(0, blocks);
+    requested.set(0, blocks);
+    numCompleted = numRequested = blocks;
   }
   
   /**
@@ -64,6 +84,18 @@ public class Piece implements Comparable<Piece> {
    * @param size The size of this piece, must be >= blockSize
    */
   public Piece(byte[] hash, int number, int blockSize, int size) {
+    this(hash, 0, number, blockSize, size);
+  }
+
+  /**
+   * Creates an empty piece whose hash is stored in a shared array
+   * @param hashes An array holding the 20-byte SHA-1 hash for this piece
+   * @param hashOffset The offset of this piece's hash within {@code hashes}
+   * @param number The piece index
+   * @param blockSize The number of bytes to add to the piece at a time (generally 2^14 or 16KB)
+   * @param size The size of this piece, must be >= blockSize
+   */
+  public Piece(byte[] hashes, int hashOffset, int number, int blockSize, int size) {
     //Sanity checks
     if(number < 0 || blockSize <= 0 || size <= 0)
       throw new IllegalArgumentException("Arguments must be > 0 (except number which may = 0)");
@@ -75,12 +107,13 @@ public class Piece implements Comparable<Piece> {
 
     data = new byte[size];
     this.size = size;
-    this.hash = hash;
-    this.availability = 0;
+    this.hashes = hashes;
+    this.hashOffset = hashOffset;
 
     //One bit for each block
-    completed = new BitSet( (int)Math.ceil((double)size / (double)blockSize) );
-    requested = new BitSet( (int)Math.ceil((double)size / (double)blockSize) );
+    blocks = (int)Math.ceil((double)size / (double)blockSize);
+    completed = new BitSet(blocks);
+    requested = new BitSet(blocks);
   }
 
   /**
@@ -124,10 +157,17 @@ public class Piece implements Comparable<Piece> {
     }
 
     //Copy block over to this piece
-    for(int i = begin; i < begin + block.limit(); i++)
-      data[i] = block.get();
+    block.get(data, begin, block.limit());
 
-    completed.set(begin / blockSize);
+    int index = begin / blockSize;
+    completed.set(index);
+    numCompleted++;
+
+    //A block we never asked for (or gave up on) still counts as requested
+    if(!requested.get(index)) {
+      requested.set(index);
+      numRequested++;
+    }
 
     return true;
   }
@@ -154,9 +194,7 @@ public class Piece implements Comparable<Piece> {
       throw new IllegalArgumentException("Length > 128KB");
     else {
       block = new byte[length];
-      for(int i = 0; i < block.length; i++) {
-        block[i] = data[begin + i];
-      }
+      System.arraycopy(data, begin, block, 0, length);
     }
     
     return block;
@@ -167,14 +205,7 @@ public class Piece implements Comparable<Piece> {
    * @return true when finished, otherwise false
    */
   public boolean finished() {
-    int blocks = (int)Math.ceil((double)data.length / (double)blockSize);
-
-    //If any block is not completed than the piece is not finished
-    for(int i=0; i<blocks; ++i)
-      if(!completed.get(i))
-        return false;
-
-    return true;
+    return numCompleted == blocks;
   }
 
 
@@ -183,14 +214,7 @@ public class Piece implements Comparable<Piece> {
    * @return true when requested, otherwise false
    */
   public boolean requested () {
-    int blocks = (int)Math.ceil((double)data.length / (double)blockSize);
-
-    //If any block was not requested then the piece is not finished being requested
-    for(int i=0; i<blocks; ++i)
-      if(!requested.get(i))
-        return false;
-
-    return true;
+    return numRequested == blocks;
   }
 
   /**
@@ -215,9 +239,10 @@ public class Piece implements Comparable<Piece> {
 
   /** Get the next block we need to retrieve */
   public final int next () {
+    if (numRequested == blocks) return -1;
     int next = requested.nextClearBit(0);
-    if (next > size / blockSize) return -1;
     requested.set(next);
+    numRequested++;
     return next;
   }
 
@@ -225,7 +250,10 @@ public class Piece implements Comparable<Piece> {
    *  requested from some peer. */
   public void blockFail (int begin) {
     int index = begin / blockSize;
-    requested.set(index, false);
+    // If the block made it in after all there's nothing to re-request
+    if (!requested.get(index) || completed.get(index)) return;
+    requested.clear(index);
+    numRequested--;
   }
 
   /** Size of one particular block */
@@ -251,29 +279,29 @@ public class Piece implements Comparable<Piece> {
 
     hash = sha1.digest(data);
 
-    return Arrays.equals(hash, this.hash);
-  }
+    for(int i = 0; i < hash.length; ++i)
+      if(hash[i] != hashes[hashOffset + i])
+        return false;
 
-  public int getAvailability() {
-    return availability;
+    return true;
   }
 
-  public void incAvailable() { this.availability++; }
-  public void decAvailable() { this.availability--; }
+  /**
+   * Gets the number of blocks which have been added to this piece
+   * @return The number of completed blocks
+   */
+  public int getCompletedBlocks() {
+    return numCompleted;
+  }
 
   /**
-   * Natural ordering is based on availability.
+   * Gets the number of bytes in the blocks which have been added to this piece
+   * @return The number of bytes completed
    */
-  @Override
-  public int compareTo(Piece p) {
-    if(this.getAvailability() > p.getAvailability()) {
-      return 1;
-    }
-    else if(this.getAvailability() < p.getAvailability()) {
-      return -1;
-    }
-    else {
-      return 0;
-    }
+  public int getCompletedBytes() {
+    int bytes = 0;
+    for(int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1))
+      bytes += sizeOf(i);
+    return bytes;
   }
 }
@@ -0,0 +1,133 @@
+package libbitster;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently served pieces in memory for seeding.  Peers ask for the
+ * blocks of a piece one after another, so once the first block of a piece is
+ * requested the whole piece is read in ahead of them (by a {@link Courier},
+ * off the requesting thread) and the rest of the blocks come from memory.
+ *
+ * The cache holds at most `budget` bytes, evicting least recently used pieces
+ * to make room, and only ever holds verified pieces, which never change.
+ * Blocks are handed out as read-only slices of the cached piece, without
+ * copying.  All methods are synchronized; the couriers share one cache.
+ */
+public class PieceCache {
+  /** Default budget: 32 MB */
+  public static final long DEFAULT_BUDGET = 32L << 20;
+
+  private final long budget;
+  private long used = 0;
+
+  // Access-ordered, so iteration starts at the least recently used piece.
+  private final LinkedHashMap<Integer, ByteBuffer> pieces =
+    new LinkedHashMap<Integer, ByteBuffer>(64, 0.75f, true);
+
+  // Pieces being read ahead right now
+  private final HashSet<Integer> pending = new HashSet<Integer>();
+
+  // Metrics
+  private long hits = 0;
+  private long misses = 0;
+  private long bytesServed = 0;
+  private long evictions = 0;
+  private long readaheads = 0;
+
+  public PieceCache () { this(DEFAULT_BUDGET); }
+
+  /** @param budget The most bytes of piece data to hold */
+  public PieceCache (long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Looks up a block.
+   * @return a read-only view of the block, positioned at zero, or null if
+   *         the piece isn't cached
+   */
+  public synchronized ByteBuffer get (int index, int begin, int length) {
+    ByteBuffer piece = pieces.get(index);
+    if (piece == null || begin < 0 || length < 0 || begin + length > piece.capacity()) {
+      misses++;
+      return null;
+    }
+    hits++;
+    bytesServed += length;
+
+    ByteBuffer block = piece.duplicate();
+    block.limit(begin + length).position(begin);
+    return block.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Claims a piece for reading ahead.
+   * @return true if the caller should read the piece in and {@link #put} it;
+   *         false if it's cached, already on its way, or too big to cache
+   */
+  public synchronized boolean claim (int index, int size) {
+    if (size > budget || pieces.containsKey(index) || pending.contains(index))
+      return false;
+    pending.add(index);
+    readaheads++;
+    return true;
+  }
+
+  /** Gives up a claim, ie when the read failed. */
+  public synchronized void release (int index) {
+    pending.remove(index);
+  }
+
+  /** Adds a piece read ahead, evicting older pieces to make room. */
+  public synchronized void put (int index, ByteBuffer data) {
+    pending.remove(index);
+    int size = data.capacity();
+    if (size > budget) return;
+
+    ByteBuffer old = pieces.remove(index);
+    if (old != null) used -= old.capacity();
+
+    Iterator<Map.Entry<Integer, ByteBuffer>> lru = pieces.entrySet().iterator();
+    while (used + size > budget && lru.hasNext()) {
+      used -= lru.next().getValue().capacity();
+      lru.remove();
+      evictions++;
+    }
+
+    pieces.put(index, data);
+    used += size;
+  }
+
+  /** Drops a piece, if we have it. */
+  public synchronized void invalidate (int index) {
+    ByteBuffer old = pieces.remove(index);
+    if (old != null) used -= old.capacity();
+  }
+
+  public synchronized long hits () { return hits; }
+  public synchronized long misses () { return misses; }
+  public synchronized long bytesServed () { return bytesServed; }
+  public synchronized long evictions () { return evictions; }
+  public synchronized long readaheads () { return readaheads; }
+  public synchronized long used () { return used; }
+  public synchronized int size () { return pieces.size(); }
+  public long budget () { return budget; }
+
+  /** Fraction of lookups that were hits, or 0 if there haven't been any. */
+  public synchronized double hitRate () {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  public synchronized String toString () {
+    return String.format(
+      "cache: %d pieces, %d/%d KB, hit rate %.1f%% (%d/%d), %d KB served, %d readaheads, %d evictions",
+      pieces.size(), used >> 10, budget >> 10, 100 * hitRate(), hits, hits + misses,
+      bytesServed >> 10, readaheads, evictions
+    );
+  }
+}
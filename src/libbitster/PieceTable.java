@@ -0,0 +1,249 @@
+package libbitster;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compact per-torrent piece state.  Rather than one {@link Piece} object per
+ * piece, availability, state flags and completed block counts are kept in
+ * parallel primitive arrays indexed by piece number, and every hash lives in
+ * one packed array.  A {@link Piece} (with its data buffer and block bitsets)
+ * only exists while that piece is in flight.
+ *
+ * Pieces are also kept sorted by availability for rarest-first picking.  A
+ * change in availability moves a piece across the boundary between two
+ * adjacent availability buckets with a single swap, so HAVE and BITFIELD
+ * messages never cost a sort.
+ */
+public class PieceTable {
+  // State flags
+  private static final byte HAVE      = 1; // we have all of it
+  private static final byte REQUESTED = 2; // every block is requested
+
+  private static final int HASH_LENGTH = 20;
+
+  private final int count;
+  private final int pieceLength;
+  private final int lastLength;
+  private final int blockSize;
+
+  private final byte[] hashes;
+  private final int hashOffset;
+  private final int[] availability;
+  private final byte[] flags;
+  private final int[] blocksDone;
+
+  // `order` holds piece numbers sorted by availability, `position` is the
+  // inverse, and pieces with availability `a` occupy
+  // order[bucket[a]] .. order[bucket[a + 1] - 1].
+  private final int[] order;
+  private final int[] position;
+  private int[] bucket;
+
+  // Pieces we are currently downloading.
+  private final HashMap<Integer, Piece> active;
+
+  private final Random random = new Random();
+
+  /**
+   * @param hashes The packed 20-byte SHA-1 hashes of every piece
+   * @param pieceLength The length of every piece but the last
+   * @param total The length of the whole torrent
+   * @param blockSize The size of the blocks we request
+   */
+  public PieceTable (byte[] hashes, int pieceLength, long total, int blockSize) {
+    this(hashes, 0, hashes.length / HASH_LENGTH, pieceLength, total, blockSize);
+  }
+
+  /** Builds a table over the hashes of a parsed metainfo file. */
+  public PieceTable (TorrentInfo metainfo, int blockSize) {
+    this(
+      metainfo.piece_hashes, metainfo.piece_hashes_offset, metainfo.piece_count,
+      metainfo.piece_length, metainfo.file_length, blockSize
+    );
+  }
+
+  private PieceTable (
+    byte[] hashes, int hashOffset, int count,
+    int pieceLength, long total, int blockSize
+  ) {
+    this.hashes = hashes;
+    this.hashOffset = hashOffset;
+    this.count = count;
+    this.pieceLength = pieceLength;
+    this.lastLength = (int) (total - (long) (count - 1) * pieceLength);
+    this.blockSize = blockSize;
+
+    availability = new int[count];
+    flags = new byte[count];
+    blocksDone = new int[count];
+
+    order = new int[count];
+    position = new int[count];
+    for (int i = 0; i < count; i++) order[i] = position[i] = i;
+
+    bucket = new int[8];
+    for (int i = 1; i < bucket.length; i++) bucket[i] = count;
+
+    active = new HashMap<Integer, Piece>();
+  }
+
+  public int count () { return count; }
+
+  /** Length in bytes of the given piece. */
+  public int sizeOf (int index) {
+    return index == count - 1 ? lastLength : pieceLength;
+  }
+
+  /** Length in bytes of the given block of the given piece. */
+  public int sizeOf (int index, int block) {
+    return Math.min(blockSize, sizeOf(index) - block * blockSize);
+  }
+
+  public boolean have (int index) { return (flags[index] & HAVE) != 0; }
+  public int getAvailability (int index) { return availability[index]; }
+  public int getCompletedBlocks (int index) { return blocksDone[index]; }
+
+  /** The in-flight piece with the given number, or null. */
+  public Piece get (int index) { return active.get(index); }
+
+  /** Copy of the given piece's SHA-1 hash. */
+  public byte[] getHash (int index) {
+    byte[] hash = new byte[HASH_LENGTH];
+    System.arraycopy(hashes, hashOffset + index * HASH_LENGTH, hash, 0, HASH_LENGTH);
+    return hash;
+  }
+
+  /** Returns the in-flight piece with the given number, creating it if it
+   *  isn't in flight yet. */
+  private Piece materialize (int index) {
+    Piece p = active.get(index);
+    if (p == null) {
+      int size = sizeOf(index);
+      p = new Piece(
+        hashes, hashOffset + index * HASH_LENGTH, index,
+        Math.min(blockSize, size), size
+      );
+      active.put(index, p);
+    }
+    return p;
+  }
+
+  /** Marks a piece as fully downloaded and drops its in-flight state. */
+  public void setHave (int index) {
+    flags[index] = HAVE;
+    blocksDone[index] = (sizeOf(index) + blockSize - 1) / blockSize;
+    active.remove(index);
+  }
+
+  /** Puts back a piece that was partly downloaded before a restart, so
+   *  only its missing blocks get requested. */
+  public void restore (Piece p) {
+    int index = p.getNumber();
+    if (have(index) || p.finished()) return;
+    active.put(index, p);
+    blocksDone[index] = p.getCompletedBlocks();
+    if (p.requested()) flags[index] |= REQUESTED;
+  }
+
+  /** Forgets everything about a piece we thought we had, ie when it fails
+   *  its hash check, so it will be downloaded again. */
+  public void reset (int index) {
+    flags[index] = 0;
+    blocksDone[index] = 0;
+    active.remove(index);
+  }
+
+  /**
+   * Reserves the next unrequested block of a piece.
+   * @return the block number, or -1 if every block is already requested
+   */
+  public int nextBlock (int index) {
+    if ((flags[index] & (HAVE | REQUESTED)) != 0) return -1;
+    Piece p = materialize(index);
+    int block = p.next();
+    if (p.requested()) flags[index] |= REQUESTED;
+    return block;
+  }
+
+  /** Releases a block which couldn't be fetched so it can be re-requested. */
+  public void blockFail (int index, int begin) {
+    Piece p = active.get(index);
+    if (p == null) return;
+    p.blockFail(begin);
+    if (!p.requested()) flags[index] &= ~REQUESTED;
+  }
+
+  /**
+   * Adds a received block to its piece.  A block of a piece that isn't in
+   * flight, or that doesn't fit where it says it goes, is ignored; peers
+   * can send anything.
+   * @return the piece if it was new data, or null if we already had it or
+   *         couldn't use it
+   */
+  public Piece addBlock (int index, int begin, ByteBuffer block) {
+    if (index < 0 || index >= count || have(index)) return null;
+    Piece p = active.get(index);
+    if (p == null) return null;
+    if (block == null || block.position() != 0 || begin < 0 || begin % blockSize != 0 ||
+        begin >= sizeOf(index) || block.limit() != sizeOf(index, begin / blockSize))
+      return null;
+    if (!p.addBlock(begin, block)) return null;
+    blocksDone[index] = p.getCompletedBlocks();
+    if (p.requested()) flags[index] |= REQUESTED;
+    return p;
+  }
+
+  public void incAvailable (int index) {
+    int a = availability[index];
+    if (a + 2 >= bucket.length) {
+      int[] grown = new int[bucket.length * 2];
+      System.arraycopy(bucket, 0, grown, 0, bucket.length);
+      for (int i = bucket.length; i < grown.length; i++) grown[i] = count;
+      bucket = grown;
+    }
+
+    // Swap to the end of our bucket, then move the boundary past us.
+    swap(position[index], bucket[a + 1] - 1);
+    bucket[a + 1]--;
+    availability[index]++;
+  }
+
+  public void decAvailable (int index) {
+    int a = availability[index];
+    if (a == 0) return;
+
+    // Swap to the start of our bucket, then move the boundary past us.
+    swap(position[index], bucket[a]);
+    bucket[a]++;
+    availability[index]--;
+  }
+
+  private void swap (int i, int j) {
+    int a = order[i], b = order[j];
+    order[i] = b;
+    order[j] = a;
+    position[b] = i;
+    position[a] = j;
+  }
+
+  /**
+   * Picks the next piece to download from a peer with the given pieces using
+   * rarest-piece-first.  One of the five rarest candidates is chosen at random
+   * so peers don't all pile onto the same piece.
+   * @return a piece number, or -1 if the peer has nothing we still need
+   */
+  public int pick (BitSet peer) {
+    int[] rarest = new int[5];
+    int n = 0;
+
+    for (int i = 0; i < count && n < rarest.length; i++) {
+      int p = order[i];
+      if ((flags[p] & (HAVE | REQUESTED)) == 0 && peer.get(p)) rarest[n++] = p;
+    }
+
+    return n > 0 ? rarest[random.nextInt(n)] : -1;
+  }
+}
@@ -39,6 +39,7 @@ public class Protocol implements Communicator {
   private ByteBuffer infoHash;
   private ByteBuffer theirPeerId;
   private ByteBuffer ourPeerId;
+  private boolean extensions = false; // they speak BEP 10
 
   public Protocol (
     InetAddress host, 
@@ -57,8 +58,13 @@ public class Protocol implements Communicator {
     this.inbox = new LinkedList<Message>();
   }
 
+  /**
+   * A connection a peer made to us, whose handshake the {@link Doorman} has
+   * already read.
+   */
   public Protocol (
     SocketChannel sc, 
+    ByteBuffer handshake,  // theirs
     ByteBuffer infoHash, 
     ByteBuffer peerId,
     Overlord overlord
@@ -76,6 +82,11 @@ public class Protocol implements Communicator {
     } catch (Exception e) {
       e.printStackTrace();
     }
+    try {
+      theirPeerId = Handshake.verify(infoHash, handshake);
+      extensions = Handshake.extensions(handshake);
+      Log.i("Handshake successful, peer id: " + Util.buff2str(theirPeerId));
+    } catch (Exception e) { error(e); }
   }
 
   /** handle errors */
@@ -91,12 +102,15 @@ public class Protocol implements Communicator {
 
   /** Establish the connection */
   public void establish () {
+    if (state.equals("error")) return;
+
     // Setup handshake
     ByteBuffer handshake = Handshake.create(infoHash, ourPeerId);
     writeBuffer = handshake;
 
     try {
-      state = "handshake";
+      // Theirs may have been read already, by the Doorman
+      state = theirPeerId == null ? "handshake" : "normal";
 
       // If there is no connection already (ie, we're making an outgoing
       // connection), we need to start a connection.
@@ -192,6 +206,7 @@ public class Protocol implements Communicator {
         readBuffer.get(bytes, 0, length);  
         ByteBuffer handshake = ByteBuffer.wrap(bytes);
         theirPeerId = Handshake.verify(infoHash, handshake);
+        extensions = Handshake.extensions(handshake);
         Log.i("Handshake successful, peer id: " + Util.buff2str(theirPeerId));
         state = "normal";
       } catch (Exception e) { error(e); }
@@ -251,7 +266,11 @@ public class Protocol implements Communicator {
 
   public String getState () { return state; }
   public ByteBuffer getPeerId () { return theirPeerId; }
+  /** Whether the peer's handshake said it speaks the extension protocol */
+  public boolean supportsExtensions () { return extensions; }
   public String getAddress() { return host.getHostAddress() + ":" + port; }
+  /** The address and port, packed as in a {@link PeerPool}; -1 if not IPv4 */
+  public long getKey() { return PeerPool.key(host, port); }
 
   public String toString () {
     return "Protocol, state: " + state + " curr recv msg len: " + length + 
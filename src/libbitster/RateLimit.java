@@ -0,0 +1,92 @@
+package libbitster;
+
+/**
+ * A token bucket holding a torrent's download or upload to its share of the
+ * bandwidth, as the {@link Governor} sets it.  The {@link Manager} asks
+ * before requesting or sending a block, and spends its length after.
+ *
+ * A block may take the bucket below empty; nothing else goes until the
+ * debt is paid back, so the rate holds on average without splitting
+ * blocks.  The bucket holds at most a second's worth, so a torrent that has
+ * been idle can't save up a burst.  A rate of 0 means no limit.
+ *
+ * It also keeps a moving average of what was actually spent, which the
+ * Governor goes by when working out who needs more.
+ */
+public class RateLimit {
+  // Weight of the newest second in the moving average
+  private static final double ALPHA = 0.5;
+
+  private long rate;          // bytes/s, 0 for no limit
+  private double tokens = 0;
+  private long refilled = -1;
+
+  // The moving average of bytes spent per second
+  private long windowStart = -1;
+  private long window = 0;
+  private double average = 0;
+
+  // Metrics
+  private long spent = 0;
+  private long waits = 0;     // times something was held back
+
+  public RateLimit () { this(0); }
+
+  /** @param rate bytes per second, or 0 for no limit */
+  public RateLimit (long rate) {
+    setRate(rate);
+  }
+
+  public void setRate (long rate) {
+    if (rate < 0)
+      throw new IllegalArgumentException("Rate must not be negative");
+    this.rate = rate;
+    tokens = Math.min(tokens, rate);
+  }
+
+  /** Whether a block may go now. */
+  public boolean allows (long now) {
+    if (rate == 0) return true;
+    if (refilled < 0) {
+      refilled = now;
+      tokens = rate;
+    }
+    tokens = Math.min(rate, tokens + (now - refilled) * rate / 1000.0);
+    refilled = now;
+    if (tokens > 0) return true;
+    waits++;
+    return false;
+  }
+
+  /** A block of `bytes` went. */
+  public void spend (long bytes) {
+    spent += bytes;
+    window += bytes;
+    if (rate > 0) tokens -= bytes;
+  }
+
+  /**
+   * Folds what was spent since the last call into the moving average, once
+   * a second or so has passed.
+   */
+  public void measure (long now) {
+    if (windowStart < 0) windowStart = now;
+    long millis = now - windowStart;
+    if (millis < 1000) return;
+    average = ALPHA * (window * 1000.0 / millis) + (1 - ALPHA) * average;
+    window = 0;
+    windowStart = now;
+  }
+
+  public long rate () { return rate; }
+  /** Bytes per second spent, on average over the last few seconds */
+  public long average () { return (long) average; }
+  public long spent () { return spent; }
+  public long waits () { return waits; }
+
+  public String toString () {
+    return (rate == 0 ? "no limit" : (rate >> 10) + " KB/s") + ", averaging "
+      + ((long) average >> 10) + " KB/s, " + (spent >> 10) + " KB in all, held back "
+      + waits + " times";
+  }
+}
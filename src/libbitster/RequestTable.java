@@ -0,0 +1,157 @@
+package libbitster;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the blocks we have outstanding on a peer.  Each request is keyed by
+ * its piece index and begin offset packed into a single `long`, and lives in
+ * an open-addressed table of parallel primitive arrays, so adding, finding and
+ * removing a request allocates nothing.
+ *
+ * Removal leaves a tombstone rather than shifting entries back, which means
+ * the table can be walked slot by slot with `removeAt` called along the way,
+ * ie when every outstanding request has to be failed on a choke.
+ */
+public class RequestTable {
+  private static final byte FREE = 0;
+  private static final byte USED = 1;
+  private static final byte DEAD = 2;
+
+  private long[] keys;
+  private int[] lengths;
+  private long[] sent;  // when the request went out, 0 if it hasn't yet
+  private byte[] slots;
+
+  private int size = 0;
+  private int dead = 0;
+  private int mask;
+
+  public RequestTable () { this(16); }
+
+  /** @param expected The number of requests we expect to have in flight */
+  public RequestTable (int expected) {
+    int capacity = 8;
+    while (capacity < expected * 2) capacity <<= 1;
+    allocate(capacity);
+  }
+
+  private void allocate (int capacity) {
+    keys = new long[capacity];
+    lengths = new int[capacity];
+    sent = new long[capacity];
+    slots = new byte[capacity];
+    mask = capacity - 1;
+  }
+
+  private static long key (int index, int begin) {
+    return ((long) index << 32) | (begin & 0xFFFFFFFFL);
+  }
+
+  private int hash (long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  /** Slot holding the given key, or -1 */
+  private int find (long key) {
+    int i = hash(key);
+    while (slots[i] != FREE) {
+      if (slots[i] == USED && keys[i] == key) return i;
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Records a request.
+   * @return false if the block was already outstanding
+   */
+  public boolean add (int index, int begin, int length) {
+    long key = key(index, begin);
+    if (find(key) >= 0) return false;
+
+    // Keep at least half the table free, counting tombstones, so probes stay
+    // short and always hit a free slot.
+    if ((size + dead + 1) * 2 > slots.length) rehash();
+
+    int i = hash(key);
+    while (slots[i] == USED) i = (i + 1) & mask;
+    if (slots[i] == DEAD) dead--;
+
+    slots[i] = USED;
+    keys[i] = key;
+    lengths[i] = length;
+    sent[i] = 0;
+    size++;
+    return true;
+  }
+
+  /** Stamps a request with the time it was written out to the peer. */
+  public void markSent (int index, int begin, long time) {
+    int i = find(key(index, begin));
+    if (i >= 0) sent[i] = time;
+  }
+
+  public boolean contains (int index, int begin) {
+    return find(key(index, begin)) >= 0;
+  }
+
+  /**
+   * Forgets a request.
+   * @return the time it was sent, 0 if it never was, or -1 if it wasn't
+   *         outstanding at all
+   */
+  public long remove (int index, int begin) {
+    int i = find(key(index, begin));
+    if (i < 0) return -1;
+    long when = sent[i];
+    removeAt(i);
+    return when;
+  }
+
+  public void clear () {
+    Arrays.fill(slots, FREE);
+    size = 0;
+    dead = 0;
+  }
+
+  /** Grow if the table is genuinely full, otherwise just sweep tombstones. */
+  private void rehash () {
+    long[] oldKeys = keys;
+    int[] oldLengths = lengths;
+    long[] oldSent = sent;
+    byte[] oldSlots = slots;
+
+    allocate(size * 4 > oldSlots.length ? oldSlots.length * 2 : oldSlots.length);
+    dead = 0;
+
+    for (int j = 0; j < oldSlots.length; j++) {
+      if (oldSlots[j] != USED) continue;
+      int i = hash(oldKeys[j]);
+      while (slots[i] == USED) i = (i + 1) & mask;
+      slots[i] = USED;
+      keys[i] = oldKeys[j];
+      lengths[i] = oldLengths[j];
+      sent[i] = oldSent[j];
+    }
+  }
+
+  // Slot-level access, for walking every outstanding request:
+  //
+  //     for (int i = 0; i < t.capacity(); i++) if (t.occupied(i)) ...
+
+  public int size () { return size; }
+  public int capacity () { return slots.length; }
+  public boolean occupied (int slot) { return slots[slot] == USED; }
+  public int index (int slot) { return (int) (keys[slot] >>> 32); }
+  public int begin (int slot) { return (int) keys[slot]; }
+  public int length (int slot) { return lengths[slot]; }
+  public long sentAt (int slot) { return sent[slot]; }
+
+  public void removeAt (int slot) {
+    if (slots[slot] != USED) return;
+    slots[slot] = DEAD;
+    size--;
+    dead++;
+  }
+}
@@ -0,0 +1,66 @@
+package libbitster;
+
+/**
+ * Works out how long a request to a peer may stay outstanding, from how long
+ * the peer has taken to answer the requests before it.  Round trips are
+ * measured from the moment a REQUEST goes out to the moment its PIECE comes
+ * back, and the timeout is derived the same way TCP derives its RTO: the
+ * smoothed round trip plus four times its variance, held between
+ * MIN_TIMEOUT and MAX_TIMEOUT.
+ *
+ * A peer is snubbed once one of our requests to it expires.  The timeout then
+ * backs off to twice what it was, so the single probe request a snubbed peer
+ * gets has longer to come back.  Any block the peer delivers unsnubs it.
+ */
+public class RequestTimer {
+  /** Timeout before any round trip has been measured, in ms */
+  public static final long INITIAL_TIMEOUT = 30000;
+  public static final long MIN_TIMEOUT = 5000;
+  public static final long MAX_TIMEOUT = 120000;
+
+  // Smoothed round trip time and its variance, in ms
+  private long srtt = -1;
+  private long rttvar = 0;
+  private boolean snubbed = false;
+
+  /** Folds a measured round trip, in ms, into the estimate. */
+  public void sample (long rtt) {
+    if (srtt < 0) {
+      srtt = rtt;
+      rttvar = rtt / 2;
+    } else {
+      rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+      srtt += (rtt - srtt) / 8;
+    }
+  }
+
+  /** How long a request may stay outstanding, in ms. */
+  public long timeout () {
+    if (srtt < 0) return INITIAL_TIMEOUT;
+    return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, srtt + 4 * rttvar));
+  }
+
+  /**
+   * Some requests outlived the timeout: backs it off and snubs the peer.
+   * @return true if the peer wasn't snubbed already
+   */
+  public boolean expired () {
+    srtt = Math.min(MAX_TIMEOUT, timeout() * 2);
+    rttvar = 0;
+    if (snubbed) return false;
+    snubbed = true;
+    return true;
+  }
+
+  /**
+   * The peer delivered a block, even one we'd given up on, so it's alive.
+   * @return true if it was snubbed until now
+   */
+  public boolean delivered () {
+    if (!snubbed) return false;
+    snubbed = false;
+    return true;
+  }
+
+  public boolean snubbed () { return snubbed; }
+}
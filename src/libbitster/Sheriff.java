@@ -0,0 +1,571 @@
+package libbitster;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A tracker, for handing out peers on a LAN or standing in for a real one in
+ * load tests.  It answers HTTP announces and scrapes, and optionally UDP
+ * ones (BEP 15), on one thread selecting on non-blocking sockets with its
+ * own {@link Overlord}.  HTTP connections are kept alive and requests on them
+ * may be pipelined.
+ *
+ * Swarms live in memory, one per info hash, with each peer's compact 6-byte
+ * address kept ready to copy into a response.  Peers that stop announcing
+ * are dropped after two intervals.  Only IPv4 peers are tracked, and every
+ * response is compact (BEP 23).
+ */
+public class Sheriff extends Actor implements Communicator {
+  /** Seconds between announces we ask peers for */
+  public static final int DEFAULT_INTERVAL = 1800;
+  /** Most peers handed out in one response */
+  public static final int MAX_PEERS = 50;
+  /** Peers handed out when the client doesn't say how many it wants */
+  public static final int DEFAULT_PEERS = 30;
+  /** Largest HTTP request we'll read */
+  public static final int MAX_REQUEST = 8192;
+
+  private static final long PROTOCOL_ID = 0x41727101980L;
+
+  private final Overlord overlord = new Overlord();
+  private final ServerSocketChannel listen;
+  private DatagramChannel udp;
+  private final ByteBuffer datagram = ByteBuffer.allocate(2048);
+
+  private final HashMap<ByteBuffer, Swarm> swarms = new HashMap<ByteBuffer, Swarm>();
+  private final ArrayList<Client> clients = new ArrayList<Client>();
+  private final BencodeWriter writer = new BencodeWriter(4096);
+  private final Random random = new Random();
+  private final long secret = new Random().nextLong();
+
+  private volatile int interval = DEFAULT_INTERVAL;
+  private long lastSweep = System.currentTimeMillis();
+
+  // Metrics
+  private volatile long announces = 0;
+  private volatile long scrapes = 0;
+  private volatile long errors = 0;
+  private volatile long expired = 0;
+
+  /** A peer in a swarm. */
+  private static class Peer {
+    final long address;     // IPv4 address << 16 | port
+    long seen;
+    boolean seed;
+
+    Peer (long address) { this.address = address; }
+  }
+
+  /**
+   * The peers announcing one info hash.  They're kept in a list for cheap
+   * random picking, with an index into it for cheap lookup and removal.
+   */
+  private static class Swarm {
+    final ArrayList<Peer> peers = new ArrayList<Peer>();
+    final HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+    int seeders = 0;
+    int completed = 0;
+
+    Peer get (long address) {
+      Integer i = index.get(address);
+      return i == null ? null : peers.get(i);
+    }
+
+    Peer add (long address) {
+      Peer p = new Peer(address);
+      index.put(address, peers.size());
+      peers.add(p);
+      return p;
+    }
+
+    void remove (long address) {
+      Integer i = index.remove(address);
+      if (i == null) return;
+      Peer gone = peers.get(i);
+      if (gone.seed) seeders--;
+      Peer last = peers.remove(peers.size() - 1);
+      if (last != gone) {
+        peers.set(i, last);
+        index.put(last.address, i);
+      }
+    }
+
+    int leechers () { return peers.size() - seeders; }
+  }
+
+  /**
+   * Starts a tracker answering HTTP on the given port.
+   * @param port the port, or 0 for any free one
+   */
+  public Sheriff (int port) throws IOException {
+    this(port, -1);
+  }
+
+  /**
+   * Starts a tracker answering HTTP and UDP.
+   * @param port the HTTP port, or 0 for any free one
+   * @param udpPort the UDP port, 0 for any free one, or -1 for no UDP
+   */
+  public Sheriff (int port, int udpPort) throws IOException {
+    super();
+    listen = ServerSocketChannel.open();
+    listen.socket().setReuseAddress(true);
+    listen.socket().bind(new InetSocketAddress(port), 1024);
+    listen.configureBlocking(false);
+    overlord.register(listen, this, SelectionKey.OP_ACCEPT);
+
+    if (udpPort >= 0) {
+      udp = DatagramChannel.open();
+      udp.bind(new InetSocketAddress(udpPort));
+      udp.configureBlocking(false);
+      final Sheriff sheriff = this;
+      overlord.register(udp, new Communicator() {
+        public boolean onReadable () { return sheriff.onDatagram(); }
+        public boolean onWritable () { return true; }
+        public boolean onAcceptable () { return false; }
+        public boolean onConnectable () { return false; }
+      }, SelectionKey.OP_READ);
+    }
+  }
+
+  public int port () { return listen.socket().getLocalPort(); }
+  public int udpPort () { return udp == null ? -1 : udp.socket().getLocalPort(); }
+
+  /** Sets the announce interval, in seconds; peers expire after two. */
+  public void setInterval (int seconds) { interval = seconds; }
+
+  /** Wakes the selector, so a memo doesn't wait out a select(). */
+  @Override
+  public void post (Memo memo) {
+    super.post(memo);
+    overlord.wakeup();
+  }
+
+  protected void receive (Memo memo) {
+    if (memo.getType().equals("halt")) {
+      for (Client c : clients) c.close();
+      clients.clear();
+      try { listen.close(); } catch (IOException e) {}
+      try { if (udp != null) udp.close(); } catch (IOException e) {}
+      overlord.close();
+      shutdown();
+    }
+  }
+
+  protected void idle () {
+    if (!listen.isOpen()) return;
+    overlord.communicate(100);
+
+    long now = System.currentTimeMillis();
+    if (now - lastSweep > Math.min(10000, interval * 1000L)) {
+      lastSweep = now;
+      expire(now);
+      for (Iterator<Client> it = clients.iterator(); it.hasNext(); )
+        if (it.next().closed) it.remove();
+    }
+  }
+
+  /** Drops peers that haven't announced for two intervals. */
+  private void expire (long now) {
+    long cutoff = now - 2000L * interval;
+    for (Iterator<Swarm> it = swarms.values().iterator(); it.hasNext(); ) {
+      Swarm s = it.next();
+      for (int i = s.peers.size() - 1; i >= 0; i--) {
+        Peer p = s.peers.get(i);
+        if (p.seen < cutoff) {
+          s.remove(p.address);
+          expired++;
+        }
+      }
+      if (s.peers.isEmpty() && s.completed == 0) it.remove();
+    }
+  }
+
+  public boolean onAcceptable () {
+    try {
+      SocketChannel sc;
+      while ((sc = listen.accept()) != null) {
+        sc.configureBlocking(false);
+        sc.socket().setTcpNoDelay(true);
+        Client c = new Client(sc);
+        if (overlord.register(sc, c, SelectionKey.OP_READ)) clients.add(c);
+        else sc.close();
+      }
+    } catch (IOException e) {}
+    return true;
+  }
+
+  public boolean onReadable () { return true; }
+  public boolean onWritable () { return true; }
+  public boolean onConnectable () { return false; }
+
+  /**
+   * Records an announce and picks peers for the answer.
+   * @return the compact addresses of up to `want` other peers
+   */
+  private byte[] announce (ByteBuffer infoHash, long address, long left, String event, int want) {
+    announces++;
+    Swarm swarm = swarms.get(infoHash);
+    if (swarm == null) {
+      if ("stopped".equals(event)) return new byte[0];
+      swarm = new Swarm();
+      swarms.put(copy(infoHash), swarm);
+    }
+
+    Peer p = swarm.get(address);
+    if ("stopped".equals(event)) {
+      swarm.remove(address);
+      return new byte[0];
+    }
+    if (p == null) p = swarm.add(address);
+    p.seen = System.currentTimeMillis();
+    if ("completed".equals(event) && !p.seed) swarm.completed++;
+    boolean seed = left == 0;
+    if (seed != p.seed) {
+      swarm.seeders += seed ? 1 : -1;
+      p.seed = seed;
+    }
+
+    // A run of peers from a random starting point; seeds don't need seeds
+    int n = swarm.peers.size();
+    want = Math.max(0, Math.min(want < 0 ? DEFAULT_PEERS : want, MAX_PEERS));
+    byte[] out = new byte[6 * Math.min(want, n - 1)];
+    int start = n > 0 ? random.nextInt(n) : 0;
+    int k = 0;
+    for (int i = 0; i < n && k < out.length; i++) {
+      Peer other = swarm.peers.get((start + i) % n);
+      if (other == p || (seed && other.seed)) continue;
+      long a = other.address;
+      for (int b = 5; b >= 0; b--) {
+        out[k + b] = (byte) a;
+        a >>>= 8;
+      }
+      k += 6;
+    }
+    if (k < out.length) {
+      byte[] shorter = new byte[k];
+      System.arraycopy(out, 0, shorter, 0, k);
+      out = shorter;
+    }
+    return out;
+  }
+
+  private static ByteBuffer copy (ByteBuffer b) {
+    byte[] bytes = new byte[b.remaining()];
+    b.duplicate().get(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /** An IPv4 address and port packed as in a compact peer list, or -1. */
+  private static long address (SocketAddress from, int port) {
+    if (!(from instanceof InetSocketAddress)) return -1;
+    if (!(((InetSocketAddress) from).getAddress() instanceof Inet4Address)) return -1;
+    byte[] ip = ((InetSocketAddress) from).getAddress().getAddress();
+    long a = 0;
+    for (byte b : ip) a = (a << 8) | (b & 0xFF);
+    return (a << 16) | (port & 0xFFFF);
+  }
+
+  // HTTP
+
+  /**
+   * Answers one HTTP request.
+   * @param target the request target, eg. "/announce?info_hash=..."
+   * @return the bencoded body
+   */
+  private byte[] http (String target, SocketAddress from) {
+    int q = target.indexOf('?');
+    String path = q < 0 ? target : target.substring(0, q);
+    String query = q < 0 ? "" : target.substring(q + 1);
+
+    try {
+      HashMap<String, byte[]> params = new HashMap<String, byte[]>();
+      ArrayList<ByteBuffer> hashes = new ArrayList<ByteBuffer>();
+      for (String pair : query.split("&")) {
+        int eq = pair.indexOf('=');
+        if (eq <= 0) continue;
+        String key = pair.substring(0, eq);
+        byte[] value = UdpTracker.unescape(pair.substring(eq + 1));
+        params.put(key, value);
+        if (key.equals("info_hash")) hashes.add(ByteBuffer.wrap(value));
+      }
+
+      if (path.endsWith("/announce")) {
+        byte[] infoHash = params.get("info_hash");
+        if (infoHash == null || infoHash.length != 20) return failure("invalid info_hash");
+        if (params.get("peer_id") == null || params.get("peer_id").length != 20) return failure("invalid peer_id");
+        int port = Integer.parseInt(ascii(params.get("port")));
+        long left = Long.parseLong(ascii(params.get("left")));
+        String event = params.get("event") == null ? null : ascii(params.get("event"));
+        int want = params.get("numwant") == null ? -1 : Integer.parseInt(ascii(params.get("numwant")));
+
+        long address = address(from, port);
+        if (address < 0) return failure("only IPv4 peers are tracked");
+        ByteBuffer key = ByteBuffer.wrap(infoHash);
+        byte[] peers = announce(key, address, left, event, want);
+        Swarm swarm = swarms.get(key);
+
+        // Keys in canonical order
+        writer.reset().startDictionary();
+        writer.string("complete").integer(swarm == null ? 0 : swarm.seeders);
+        writer.string("incomplete").integer(swarm == null ? 0 : swarm.leechers());
+        writer.string("interval").integer(interval);
+        writer.string("min interval").integer(interval / 2);
+        writer.string("peers").string(peers);
+        writer.end();
+        return writer.toByteArray();
+      }
+
+      if (path.endsWith("/scrape")) {
+        scrapes++;
+        HashMap<ByteBuffer, Object> files = new HashMap<ByteBuffer, Object>();
+        if (hashes.isEmpty()) {
+          for (Map.Entry<ByteBuffer, Swarm> e : swarms.entrySet()) files.put(e.getKey(), stats(e.getValue()));
+        } else {
+          for (ByteBuffer h : hashes) {
+            Swarm s = swarms.get(h);
+            if (s != null) files.put(h, stats(s));
+          }
+        }
+        HashMap<ByteBuffer, Object> body = new HashMap<ByteBuffer, Object>();
+        body.put(Util.s("files"), files);
+        return writer.reset().write(body).toByteArray();
+      }
+
+      return null;
+    } catch (RuntimeException e) {
+      return failure("invalid request");
+    } catch (IOException e) {
+      return failure("invalid request");
+    } catch (BencodingException e) {
+      return failure("internal error");
+    }
+  }
+
+  private static HashMap<ByteBuffer, Object> stats (Swarm s) {
+    HashMap<ByteBuffer, Object> d = new HashMap<ByteBuffer, Object>();
+    d.put(Util.s("complete"), s.seeders);
+    d.put(Util.s("downloaded"), s.completed);
+    d.put(Util.s("incomplete"), s.leechers());
+    return d;
+  }
+
+  private byte[] failure (String reason) {
+    errors++;
+    try {
+      return writer.reset().startDictionary().string("failure reason").string(reason).end().toByteArray();
+    } catch (BencodingException e) { return new byte[0]; }
+  }
+
+  private static String ascii (byte[] b) {
+    if (b == null) throw new IllegalArgumentException("missing parameter");
+    return new String(b, StandardCharsets.US_ASCII);
+  }
+
+  /** One HTTP connection from a client. */
+  private class Client implements Communicator {
+    final SocketChannel channel;
+    final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+    ByteBuffer out = ByteBuffer.allocate(4096);
+    boolean closing = false;  // close once `out` is written
+    boolean closed = false;
+
+    Client (SocketChannel channel) { this.channel = channel; }
+
+    public boolean onReadable () {
+      try {
+        int n = channel.read(in);
+        if (n < 0) { close(); return false; }
+        in.flip();
+        while (!closing && answer()) {}
+        if (!closing && !in.hasRemaining()) in.clear();
+        else in.compact();
+        if (!closing && in.position() == in.capacity()) {
+          respond("413 Request Entity Too Large", null, false);
+          closing = true;
+        }
+        return flush();
+      } catch (IOException e) { close(); return false; }
+    }
+
+    /** Answers the request at the start of `in`, if all of it is there. */
+    private boolean answer () {
+      int end = headerEnd(in);
+      if (end < 0) return false;
+
+      String head = new String(in.array(), in.position(), end - in.position(), StandardCharsets.ISO_8859_1);
+      in.position(end + 4);
+
+      int eol = head.indexOf("\r\n");
+      String requestLine = eol < 0 ? head : head.substring(0, eol);
+      String[] parts = requestLine.split(" ");
+      if (parts.length != 3 || !parts[0].equals("GET")) {
+        respond("400 Bad Request", null, false);
+        closing = true;
+        return false;
+      }
+
+      String lower = head.toLowerCase();
+      boolean keepAlive = parts[2].equals("HTTP/1.1")
+        ? lower.indexOf("\nconnection: close") < 0
+        : lower.indexOf("\nconnection: keep-alive") >= 0;
+
+      byte[] body;
+      try { body = http(parts[1], channel.getRemoteAddress()); }
+      catch (IOException e) { body = null; }
+      respond(body == null ? "404 Not Found" : "200 OK", body, keepAlive);
+      if (!keepAlive) closing = true;
+      return !closing;
+    }
+
+    private void respond (String status, byte[] body, boolean keepAlive) {
+      byte[] head = ("HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: "
+        + (body == null ? 0 : body.length) + "\r\n"
+        + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+      int need = head.length + (body == null ? 0 : body.length);
+      if (out.remaining() < need) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + need));
+        out.flip();
+        bigger.put(out);
+        out = bigger;
+      }
+      out.put(head);
+      if (body != null) out.put(body);
+    }
+
+    /** Writes what it can of `out`, selecting for writability if needed. */
+    private boolean flush () throws IOException {
+      out.flip();
+      channel.write(out);
+      boolean more = out.hasRemaining();
+      out.compact();
+      if (!more && closing) { close(); return false; }
+      overlord.interest(channel, more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      return true;
+    }
+
+    public boolean onWritable () {
+      try { return flush(); }
+      catch (IOException e) { close(); return false; }
+    }
+
+    public boolean onAcceptable () { return false; }
+    public boolean onConnectable () { return false; }
+
+    void close () {
+      closed = true;
+      try { channel.close(); } catch (IOException e) {}
+    }
+  }
+
+  /** Where the blank line ending the headers starts, or -1. */
+  private static int headerEnd (ByteBuffer b) {
+    byte[] a = b.array();
+    for (int i = b.position(), end = b.limit() - 3; i < end; i++)
+      if (a[i] == '\r' && a[i + 1] == '\n' && a[i + 2] == '\r' && a[i + 3] == '\n') return i;
+    return -1;
+  }
+
+  // UDP
+
+  /** A connection ID for an address, good for this two-minute slot and the
+   *  next, so we needn't remember who connected. */
+  private long connectionId (SocketAddress from, long slot) {
+    long h = secret ^ (slot * 0x9E3779B97F4A7C15L) ^ from.hashCode();
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    return h ^ (h >>> 33);
+  }
+
+  private boolean validConnection (SocketAddress from, long id) {
+    long slot = System.currentTimeMillis() / 120000;
+    return id == connectionId(from, slot) || id == connectionId(from, slot - 1);
+  }
+
+  boolean onDatagram () {
+    while (true) {
+      SocketAddress from;
+      datagram.clear();
+      try { from = udp.receive(datagram); }
+      catch (IOException e) { return true; }
+      if (from == null) return true;
+      datagram.flip();
+      if (datagram.remaining() < 16) continue;
+
+      long connection = datagram.getLong();
+      int action = datagram.getInt();
+      int transaction = datagram.getInt();
+      ByteBuffer reply = ByteBuffer.allocate(20 + 6 * MAX_PEERS);
+
+      if (action == 0 && connection == PROTOCOL_ID) {
+        reply.putInt(0).putInt(transaction).putLong(connectionId(from, System.currentTimeMillis() / 120000));
+      } else if (!validConnection(from, connection)) {
+        errors++;
+        reply.putInt(3).putInt(transaction).put("bad connection id".getBytes(StandardCharsets.US_ASCII));
+      } else if (action == 1 && datagram.remaining() >= 82) {
+        byte[] infoHash = new byte[20];
+        datagram.get(infoHash);
+        datagram.position(datagram.position() + 20 + 8); // peer id, downloaded
+        long left = datagram.getLong();
+        datagram.getLong();                              // uploaded
+        int e = datagram.getInt();
+        datagram.getInt();                               // ip
+        datagram.getInt();                               // key
+        int want = datagram.getInt();
+        int port = datagram.getShort() & 0xFFFF;
+
+        long address = address(from, port);
+        if (address < 0) continue;
+        String event = e == 1 ? "completed" : e == 2 ? "started" : e == 3 ? "stopped" : null;
+        ByteBuffer key = ByteBuffer.wrap(infoHash);
+        byte[] peers = announce(key, address, left, event, want);
+        Swarm swarm = swarms.get(key);
+        reply.putInt(1).putInt(transaction).putInt(interval);
+        reply.putInt(swarm == null ? 0 : swarm.leechers());
+        reply.putInt(swarm == null ? 0 : swarm.seeders);
+        reply.put(peers);
+      } else if (action == 2) {
+        scrapes++;
+        int n = Math.min(datagram.remaining() / 20, 74); // what fits in a reply
+        reply = ByteBuffer.allocate(8 + 12 * n);
+        reply.putInt(2).putInt(transaction);
+        byte[] infoHash = new byte[20];
+        for (int i = 0; i < n; i++) {
+          datagram.get(infoHash);
+          Swarm s = swarms.get(ByteBuffer.wrap(infoHash));
+          reply.putInt(s == null ? 0 : s.seeders);
+          reply.putInt(s == null ? 0 : s.completed);
+          reply.putInt(s == null ? 0 : s.leechers());
+        }
+      } else {
+        continue;
+      }
+
+      reply.flip();
+      try { udp.send(reply, from); } catch (IOException e) {}
+    }
+  }
+
+  public long announces () { return announces; }
+  public long scrapes () { return scrapes; }
+  public long errors () { return errors; }
+  public long expired () { return expired; }
+
+  public String toString () {
+    return "Sheriff: " + swarms.size() + " swarms, " + announces + " announces, "
+      + scrapes + " scrapes, " + errors + " errors, " + expired + " peers expired";
+  }
+}
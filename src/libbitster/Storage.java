@@ -0,0 +1,38 @@
+package libbitster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The bytes of a torrent on disk, addressed by their offset in the torrent's
+ * byte stream regardless of how many files back them.  Reads and writes work
+ * on the caller's buffer directly, with no intermediate copy.
+ *
+ * Every operation takes an absolute offset and there is no shared cursor, so
+ * implementations are safe to use from several threads at once, as long as
+ * nobody reads a range while it is being written.
+ */
+public interface Storage {
+  /** Total length in bytes. */
+  long size ();
+
+  /**
+   * Fills the remaining space of `dst` with the bytes starting at `offset`,
+   * advancing its position.  Bytes that were never written read as zeros.
+   */
+  void read (long offset, ByteBuffer dst) throws IOException;
+
+  /** Writes the remaining bytes of `src` starting at `offset`, advancing its
+   *  position. */
+  void write (long offset, ByteBuffer src) throws IOException;
+
+  /** Pushes everything written so far out to disk. */
+  void force () throws IOException;
+
+  /** Pushes the bytes written to the given range out to disk.  May flush
+   *  more than was asked, but never less. */
+  void force (long offset, long length) throws IOException;
+
+  /** Flushes and releases the underlying files. */
+  void close () throws IOException;
+}
@@ -19,18 +19,23 @@
 
 package libbitster;
 
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
  * This is a data structure class that extracts basic information from a bencoded torrent metainfo
- * file and stores it in public fields.&nbsp; Note that this class only works for torrent metainfo files
- * for a single-file torrent.
+ * file and stores it in public fields.&nbsp; Both single-file and multi-file torrents are understood; a
+ * single-file torrent is described as a multi-file torrent with one file, so {@link #file_paths} and
+ * {@link #file_lengths} can be used for either.
  *
  * @author Robert Moore II
  *
@@ -67,11 +72,28 @@ public class TorrentInfo
     public final static ByteBuffer KEY_PIECE_LENGTH = ByteBuffer.wrap(new byte[]
     { 'p', 'i', 'e', 'c', 'e', ' ', 'l', 'e', 'n', 'g', 't', 'h' });
 
+    /**
+     * Key used to retrieve the file list of a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_FILES = ByteBuffer.wrap(new byte[]
+    { 'f', 'i', 'l', 'e', 's' });
+
+    /**
+     * Key used to retrieve the path of a file in a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_PATH = ByteBuffer.wrap(new byte[]
+    { 'p', 'a', 't', 'h' });
+
 	/**
 	 * ByteBuffer to retrieve the announce URL from the metainfo dictionary.
 	 */
 	public static final ByteBuffer KEY_ANNOUNCE = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e'});
 
+	/**
+	 * ByteBuffer to retrieve the tiers of trackers (BEP 12) from the metainfo dictionary.
+	 */
+	public static final ByteBuffer KEY_ANNOUNCE_LIST = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e','-','l','i','s','t'});
+
 	/**
 	 * A byte array containing the raw bytes of the torrent metainfo file.
 	 */
@@ -97,10 +119,24 @@ public class TorrentInfo
 	public final ByteBuffer info_hash;
 
 	/**
-	 * The base URL of the tracker for client scrapes.
+	 * The base URL of the tracker for client scrapes, or null if the tracker
+	 * speaks a protocol {@link URL} doesn't know, such as udp.
 	 */
 	public final URL announce_url;
 
+	/**
+	 * The tracker's announce URL as given in the metainfo file, whatever its
+	 * scheme.
+	 */
+	public final String announce;
+
+	/**
+	 * The tiers of tracker URLs from the announce-list (BEP 12), in the order
+	 * given.&nbsp; A torrent without an announce-list has one tier holding
+	 * {@link #announce}.
+	 */
+	public final List<List<String>> announce_list;
+
 	/**
 	 * The default length of each piece in bytes.&nbsp; Note that the last piece may be irregularly-sized (less than the value of piece_length)
 	 * if the file size is not a multiple of the piece size.
@@ -108,19 +144,48 @@ public class TorrentInfo
 	public final int piece_length;
 
 	/**
-	 * The name of the file referenced in the torrent metainfo file.
+	 * The name of the file referenced in the torrent metainfo file, or of the directory holding the
+	 * files of a multi-file torrent.
 	 */
 	public final String file_name;
 
 	/**
-	 * The length of the file in bytes.
+	 * The length of the file in bytes; for a multi-file torrent, the total length of all its files.
+	 */
+	public final long file_length;
+
+	/**
+	 * True if the torrent has a {@code files} list rather than a single {@code length}.
+	 */
+	public final boolean multi_file;
+
+	/**
+	 * The path of each file in the torrent, in order, with components separated by '/'.&nbsp; For a
+	 * multi-file torrent the paths are relative to the {@link #file_name} directory; for a single-file
+	 * torrent there is one path, the file name itself.
 	 */
-	public final int file_length;
+	public final String[] file_paths;
 
 	/**
-	 * The SHA-1 hashes of each piece of the file.
+	 * The length in bytes of each file in {@link #file_paths}.
 	 */
-	public final ByteBuffer[] piece_hashes;
+	public final long[] file_lengths;
+
+	/**
+	 * The SHA-1 hashes of each piece of the file, packed back to back.&nbsp; The hash of piece
+	 * {@code i} is the 20 bytes starting at {@link #hashOffset(int) hashOffset(i)}.
+	 */
+	public final byte[] piece_hashes;
+
+	/**
+	 * The offset of the first piece hash within {@link #piece_hashes}.
+	 */
+	public final int piece_hashes_offset;
+
+	/**
+	 * The number of pieces in the file.
+	 */
+	public final int piece_count;
 
 	/**
 	 * Creates a new TorrentInfo object from the specified byte array.  If the byte array is {@code null} or
@@ -138,30 +203,47 @@ public class TorrentInfo
 		// Assign the byte array
 		this.torrent_file_bytes = torrent_file_bytes;
 
-		// Assign the metainfo map
-		this.torrent_file_map = (Map<ByteBuffer,Object>)Bencoder2.decode(torrent_file_bytes);
+		// Assign the metainfo map.  Strings in it are slices of torrent_file_bytes
+		// and integers are Longs.
+		Object decoded = BencodeReader.decode(ByteBuffer.wrap(torrent_file_bytes));
+		if(!(decoded instanceof Map))
+			throw new BencodingException("Torrent metainfo is not a dictionary.  Corrupt file?");
+		this.torrent_file_map = (Map<ByteBuffer,Object>)decoded;
 
-		// Try to extract the announce URL
+		// Try to extract the announce URLs; the announce-list, if there is
+		// one, takes precedence, and the plain announce becomes optional
+		this.announce_list = announceList(this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE_LIST));
 		ByteBuffer url_buff = (ByteBuffer)this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE);
-		if(url_buff == null)
+		String url_string;
+		if(url_buff != null)
+			url_string = ascii(url_buff);
+		else if(!this.announce_list.isEmpty())
+			url_string = this.announce_list.get(0).get(0);
+		else
 			throw new BencodingException("Could not retrieve anounce URL from torrent metainfo.  Corrupt file?");
 
 		try {
-			String url_string = new String(url_buff.array(), "ASCII");
-			URL announce_url = new URL(url_string);
-			this.announce_url = announce_url;
-		}
-		catch(UnsupportedEncodingException uee)
-		{
-			throw new BencodingException(uee.getLocalizedMessage());
+			URI announce_uri = tracker(url_string);
+			this.announce = url_string;
+			this.announce_url = announce_uri.getScheme().equalsIgnoreCase("udp") ? null : new URL(url_string);
 		}
 		catch(MalformedURLException murle)
 		{
 			throw new BencodingException(murle.getLocalizedMessage());
 		}
+		if(this.announce_list.isEmpty())
+		{
+			List<String> tier = new ArrayList<String>();
+			tier.add(this.announce);
+			this.announce_list.add(tier);
+		}
 
 		// Try to extract the info dictionary
-		ByteBuffer info_bytes = Bencoder2.getInfoBytes(torrent_file_bytes);
+		BencodeReader reader = new BencodeReader(torrent_file_bytes);
+		reader.next();
+		if(!reader.find(TorrentInfo.KEY_INFO))
+			throw new BencodingException("Exception: No info bytes found!");
+		ByteBuffer info_bytes = reader.raw();
 		Map<ByteBuffer,Object> info_map = (Map<ByteBuffer,Object>)this.torrent_file_map.get(TorrentInfo.KEY_INFO);
 
 		if(info_map == null)
@@ -171,7 +253,7 @@ public class TorrentInfo
 		// Try to generate the info hash value
 		try {
 			MessageDigest digest = MessageDigest.getInstance("SHA-1");
-			digest.update(info_bytes.array());
+			digest.update(info_bytes);
 			byte[] info_hash = digest.digest();
 			this.info_hash = ByteBuffer.wrap(info_hash);
 		}
@@ -181,7 +263,7 @@ public class TorrentInfo
 		}
 
 		// Extract the piece length from the info dictionary
-		Integer piece_length = (Integer)this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
+		Number piece_length = (Number)this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
 		if(piece_length == null)
 			throw new BencodingException("Could not extract piece length from info dictionary.  Corrupt file?");
 		this.piece_length = piece_length.intValue();
@@ -190,38 +272,173 @@ public class TorrentInfo
 		ByteBuffer name_bytes = (ByteBuffer)this.info_map.get(TorrentInfo.KEY_NAME);
 		if(name_bytes == null)
 			throw new BencodingException("Could not retrieve file name from info dictionary.  Corrupt file?");
-		try {
-			this.file_name = new String(name_bytes.array(),"ASCII");
+		this.file_name = ascii(name_bytes);
+
+		// Extract the file length, or the list of files, from the info dictionary
+		Number file_length = (Number)this.info_map.get(TorrentInfo.KEY_LENGTH);
+		List<Object> files = (List<Object>)this.info_map.get(TorrentInfo.KEY_FILES);
+		if(file_length != null)
+		{
+			this.multi_file = false;
+			this.file_paths = new String[] { this.file_name };
+			this.file_lengths = new long[] { file_length.longValue() };
 		}
-		catch(UnsupportedEncodingException uee)
+		else if(files != null && !files.isEmpty())
 		{
-			throw new BencodingException(uee.getLocalizedMessage());
+			this.multi_file = true;
+			this.file_paths = new String[files.size()];
+			this.file_lengths = new long[files.size()];
+			for(int i = 0; i < files.size(); i++)
+			{
+				Map<ByteBuffer,Object> file = (Map<ByteBuffer,Object>)files.get(i);
+				Number length = (Number)file.get(TorrentInfo.KEY_LENGTH);
+				List<Object> path = (List<Object>)file.get(TorrentInfo.KEY_PATH);
+				if(length == null || length.longValue() < 0 || path == null || path.isEmpty())
+					throw new BencodingException("Could not extract file " + i + " from info dictionary.  Corrupt file?");
+				this.file_lengths[i] = length.longValue();
+				this.file_paths[i] = path(path);
+			}
 		}
-
-		// Extract the file length from the info dictionary
-		Integer file_length = (Integer)this.info_map.get(TorrentInfo.KEY_LENGTH);
-		if(file_length == null)
+		else
 			throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
-		this.file_length = file_length.intValue();
+
+		long total = 0;
+		for(long length : this.file_lengths)
+			total += length;
+		this.file_length = total;
 
 		// Extract the piece hashes from the info dictionary
 		ByteBuffer all_hashes = (ByteBuffer)this.info_map.get(TorrentInfo.KEY_PIECES);
 		if(all_hashes == null)
 			throw new BencodingException("Could not extract piece hashes from info dictionary.  Corrupt file?");
-		byte[] all_hashes_array = all_hashes.array();
 
 		// Verify that the length of the array is a multiple of 20 bytes (160 bits)
-		if(all_hashes_array.length % 20 != 0)
+		if(all_hashes.remaining() % 20 != 0)
 			throw new BencodingException("Piece hashes length is not a multiple of 20.  Corrupt file?");
-		int num_pieces = all_hashes_array.length / 20;
 
-		// Copy the values of the piece hashes into the local field
-		this.piece_hashes = new ByteBuffer[num_pieces];
-		for(int i = 0; i < num_pieces; i++)
+		// The hashes are a slice of torrent_file_bytes; keep them there
+		this.piece_hashes = all_hashes.array();
+		this.piece_hashes_offset = all_hashes.arrayOffset() + all_hashes.position();
+		this.piece_count = all_hashes.remaining() / 20;
+	}
+
+	/**
+	 * Joins the components of a file path with '/', refusing anything that could escape the download
+	 * directory.
+	 */
+	private static String path(List<Object> components) throws BencodingException
+	{
+		StringBuilder path = new StringBuilder();
+		for(Object o : components)
+		{
+			ByteBuffer bytes = (ByteBuffer)o;
+			String component = new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.UTF_8);
+			if(component.isEmpty() || component.equals(".") || component.equals("..") ||
+					component.indexOf('/') >= 0 || component.indexOf('\\') >= 0)
+				throw new BencodingException("Illegal file path component \"" + component + "\".  Corrupt file?");
+			if(path.length() > 0)
+				path.append('/');
+			path.append(component);
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Parses a tracker URL, which must have a scheme and a host.
+	 */
+	private static URI tracker(String url) throws BencodingException
+	{
+		try {
+			URI uri = new URI(url);
+			if(uri.getScheme() == null || uri.getHost() == null)
+				throw new BencodingException("Announce URL " + url + " has no scheme or host.");
+			return uri;
+		}
+		catch(URISyntaxException urise)
+		{
+			throw new BencodingException(urise.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Reads the tiers of an announce-list.&nbsp; Trackers we can't make sense of are left out, as
+	 * are tiers left empty by that, rather than failing the whole torrent over one bad URL.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<List<String>> announceList(Object list)
+	{
+		List<List<String>> tiers = new ArrayList<List<String>>();
+		if(!(list instanceof List))
+			return tiers;
+		for(Object t : (List<Object>)list)
+		{
+			if(!(t instanceof List))
+				continue;
+			List<String> tier = new ArrayList<String>();
+			for(Object url : (List<Object>)t)
+			{
+				if(!(url instanceof ByteBuffer))
+					continue;
+				String url_string = ascii((ByteBuffer)url);
+				try {
+					tracker(url_string);
+					if(!tier.contains(url_string))
+						tier.add(url_string);
+				}
+				catch(BencodingException e) { /* skip it */ }
+			}
+			if(!tier.isEmpty())
+				tiers.add(tier);
+		}
+		return tiers;
+	}
+
+	/**
+	 * Decodes a byte string slice as ASCII.
+	 */
+	private static String ascii(ByteBuffer bytes)
+	{
+		return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns the offset of a piece's hash within {@link #piece_hashes}.
+	 * @param index the piece index
+	 */
+	public int hashOffset(int index)
+	{
+		if(index < 0 || index >= this.piece_count)
+			throw new IndexOutOfBoundsException("No piece " + index);
+		return this.piece_hashes_offset + index * 20;
+	}
+
+	/**
+	 * Returns a copy of a piece's SHA-1 hash.
+	 * @param index the piece index
+	 */
+	public byte[] getPieceHash(int index)
+	{
+		byte[] hash = new byte[20];
+		System.arraycopy(this.piece_hashes, hashOffset(index), hash, 0, 20);
+		return hash;
+	}
+
+	/**
+	 * Compares a SHA-1 digest against a piece's hash in place.
+	 * @param index the piece index
+	 * @param digest the 20-byte digest to check
+	 * @return true if the digest matches the hash of piece {@code index}
+	 */
+	public boolean pieceHashMatches(int index, byte[] digest)
+	{
+		if(digest == null || digest.length != 20)
+			return false;
+		int offset = hashOffset(index);
+		for(int i = 0; i < 20; i++)
 		{
-			byte[] temp_buff = new byte[20];
-			System.arraycopy(all_hashes_array,i*20,temp_buff,0,20);
-			this.piece_hashes[i] = ByteBuffer.wrap(temp_buff);
+			if(digest[i] != this.piece_hashes[offset + i])
+				return false;
 		}
+		return true;
 	}
 }
@@ -0,0 +1,116 @@
+package libbitster;
+
+import java.util.Random;
+
+/**
+ * One tracker from a torrent's announce-list, and how well it's been doing.
+ * Trackers that answer fast and hand out many peers score higher, and a
+ * {@link Deputy} tries them first within their tier.  A tracker that fails is
+ * left alone for a jittered, exponentially growing delay, so a dead tracker
+ * costs one failed announce every so often rather than one a minute, and a
+ * swarm of clients doesn't come back to a recovered tracker all at once.
+ */
+public class Tracker {
+  /** Wait after the first failure, in ms */
+  public static final int RETRY_BASE = 15000;
+  /** Longest wait between attempts, in ms */
+  public static final int RETRY_MAX = 30 * 60 * 1000;
+
+  // Weight of the newest sample in the moving averages
+  private static final double ALPHA = 0.3;
+
+  private static final Random random = new Random();
+
+  private final String url;
+  private final int tier;
+
+  private int failures = 0;      // in a row
+  private long retryAt = 0;      // not before this time
+  private int successes = 0;
+  private double latency = -1;   // ms, moving average
+  private double peers = -1;     // per answer, moving average
+  private int interval = -1;     // s, as the tracker last asked
+  private int seeders = -1;      // the swarm, as the tracker last said
+  private int leechers = -1;
+  private int completed = -1;
+
+  public Tracker (String url, int tier) {
+    this.url = url;
+    this.tier = tier;
+  }
+
+  public String url () { return url; }
+  public int tier () { return tier; }
+  public int failures () { return failures; }
+  public int successes () { return successes; }
+  public long retryAt () { return retryAt; }
+  public int interval () { return interval; }
+  /** The swarm's seeders as this tracker last said, or -1 if it hasn't */
+  public int seeders () { return seeders; }
+  public int leechers () { return leechers; }
+  /** Downloads this tracker has seen finish, or -1 if it hasn't said */
+  public int completed () { return completed; }
+
+  /** Whether the tracker may be announced to at the given time. */
+  public boolean ready (long now) {
+    return now >= retryAt;
+  }
+
+  /**
+   * Records an answer.
+   * @param millis how long it took
+   * @param count how many peers it had
+   * @param interval the announce interval it asked for, in s, or -1
+   */
+  public void succeeded (long millis, int count, int interval) {
+    failures = 0;
+    retryAt = 0;
+    successes++;
+    latency = latency < 0 ? millis : ALPHA * millis + (1 - ALPHA) * latency;
+    peers = peers < 0 ? count : ALPHA * count + (1 - ALPHA) * peers;
+    if (interval > 0) this.interval = interval;
+  }
+
+  /**
+   * Records what the tracker says of the swarm, from an announce or a
+   * scrape.  Counts it didn't give are -1 and leave what we had.
+   */
+  public void swarm (int seeders, int leechers, int completed) {
+    if (seeders >= 0) this.seeders = seeders;
+    if (leechers >= 0) this.leechers = leechers;
+    if (completed >= 0) this.completed = completed;
+  }
+
+  /**
+   * Records a failure and works out when to try again: RETRY_BASE doubled
+   * for each failure in a row, up to RETRY_MAX, then drawn at random from
+   * the upper half of that.
+   * @return the delay before the next attempt, in ms
+   */
+  public long failed (long now) {
+    failures++;
+    long delay = Math.min((long) RETRY_MAX, (long) RETRY_BASE << Math.min(failures - 1, 20));
+    delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    retryAt = now + delay;
+    return delay;
+  }
+
+  /**
+   * How good the tracker has been: peers per answer, discounted by the time
+   * answers take.  Trackers we know nothing about yet score as a middling
+   * one would, so they get tried.
+   */
+  public double score () {
+    double p = peers < 0 ? 25 : peers;
+    double l = latency < 0 ? 500 : latency;
+    return (1 + p) / (1 + l / 100.0) / (1 + failures);
+  }
+
+  public String toString () {
+    return url + " tier " + tier + ": score " + String.format("%.2f", score())
+      + ", " + successes + " answers, " + failures + " failures in a row"
+      + (latency < 0 ? "" : ", " + Math.round(latency) + " ms")
+      + (peers < 0 ? "" : ", " + Math.round(peers) + " peers")
+      + (seeders < 0 ? "" : ", swarm " + seeders + "/" + leechers + "/" + completed);
+  }
+}
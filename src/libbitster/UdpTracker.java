@@ -0,0 +1,314 @@
+package libbitster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Announces to trackers over the UDP tracker protocol (BEP 15), for the
+ * {@link Marshal}.  An announce is one small datagram each way, plus a
+ * connect round trip whose connection ID is cached for a minute and reused
+ * by every announce to that tracker in the meantime.
+ *
+ * Announces are handed over as the same URL an HTTP tracker would get, eg.
+ * udp://host:port/announce?info_hash=...&peer_id=...&left=..., and the query
+ * is packed into the binary request.  Every tracker is talked to through one
+ * unconnected datagram socket; replies are matched up by transaction ID.
+ * Lost datagrams are sent again after 15 * 2^n seconds, as the BEP says,
+ * but a request still fails at its deadline, like an HTTP one, so a dead
+ * tracker doesn't hold up the rest of the round for minutes.
+ * Scrapes go the same way, with the info hashes of a batch in one datagram.
+ */
+public class UdpTracker implements Communicator {
+  /** How long a tracker's connection ID may be used, in ms */
+  public static final int CONNECTION_LIFETIME = 60000;
+  /** Times a request is sent again before giving up */
+  public static final int MAX_RETRIES = 4;
+
+  private static final long PROTOCOL_ID = 0x41727101980L;
+  private static final int CONNECT = 0;
+  private static final int ANNOUNCE = 1;
+  private static final int SCRAPE = 2;
+  private static final int ERROR = 3;
+
+  private final Marshal marshal;
+  private final DatagramChannel channel;
+  private final ByteBuffer in = ByteBuffer.allocate(65536);
+  private final Random random = new Random();
+  private volatile int timeout = 15000;
+
+  // Connection IDs by tracker, and when they were handed out
+  private final HashMap<SocketAddress, long[]> connections = new HashMap<SocketAddress, long[]>();
+  // Requests waiting for an answer, by transaction ID
+  private final HashMap<Integer, Transaction> transactions = new HashMap<Integer, Transaction>();
+
+  // Metrics
+  private long connects = 0;
+  private long announces = 0;
+  private long scrapes = 0;
+  private long retransmits = 0;
+
+  /** A request sent to a tracker and not yet answered. */
+  private static class Transaction {
+    final Marshal.Request request;
+    final InetSocketAddress tracker;
+    final int kind;          // ANNOUNCE or SCRAPE
+    final ByteBuffer body;   // the request, less its header
+    int action;
+    ByteBuffer packet;
+    int attempt = 0;
+    long due;
+
+    Transaction (Marshal.Request request, InetSocketAddress tracker, int action, ByteBuffer body) {
+      this.request = request;
+      this.tracker = tracker;
+      this.kind = action;
+      this.body = body;
+    }
+  }
+
+  public UdpTracker (Marshal marshal, Overlord overlord) throws IOException {
+    this.marshal = marshal;
+    channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+    channel.bind(null);
+    if (!overlord.register(channel, this, SelectionKey.OP_READ))
+      throw new IOException("selector registration failed");
+  }
+
+  /** Sets the time before the first retransmit, which doubles each time. */
+  public void setTimeout (int ms) { timeout = ms; }
+
+  /** Starts an announce. */
+  public void announce (Marshal.Request r) {
+    try {
+      start(r, ANNOUNCE, pack(r.uri.getRawQuery()));
+    } catch (IOException e) {
+      marshal.failed(r, e.getMessage());
+    }
+  }
+
+  /** Starts a scrape of the info hashes of a batch. */
+  public void scrape (Marshal.Request r) {
+    ByteBuffer body = ByteBuffer.allocate(20 * r.scrape.hashes.size());
+    for (ByteBuffer hash : r.scrape.hashes) body.put(hash.duplicate());
+    body.flip();
+    try {
+      start(r, SCRAPE, body);
+    } catch (IOException e) {
+      marshal.failed(r, e.getMessage());
+    }
+  }
+
+  /** Sends a request, connecting first unless we have a connection ID. */
+  private void start (Marshal.Request r, int action, ByteBuffer body) throws IOException {
+    if (r.uri.getPort() == -1) throw new IOException("udp tracker URL has no port");
+    InetSocketAddress tracker = new InetSocketAddress(r.uri.getHost(), r.uri.getPort());
+    if (tracker.isUnresolved()) throw new IOException("unknown host " + r.uri.getHost());
+
+    Transaction t = new Transaction(r, tracker, action, body);
+    long[] connection = connections.get(tracker);
+    if (connection != null && System.currentTimeMillis() - connection[1] < CONNECTION_LIFETIME)
+      send(t, action, connection[0]);
+    else
+      send(t, CONNECT, PROTOCOL_ID);
+  }
+
+  /**
+   * Packs an HTTP announce query into the body of a UDP announce, everything
+   * after the connection ID, action and transaction ID.
+   */
+  static ByteBuffer pack (String query) throws IOException {
+    HashMap<String, byte[]> params = new HashMap<String, byte[]>();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int eq = pair.indexOf('=');
+        if (eq > 0) params.put(pair.substring(0, eq), unescape(pair.substring(eq + 1)));
+      }
+    }
+
+    byte[] infoHash = params.get("info_hash");
+    byte[] peerId = params.get("peer_id");
+    if (infoHash == null || infoHash.length != 20) throw new IOException("bad info_hash");
+    if (peerId == null || peerId.length != 20) throw new IOException("bad peer_id");
+
+    String event = number(params, "event");
+    int e = 0;
+    if ("completed".equals(event)) e = 1;
+    else if ("started".equals(event)) e = 2;
+    else if ("stopped".equals(event)) e = 3;
+
+    ByteBuffer body = ByteBuffer.allocate(82);
+    body.put(infoHash);
+    body.put(peerId);
+    body.putLong(Long.parseLong(number(params, "downloaded")));
+    body.putLong(Long.parseLong(number(params, "left")));
+    body.putLong(Long.parseLong(number(params, "uploaded")));
+    body.putInt(e);
+    body.putInt(0);                             // our IP: the one we send from
+    body.putInt(new Random().nextInt());        // key
+    body.putInt(-1);                            // as many peers as it likes
+    body.putShort((short) Integer.parseInt(number(params, "port")));
+    body.flip();
+    return body;
+  }
+
+  private static String number (HashMap<String, byte[]> params, String key) throws IOException {
+    byte[] value = params.get(key);
+    if (value == null) {
+      if (key.equals("event")) return null;
+      throw new IOException("announce has no " + key);
+    }
+    return new String(value, "US-ASCII");
+  }
+
+  /** Undoes URL escaping, into bytes since info hashes aren't text. */
+  static byte[] unescape (String s) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '%') {
+        if (i + 2 >= s.length()) throw new IOException("bad escape in " + s);
+        try { out.write(Integer.parseInt(s.substring(i + 1, i + 3), 16)); }
+        catch (NumberFormatException e) { throw new IOException("bad escape in " + s); }
+        i += 2;
+      }
+      else if (c == '+') out.write(' ');
+      else out.write(c);
+    }
+    return out.toByteArray();
+  }
+
+  /** Sends the connect, announce or scrape for a transaction, with a new ID. */
+  private void send (Transaction t, int action, long connectionId) {
+    int id;
+    do { id = random.nextInt(); } while (transactions.containsKey(id));
+
+    t.action = action;
+    t.attempt = 0;
+    t.packet = ByteBuffer.allocate(16 + (action == CONNECT ? 0 : t.body.remaining()));
+    t.packet.putLong(connectionId).putInt(action).putInt(id);
+    if (action != CONNECT) t.packet.put(t.body.duplicate());
+    t.packet.flip();
+
+    if (action == CONNECT) connects++;
+    else if (action == ANNOUNCE) announces++;
+    else scrapes++;
+    transactions.put(id, t);
+    transmit(t);
+  }
+
+  private void transmit (Transaction t) {
+    t.due = System.currentTimeMillis() + ((long) timeout << t.attempt);
+    try {
+      int n = channel.send(t.packet.duplicate(), t.tracker);
+      marshal.counted(n, 0);
+    } catch (IOException e) {
+      // Treated like a lost datagram; the retransmit may fare better.
+    }
+  }
+
+  /** Resends requests whose answers are overdue, and gives up on the ones
+   *  that are past their deadline or have been sent too many times. */
+  public void check (long now) {
+    Iterator<Transaction> it = transactions.values().iterator();
+    while (it.hasNext()) {
+      Transaction t = it.next();
+      if (now > t.request.deadline) {
+        it.remove();
+        marshal.failed(t.request, "timed out");
+        continue;
+      }
+      if (now < t.due) continue;
+      if (t.attempt >= MAX_RETRIES) {
+        it.remove();
+        marshal.failed(t.request, "no answer from udp tracker");
+        continue;
+      }
+      t.attempt++;
+      retransmits++;
+      transmit(t);
+    }
+  }
+
+  public boolean onReadable () {
+    while (true) {
+      in.clear();
+      SocketAddress from;
+      try { from = channel.receive(in); }
+      catch (IOException e) { return true; }
+      if (from == null) return true;
+      in.flip();
+      marshal.counted(0, in.remaining());
+      if (in.remaining() >= 8) receive(in);
+    }
+  }
+
+  private void receive (ByteBuffer packet) {
+    int action = packet.getInt();
+    Transaction t = transactions.get(packet.getInt());
+    if (t == null) return; // a late answer to something we've given up on
+
+    if (action == ERROR) {
+      transactions.remove(packet.getInt(4));
+      byte[] message = new byte[packet.remaining()];
+      packet.get(message);
+      connections.remove(t.tracker); // in case it no longer knows our ID
+      marshal.failed(t.request, "tracker error: " + new String(message));
+      return;
+    }
+    if (action != t.action) return;
+
+    if (action == CONNECT && packet.remaining() >= 8) {
+      transactions.remove(packet.getInt(4));
+      long id = packet.getLong();
+      connections.put(t.tracker, new long[] { id, System.currentTimeMillis() });
+      send(t, t.kind, id);
+    }
+
+    else if (action == ANNOUNCE && packet.remaining() >= 12) {
+      transactions.remove(packet.getInt(4));
+      int interval = packet.getInt();
+      int leechers = packet.getInt();
+      int seeders = packet.getInt();
+      ByteBuffer peers = ByteBuffer.allocate(packet.remaining() - packet.remaining() % 6);
+      packet.limit(packet.position() + peers.capacity());
+      peers.put(packet);
+      peers.flip();
+      marshal.announced(t.request, interval, leechers, seeders, peers);
+    }
+
+    // seeders, completed, leechers for each info hash, in the order asked
+    else if (action == SCRAPE) {
+      transactions.remove(packet.getInt(4));
+      int n = Math.min(packet.remaining() / 12, t.request.scrape.hashes.size());
+      for (int i = 0; i < n; i++) {
+        int seeders = packet.getInt();
+        int completed = packet.getInt();
+        int leechers = packet.getInt();
+        marshal.scraped(t.request, i, seeders, leechers, completed);
+      }
+    }
+  }
+
+  public boolean onWritable () { return true; }
+  public boolean onAcceptable () { return false; }
+  public boolean onConnectable () { return false; }
+
+  public void close () {
+    try { channel.close(); } catch (IOException e) {}
+  }
+
+  public long connects () { return connects; }
+  public long announces () { return announces; }
+  public long scrapes () { return scrapes; }
+  public long retransmits () { return retransmits; }
+  public int pending () { return transactions.size(); }
+}
@@ -0,0 +1,249 @@
+package libbitster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Queues verified pieces on their way to storage so the {@link Funnel} can
+ * write them in batches.  Pieces that arrive together are sorted and runs of
+ * neighbouring pieces are written with one large sequential write instead of
+ * one write each.
+ *
+ * Written bytes sit in the page cache until they are forced to disk, which
+ * happens once `flushBytes` have been written or the oldest unforced write is
+ * `flushMillis` old, whichever comes first.  Only the ranges written since the
+ * last flush are forced, so a crash loses at most that much.
+ *
+ * Only the flush policy may be changed from another thread; everything else
+ * belongs to the Funnel's thread.
+ */
+public class WriteBehind {
+  /** Largest single write made by joining pieces */
+  public static final int MAX_WRITE = 4 << 20;
+  public static final long DEFAULT_FLUSH_BYTES = 16L << 20;
+  public static final long DEFAULT_FLUSH_MILLIS = 5000;
+
+  private final Storage dest;
+  private final long pieceSize;
+  private volatile long flushBytes = DEFAULT_FLUSH_BYTES;
+  private volatile long flushMillis = DEFAULT_FLUSH_MILLIS;
+
+  // "piece" memos waiting to be written, by piece number, and when they came
+  private final TreeMap<Integer, Memo> pending = new TreeMap<Integer, Memo>();
+  private final TreeMap<Integer, Long> queued = new TreeMap<Integer, Long>();
+  private long pendingBytes = 0;
+
+  // Ranges written but not yet forced, start -> end, never overlapping
+  private final TreeMap<Long, Long> dirty = new TreeMap<Long, Long>();
+  private long dirtyBytes = 0;
+  private long dirtySince = 0;
+
+  // Joined pieces are copied here; allocated the first time it's needed
+  private ByteBuffer staging;
+
+  // Metrics
+  private int maxDepth = 0;
+  private long writes = 0;
+  private long piecesWritten = 0;
+  private long bytesWritten = 0;
+  private long flushes = 0;
+  private long totalLatency = 0; // nanoseconds, queued to written
+  private long maxLatency = 0;
+
+  /**
+   * @param dest Where the pieces go
+   * @param pieceSize The torrent's piece length; piece n starts at n * pieceSize
+   */
+  public WriteBehind (Storage dest, int pieceSize) {
+    this.dest = dest;
+    this.pieceSize = pieceSize;
+  }
+
+  /**
+   * Sets when written data is forced to disk.
+   * @param bytes Force once this many bytes are unforced
+   * @param millis Force once the oldest unforced write is this old
+   */
+  public void setFlushPolicy (long bytes, long millis) {
+    if (bytes < 0 || millis < 0)
+      throw new IllegalArgumentException("Negative flush threshold");
+    flushBytes = bytes;
+    flushMillis = millis;
+  }
+
+  /** Queues a "piece" memo, whose payload is a finished, verified Piece. */
+  public void add (Memo memo) {
+    Piece piece = (Piece) memo.getPayload();
+    Memo old = pending.put(piece.getNumber(), memo);
+    if (old != null) pendingBytes -= ((Piece) old.getPayload()).getData().length;
+    queued.put(piece.getNumber(), System.nanoTime());
+    pendingBytes += piece.getData().length;
+    maxDepth = Math.max(maxDepth, pending.size());
+  }
+
+  /** Whether enough is queued to make a full-sized write now. */
+  public boolean full () {
+    return pendingBytes >= MAX_WRITE;
+  }
+
+  /** Whether a piece is queued and not yet written. */
+  public boolean isPending (int piece) {
+    return pending.containsKey(piece);
+  }
+
+  /**
+   * Writes everything queued, joining neighbouring pieces.
+   * @param failed Gets the memos whose pieces couldn't be written.  They're
+   *        dropped from the queue, so whoever sent them has to be told.
+   * @return the memos whose pieces were written, in piece order
+   */
+  public ArrayList<Memo> write (List<Memo> failed) {
+    ArrayList<Memo> written = new ArrayList<Memo>(pending.size());
+    ArrayList<Memo> run = new ArrayList<Memo>();
+    int runBytes = 0;
+
+    for (Memo memo : pending.values()) {
+      Piece piece = (Piece) memo.getPayload();
+      int length = piece.getData().length;
+      if (!run.isEmpty()) {
+        Piece last = (Piece) run.get(run.size() - 1).getPayload();
+        if (last.getNumber() + 1 != piece.getNumber() || runBytes + length > MAX_WRITE) {
+          writeRun(run, runBytes, written, failed);
+          run.clear();
+          runBytes = 0;
+        }
+      }
+      run.add(memo);
+      runBytes += length;
+    }
+    if (!run.isEmpty()) writeRun(run, runBytes, written, failed);
+
+    pending.clear();
+    queued.clear();
+    pendingBytes = 0;
+    return written;
+  }
+
+  /** Writes a run of consecutive pieces with a single write. */
+  private void writeRun (ArrayList<Memo> run, int length, List<Memo> written, List<Memo> failed) {
+    Piece first = (Piece) run.get(0).getPayload();
+    long offset = first.getNumber() * pieceSize;
+
+    ByteBuffer src;
+    if (run.size() == 1) {
+      src = ByteBuffer.wrap(first.getData());
+    } else {
+      if (staging == null) staging = ByteBuffer.allocateDirect(MAX_WRITE);
+      staging.clear();
+      for (Memo memo : run) staging.put(((Piece) memo.getPayload()).getData());
+      staging.flip();
+      src = staging;
+    }
+
+    try {
+      dest.write(offset, src);
+    } catch (IOException e) {
+      Log.error("Couldn't write pieces " + first.getNumber() + "-" +
+        (first.getNumber() + run.size() - 1) + ": " + e.getMessage());
+      failed.addAll(run);
+      return;
+    }
+
+    long now = System.nanoTime();
+    for (Memo memo : run) {
+      long latency = now - queued.get(((Piece) memo.getPayload()).getNumber());
+      totalLatency += latency;
+      maxLatency = Math.max(maxLatency, latency);
+    }
+    written.addAll(run);
+    writes++;
+    piecesWritten += run.size();
+    bytesWritten += length;
+    markDirty(offset, offset + length);
+  }
+
+  /** Records a write made around the queue, ie of a lone block, so that
+   *  it's forced to disk along with everything else. */
+  public void written (long offset, long length) {
+    bytesWritten += length;
+    markDirty(offset, offset + length);
+  }
+
+  /** Adds a range to the dirty set, merging it with any it touches. */
+  private void markDirty (long start, long end) {
+    if (dirty.isEmpty()) dirtySince = System.currentTimeMillis();
+
+    Map.Entry<Long, Long> before = dirty.floorEntry(start);
+    if (before != null && before.getValue() >= start) {
+      start = before.getKey();
+      end = Math.max(end, before.getValue());
+      dirty.remove(start);
+      dirtyBytes -= before.getValue() - before.getKey();
+    }
+    Iterator<Map.Entry<Long, Long>> after = dirty.tailMap(start, true).entrySet().iterator();
+    while (after.hasNext()) {
+      Map.Entry<Long, Long> range = after.next();
+      if (range.getKey() > end) break;
+      end = Math.max(end, range.getValue());
+      dirtyBytes -= range.getValue() - range.getKey();
+      after.remove();
+    }
+    dirty.put(start, end);
+    dirtyBytes += end - start;
+  }
+
+  /** Whether the flush policy says it's time to force the dirty ranges. */
+  public boolean flushDue () {
+    if (dirty.isEmpty()) return false;
+    return dirtyBytes >= flushBytes ||
+      System.currentTimeMillis() - dirtySince >= flushMillis;
+  }
+
+  /** Forces every range written since the last flush out to disk. */
+  public void flush () throws IOException {
+    if (dirty.isEmpty()) return;
+    for (Iterator<Map.Entry<Long, Long>> it = dirty.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, Long> range = it.next();
+      dest.force(range.getKey(), range.getValue() - range.getKey());
+      dirtyBytes -= range.getValue() - range.getKey();
+      it.remove();
+    }
+    flushes++;
+  }
+
+  /** Pieces queued and not yet written */
+  public int depth () { return pending.size(); }
+  public int maxDepth () { return maxDepth; }
+  public long pendingBytes () { return pendingBytes; }
+  /** Bytes written but not yet forced to disk */
+  public long dirtyBytes () { return dirtyBytes; }
+  /** Number of separate ranges written but not yet forced */
+  public int dirtyRanges () { return dirty.size(); }
+  public long writes () { return writes; }
+  public long piecesWritten () { return piecesWritten; }
+  public long bytesWritten () { return bytesWritten; }
+  public long flushes () { return flushes; }
+
+  /** Average time from a piece being queued to it being written, in ms */
+  public double averageLatency () {
+    return piecesWritten == 0 ? 0 : totalLatency / 1e6 / piecesWritten;
+  }
+
+  /** Longest time from a piece being queued to it being written, in ms */
+  public double maxLatency () {
+    return maxLatency / 1e6;
+  }
+
+  public String toString () {
+    return String.format(
+      "writer: depth %d (max %d), %d pieces in %d writes, %d KB, latency %.1f ms avg %.1f ms max, %d KB unflushed, %d flushes",
+      pending.size(), maxDepth, piecesWritten, writes, bytesWritten >> 10,
+      averageLatency(), maxLatency(), dirtyBytes >> 10, flushes
+    );
+  }
+}
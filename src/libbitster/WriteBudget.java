@@ -0,0 +1,90 @@
+package libbitster;
+
+/**
+ * Keeps count of the bytes of finished pieces and blocks handed to the
+ * {@link Funnel} that it hasn't yet stored, so the {@link Manager} can stop
+ * requesting blocks when the Funnel falls behind rather than piling them up
+ * in its mailbox until the heap runs out.
+ *
+ * Requests stop once the budget is used up and only start again when half of
+ * it is free, so a Funnel hovering around the limit doesn't flip requests on
+ * and off with every piece.
+ */
+public class WriteBudget {
+  /** Default budget: 64 MB */
+  public static final long DEFAULT_BUDGET = 64L << 20;
+
+  private long budget;
+  private long pending = 0;
+  private boolean throttled = false;
+
+  // Metrics
+  private long peak = 0;
+  private long throttles = 0;
+  private long throttledSince = 0;
+  private long throttledMillis = 0;
+
+  public WriteBudget () { this(DEFAULT_BUDGET); }
+
+  /** @param budget The most bytes of pieces to have waiting on the Funnel */
+  public WriteBudget (long budget) {
+    setBudget(budget);
+  }
+
+  public void setBudget (long budget) {
+    if (budget <= 0)
+      throw new IllegalArgumentException("Budget must be positive");
+    this.budget = budget;
+    update();
+  }
+
+  /** A piece or block of `length` bytes has been handed to the Funnel. */
+  public void add (long length) {
+    pending += length;
+    peak = Math.max(peak, pending);
+    update();
+  }
+
+  /** The Funnel is done with `length` bytes, stored or not. */
+  public void release (long length) {
+    pending = Math.max(0, pending - length);
+    update();
+  }
+
+  private void update () {
+    if (!throttled && pending >= budget) {
+      throttled = true;
+      throttles++;
+      throttledSince = System.currentTimeMillis();
+      Log.info("Storage is " + (pending >> 10) + " KB behind, holding off on requests");
+    }
+    else if (throttled && pending <= budget / 2) {
+      throttled = false;
+      throttledMillis += System.currentTimeMillis() - throttledSince;
+      Log.info("Storage caught up, resuming requests");
+    }
+  }
+
+  /** Whether new block requests should wait. */
+  public boolean throttled () { return throttled; }
+
+  public long budget () { return budget; }
+  /** Bytes handed to the Funnel and not yet stored */
+  public long pending () { return pending; }
+  public long peak () { return peak; }
+  /** Number of times requests have been held off */
+  public long throttles () { return throttles; }
+
+  /** Total time requests have been held off, including now */
+  public long throttledMillis () {
+    return throttledMillis + (throttled ? System.currentTimeMillis() - throttledSince : 0);
+  }
+
+  public String toString () {
+    return String.format(
+      "write budget: %d/%d KB pending (peak %d KB), throttled %d times for %d ms%s",
+      pending >> 10, budget >> 10, peak >> 10, throttles, throttledMillis(),
+      throttled ? ", throttled now" : ""
+    );
+  }
+}
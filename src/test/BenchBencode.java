@@ -0,0 +1,69 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import libbitster.BencodeWriter;
+import libbitster.Bencoder2;
+
+/**
+ * Encodes a large dictionary (shaped like a resume file: one entry per piece
+ * holding a few integers, a string and a list) with {@link Bencoder2} and with
+ * a reused {@link BencodeWriter}, and compares the time taken.
+ */
+public class BenchBencode {
+  static final int ENTRIES = 100000;
+  static final int RUNS = 20;
+
+  public static void main (String[] args) throws Exception {
+    HashMap<ByteBuffer, Object> dict = build();
+
+    byte[] expected = Bencoder2.encode(dict);
+    BencodeWriter writer = new BencodeWriter();
+    assert(Arrays.equals(expected, writer.write(dict).toByteArray()));
+    l("encoded size: " + expected.length + " bytes");
+
+    for (int i = 0; i < 5; i++) {
+      Bencoder2.encode(dict);
+      writer.reset().write(dict);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) Bencoder2.encode(dict);
+    double old = (System.nanoTime() - start) / (double) RUNS / 1000000.0;
+
+    start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) writer.reset().write(dict);
+    double now = (System.nanoTime() - start) / (double) RUNS / 1000000.0;
+
+    l("Bencoder2.encode:    " + old + " ms");
+    l("BencodeWriter.write: " + now + " ms");
+  }
+
+  static HashMap<ByteBuffer, Object> build () {
+    HashMap<ByteBuffer, Object> pieces = new HashMap<ByteBuffer, Object>();
+    for (int i = 0; i < ENTRIES; i++) {
+      HashMap<ByteBuffer, Object> entry = new HashMap<ByteBuffer, Object>();
+      entry.put(key("index"), i);
+      entry.put(key("length"), 262144);
+      entry.put(key("hash"), ByteBuffer.wrap(new byte[20]));
+      ArrayList<Object> blocks = new ArrayList<Object>();
+      for (int j = 0; j < 4; j++) blocks.add(j * 16384);
+      entry.put(key("blocks"), blocks);
+      pieces.put(key("piece" + i), entry);
+    }
+
+    HashMap<ByteBuffer, Object> dict = new HashMap<ByteBuffer, Object>();
+    dict.put(key("pieces"), pieces);
+    dict.put(key("version"), 1);
+    return dict;
+  }
+
+  static ByteBuffer key (String s) {
+    return ByteBuffer.wrap(s.getBytes());
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
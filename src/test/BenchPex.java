@@ -0,0 +1,159 @@
+package test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+
+import bitstercli.RawOutputUI;
+import libbitster.BencodeWriter;
+import libbitster.Broker;
+import libbitster.Doorman;
+import libbitster.Log;
+import libbitster.Manager;
+import libbitster.TorrentInfo;
+
+/**
+ * Measures how long a swarm on loopback takes to connect every peer to
+ * every other, with and without peer exchange.  The tracker stand-in is
+ * deliberately unhelpful: it answers after a second, with only the peer
+ * that announced before, and asks for the next announce in half an hour.
+ *
+ * Peers join a fifth of a second apart, each listening through a
+ * {@link Doorman} of its own, since they share a torrent.  Run with -no-pex
+ * to turn peer exchange off; without it peers only meet their neighbours.
+ */
+public class BenchPex {
+  static final int PEERS = 8;
+  static final int LIMIT = 120000;
+
+  public static void main (String[] args) throws Exception {
+    boolean pex = !(args.length > 0 && args[0].equals("-no-pex"));
+    Log.setOutput(new java.io.PrintStream(new java.io.ByteArrayOutputStream()));
+
+    ServerSocket tracker = tracker();
+    TorrentInfo info = new TorrentInfo(torrent(tracker.getLocalPort()));
+    File dir = File.createTempFile("benchpex", "");
+    dir.delete();
+    dir.mkdir();
+
+    Manager[] managers = new Manager[PEERS];
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < PEERS; i++) {
+      managers[i] = new Manager(info, new File(dir, "peer" + i), RawOutputUI.getInstance(), "memory");
+      managers[i].setPex(pex);
+      Doorman doorman = new Doorman(0);
+      doorman.start();
+      managers[i].setDoorman(doorman);
+      managers[i].start();
+      Thread.sleep(200);
+    }
+
+    long[] done = new long[PEERS];
+    int finished = 0;
+    while (finished < PEERS && System.currentTimeMillis() - start < LIMIT) {
+      Thread.sleep(100);
+      for (int i = 0; i < PEERS; i++) {
+        if (done[i] == 0 && peers(managers[i]) >= PEERS - 1) {
+          done[i] = System.currentTimeMillis() - start;
+          finished++;
+        }
+      }
+    }
+
+    System.out.println((pex ? "With" : "Without") + " PEX, " + PEERS + " peers, tracker handing out one:");
+    long worst = 0;
+    for (int i = 0; i < PEERS; i++) {
+      System.out.println("  peer " + i + ": " + (done[i] == 0 ? "never" : done[i] + " ms")
+        + ", " + peers(managers[i]) + " of " + (PEERS - 1) + " others"
+        + ", " + managers[i].getPeerPool().size() + " known");
+      worst = Math.max(worst, done[i]);
+    }
+    System.out.println("  whole swarm connected: "
+      + (finished < PEERS ? "not within " + LIMIT + " ms" : worst + " ms"));
+    TestMultiFile.delete(dir);
+    System.exit(0);
+  }
+
+  /** Distinct peers a Manager has finished a handshake with. */
+  @SuppressWarnings("unchecked")
+  static int peers (Manager m) {
+    HashSet<ByteBuffer> ids = new HashSet<ByteBuffer>();
+    try {
+      for (Broker b : (LinkedList<Broker>) m.getBrokers().clone())
+        if (b.peerId() != null && b.state().equals("normal")) ids.add(b.peerId());
+    } catch (Exception e) {} // changed under us; try again next time
+    return ids.size();
+  }
+
+  /** The slow, stingy tracker. */
+  static ServerSocket tracker () throws Exception {
+    final ServerSocket server = new ServerSocket(0);
+    Thread t = new Thread() {
+      public void run () {
+        byte[] last = new byte[0];
+        try {
+          while (true) {
+            Socket s = server.accept();
+            String request = TestMarshal.readHead(s.getInputStream());
+            Thread.sleep(1000);
+            int port = 0;
+            for (String pair : request.split(" ")[1].split("[?&]"))
+              if (pair.startsWith("port=")) port = Integer.parseInt(pair.substring(5));
+
+            byte[] head = ("d8:intervali1800e5:peers" + last.length + ":").getBytes();
+            byte[] body = new byte[head.length + last.length + 1];
+            System.arraycopy(head, 0, body, 0, head.length);
+            System.arraycopy(last, 0, body, head.length, last.length);
+            body[body.length - 1] = 'e';
+            OutputStream out = s.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes());
+            out.write(body);
+            out.flush();
+            drain(s.getInputStream());
+            s.close();
+
+            if (!request.startsWith("GET /announce") || request.contains("event=stopped")) continue;
+            last = new byte[] { 127, 0, 0, 1, (byte) (port >> 8), (byte) port };
+          }
+        } catch (Exception e) {}
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    return server;
+  }
+
+  static void drain (InputStream in) {
+    try { while (in.available() > 0) in.read(); } catch (Exception e) {}
+  }
+
+  static byte[] torrent (int trackerPort) throws Exception {
+    int pieceLength = 16384;
+    byte[] content = new byte[4 * pieceLength];
+    new Random(1).nextBytes(content);
+    MessageDigest sha = MessageDigest.getInstance("SHA-1");
+    byte[] hashes = new byte[4 * 20];
+    for (int p = 0; p < 4; p++) {
+      sha.update(content, p * pieceLength, pieceLength);
+      System.arraycopy(sha.digest(), 0, hashes, p * 20, 20);
+    }
+    HashMap<String, Object> infoDict = new HashMap<String, Object>();
+    infoDict.put("name", "benchpex");
+    infoDict.put("piece length", pieceLength);
+    infoDict.put("pieces", hashes);
+    infoDict.put("length", content.length);
+
+    HashMap<String, Object> torrent = new HashMap<String, Object>();
+    torrent.put("announce", "http://localhost:" + trackerPort + "/announce");
+    torrent.put("info", infoDict);
+    return BencodeWriter.encode(torrent);
+  }
+}
@@ -0,0 +1,160 @@
+package test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import libbitster.Deputy;
+import libbitster.Sheriff;
+
+/**
+ * Loads the embedded tracker with announces over loopback and reports how
+ * many it answers a second.  HTTP clients keep their connections alive and
+ * pipeline a batch of announces at a time; UDP clients keep a window of
+ * announces in flight.  Announces are spread over many torrents and peers,
+ * so swarms grow to a realistic size and responses carry peers.
+ */
+public class BenchSheriff {
+  static final int CLIENTS = 4;
+  static final int ANNOUNCES = 50000;   // per client
+  static final int PIPELINE = 32;
+  static final int TORRENTS = 1000;
+  static final int PEERS = 20000;
+
+  public static void main (String[] args) throws Exception {
+    final Sheriff sheriff = new Sheriff(0, 0);
+    sheriff.start();
+
+    run("HTTP", sheriff, false, ANNOUNCES / 10); // warm-up
+    run("HTTP", sheriff, false, ANNOUNCES);
+    run("UDP ", sheriff, true, ANNOUNCES / 10);
+    run("UDP ", sheriff, true, ANNOUNCES);
+    l(sheriff.toString());
+    sheriff.post(new libbitster.Memo("halt", null, null));
+  }
+
+  static void run (final String name, final Sheriff sheriff, final boolean udp, final int n) throws Exception {
+    Thread[] clients = new Thread[CLIENTS];
+    final long before = sheriff.announces();
+    long start = System.nanoTime();
+    for (int c = 0; c < CLIENTS; c++) {
+      final int seed = c;
+      clients[c] = new Thread() {
+        public void run () {
+          try {
+            if (udp) udp(sheriff.udpPort(), n, seed);
+            else http(sheriff.port(), n, seed);
+          } catch (Exception e) { throw new RuntimeException(e); }
+        }
+      };
+      clients[c].start();
+    }
+    for (Thread t : clients) t.join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long done = sheriff.announces() - before;
+    if (n == ANNOUNCES)
+      l(name + ": " + done + " announces in " + String.format("%.2f", seconds) + " s, "
+        + String.format("%.0f", done / seconds) + " announces/s");
+  }
+
+  static String request (Random random) {
+    byte[] hash = new byte[20];
+    int torrent = random.nextInt(TORRENTS);
+    ByteBuffer.wrap(hash).putInt(torrent);
+    int peer = random.nextInt(PEERS);
+    return "GET /announce?info_hash=" + Deputy.escapeURL(ByteBuffer.wrap(hash))
+      + "&peer_id=" + Deputy.escapeURL(String.format("-BT0001-%012d", peer))
+      + "&port=" + (10000 + peer % 50000) + "&uploaded=0&downloaded=0&left=" + (peer % 4 == 0 ? 0 : 1000)
+      + "&numwant=50 HTTP/1.1\r\nHost: localhost\r\n\r\n";
+  }
+
+  static void http (int port, int n, int seed) throws Exception {
+    Random random = new Random(seed);
+    Socket s = new Socket("localhost", port);
+    s.setTcpNoDelay(true);
+    OutputStream out = s.getOutputStream();
+    InputStream in = s.getInputStream();
+    byte[] buf = new byte[1 << 16];
+
+    for (int sent = 0; sent < n; sent += PIPELINE) {
+      StringBuilder batch = new StringBuilder();
+      int k = Math.min(PIPELINE, n - sent);
+      for (int i = 0; i < k; i++) batch.append(request(random));
+      out.write(batch.toString().getBytes("ISO-8859-1"));
+
+      // Count whole responses by their Content-Length, keeping any partial
+      // one at the end for the next read
+      int responses = 0, have = 0;
+      while (responses < k) {
+        int r = in.read(buf, have, buf.length - have);
+        if (r < 0) throw new RuntimeException("connection closed");
+        have += r;
+        responses = 0;
+        int from = 0, at, last = 0;
+        String text = new String(buf, 0, have, "ISO-8859-1");
+        while ((at = text.indexOf("Content-Length: ", from)) >= 0) {
+          int eol = text.indexOf("\r\n", at);
+          int bodyStart = text.indexOf("\r\n\r\n", at);
+          if (eol < 0 || bodyStart < 0) break;
+          int length = Integer.parseInt(text.substring(at + 16, eol));
+          if (bodyStart + 4 + length > have) break;
+          responses++;
+          last = bodyStart + 4 + length;
+          from = last;
+        }
+        if (responses < k && last > 0) {
+          System.arraycopy(buf, last, buf, 0, have - last);
+          have -= last;
+          k -= responses;
+          responses = 0;
+        }
+      }
+    }
+    s.close();
+  }
+
+  static void udp (int port, int n, int seed) throws Exception {
+    Random random = new Random(seed);
+    DatagramSocket s = new DatagramSocket();
+    s.setSoTimeout(200);
+    InetAddress local = InetAddress.getByName("localhost");
+    byte[] buf = new byte[2048];
+
+    // connect
+    ByteBuffer p = ByteBuffer.allocate(16).putLong(0x41727101980L).putInt(0).putInt(1);
+    s.send(new DatagramPacket(p.array(), 16, local, port));
+    DatagramPacket reply = new DatagramPacket(buf, buf.length);
+    s.receive(reply);
+    long connection = ByteBuffer.wrap(buf, 8, 8).getLong();
+
+    int answered = 0, sent = 0;
+    while (answered < n) {
+      while (sent - answered < PIPELINE && sent < n) {
+        ByteBuffer a = ByteBuffer.allocate(98);
+        a.putLong(connection).putInt(1).putInt(sent);
+        byte[] hash = new byte[20];
+        ByteBuffer.wrap(hash).putInt(random.nextInt(TORRENTS));
+        int peer = random.nextInt(PEERS);
+        a.put(hash).put(String.format("-BT0001-%012d", peer).getBytes());
+        a.putLong(0).putLong(peer % 4 == 0 ? 0 : 1000).putLong(0);
+        a.putInt(0).putInt(0).putInt(peer).putInt(50).putShort((short) (10000 + peer % 50000));
+        s.send(new DatagramPacket(a.array(), 98, local, port));
+        sent++;
+      }
+      try {
+        s.receive(reply);
+        answered++;
+      } catch (java.net.SocketTimeoutException e) {
+        answered = sent; // lost on loopback under load; move on
+      }
+    }
+    s.close();
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
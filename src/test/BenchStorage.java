@@ -0,0 +1,122 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import libbitster.FileLayout;
+import libbitster.Funnel;
+import libbitster.Storage;
+
+/**
+ * Compares random-block write and read throughput of each storage backend,
+ * over one 512 MB file and over the same bytes split into 64 files.  Blocks
+ * are 16k, the size we request from peers, at random aligned offsets.
+ * Writes are timed without the final force(), which is reported separately,
+ * so the disk numbers mostly measure the page cache.  Reads are timed on one
+ * thread and then on four at once, as the couriers serve uploads; on a
+ * machine with fewer cores the second figure can't show any scaling.
+ */
+public class BenchStorage {
+  static final long SIZE = 512L << 20;
+  static final int BLOCK = 16384;
+  static final int BLOCKS = (int) (SIZE / BLOCK);
+  static final int FILES = 64;
+  static final int THREADS = 4;
+
+  public static void main (String[] args) throws Exception {
+    long[] one = { SIZE };
+    long[] many = new long[FILES];
+    String[] onePath = { "bench" };
+    String[] manyPaths = new String[FILES];
+    for (int i = 0; i < FILES; i++) {
+      many[i] = SIZE / FILES;
+      manyPaths[i] = "f" + i;
+    }
+
+    System.out.println(String.format("%-8s %-6s %10s %10s %10s %14s", "storage", "files", "write MB/s", "force ms", "read MB/s",
+      THREADS + "x read MB/s"));
+    for (String kind : Funnel.STORAGE_KINDS) {
+      run(kind, new FileLayout(false, onePath, one, BLOCK));
+      run(kind, new FileLayout(true, manyPaths, many, BLOCK));
+    }
+  }
+
+  static void run (String kind, FileLayout layout) throws Exception {
+    File dir = Files.createTempDirectory("bitster-bench").toFile();
+    File dest = layout.isMultiFile() ? dir : new File(dir, "bench");
+    Storage s = Funnel.openStorage(kind, layout, dest);
+
+    ByteBuffer block = ByteBuffer.allocate(BLOCK);
+    new Random(1).nextBytes(block.array());
+    int[] order = shuffled(BLOCKS, 2);
+
+    long start = System.nanoTime();
+    for (int b : order) {
+      block.clear();
+      s.write((long) b * BLOCK, block);
+    }
+    long write = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    s.force();
+    long force = System.nanoTime() - start;
+
+    order = shuffled(BLOCKS, 3);
+    long sum = 0;
+    start = System.nanoTime();
+    for (int b : order) {
+      block.clear();
+      s.read((long) b * BLOCK, block);
+      sum += block.get(b % BLOCK);
+    }
+    long read = System.nanoTime() - start;
+
+    long parallel = parallelRead(s, THREADS);
+    s.close();
+    TestMultiFile.delete(dir);
+
+    System.out.println(String.format("%-8s %-6d %10.0f %10.0f %10.0f %14.0f   (%d)",
+      kind, layout.count(), mbps(write), force / 1e6, mbps(read), mbps(parallel), sum & 1));
+  }
+
+  /** Reads every block once, split between `threads` threads. */
+  static long parallelRead (final Storage s, int threads) throws Exception {
+    final int[] order = shuffled(BLOCKS, 4);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int from = t * BLOCKS / threads, to = (t + 1) * BLOCKS / threads;
+      workers[t] = new Thread() {
+        public void run () {
+          ByteBuffer block = ByteBuffer.allocate(BLOCK);
+          try {
+            for (int i = from; i < to; i++) {
+              block.clear();
+              s.read((long) order[i] * BLOCK, block);
+            }
+          } catch (Exception e) { throw new RuntimeException(e); }
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for (Thread w : workers) w.start();
+    for (Thread w : workers) w.join();
+    return System.nanoTime() - start;
+  }
+
+  static double mbps (long nanos) {
+    return (SIZE / (double) (1 << 20)) / (nanos / 1e9);
+  }
+
+  static int[] shuffled (int n, long seed) {
+    int[] a = new int[n];
+    for (int i = 0; i < n; i++) a[i] = i;
+    Random r = new Random(seed);
+    for (int i = n - 1; i > 0; i--) {
+      int j = r.nextInt(i + 1);
+      int t = a[i]; a[i] = a[j]; a[j] = t;
+    }
+    return a;
+  }
+}
@@ -0,0 +1,63 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import libbitster.TorrentInfo;
+
+/**
+ * Parses a synthetic 500k-piece metainfo file and reports parse time and how
+ * much heap the resulting {@link TorrentInfo} keeps alive.
+ */
+public class BenchTorrentInfo {
+  static final int PIECES = 500000;
+  static final int PIECE_LENGTH = 4096;
+  static final int RUNS = 10;
+
+  public static void main (String[] args) throws Exception {
+    byte[] torrent = synthesize(PIECES, PIECE_LENGTH);
+    l("metainfo: " + torrent.length + " bytes, " + PIECES + " pieces");
+
+    // warm up
+    for (int i = 0; i < 3; i++) new TorrentInfo(torrent);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) new TorrentInfo(torrent);
+    long elapsed = System.nanoTime() - start;
+    l("parse: " + (elapsed / RUNS / 1000000.0) + " ms");
+
+    long before = used();
+    TorrentInfo info = new TorrentInfo(torrent);
+    long after = used();
+    l("retained: " + ((after - before) / 1024) + " KB (" +
+      ((after - before) / (double) PIECES) + " bytes/piece, hashes alone are 20)");
+
+    assert(info.piece_count == PIECES);
+  }
+
+  static byte[] synthesize (int pieces, int pieceLength) throws Exception {
+    byte[] hashes = new byte[pieces * 20];
+    new Random(1).nextBytes(hashes);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String announce = "http://localhost:6969/announce";
+    out.write(("d8:announce" + announce.length() + ":" + announce +
+      "4:infod6:lengthi" +
+      ((long) pieces * pieceLength) + "e4:name5:bench12:piece lengthi" +
+      pieceLength + "e6:pieces" + hashes.length + ":").getBytes("ASCII"));
+    out.write(hashes);
+    out.write("ee".getBytes("ASCII"));
+    return out.toByteArray();
+  }
+
+  static long used () {
+    Runtime r = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try { Thread.sleep(50); } catch (InterruptedException e) {}
+    }
+    return r.totalMemory() - r.freeMemory();
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
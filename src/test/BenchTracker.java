@@ -0,0 +1,52 @@
+package test;
+
+import libbitster.Marshal;
+import libbitster.Memo;
+
+/**
+ * Announces to a stand-in HTTP tracker and a stand-in UDP tracker on
+ * localhost through the {@link Marshal}, one announce at a time, and compares
+ * the time and bytes each announce takes.  Bytes are what the client sends
+ * and receives above TCP or UDP; the TCP handshake and per-packet headers
+ * come on top of the HTTP figure.
+ */
+public class BenchTracker {
+  static final int ANNOUNCES = 500;
+
+  public static void main (String[] args) throws Exception {
+    int http = TestMarshal.tracker().getLocalPort();
+    TestUdpTracker.Tracker udp = new TestUdpTracker.Tracker();
+    String query = TestUdpTracker.url(0, (byte) 1, "").split("\\?")[1];
+
+    run("warm-up", "http://localhost:" + http + "/announce?mode=length&" + query);
+    run("warm-up", "udp://localhost:" + udp.port() + "/announce?" + query);
+    run("HTTP", "http://localhost:" + http + "/announce?mode=length&" + query);
+    run("UDP ", "udp://localhost:" + udp.port() + "/announce?" + query);
+  }
+
+  static void run (String name, String url) throws Exception {
+    Marshal marshal = new Marshal();
+    marshal.start();
+    TestMultiFile.Inbox inbox = new TestMultiFile.Inbox();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ANNOUNCES; i++) {
+      marshal.post(new Memo("get", url, inbox));
+      Memo m = null;
+      while (m == null) {
+        m = inbox.take(url.startsWith("udp") ? "announced" : "response");
+        if (m == null && inbox.take("error") != null) throw new AssertionError(name + " announce failed");
+        if (m == null) Thread.yield();
+      }
+    }
+    double micros = (System.nanoTime() - start) / 1000.0 / ANNOUNCES;
+    marshal.post(new Memo("halt", null, null));
+
+    if (name.equals("warm-up")) return;
+    l(name + ": " + String.format("%.1f", micros) + " us/announce, "
+      + marshal.bytesSent() / ANNOUNCES + " bytes sent and "
+      + marshal.bytesReceived() / ANNOUNCES + " received per announce");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,76 @@
+package test;
+
+import java.util.ArrayList;
+
+import libbitster.AnnounceScheduler;
+import libbitster.Memo;
+
+public class TestAnnounceScheduler {
+  public static void main (String[] args) throws Exception {
+    long now = 1000000;
+
+    l("Torrents started together are released at the rate, not all at once");
+    AnnounceScheduler s = new AnnounceScheduler(20);
+    ArrayList<TestMultiFile.Inbox> torrents = new ArrayList<TestMultiFile.Inbox>();
+    for (int i = 0; i < 100; i++) {
+      TestMultiFile.Inbox t = new TestMultiFile.Inbox();
+      torrents.add(t);
+      s.schedule(t, new Memo("announce", null, t), 0, 0, 0, false, now);
+    }
+    assert(s.release(now) == 20);
+    assert(s.release(now) == 0);
+    assert(s.release(now + 500) == 10);
+    int total = 30;
+    for (long t = now + 1000; total < 100; t += 1000) total += s.release(t);
+    assert(s.pending() == 0 && s.released() == 100);
+    for (TestMultiFile.Inbox t : torrents) assert(t.take("announce") != null);
+
+    l("Reannounces are spread within the jitter of their interval");
+    s = new AnnounceScheduler(1000000);
+    long interval = 1800000, lo = Long.MAX_VALUE, hi = 0;
+    for (TestMultiFile.Inbox t : torrents) s.schedule(t, new Memo("announce", null, t), interval, 0, 50, true, now);
+    int seen = 0;
+    for (long t = now; seen < 100; t += 1000) {
+      int n = s.release(t);
+      if (n > 0) { lo = Math.min(lo, t - now); hi = Math.max(hi, t - now); }
+      seen += n;
+    }
+    assert(lo >= interval * (1 - AnnounceScheduler.JITTER) && hi <= interval * (1 + AnnounceScheduler.JITTER) + 1000);
+    assert(hi - lo > interval * AnnounceScheduler.JITTER); // actually spread out
+    for (TestMultiFile.Inbox t : torrents) assert(t.take("announce") != null);
+
+    l("Torrents short of peers announce sooner, and first");
+    s = new AnnounceScheduler(1);
+    TestMultiFile.Inbox rich = torrents.get(0), poor = torrents.get(1);
+    s.schedule(rich, new Memo("announce", null, rich), 0, 0, 50, false, now);
+    s.schedule(poor, new Memo("announce", null, poor), 0, 0, 2, false, now);
+    assert(s.release(now) == 1);
+    assert(poor.take("announce") != null && rich.take("announce") == null);
+    s.schedule(poor, new Memo("announce", null, poor), interval, 0, 2, true, now);
+    assert(s.release(now + (long) (interval * AnnounceScheduler.LOW_PEERS_FACTOR * 1.2)) == 1);
+    assert(poor.take("announce") != null);
+
+    l("A hurried announce still waits out the tracker's min interval");
+    s = new AnnounceScheduler(100);
+    s.schedule(rich, new Memo("announce", null, rich), interval, 300000, 50, true, now);
+    assert(s.hurry(rich, now));
+    assert(s.release(now + 1000) == 0);
+    assert(s.release(now + 300000) == 1);
+    assert(rich.take("announce") != null);
+    assert(!s.hurry(rich, now)); // nothing scheduled any more
+
+    l("Scheduling again replaces the earlier announce; cancelling drops it");
+    s.schedule(rich, new Memo("announce", null, rich), 1000, 0, 50, false, now);
+    s.schedule(rich, new Memo("announce", null, rich), 5000, 0, 50, false, now);
+    assert(s.pending() == 1);
+    assert(s.release(now + 2000) == 0);
+    assert(s.release(now + 5000) == 1);
+    s.schedule(rich, new Memo("announce", null, rich), 1000, 0, 50, false, now);
+    s.cancel(rich);
+    assert(s.release(now + 10000) == 0 && s.pending() == 0);
+
+    l("All tests passed");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,83 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+
+import libbitster.BencodeReader;
+import libbitster.Bencoder2;
+import libbitster.BencodingException;
+import libbitster.TorrentInfo;
+import libbitster.Util;
+
+public class TestBencodeReader {
+  public static void main (String[] args) throws Exception {
+    byte[] data = "d3:bar4:spam3:fooi42e4:listli-7e0:dee5:emptyde3:zzzi9000000000ee".getBytes("ASCII");
+
+    l("Pull tokens");
+    BencodeReader r = new BencodeReader(data);
+    assert(r.next() == BencodeReader.DICTIONARY);
+    assert(r.next() == BencodeReader.STRING);
+    assert(r.string().equals(Util.s("bar")));
+    assert(r.next() == BencodeReader.STRING);
+    assert(r.string().equals(Util.s("spam")));
+
+    l("Strings are slices of the input");
+    assert(r.string().array() == data);
+
+    l("Find skips nested values");
+    assert(r.find(Util.s("zzz")));
+    assert(r.next() == BencodeReader.INTEGER);
+    assert(r.integer() == 9000000000L);
+    assert(r.next() == BencodeReader.END);
+    assert(r.next() == BencodeReader.EOF);
+
+    l("Raw returns a value's encoded bytes");
+    r = new BencodeReader(data);
+    r.next();
+    assert(r.find(Util.s("list")));
+    assert(r.raw().equals(Util.s("li-7e0:dee")));
+    assert(!r.find(Util.s("nope")));
+
+    l("Read materializes maps, lists, slices and longs");
+    Map<?, ?> m = (Map<?, ?>) BencodeReader.decode(ByteBuffer.wrap(data));
+    assert(((Long) m.get(Util.s("foo"))) == 42);
+    ArrayList<?> list = (ArrayList<?>) m.get(Util.s("list"));
+    assert(((Long) list.get(0)) == -7);
+    assert(((ByteBuffer) list.get(1)).remaining() == 0);
+    assert(((Map<?, ?>) m.get(Util.s("empty"))).isEmpty());
+
+    l("Malformed input is rejected");
+    String[] bad = { "i12", "ie", "i1x2e", "5:abc", "d3:fooe", "x", "li1e", "4294967297:a" };
+    for (String b : bad) {
+      try {
+        BencodeReader.decode(ByteBuffer.wrap(b.getBytes("ASCII")));
+        assert(false) : b;
+      } catch (BencodingException e) {}
+    }
+
+    File torrent = new File("../project2.torrent");
+    if (torrent.exists()) {
+      l("Info hash and fields agree with Bencoder2");
+      byte[] bytes = Files.readAllBytes(torrent.toPath());
+      r = new BencodeReader(bytes);
+      r.next();
+      assert(r.find(TorrentInfo.KEY_INFO));
+      ByteBuffer infoBytes = Bencoder2.getInfoBytes(bytes);
+      infoBytes.rewind();
+      assert(r.raw().equals(infoBytes));
+
+      TorrentInfo info = new TorrentInfo(bytes);
+      Map<?, ?> old = (Map<?, ?>) ((Map<?, ?>) Bencoder2.decode(bytes)).get(TorrentInfo.KEY_INFO);
+      assert(info.file_length == (Integer) old.get(TorrentInfo.KEY_LENGTH));
+      assert(ByteBuffer.wrap(info.piece_hashes, info.piece_hashes_offset, info.piece_count * 20)
+        .equals(old.get(TorrentInfo.KEY_PIECES)));
+    }
+
+    l("ok");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
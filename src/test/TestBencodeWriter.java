@@ -0,0 +1,74 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import libbitster.BencodeReader;
+import libbitster.BencodeWriter;
+import libbitster.BencodingException;
+import libbitster.Util;
+
+public class TestBencodeWriter {
+  public static void main (String[] args) throws Exception {
+    l("Scalars");
+    assert(str(BencodeWriter.encode(0L)).equals("i0e"));
+    assert(str(BencodeWriter.encode(-42)).equals("i-42e"));
+    assert(str(BencodeWriter.encode(9000000000L)).equals("i9000000000e"));
+    assert(str(BencodeWriter.encode(Long.MIN_VALUE)).equals("i" + Long.MIN_VALUE + "e"));
+    assert(str(BencodeWriter.encode("spam")).equals("4:spam"));
+    assert(str(BencodeWriter.encode(new byte[0])).equals("0:"));
+
+    l("Slices are written from their position to their limit");
+    ByteBuffer slice = ByteBuffer.wrap("xxspamxx".getBytes());
+    slice.position(2).limit(6);
+    assert(str(BencodeWriter.encode(slice.slice())).equals("4:spam"));
+    assert(slice.position() == 2);
+
+    l("Keys come out in raw byte order, compared unsigned");
+    HashMap<Object, Object> m = new HashMap<Object, Object>();
+    m.put("b", 1);
+    m.put("a", 2);
+    m.put(ByteBuffer.wrap(new byte[] { (byte) 0xFF }), 3);
+    m.put("ab", 4);
+    ArrayList<Object> list = new ArrayList<Object>();
+    list.add("x");
+    list.add(5L);
+    m.put("list", list);
+    byte[] out = BencodeWriter.encode(m);
+    assert(str(out).startsWith("d1:ai2e2:abi4e1:bi1e4:listl1:xi5ee1:"));
+
+    l("Round trips through BencodeReader");
+    Map<?, ?> back = (Map<?, ?>) BencodeReader.decode(ByteBuffer.wrap(out));
+    assert(((Long) back.get(Util.s("ab"))) == 4);
+
+    l("Streaming to an OutputStream matches the buffer");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BencodeWriter w = new BencodeWriter(bytes);
+    HashMap<Object, Object> big = new HashMap<Object, Object>();
+    big.put("pieces", new byte[100000]);
+    big.put("n", 1);
+    w.write(big).flush();
+    assert(java.util.Arrays.equals(bytes.toByteArray(), BencodeWriter.encode(big)));
+
+    l("Reset reuses the buffer");
+    w = new BencodeWriter(4);
+    w.write(m);
+    w.reset().integer(1);
+    assert(str(w.toByteArray()).equals("i1e"));
+
+    l("Unencodable values are rejected");
+    try {
+      BencodeWriter.encode(new Object());
+      assert(false);
+    } catch (BencodingException e) {}
+
+    l("ok");
+  }
+
+  static String str (byte[] b) { return new String(b, java.nio.charset.StandardCharsets.ISO_8859_1); }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
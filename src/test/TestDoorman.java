@@ -0,0 +1,124 @@
+package test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import libbitster.Doorman;
+import libbitster.Handshake;
+import libbitster.Memo;
+
+/**
+ * Tests the {@link Doorman}: connections to the shared port reach the
+ * torrent their handshake asks for, with nothing after the handshake read,
+ * and others are turned away.
+ */
+public class TestDoorman {
+  static final int TORRENTS = 2000;
+
+  public static void main (String[] args) throws Exception {
+    Doorman doorman = new Doorman(0);
+    doorman.start();
+    TestMultiFile.Inbox[] inboxes = new TestMultiFile.Inbox[4];
+    for (int i = 0; i < inboxes.length; i++) inboxes[i] = new TestMultiFile.Inbox();
+    ByteBuffer peerId = ByteBuffer.wrap("-BT0001-doormantest1".getBytes());
+
+    l("Thousands of torrents share the port");
+    for (int i = 0; i < TORRENTS; i++) assert(doorman.register(hash(i), inboxes[i % inboxes.length]));
+    assert(doorman.torrents() == TORRENTS);
+    assert(doorman.register(hash(5), inboxes[1]));   // again, same Manager
+    assert(!doorman.register(hash(5), inboxes[0]));  // another one
+    doorman.unregister(hash(5), inboxes[0]);         // not its torrent
+    assert(doorman.torrents() == TORRENTS);
+
+    l("A connection goes to the torrent it asks for, handshake and all");
+    Socket s = new Socket("localhost", doorman.port());
+    OutputStream out = s.getOutputStream();
+    ByteBuffer handshake = Handshake.create(hash(1234), peerId);
+    byte[] sent = handshake.array();
+    out.write(sent, 0, 30);  // in two parts
+    out.flush();
+    Thread.sleep(100);
+    out.write(sent, 30, sent.length - 30);
+    out.write(new byte[] { 0, 0, 0, 1, 2 }); // interested, which is the Broker's to read
+    out.flush();
+
+    Memo m = await(inboxes[1234 % inboxes.length]);
+    assert(m.getSender() == doorman);
+    Object[] payload = (Object[]) m.getPayload();
+    SocketChannel channel = (SocketChannel) payload[0];
+    ByteBuffer got = (ByteBuffer) payload[1];
+    assert(got.remaining() == Doorman.HANDSHAKE_LENGTH);
+    byte[] bytes = new byte[got.remaining()];
+    got.duplicate().get(bytes);
+    assert(Arrays.equals(bytes, sent));
+    assert(Handshake.verify(hash(1234), got).equals(peerId));
+
+    ByteBuffer rest = ByteBuffer.allocate(16);
+    for (int i = 0; i < 100 && rest.position() < 5; i++) {
+      channel.read(rest);
+      Thread.sleep(10);
+    }
+    assert(rest.position() == 5 && rest.get(4) == 2);
+    channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0 }));  // still ours to use
+    InputStream in = s.getInputStream();
+    assert(in.read(new byte[4]) == 4);
+    channel.close();
+    s.close();
+    assert(doorman.handedOff() == 1);
+
+    l("Connections for torrents we don't have are closed");
+    doorman.unregister(hash(7), inboxes[7 % inboxes.length]);
+    for (int i : new int[] { 7, TORRENTS + 1 }) {
+      s = new Socket("localhost", doorman.port());
+      s.getOutputStream().write(Handshake.create(hash(i), peerId).array());
+      assert(closed(s));
+    }
+    assert(doorman.unknown() == 2);
+    assert(inboxes[7 % inboxes.length].take("incoming") == null);
+
+    l("So are ones that aren't BitTorrent");
+    s = new Socket("localhost", doorman.port());
+    s.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+    assert(closed(s));
+    assert(doorman.dropped() == 1);
+    assert(doorman.accepted() == 4);
+
+    doorman.post(new Memo("halt", null, null));
+    l("All tests passed");
+  }
+
+  static ByteBuffer hash (int i) {
+    byte[] h = new byte[20];
+    Arrays.fill(h, (byte) 7);
+    ByteBuffer.wrap(h).putInt(i);
+    return ByteBuffer.wrap(h);
+  }
+
+  /** Whether the other end closes the socket within a few seconds. */
+  static boolean closed (Socket s) throws Exception {
+    s.setSoTimeout(5000);
+    try {
+      return s.getInputStream().read() < 0;
+    } catch (java.net.SocketException e) {
+      return true; // reset
+    } finally {
+      s.close();
+    }
+  }
+
+  /** Waits up to 10 seconds for an "incoming" memo. */
+  static Memo await (TestMultiFile.Inbox inbox) throws InterruptedException {
+    for (int i = 0; i < 1000; i++) {
+      Memo m = inbox.take("incoming");
+      if (m != null) return m;
+      Thread.sleep(10);
+    }
+    throw new AssertionError("no connection from the Doorman");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,106 @@
+package test;
+
+import java.util.Arrays;
+
+import libbitster.Governor;
+import libbitster.PeerPool;
+import libbitster.RateLimit;
+
+/**
+ * Tests how the {@link Governor} shares resources out among torrents, and
+ * the limits that hold each torrent to its share.
+ */
+public class TestGovernor {
+  public static void main (String[] args) throws Exception {
+    l("Shares go by weight");
+    long[] s = Governor.share(100, new double[] { 1, 1, 2 }, new long[] { 100, 100, 100 }, 0, 100);
+    assert(Arrays.equals(s, new long[] { 25, 25, 50 })) : Arrays.toString(s);
+
+    l("What one can't use goes to the others, by weight");
+    s = Governor.share(100, new double[] { 1, 1, 2 }, new long[] { 10, 100, 100 }, 0, 100);
+    assert(s[0] == 10 && s[1] == 30 && s[2] == 60) : Arrays.toString(s);
+
+    l("Everyone gets a floor first, whatever they ask for");
+    s = Governor.share(100, new double[] { 1, 1 }, new long[] { 0, 1000 }, 5, 1000);
+    assert(s[0] == 5 && s[1] == 95) : Arrays.toString(s);
+
+    l("What nobody asked for is shared up to the most one may have");
+    s = Governor.share(800, new double[] { 1, 1, 1 }, new long[] { 10, 20, 0 }, 5, 50);
+    assert(Arrays.equals(s, new long[] { 50, 50, 50 })) : Arrays.toString(s);
+    s = Governor.share(100, new double[] { 1, 3 }, new long[] { 10, 10 }, 0, 1000);
+    assert(s[0] == 10 + 20 && s[1] == 10 + 60) : Arrays.toString(s);
+
+    l("Shares never add up to more than the total");
+    s = Governor.share(7, new double[] { 1, 1, 1, 1, 1 }, new long[] { 9, 9, 9, 9, 9 }, 5, 50);
+    assert(sum(s) == 7) : Arrays.toString(s);
+    for (long x : s) assert(x == 1 || x == 2);
+    s = Governor.share(3, new double[] { 1, 1, 1, 1, 1 }, new long[] { 9, 9, 9, 9, 9 }, 5, 50);
+    assert(sum(s) == 3) : Arrays.toString(s);
+    double[] weights = new double[1000];
+    long[] demands = new long[1000];
+    for (int i = 0; i < 1000; i++) {
+      weights[i] = 1 + i % 3;
+      demands[i] = i % 7 * 10;
+    }
+    s = Governor.share(PeerPool.GLOBAL_CONNECTIONS, weights, demands, Governor.MIN_CONNECTIONS, PeerPool.MAX_CONNECTIONS);
+    assert(sum(s) == PeerPool.GLOBAL_CONNECTIONS) : sum(s);
+    for (long x : s) assert(x >= 0 && x <= PeerPool.MAX_CONNECTIONS);
+    assert(Governor.share(100, new double[0], new long[0], 5, 50).length == 0);
+
+    l("A rate limit lets a second's worth through, then holds");
+    RateLimit limit = new RateLimit(32768);
+    long now = 1000000;
+    assert(limit.allows(now));
+    limit.spend(16384);
+    assert(limit.allows(now));
+    limit.spend(16384);
+    assert(!limit.allows(now));
+    assert(limit.waits() == 1);
+
+    l("It refills at the rate, and a block can run it into debt");
+    assert(limit.allows(now + 100));   // 3.2 KB back
+    limit.spend(16384);                // 13 KB in debt
+    assert(!limit.allows(now + 450));  // 1.6 KB short
+    assert(limit.allows(now + 550));
+
+    l("An idle limit doesn't save up more than a second's worth");
+    assert(limit.allows(now + 100000));
+    limit.spend(32768);
+    assert(!limit.allows(now + 100000));
+
+    l("The average follows what's spent");
+    limit = new RateLimit();
+    for (int i = 0; i <= 10; i++) {
+      assert(limit.allows(now + i * 1000));
+      limit.measure(now + i * 1000);
+      limit.spend(50000);
+    }
+    assert(Math.abs(limit.average() - 50000) < 100) : limit.average();
+    limit.setRate(10000);
+    assert(limit.allows(now + 20000));
+    assert(limit.rate() == 10000);
+
+    l("A pool keeps to the connections it's given");
+    PeerPool pool = new PeerPool();
+    for (int i = 0; i < 20; i++) pool.add(PeerPool.key("10.9.0." + i, 6881), PeerPool.TRACKER);
+    assert(pool.waiting(now) == 20);
+    pool.setMaxConnections(3);
+    int dialed = 0;
+    while (pool.next(now) >= 0) dialed++;
+    assert(dialed == 3 && pool.waiting(now) == 17);
+    assert(!pool.accept(PeerPool.key("10.9.1.1", 5000), now));
+    pool.setMaxConnections(1000);
+    assert(pool.maxConnections() == PeerPool.MAX_CONNECTIONS);
+    pool.clear();
+
+    l("All tests passed");
+  }
+
+  static long sum (long[] a) {
+    long s = 0;
+    for (long x : a) s += x;
+    return s;
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
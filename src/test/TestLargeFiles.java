@@ -0,0 +1,169 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Random;
+
+import libbitster.Actor;
+import libbitster.Funnel;
+import libbitster.MappedStorage;
+import libbitster.Memo;
+import libbitster.Piece;
+import libbitster.PieceTable;
+import libbitster.TorrentInfo;
+
+/**
+ * Exercises files past the 2 and 4 GB marks.  Everything is written to sparse
+ * files in the temp directory, so only the few megabytes we touch hit the disk.
+ */
+public class TestLargeFiles {
+  static final long GB = 1L << 30;
+  static final int PIECE_LENGTH = 1 << 20;
+
+  public static void main (String[] args) throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"));
+
+    l("Mapped storage past 4 GB");
+    File f = new File(dir, "bitster-large-" + System.nanoTime());
+    f.deleteOnExit();
+    long size = 5 * GB + 123;
+    MappedStorage s = new MappedStorage(f, size);
+    assert(f.length() == size);
+
+    long[] offsets = { 0, 2 * GB - 5, 4 * GB - 5, 5 * GB + 100 };
+    for (long off : offsets) s.write(off, ByteBuffer.wrap(pattern(off, 23)));
+    for (long off : offsets) {
+      byte[] back = new byte[23];
+      s.read(off, ByteBuffer.wrap(back));
+      assert(ByteBuffer.wrap(back).equals(ByteBuffer.wrap(pattern(off, 23))));
+    }
+
+    boolean threw = false;
+    try { s.write(size - 10, ByteBuffer.allocate(11)); }
+    catch (IndexOutOfBoundsException e) { threw = true; }
+    assert(threw);
+    s.close();
+    f.delete();
+
+    l("Ranges spanning several small windows");
+    f = new File(dir, "bitster-windows-" + System.nanoTime());
+    f.deleteOnExit();
+    s = new MappedStorage(f, 10000, 10);
+    byte[] data = pattern(1000, 5000);
+    s.write(1000, ByteBuffer.wrap(data));
+    byte[] back = new byte[5000];
+    s.read(1000, ByteBuffer.wrap(back));
+    assert(ByteBuffer.wrap(back).equals(ByteBuffer.wrap(data)));
+    s.close();
+    f.delete();
+
+    l("Torrent lengths past 2 GB");
+    long length = 2 * GB + 3 * PIECE_LENGTH + 12345;
+    int count = (int) ((length + PIECE_LENGTH - 1) / PIECE_LENGTH);
+    int[] probe = { count - 5, count - 4, count - 1 }; // ends at 2 GB, starts at 2 GB, last
+    byte[][] contents = new byte[count][];
+    for (int p : probe) {
+      long start = (long) p * PIECE_LENGTH;
+      contents[p] = pattern(start, (int) Math.min(PIECE_LENGTH, length - start));
+    }
+
+    TorrentInfo info = new TorrentInfo(synthesize(length, count, contents));
+    assert(info.file_length == length);
+    assert(info.piece_count == count);
+
+    PieceTable t = new PieceTable(info, 16384);
+    assert(t.sizeOf(count - 2) == PIECE_LENGTH);
+    assert(t.sizeOf(count - 1) == 12345);
+
+    l("Funnel stores and serves pieces past 2 GB");
+    f = new File(dir, "bitster-funnel-" + System.nanoTime());
+    f.deleteOnExit();
+    Inbox inbox = new Inbox();
+    Funnel funnel = new Funnel(info, f, inbox);
+    assert(f.length() == length);
+    assert(((BitSet) inbox.take("pieces").getPayload()).isEmpty());
+
+    for (int p : probe) {
+      int block = Math.min(16384, contents[p].length);
+      Piece piece = new Piece(info.piece_hashes, info.hashOffset(p), p, block, contents[p].length);
+      for (int begin = 0; begin < contents[p].length; begin += block) {
+        int n = Math.min(block, contents[p].length - begin);
+        piece.addBlock(begin, ByteBuffer.wrap(contents[p], begin, n).slice());
+      }
+      assert(piece.finished() && piece.isValid());
+      funnel.post(new Memo("piece", piece, inbox));
+      funnel.tick();
+      assert(inbox.take("have") != null);
+    }
+
+    for (int p : probe) {
+      funnel.post(new Memo("request", Integer.valueOf(p), inbox));
+      funnel.tick();
+      Piece piece = (Piece) inbox.take("piece").getPayload();
+      assert(ByteBuffer.wrap(piece.getData()).equals(ByteBuffer.wrap(contents[p])));
+    }
+
+    funnel.post(new Memo("halt", null, inbox));
+    funnel.tick();
+    assert(inbox.take("done") != null);
+
+    l("Funnel finds the pieces again on resume");
+    funnel = new Funnel(info, f, inbox);
+    BitSet done = (BitSet) inbox.take("pieces").getPayload();
+    assert(done.cardinality() == probe.length);
+    for (int p : probe) assert(done.get(p));
+    funnel.post(new Memo("halt", null, inbox));
+    funnel.tick();
+    f.delete();
+
+    l("All tests passed");
+  }
+
+  /** Collects memos so they can be checked in order. */
+  static class Inbox extends Actor {
+    ArrayList<Memo> memos = new ArrayList<Memo>();
+
+    protected void receive (Memo memo) { memos.add(memo); }
+    protected void idle () {}
+
+    Memo take (String type) {
+      while (queue.size() > 0) tick();
+      for (int i = 0; i < memos.size(); i++)
+        if (memos.get(i).getType().equals(type)) return memos.remove(i);
+      return null;
+    }
+  }
+
+  /** Deterministic bytes that depend on where they're meant to go. */
+  static byte[] pattern (long offset, int length) {
+    byte[] b = new byte[length];
+    new Random(offset).nextBytes(b);
+    return b;
+  }
+
+  /** A metainfo file whose hashes match `contents` where it is non-null and
+   *  the all-zero pieces of a fresh sparse file nowhere. */
+  static byte[] synthesize (long length, int count, byte[][] contents) throws Exception {
+    byte[] hashes = new byte[count * 20];
+    new Random(1).nextBytes(hashes);
+    MessageDigest sha = MessageDigest.getInstance("SHA-1");
+    for (int i = 0; i < count; i++) {
+      if (contents[i] != null) System.arraycopy(sha.digest(contents[i]), 0, hashes, i * 20, 20);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String announce = "http://localhost:6969/announce";
+    out.write(("d8:announce" + announce.length() + ":" + announce +
+      "4:infod6:lengthi" + length + "e4:name5:large12:piece lengthi" +
+      PIECE_LENGTH + "e6:pieces" + hashes.length + ":").getBytes("ASCII"));
+    out.write(hashes);
+    out.write("ee".getBytes("ASCII"));
+    return out.toByteArray();
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
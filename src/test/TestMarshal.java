@@ -0,0 +1,171 @@
+package test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+import libbitster.Marshal;
+import libbitster.Memo;
+
+/**
+ * Announces through the {@link Marshal} to a stand-in tracker on localhost
+ * that speaks keep-alive HTTP/1.1.
+ */
+public class TestMarshal {
+  static final String BODY = "d8:intervali1800e5:peers6:abcdefe";
+
+  static int accepted = 0;
+
+  public static void main (String[] args) throws Exception {
+    ServerSocket server = tracker();
+    int port = server.getLocalPort();
+    String base = "http://localhost:" + port;
+    Marshal marshal = new Marshal();
+    marshal.start();
+    TestMultiFile.Inbox inbox = new TestMultiFile.Inbox();
+
+    l("Announces with Content-Length, chunked and gzip bodies share one connection");
+    for (String mode : new String[] { "length", "chunked", "gzip", "length" }) {
+      marshal.post(new Memo("get", base + "/announce?mode=" + mode + "&info_hash=%01%FF", inbox));
+      Memo m = await(inbox);
+      assert(m.getType().equals("response")) : mode + ": " + ((Object[]) m.getPayload())[1];
+      assert(body(m).equals(BODY)) : mode;
+    }
+    assert(accepted() == 1);
+    assert(marshal.connectionsOpened() == 1 && marshal.reused() == 3);
+
+    l("Announces at once are spread over a bounded number of connections");
+    for (int i = 0; i < 6; i++)
+      marshal.post(new Memo("get", base + "/announce?mode=chunked&n=" + i, inbox));
+    for (int i = 0; i < 6; i++) {
+      Memo m = await(inbox);
+      assert(m.getType().equals("response") && body(m).equals(BODY));
+    }
+    assert(accepted() <= Marshal.MAX_CONNECTIONS);
+
+    l("A body delimited by the tracker closing the connection");
+    marshal.post(new Memo("get", base + "/announce?mode=close", inbox));
+    Memo m = await(inbox);
+    assert(m.getType().equals("response") && body(m).equals(BODY));
+
+    l("An HTTP error is reported as an error");
+    marshal.post(new Memo("get", base + "/missing", inbox));
+    m = await(inbox);
+    assert(m.getType().equals("error"));
+
+    l("A tracker that isn't there is reported as an error");
+    server.close();
+    ServerSocket closed = new ServerSocket(0);
+    int dead = closed.getLocalPort();
+    closed.close();
+    marshal.post(new Memo("get", "http://localhost:" + dead + "/announce", inbox));
+    m = await(inbox);
+    assert(m.getType().equals("error"));
+    assert(((Object[]) m.getPayload())[0].equals("http://localhost:" + dead + "/announce"));
+
+    marshal.post(new Memo("halt", null, null));
+    l("All tests passed");
+  }
+
+  /** Starts the stand-in tracker on a free port. */
+  static ServerSocket tracker () throws IOException {
+    final ServerSocket server = new ServerSocket(0);
+    Thread tracker = new Thread() {
+      public void run () {
+        try {
+          while (true) {
+            final Socket s = server.accept();
+            synchronized (TestMarshal.class) { accepted++; }
+            Thread t = new Thread() { public void run () { serve(s); } };
+            t.setDaemon(true);
+            t.start();
+          }
+        } catch (IOException e) {}
+      }
+    };
+    tracker.setDaemon(true);
+    tracker.start();
+    return server;
+  }
+
+  static int accepted () {
+    synchronized (TestMarshal.class) { return accepted; }
+  }
+
+  /** Waits up to 10 seconds for the Marshal to answer. */
+  static Memo await (TestMultiFile.Inbox inbox) throws InterruptedException {
+    for (int i = 0; i < 1000; i++) {
+      Memo m = inbox.take("response");
+      if (m == null) m = inbox.take("error");
+      if (m != null) return m;
+      Thread.sleep(10);
+    }
+    throw new AssertionError("no answer from the Marshal");
+  }
+
+  static String body (Memo m) {
+    ByteBuffer b = (ByteBuffer) ((Object[]) m.getPayload())[1];
+    byte[] bytes = new byte[b.remaining()];
+    b.duplicate().get(bytes);
+    return new String(bytes);
+  }
+
+  /** Answers requests on one connection until the client closes it. */
+  static void serve (Socket s) {
+    try {
+      InputStream in = s.getInputStream();
+      OutputStream out = new BufferedOutputStream(s.getOutputStream());
+      while (true) {
+        String request = readHead(in);
+        if (request == null) break;
+        String target = request.split(" ")[1];
+        byte[] body = BODY.getBytes();
+
+        if (!target.startsWith("/announce")) {
+          out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes());
+        } else if (target.contains("mode=chunked")) {
+          out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes());
+          out.write(("5;ext=1\r\n" + BODY.substring(0, 5) + "\r\n").getBytes());
+          out.write((Integer.toHexString(body.length - 5) + "\r\n" + BODY.substring(5) + "\r\n").getBytes());
+          out.write("0\r\nX-Trailer: yes\r\n\r\n".getBytes());
+        } else if (target.contains("mode=gzip")) {
+          ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+          GZIPOutputStream gz = new GZIPOutputStream(zipped);
+          gz.write(body);
+          gz.close();
+          out.write(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + zipped.size() + "\r\n\r\n").getBytes());
+          out.write(zipped.toByteArray());
+        } else if (target.contains("mode=close")) {
+          out.write("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n".getBytes());
+          out.write(body);
+          out.flush();
+          break;
+        } else {
+          out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes());
+          out.write(body);
+        }
+        out.flush();
+      }
+      s.close();
+    } catch (IOException e) {}
+  }
+
+  /** The request line, after reading the request up to its blank line. */
+  static String readHead (InputStream in) throws IOException {
+    StringBuilder head = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0) {
+      head.append((char) c);
+      if (head.toString().endsWith("\r\n\r\n")) return head.toString().split("\r\n")[0];
+    }
+    return null;
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,239 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+
+import libbitster.Actor;
+import libbitster.BencodeWriter;
+import libbitster.BencodingException;
+import libbitster.ChannelStorage;
+import libbitster.Courier;
+import libbitster.FileLayout;
+import libbitster.Funnel;
+import libbitster.Memo;
+import libbitster.Message;
+import libbitster.Piece;
+import libbitster.TorrentInfo;
+
+public class TestMultiFile {
+  static final int PIECE_LENGTH = 16384;
+  static final String[] PATHS = { "a.txt", "empty", "sub/b.bin", "sub/c", "d" };
+  static final long[] LENGTHS = { 5000, 0, 70000, 1, 30000 };
+
+  public static void main (String[] args) throws Exception {
+    byte[] content = new byte[105001];
+    new Random(7).nextBytes(content);
+
+    l("Parsing a multi-file torrent");
+    TorrentInfo info = new TorrentInfo(synthesize(content, PATHS));
+    assert(info.multi_file);
+    assert(info.file_length == content.length);
+    assert(info.piece_count == 7);
+    assert(Arrays.equals(info.file_paths, PATHS));
+    assert(Arrays.equals(info.file_lengths, LENGTHS));
+
+    l("Paths that would escape the download directory are refused");
+    boolean threw = false;
+    try { new TorrentInfo(synthesize(content, new String[] { "a", "ok", "../b", "c", "d" })); }
+    catch (BencodingException e) { threw = true; }
+    assert(threw);
+
+    l("File layout");
+    FileLayout layout = new FileLayout(info);
+    assert(layout.fileAt(0) == 0);
+    assert(layout.fileAt(4999) == 0);
+    assert(layout.fileAt(5000) == 2);  // skips the empty file
+    assert(layout.fileAt(75000) == 3);
+    assert(layout.fileAt(75001) == 4);
+    assert(layout.filesOf(0).equals(Arrays.asList(0, 2)));
+    assert(layout.filesOf(4).equals(Arrays.asList(2, 3, 4)));
+    assert(layout.firstPiece(4) == 4 && layout.lastPiece(4) == 6);
+    assert(layout.completedFiles() == 1);
+
+    l("Channel storage splits ranges across files");
+    File dir = Files.createTempDirectory("bitster-multi").toFile();
+    ChannelStorage s = new ChannelStorage(layout, dir, 2);
+    assert(new File(dir, "empty").exists());
+
+    byte[] back = new byte[content.length];
+    s.read(0, ByteBuffer.wrap(back));
+    assert(Arrays.equals(back, new byte[content.length])); // nothing written yet
+
+    for (int off = 0; off < content.length; off += 7777) {
+      s.write(off, ByteBuffer.wrap(content, off, Math.min(7777, content.length - off)));
+      assert(s.openFiles() <= 2);
+    }
+    s.read(0, ByteBuffer.wrap(back));
+    assert(Arrays.equals(back, content));
+
+    ByteBuffer middle = ByteBuffer.allocateDirect(10000);
+    s.read(70000, middle);
+    middle.flip();
+    assert(middle.equals(ByteBuffer.wrap(content, 70000, 10000)));
+    s.close();
+
+    long offset = 0;
+    for (int i = 0; i < PATHS.length; i++) {
+      byte[] onDisk = Files.readAllBytes(layout.file(dir, i).toPath());
+      assert(onDisk.length == LENGTHS[i]);
+      assert(ByteBuffer.wrap(onDisk).equals(ByteBuffer.wrap(content, (int) offset, (int) LENGTHS[i])));
+      offset += LENGTHS[i];
+    }
+    delete(dir);
+
+    l("Funnel reports files as they complete");
+    dir = new File(Files.createTempDirectory("bitster-funnel").toFile(), "download");
+    Inbox inbox = new Inbox();
+    Funnel funnel = new Funnel(info, dir, inbox);
+    assert(((BitSet) inbox.take("pieces").getPayload()).isEmpty());
+    assert(inbox.completed().equals(Arrays.asList(1)));
+
+    // Last piece first: finishes d, then c along with the rest of b, ...
+    for (int p = info.piece_count - 1; p >= 0; p--) {
+      funnel.post(new Memo("piece", piece(info, content, p), inbox));
+      funnel.tick();
+      ArrayList<Integer> done = inbox.completed();
+      if (p == 6) assert(done.isEmpty());
+      if (p == 4) assert(done.equals(Arrays.asList(3, 4)));
+      if (p == 0) assert(done.equals(Arrays.asList(0, 2)));
+    }
+    funnel.post(new Memo("halt", null, inbox));
+    funnel.tick();
+
+    l("Funnel finds every file again on resume");
+    funnel = new Funnel(info, dir, inbox);
+    assert(((BitSet) inbox.take("pieces").getPayload()).cardinality() == info.piece_count);
+    assert(inbox.completed().equals(Arrays.asList(0, 1, 2, 3, 4)));
+
+    l("Couriers serve blocks in parallel");
+    funnel.start();
+    Random r = new Random(11);
+    int[][] asked = new int[200][];
+    for (int i = 0; i < asked.length; i++) {
+      int p = r.nextInt(info.piece_count);
+      int size = Math.min(PIECE_LENGTH, content.length - p * PIECE_LENGTH);
+      int begin = r.nextInt(size);
+      int length = 1 + r.nextInt(size - begin);
+      asked[i] = new int[] { p, begin, length };
+      funnel.post(new Memo("block", Message.createRequest(p, begin, length), inbox));
+    }
+    funnel.post(new Memo("block", Message.createRequest(0, PIECE_LENGTH - 1, 2), inbox)); // overruns
+
+    HashMap<String, ByteBuffer> served = new HashMap<String, ByteBuffer>();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (served.size() < asked.length && System.currentTimeMillis() < deadline) {
+      Memo m = inbox.take("block");
+      if (m == null) { Thread.sleep(5); continue; }
+      Object[] response = (Object[]) m.getPayload();
+      Message msg = (Message) response[0];
+      served.put(msg.getIndex() + "/" + msg.getBegin() + "/" + msg.getBlockLength(), (ByteBuffer) response[1]);
+    }
+    for (int[] a : asked) {
+      ByteBuffer block = served.get(a[0] + "/" + a[1] + "/" + a[2]);
+      assert(block != null);
+      assert(block.equals(ByteBuffer.wrap(content, a[0] * PIECE_LENGTH + a[1], a[2])));
+    }
+    Thread.sleep(50);
+    assert(inbox.take("block") == null);
+
+    l("Every Funnel shares the same few couriers");
+    Funnel other = new Funnel(info, dir, inbox);
+    other.post(new Memo("block", Message.createRequest(0, 0, 10), inbox));
+    while (inbox.take("block") == null) Thread.sleep(5);
+    assert(couriers() == Courier.COURIERS) : couriers();
+    other.post(new Memo("halt", null, inbox));
+    other.tick();
+    assert(inbox.take("done") != null);
+
+    funnel.post(new Memo("halt", null, inbox));
+    while (inbox.take("done") == null) Thread.sleep(5);
+    delete(dir.getParentFile());
+
+    l("All tests passed");
+  }
+
+  /** Number of courier threads running. */
+  static int couriers () {
+    int n = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet())
+      if (t.getName().equals("courier")) n++;
+    return n;
+  }
+
+  static Piece piece (TorrentInfo info, byte[] content, int p) {
+    int start = p * PIECE_LENGTH;
+    int size = Math.min(PIECE_LENGTH, content.length - start);
+    int block = Math.min(16384, size);
+    Piece piece = new Piece(info.piece_hashes, info.hashOffset(p), p, block, size);
+    for (int begin = 0; begin < size; begin += block)
+      piece.addBlock(begin, ByteBuffer.wrap(content, start + begin, Math.min(block, size - begin)).slice());
+    return piece;
+  }
+
+  /** Collects memos so they can be checked. */
+  static class Inbox extends Actor {
+    ArrayList<Memo> memos = new ArrayList<Memo>();
+
+    protected void receive (Memo memo) { memos.add(memo); }
+    protected void idle () {}
+
+    Memo take (String type) {
+      while (queue.size() > 0) tick();
+      for (int i = 0; i < memos.size(); i++)
+        if (memos.get(i).getType().equals(type)) return memos.remove(i);
+      return null;
+    }
+
+    /** Indices of the files reported complete since we last asked. */
+    ArrayList<Integer> completed () {
+      ArrayList<Integer> files = new ArrayList<Integer>();
+      for (Memo m = take("file complete"); m != null; m = take("file complete"))
+        files.add((Integer) m.getPayload());
+      return files;
+    }
+  }
+
+  static byte[] synthesize (byte[] content, String[] paths) throws Exception {
+    MessageDigest sha = MessageDigest.getInstance("SHA-1");
+    int count = (content.length + PIECE_LENGTH - 1) / PIECE_LENGTH;
+    byte[] hashes = new byte[count * 20];
+    for (int p = 0; p < count; p++) {
+      sha.update(content, p * PIECE_LENGTH, Math.min(PIECE_LENGTH, content.length - p * PIECE_LENGTH));
+      System.arraycopy(sha.digest(), 0, hashes, p * 20, 20);
+    }
+
+    ArrayList<Object> files = new ArrayList<Object>();
+    for (int i = 0; i < paths.length; i++) {
+      HashMap<String, Object> file = new HashMap<String, Object>();
+      file.put("length", LENGTHS[i]);
+      file.put("path", new ArrayList<Object>(Arrays.asList((Object[]) paths[i].split("/", -1))));
+      files.add(file);
+    }
+
+    HashMap<String, Object> infoDict = new HashMap<String, Object>();
+    infoDict.put("name", "multi");
+    infoDict.put("piece length", PIECE_LENGTH);
+    infoDict.put("pieces", hashes);
+    infoDict.put("files", files);
+
+    HashMap<String, Object> torrent = new HashMap<String, Object>();
+    torrent.put("announce", "http://localhost:6969/announce");
+    torrent.put("info", infoDict);
+    return BencodeWriter.encode(torrent);
+  }
+
+  static void delete (File f) {
+    File[] children = f.listFiles();
+    if (children != null) for (File c : children) delete(c);
+    f.delete();
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
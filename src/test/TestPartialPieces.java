@@ -0,0 +1,156 @@
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+
+import libbitster.Actor;
+import libbitster.BencodeWriter;
+import libbitster.Funnel;
+import libbitster.Memo;
+import libbitster.Message;
+import libbitster.PartialPieces;
+import libbitster.Piece;
+import libbitster.TorrentInfo;
+
+public class TestPartialPieces {
+  static final int PIECE_LENGTH = 65536;
+  static final int BLOCK = 16384;
+
+  public static void main (String[] args) throws Exception {
+    File dir = Files.createTempDirectory("bitster-partial").toFile();
+
+    l("The record survives a round trip");
+    File record = new File(dir, "record");
+    PartialPieces parts = new PartialPieces(record, BLOCK);
+    parts.add(3, 0);
+    parts.add(3, 2 * BLOCK);
+    parts.add(70000, BLOCK);
+    assert(parts.changed());
+    parts.save();
+    assert(record.isFile() && !parts.changed());
+    parts = new PartialPieces(record, BLOCK);
+    assert(parts.pieces().size() == 2);
+    assert(parts.get(3).get(0) && !parts.get(3).get(1) && parts.get(3).get(2));
+    assert(parts.get(70000).cardinality() == 1);
+
+    l("Records made with another block size, or mangled, are ignored");
+    assert(new PartialPieces(record, 2 * BLOCK).pieces().isEmpty());
+    FileOutputStream out = new FileOutputStream(record);
+    out.write("d5:piecesli3e".getBytes());
+    out.close();
+    assert(new PartialPieces(record, BLOCK).pieces().isEmpty());
+
+    l("An empty record is deleted");
+    parts = new PartialPieces(record, BLOCK);
+    parts.add(1, 0);
+    parts.remove(1);
+    parts.save();
+    assert(!record.exists());
+
+    byte[] content = new byte[3 * PIECE_LENGTH + 3000];
+    new Random(13).nextBytes(content);
+    TorrentInfo info = new TorrentInfo(synthesize(content));
+    File dest = new File(dir, "download");
+    File sidecar = Funnel.partialsFile(dest);
+
+    l("Blocks of unfinished pieces are written as they come");
+    TestMultiFile.Inbox inbox = new TestMultiFile.Inbox();
+    Funnel funnel = new Funnel(info, dest, inbox);
+    assert(((BitSet) inbox.take("pieces").getPayload()).isEmpty());
+    block(funnel, inbox, content, 1, 0);
+    block(funnel, inbox, content, 1, 2 * BLOCK);
+    block(funnel, inbox, content, 2, BLOCK);
+    funnel.post(new Memo("piece", piece(info, content, 0), inbox));
+    for (int i = 0; i < 4; i++) funnel.tick();
+    assert(inbox.take("have") != null);
+    Memo written = inbox.take("blocks written");
+    assert(written != null && (Long) written.getPayload() == 3 * BLOCK);
+    assert(!sidecar.exists()); // not until they're on disk
+    funnel.post(new Memo("save", null, inbox));
+    funnel.tick();
+    assert(sidecar.isFile());
+    funnel.post(new Memo("halt", null, inbox));
+    funnel.tick();
+    assert(inbox.take("done") != null);
+
+    l("A restart picks up partial pieces where they were left");
+    funnel = new Funnel(info, dest, inbox);
+    Piece one = null, two = null;
+    for (Memo m = inbox.take("partial"); m != null; m = inbox.take("partial")) {
+      Piece p = (Piece) m.getPayload();
+      if (p.getNumber() == 1) one = p;
+      if (p.getNumber() == 2) two = p;
+    }
+    BitSet done = (BitSet) inbox.take("pieces").getPayload();
+    assert(done.cardinality() == 1 && done.get(0));
+    assert(one != null && one.getCompletedBlocks() == 2 && one.getCompletedBytes() == 2 * BLOCK);
+    assert(two != null && two.getCompletedBlocks() == 1);
+
+    l("Only the missing blocks are needed to finish the piece");
+    assert(one.next() == 1 && one.next() == 3 && one.next() == -1);
+    for (int begin : new int[] { BLOCK, 3 * BLOCK })
+      one.addBlock(begin, ByteBuffer.wrap(content, PIECE_LENGTH + begin, BLOCK).slice());
+    assert(one.finished() && one.isValid());
+    long before = funnel.getWriter().bytesWritten();
+    funnel.post(new Memo("piece", one, inbox));
+    funnel.tick();
+    assert(inbox.take("have") != null);
+    assert(funnel.getWriter().bytesWritten() - before == 2 * BLOCK);  // not the whole piece
+    funnel.post(new Memo("halt", null, inbox));
+    funnel.tick();
+    assert(inbox.take("done") != null);
+    parts = new PartialPieces(sidecar, BLOCK);
+    assert(parts.pieces().size() == 1 && parts.get(2) != null);
+
+    l("A stale record is dropped when the download starts over");
+    assert(dest.delete());
+    funnel = new Funnel(info, dest, inbox);
+    assert(inbox.take("partial") == null);
+    assert(!sidecar.exists());
+    funnel.post(new Memo("halt", null, inbox));
+    funnel.tick();
+
+    TestMultiFile.delete(dir);
+    l("All tests passed");
+  }
+
+  static void block (Funnel funnel, Actor from, byte[] content, int p, int begin) {
+    ByteBuffer data = ByteBuffer.wrap(content, p * PIECE_LENGTH + begin, BLOCK).slice();
+    funnel.post(new Memo("block data", Message.createPiece(p, begin, data), from));
+  }
+
+  static Piece piece (TorrentInfo info, byte[] content, int p) {
+    byte[] data = new byte[Math.min(PIECE_LENGTH, content.length - p * PIECE_LENGTH)];
+    System.arraycopy(content, p * PIECE_LENGTH, data, 0, data.length);
+    return new Piece(data, info.piece_hashes, info.hashOffset(p), p, Math.min(BLOCK, data.length));
+  }
+
+  static byte[] synthesize (byte[] content) throws Exception {
+    MessageDigest sha = MessageDigest.getInstance("SHA-1");
+    int count = (content.length + PIECE_LENGTH - 1) / PIECE_LENGTH;
+    byte[] hashes = new byte[count * 20];
+    for (int p = 0; p < count; p++) {
+      sha.update(content, p * PIECE_LENGTH, Math.min(PIECE_LENGTH, content.length - p * PIECE_LENGTH));
+      System.arraycopy(sha.digest(), 0, hashes, p * 20, 20);
+    }
+
+    HashMap<String, Object> infoDict = new HashMap<String, Object>();
+    infoDict.put("name", "partial");
+    infoDict.put("length", content.length);
+    infoDict.put("piece length", PIECE_LENGTH);
+    infoDict.put("pieces", hashes);
+
+    HashMap<String, Object> torrent = new HashMap<String, Object>();
+    torrent.put("announce", "http://localhost:6969/announce");
+    torrent.put("info", infoDict);
+    return BencodeWriter.encode(torrent);
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,132 @@
+package test;
+
+import java.net.InetAddress;
+
+import libbitster.PeerPool;
+
+/**
+ * Tests the {@link PeerPool}: packed addresses, which candidate is dialed
+ * next, the limits on connections, and backing off from failures.
+ */
+public class TestPeerPool {
+  public static void main (String[] args) throws Exception {
+    l("Addresses pack into a long and back");
+    long k = PeerPool.key("10.1.2.250", 6881);
+    assert(k == PeerPool.key(InetAddress.getByName("10.1.2.250"), 6881));
+    assert(PeerPool.port(k) == 6881);
+    assert(PeerPool.address(k).getHostAddress().equals("10.1.2.250"));
+    assert(PeerPool.toString(k).equals("10.1.2.250:6881"));
+    assert(PeerPool.key("255.255.255.255", 65535) > 0);
+    assert(PeerPool.key("tracker.example.com", 80) == -1);
+    assert(PeerPool.key("1.2.3.256", 80) == -1);
+    assert(PeerPool.key("1.2.3.4", 0) == -1);
+    assert(PeerPool.key(InetAddress.getByName("::1"), 80) == -1);
+
+    l("Candidates are only added once");
+    PeerPool pool = new PeerPool();
+    assert(pool.add(key(1), PeerPool.TRACKER));
+    assert(!pool.add(key(1), PeerPool.PEX));
+    assert(!pool.add(-1, PeerPool.TRACKER));
+    assert(pool.size() == 1);
+
+    l("Fast peers are dialed before unknown ones, and unknown before slow");
+    long now = 1000000;
+    pool.add(key(2), PeerPool.TRACKER);
+    pool.add(key(3), PeerPool.TRACKER);
+    rate(pool, key(1), 100000, now);   // 100 kB/s
+    rate(pool, key(3), 1000, now);     // 1 kB/s
+    now += 1000 + PeerPool.RETRY_BASE;
+    assert(pool.next(now) == key(1));
+    assert(pool.next(now) == key(2));
+    assert(pool.next(now) == key(3));
+    assert(pool.next(now) == -1);
+    assert(pool.halfOpen() == 3);
+    pool.clear();
+
+    l("A failed connect is backed off, doubling, then forgotten");
+    pool = new PeerPool();
+    pool.add(key(4), PeerPool.TRACKER);
+    long delay = PeerPool.RETRY_BASE;
+    for (int i = 0; i < PeerPool.MAX_FAILURES; i++) {
+      assert(pool.next(now) == key(4));
+      pool.closed(key(4), 0, now);
+      assert(pool.halfOpen() == 0);
+      if (i == PeerPool.MAX_FAILURES - 1) break;
+      assert(pool.next(now + delay - 1) == -1);
+      now += delay;
+      delay *= 2;
+    }
+    assert(pool.size() == 0 && pool.failures() == PeerPool.MAX_FAILURES);
+
+    l("Connects are limited per torrent, and time out");
+    pool = new PeerPool();
+    for (int i = 0; i < 100; i++) pool.add(key(i), PeerPool.TRACKER);
+    int dialed = 0;
+    while (pool.next(now) >= 0) dialed++;
+    assert(dialed == PeerPool.MAX_HALF_OPEN);
+    assert(pool.expired(now + PeerPool.CONNECT_TIMEOUT).isEmpty());
+    assert(pool.expired(now + PeerPool.CONNECT_TIMEOUT + 1).size() == PeerPool.MAX_HALF_OPEN);
+
+    l("Connections are limited per torrent, incoming ones too");
+    for (long late : pool.expired(now + PeerPool.CONNECT_TIMEOUT + 1)) pool.connected(late, now);
+    for (int i = 0; i < 30; i++) pool.connected(pool.next(now), now);
+    int incoming = 0;
+    while (pool.connections() < PeerPool.MAX_CONNECTIONS)
+      assert(pool.accept(key(1000 + incoming++), now));
+    assert(incoming == PeerPool.MAX_CONNECTIONS - PeerPool.MAX_HALF_OPEN - 30);
+    assert(pool.next(now) == -1);
+    assert(!pool.accept(key(5000), now));
+    assert(PeerPool.globalConnections() == pool.connections());
+
+    l("Incoming peers are forgotten when they go");
+    long in = key(1000);
+    pool.closed(in, 0, now);
+    assert(pool.accept(key(5000), now));
+    assert(!pool.add(key(5000), PeerPool.TRACKER));
+
+    l("Letting go of a pool frees its share of the global limits");
+    pool.clear();
+    assert(PeerPool.globalConnections() == 0 && PeerPool.globalHalfOpen() == 0);
+
+    l("Connects are limited across torrents");
+    PeerPool[] pools = new PeerPool[PeerPool.GLOBAL_HALF_OPEN / PeerPool.MAX_HALF_OPEN + 1];
+    dialed = 0;
+    for (int p = 0; p < pools.length; p++) {
+      pools[p] = new PeerPool();
+      for (int i = 0; i < PeerPool.MAX_HALF_OPEN; i++) pools[p].add(key(p * 100 + i), PeerPool.TRACKER);
+      while (pools[p].next(now) >= 0) dialed++;
+    }
+    assert(dialed == PeerPool.GLOBAL_HALF_OPEN);
+    assert(pools[pools.length - 1].halfOpen() == 0);
+    for (PeerPool p : pools) p.clear();
+    assert(PeerPool.globalHalfOpen() == 0);
+
+    l("A banned address isn't dialed again");
+    pool = new PeerPool();
+    pool.add(key(6), PeerPool.TRACKER);
+    assert(pool.next(now) == key(6));
+    pool.ban(key(6));
+    pool.closed(key(6), 0, now);
+    assert(!pool.ready(now + PeerPool.RETRY_MAX));
+    pool.clear();
+
+    l("All tests passed");
+  }
+
+  static long key (int i) {
+    return PeerPool.key("10.0." + (i >> 8) + "." + (i & 0xFF), 6881);
+  }
+
+  /** Connects to a candidate, gets bytesPerSecond from it for a second, and drops it. */
+  static void rate (PeerPool pool, long key, long bytesPerSecond, long now) {
+    long next;
+    while ((next = pool.next(now)) != key) {
+      assert(next >= 0);
+      pool.closed(next, 0, now); // back in a while
+    }
+    pool.connected(key, now);
+    pool.closed(key, bytesPerSecond, now + 1000);
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,55 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import libbitster.BencodeReader;
+import libbitster.BencodeWriter;
+import libbitster.Handshake;
+import libbitster.Message;
+import libbitster.Util;
+
+/**
+ * Tests the wire format peer exchange rides on: the extension bit of the
+ * handshake and extension messages (BEP 10).
+ */
+public class TestPex {
+  public static void main (String[] args) throws Exception {
+    ByteBuffer infoHash = ByteBuffer.wrap("asdf1234asdf1234asdf".getBytes());
+    ByteBuffer peerId = ByteBuffer.wrap("BIT-1234asdf1234asdf".getBytes());
+
+    l("Our handshake says we speak the extension protocol");
+    ByteBuffer handshake = Handshake.create(infoHash, peerId);
+    assert(handshake.get(25) == 0x10);
+    assert(Handshake.extensions(handshake));
+    assert(Handshake.verify(infoHash, handshake).equals(peerId));
+
+    l("One without the bit doesn't");
+    handshake.put(25, (byte) 0);
+    assert(!Handshake.extensions(handshake));
+
+    l("Extension messages round trip");
+    byte[] added = { 127, 0, 0, 1, 0x1A, (byte) 0xE1 };
+    BencodeWriter w = new BencodeWriter();
+    w.startDictionary().string("added").string(added).string("dropped").string("").end();
+    Message sent = Message.createExtended(1, w.toByteBuffer());
+    ByteBuffer wire = sent.serialize();
+    assert(wire.getInt(0) == wire.remaining() - 4);
+    assert(wire.get(4) == Message.EXTENDED && wire.get(5) == 1);
+
+    Message got = new Message(wire);
+    assert(got.getType() == Message.EXTENDED);
+    assert(got.getExtendedId() == 1);
+    assert(got.toString().equals("extended:1"));
+    Map<?, ?> dict = (Map<?, ?>) BencodeReader.decode(got.getBlock());
+    assert(dict.get(Util.s("added")).equals(ByteBuffer.wrap(added)));
+    assert(((ByteBuffer) dict.get(Util.s("dropped"))).remaining() == 0);
+
+    l("Other messages have no extension id");
+    assert(new Message(Message.createHave(3).serialize()).getExtendedId() == -1);
+
+    l("All tests passed");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
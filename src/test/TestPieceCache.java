@@ -0,0 +1,102 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import libbitster.ChannelStorage;
+import libbitster.FileLayout;
+import libbitster.Funnel;
+import libbitster.Memo;
+import libbitster.PieceCache;
+import libbitster.TorrentInfo;
+
+public class TestPieceCache {
+  public static void main (String[] args) throws Exception {
+    l("Blocks come back as views of the cached piece");
+    PieceCache cache = new PieceCache(300);
+    assert(cache.get(0, 0, 10) == null);
+    assert(cache.claim(0, 100));
+    assert(!cache.claim(0, 100)); // already on its way
+    cache.put(0, filled(100, 1));
+    ByteBuffer block = cache.get(0, 20, 30);
+    assert(block.position() == 0 && block.limit() == 30);
+    assert(block.isReadOnly());
+    assert(block.get(0) == 1);
+    assert(cache.get(0, 90, 20) == null); // runs off the end
+    assert(cache.hits() == 1 && cache.misses() == 2);
+    assert(cache.bytesServed() == 30);
+    assert(!cache.claim(0, 100)); // already cached
+    assert(!cache.claim(9, 301)); // too big to ever fit
+
+    l("Least recently used pieces are evicted to stay within budget");
+    cache.put(1, filled(100, 2));
+    cache.put(2, filled(100, 3));
+    assert(cache.used() == 300);
+    cache.get(0, 0, 1); // 1 is now the oldest
+    cache.put(3, filled(150, 4));
+    assert(cache.used() <= cache.budget());
+    assert(cache.get(1, 0, 1) == null);
+    assert(cache.get(2, 0, 1) == null);
+    assert(cache.get(0, 0, 1) != null);
+    assert(cache.get(3, 0, 1).get(0) == 4);
+    assert(cache.evictions() == 2);
+    cache.invalidate(3);
+    assert(cache.used() == 100 && cache.size() == 1);
+
+    l("The rest of a piece is read ahead once its first block is asked for");
+    byte[] content = new byte[105001];
+    new Random(7).nextBytes(content);
+    TorrentInfo info = new TorrentInfo(TestMultiFile.synthesize(content, TestMultiFile.PATHS));
+    File dir = Files.createTempDirectory("bitster-cache").toFile();
+    ChannelStorage s = new ChannelStorage(new FileLayout(info), dir);
+    s.write(0, ByteBuffer.wrap(content));
+    s.close();
+
+    TestMultiFile.Inbox inbox = new TestMultiFile.Inbox();
+    Funnel funnel = new Funnel(info, dir, inbox);
+    funnel.start();
+    cache = funnel.getCache();
+    int piece = TestMultiFile.PIECE_LENGTH;
+
+    assert(funnel.get(2, 100, 1000).equals(ByteBuffer.wrap(content, 2 * piece + 100, 1000)));
+    Thread.sleep(50);
+    assert(cache.size() == 0); // not the start of the piece
+
+    assert(funnel.get(2, 0, 1000).equals(ByteBuffer.wrap(content, 2 * piece, 1000)));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cache.size() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    assert(cache.size() == 1 && cache.readaheads() == 1);
+
+    long hits = cache.hits();
+    for (int begin = 1000; begin < piece; begin += 4000) {
+      int length = Math.min(4000, piece - begin);
+      assert(funnel.get(2, begin, length).equals(ByteBuffer.wrap(content, 2 * piece + begin, length)));
+    }
+    assert(cache.hits() == hits + 4);
+
+    int last = content.length - 6 * piece; // the short last piece
+    funnel.get(6, 0, 1);
+    deadline = System.currentTimeMillis() + 5000;
+    while (cache.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    assert(funnel.get(6, 0, last).equals(ByteBuffer.wrap(content, 6 * piece, last)));
+    assert(cache.hitRate() > 0.5);
+    l(cache.toString());
+
+    funnel.post(new Memo("halt", null, inbox));
+    while (inbox.take("done") == null) Thread.sleep(5);
+    TestMultiFile.delete(dir);
+
+    l("All tests passed");
+  }
+
+  static ByteBuffer filled (int size, int value) {
+    ByteBuffer b = ByteBuffer.allocate(size);
+    for (int i = 0; i < size; i++) b.put((byte) value);
+    b.rewind();
+    return b;
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
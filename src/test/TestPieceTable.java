@@ -0,0 +1,85 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import libbitster.Piece;
+import libbitster.PieceTable;
+
+public class TestPieceTable {
+  public static void main (String[] args) {
+    // 10 pieces of 32k, the last one 100 bytes
+    PieceTable t = new PieceTable(new byte[10 * 20], 32768, 9 * 32768 + 100, 16384);
+    BitSet all = new BitSet();
+    all.set(0, 10);
+
+    l("Sizes");
+    assert(t.sizeOf(0) == 32768);
+    assert(t.sizeOf(9) == 100);
+    assert(t.sizeOf(0, 1) == 16384);
+    assert(t.sizeOf(9, 0) == 100);
+
+    l("Rarest pieces are picked first");
+    for (int i = 0; i < 10; i++)
+      for (int j = 0; j < i + 2; j++) t.incAvailable(i);
+    for (int j = 0; j < 8; j++) t.decAvailable(7);
+    for (int k = 0; k < 100; k++) {
+      int p = t.pick(all);
+      assert(p == 7 || p <= 3);
+      assert(t.getAvailability(p) <= 5);
+    }
+    for (int i = 0; i < 10; i++) assert(t.getAvailability(i) == (i == 7 ? 1 : i + 2));
+
+    l("Only pieces the peer has are picked");
+    BitSet one = new BitSet();
+    one.set(8);
+    assert(t.pick(one) == 8);
+
+    l("Fully requested pieces aren't picked");
+    assert(t.nextBlock(8) == 0);
+    assert(t.nextBlock(8) == 1);
+    assert(t.nextBlock(8) == -1);
+    assert(t.pick(one) == -1);
+    t.blockFail(8, 16384);
+    assert(t.pick(one) == 8);
+    assert(t.nextBlock(8) == 1);
+
+    l("Blocks assemble into the in-flight piece");
+    assert(t.addBlock(8, 0, ByteBuffer.allocate(16384)) != null);
+    assert(t.addBlock(8, 0, ByteBuffer.allocate(16384)) == null);
+    Piece p = t.addBlock(8, 16384, ByteBuffer.allocate(16384));
+    assert(p.finished());
+    assert(t.getCompletedBlocks(8) == 2);
+    t.setHave(8);
+    assert(t.get(8) == null);
+    assert(t.have(8));
+    assert(t.pick(one) == -1);
+
+    l("A restored partial piece only asks for its missing blocks");
+    Piece partial = new Piece(t.getHash(7), 7, 16384, 32768);
+    partial.addBlock(16384, ByteBuffer.allocate(16384));
+    t.restore(partial);
+    assert(t.get(7) == partial);
+    assert(t.getCompletedBlocks(7) == 1);
+    assert(t.nextBlock(7) == 0);
+    assert(t.nextBlock(7) == -1);
+
+    l("Blocks nobody asked for, or that don't fit, are ignored");
+    assert(t.addBlock(0, 0, ByteBuffer.allocate(16384)) == null);   // not requested
+    assert(t.get(0) == null);
+    assert(t.addBlock(10, 0, ByteBuffer.allocate(16384)) == null);
+    assert(t.addBlock(-1, 0, ByteBuffer.allocate(16384)) == null);
+    assert(t.addBlock(7, 100, ByteBuffer.allocate(16384)) == null);  // misaligned
+    assert(t.addBlock(7, 32768, ByteBuffer.allocate(16384)) == null);  // past the end
+    assert(t.addBlock(7, 0, ByteBuffer.allocate(100)) == null);      // short
+    assert(t.getCompletedBlocks(7) == 1);
+
+    l("A short last piece is a single block");
+    assert(t.nextBlock(9) == 0);
+    assert(t.nextBlock(9) == -1);
+
+    l("ok");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,51 @@
+package test;
+
+import libbitster.RequestTable;
+
+public class TestRequestTable {
+  public static void main (String[] args) {
+    RequestTable t = new RequestTable(2);
+
+    l("Adding requests");
+    for (int i = 0; i < 100; i++) assert(t.add(i, i * 16384, 16384));
+    assert(t.size() == 100);
+
+    l("Duplicate requests are rejected");
+    assert(!t.add(5, 5 * 16384, 16384));
+
+    l("Unsent requests report a send time of 0");
+    t.markSent(7, 7 * 16384, 1234);
+    assert(t.remove(7, 7 * 16384) == 1234);
+    assert(t.remove(8, 8 * 16384) == 0);
+    assert(t.remove(8, 8 * 16384) == -1);
+    assert(t.size() == 98);
+
+    l("Begin offsets with the high bit set survive the round trip");
+    assert(t.add(1, -16384, 16384));
+    assert(t.contains(1, -16384));
+    assert(!t.contains(1, 16384 * 2));
+
+    l("Removing while walking the table visits every request once");
+    int seen = 0;
+    for (int i = 0; i < t.capacity(); i++) {
+      if (!t.occupied(i)) continue;
+      assert(t.length(i) == 16384);
+      t.removeAt(i);
+      seen++;
+    }
+    assert(seen == 99);
+    assert(t.size() == 0);
+
+    l("Tombstones don't fill up the table");
+    int capacity = t.capacity();
+    for (int i = 0; i < 100000; i++) {
+      t.add(i, 0, 1);
+      assert(t.remove(i, 0) == 0);
+    }
+    assert(t.capacity() == capacity);
+
+    l("ok");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
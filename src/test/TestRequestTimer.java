@@ -0,0 +1,62 @@
+package test;
+
+import libbitster.RequestTimer;
+
+public class TestRequestTimer {
+  public static void main (String[] args) {
+    RequestTimer t = new RequestTimer();
+
+    l("Requests get the initial timeout until a round trip is measured");
+    assert(t.timeout() == RequestTimer.INITIAL_TIMEOUT);
+    assert(!t.snubbed());
+
+    l("The first sample sets the estimate");
+    t.sample(2000);
+    assert(t.timeout() == 2000 + 4 * 1000) : t.timeout();
+
+    l("Steady round trips pull the timeout in, but never under the minimum");
+    for (int i = 0; i < 100; i++) t.sample(200);
+    assert(t.timeout() == RequestTimer.MIN_TIMEOUT) : t.timeout();
+
+    l("Erratic ones push it out, but never over the maximum");
+    t = new RequestTimer();
+    for (int i = 0; i < 20; i++) t.sample(i % 2 == 0 ? 1000 : 9000);
+    long erratic = t.timeout();
+    assert(erratic > 9000 && erratic < RequestTimer.MAX_TIMEOUT) : erratic;
+    t.sample(1000000);
+    assert(t.timeout() == RequestTimer.MAX_TIMEOUT) : t.timeout();
+
+    l("An expiry snubs the peer and doubles the timeout");
+    t = new RequestTimer();
+    for (int i = 0; i < 100; i++) t.sample(3000);
+    long before = t.timeout();
+    assert(t.expired());
+    assert(t.snubbed());
+    assert(t.timeout() == 2 * before) : t.timeout();
+
+    l("Expiries while snubbed keep backing off, up to the maximum");
+    assert(!t.expired());
+    assert(t.timeout() == 4 * before);
+    for (int i = 0; i < 10; i++) t.expired();
+    assert(t.timeout() == RequestTimer.MAX_TIMEOUT);
+    assert(t.snubbed());
+
+    l("A delivery unsnubs the peer, once");
+    assert(t.delivered());
+    assert(!t.snubbed());
+    assert(!t.delivered());
+
+    l("And new round trips bring the timeout back down");
+    for (int i = 0; i < 100; i++) t.sample(200);
+    assert(t.timeout() == RequestTimer.MIN_TIMEOUT) : t.timeout();
+
+    l("An expiry before any sample backs off from the initial timeout");
+    t = new RequestTimer();
+    assert(t.expired());
+    assert(t.timeout() == Math.min(RequestTimer.MAX_TIMEOUT, 2 * RequestTimer.INITIAL_TIMEOUT));
+
+    l("ok");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
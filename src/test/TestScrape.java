@@ -0,0 +1,102 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import libbitster.Deputy;
+import libbitster.Marshal;
+import libbitster.Memo;
+import libbitster.Sheriff;
+
+/**
+ * Scrapes the embedded tracker through the {@link Marshal}, over HTTP and
+ * UDP, checking that scrapes of several torrents go out as one request.
+ */
+public class TestScrape {
+  public static void main (String[] args) throws Exception {
+    Sheriff sheriff = new Sheriff(0, 0);
+    sheriff.start();
+    Marshal marshal = new Marshal();
+    marshal.start();
+    TestMultiFile.Inbox inbox = new TestMultiFile.Inbox();
+    String http = "http://localhost:" + sheriff.port() + "/announce";
+    String udp = "udp://localhost:" + sheriff.udpPort() + "/announce";
+
+    l("Scrape URLs follow the announce URL");
+    assert(Marshal.scrapeUrl("http://t.example/announce").equals("http://t.example/scrape"));
+    assert(Marshal.scrapeUrl("http://t.example/x/announce.php?k=1").equals("http://t.example/x/scrape.php?k=1"));
+    assert(Marshal.scrapeUrl("http://t.example/a") == null);
+    assert(Marshal.scrapeUrl("http://t.example/announce/x") == null);
+    assert(Marshal.scrapeUrl(udp).equals(udp));
+
+    // Torrent i gets i + 1 leechers and one seeder
+    for (int i = 0; i < 3; i++) {
+      for (int p = 0; p <= i + 1; p++) {
+        marshal.post(new Memo("get", http + "?info_hash=" + Deputy.escapeURL(ByteBuffer.wrap(hash(i)))
+          + "&peer_id=" + Deputy.escapeURL(String.format("-BT0001-%02d%02dabcdefgh", i, p))
+          + "&port=" + (7000 + p) + "&uploaded=0&downloaded=0&left=" + (p == 0 ? 0 : 1000), inbox));
+        assert(TestMarshal.await(inbox).getType().equals("response"));
+      }
+    }
+
+    for (String url : new String[] { http, udp }) {
+      l("Scrapes of several torrents go out together, " + url.substring(0, url.indexOf(':')));
+      long before = sheriff.scrapes();
+      for (int i = 0; i < 4; i++)
+        marshal.post(new Memo("scrape", new Object[] { url, ByteBuffer.wrap(hash(i)) }, inbox));
+
+      HashSet<Integer> seen = new HashSet<Integer>();
+      for (int i = 0; i < 3; i++) {
+        Object[] payload = (Object[]) await(inbox).getPayload();
+        assert(payload[0].equals(url));
+        byte[] h = new byte[20];
+        ((ByteBuffer) payload[1]).duplicate().get(h);
+        int n = h[0];
+        assert(seen.add(n));
+        assert(payload[2].equals(1)) : Arrays.toString(payload);  // seeders
+        assert(payload[3].equals(n + 1));                        // leechers
+        assert(payload[4].equals(0));                            // completed
+      }
+      assert(sheriff.scrapes() == before + 1);
+      if (url == udp) {
+        // the Sheriff answers for torrents it doesn't know, with zeroes
+        Object[] payload = (Object[]) await(inbox).getPayload();
+        assert(payload[2].equals(0) && payload[3].equals(0));
+      } else {
+        // over HTTP it leaves them out
+        Thread.sleep(200);
+        assert(inbox.take("scraped") == null);
+      }
+    }
+    assert(marshal.scrapeRequests() == 2);
+
+    l("Scrapes to a tracker that can't be scraped are dropped");
+    marshal.post(new Memo("scrape", new Object[] { "http://localhost/tracker", ByteBuffer.wrap(hash(0)) }, inbox));
+    Thread.sleep(Marshal.SCRAPE_WINDOW + 200);
+    assert(marshal.scrapeRequests() == 2);
+
+    marshal.post(new Memo("halt", null, null));
+    sheriff.post(new Memo("halt", null, null));
+    l("All tests passed");
+  }
+
+  static byte[] hash (int i) {
+    byte[] h = new byte[20];
+    Arrays.fill(h, (byte) (i + 40));
+    h[0] = (byte) i;
+    return h;
+  }
+
+  /** Waits up to 10 seconds for a "scraped" memo. */
+  static Memo await (TestMultiFile.Inbox inbox) throws InterruptedException {
+    for (int i = 0; i < 1000; i++) {
+      Memo m = inbox.take("scraped");
+      if (m != null) return m;
+      Thread.sleep(10);
+    }
+    throw new AssertionError("no scrape answer from the Marshal");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,126 @@
+package test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import libbitster.BencodeReader;
+import libbitster.Deputy;
+import libbitster.Marshal;
+import libbitster.Memo;
+import libbitster.Sheriff;
+import libbitster.Util;
+
+/**
+ * Announces to the embedded tracker through the {@link Marshal}, over HTTP
+ * and UDP.
+ */
+public class TestSheriff {
+  static final byte[] HASH = new byte[20];
+
+  public static void main (String[] args) throws Exception {
+    Arrays.fill(HASH, (byte) 7);
+    Sheriff sheriff = new Sheriff(0, 0);
+    sheriff.setInterval(1);
+    sheriff.start();
+    Marshal marshal = new Marshal();
+    marshal.start();
+    TestMultiFile.Inbox inbox = new TestMultiFile.Inbox();
+    String http = "http://localhost:" + sheriff.port() + "/announce";
+    String udp = "udp://localhost:" + sheriff.udpPort() + "/announce";
+
+    l("The first peer hears of nobody");
+    Map<?, ?> r = announce(marshal, inbox, http, 7001, 1000, "&event=started");
+    assert(((ByteBuffer) r.get(Util.s("peers"))).remaining() == 0);
+    assert(((Number) r.get(Util.s("incomplete"))).intValue() == 1);
+    assert(((Number) r.get(Util.s("interval"))).intValue() == 1);
+
+    l("Later peers get compact addresses of the others, over HTTP or UDP");
+    announce(marshal, inbox, http, 7002, 0, "&event=started");
+    r = announce(marshal, inbox, http, 7003, 1000, "&event=started");
+    ByteBuffer peers = (ByteBuffer) r.get(Util.s("peers"));
+    assert(peers.remaining() == 12);
+    assert(((Number) r.get(Util.s("complete"))).intValue() == 1);
+    assert(((Number) r.get(Util.s("incomplete"))).intValue() == 2);
+    for (Map<String, Object> p : Deputy.parsePeers(peers.duplicate())) {
+      assert(p.get("ip").equals("127.0.0.1"));
+      assert(p.get("port").equals(7001) || p.get("port").equals(7002));
+    }
+
+    marshal.post(new Memo("get", udp + query(7004, 1000, ""), inbox));
+    Memo m = TestUdpTracker.await(inbox);
+    assert(m.getType().equals("announced"));
+    Object[] payload = (Object[]) m.getPayload();
+    assert(payload[2].equals(3) && payload[3].equals(1)); // leechers, seeders
+    assert(((ByteBuffer) payload[4]).remaining() == 18);
+
+    l("Seeds aren't sent other seeds");
+    r = announce(marshal, inbox, http, 7005, 0, "&event=completed");
+    assert(((ByteBuffer) r.get(Util.s("peers"))).remaining() == 18);
+
+    l("Scrape reports the swarm");
+    marshal.post(new Memo("get", "http://localhost:" + sheriff.port() + "/scrape?info_hash="
+      + Deputy.escapeURL(ByteBuffer.wrap(HASH)), inbox));
+    Map<?, ?> files = (Map<?, ?>) decode(TestMarshal.await(inbox)).get(Util.s("files"));
+    Map<?, ?> stats = (Map<?, ?>) files.get(ByteBuffer.wrap(HASH));
+    assert(((Number) stats.get(Util.s("complete"))).intValue() == 2);
+    assert(((Number) stats.get(Util.s("incomplete"))).intValue() == 3);
+    assert(((Number) stats.get(Util.s("downloaded"))).intValue() == 1);
+
+    l("A stopped peer leaves the swarm");
+    announce(marshal, inbox, http, 7005, 0, "&event=stopped");
+    r = announce(marshal, inbox, http, 7001, 1000, "");
+    assert(((Number) r.get(Util.s("complete"))).intValue() == 1);
+
+    l("Bad announces get a failure reason");
+    marshal.post(new Memo("get", http + "?info_hash=short&peer_id=x&port=1&left=0", inbox));
+    assert(decode(TestMarshal.await(inbox)).get(Util.s("failure reason")) != null);
+
+    l("Pipelined requests on one connection are all answered");
+    Socket s = new Socket("localhost", sheriff.port());
+    OutputStream out = s.getOutputStream();
+    String request = "GET /announce" + query(7006, 5, "") + " HTTP/1.1\r\nHost: x\r\n\r\n";
+    out.write((request + request + request).getBytes());
+    InputStream in = s.getInputStream();
+    byte[] buf = new byte[8192];
+    int got = 0, responses = 0;
+    s.setSoTimeout(5000);
+    while (responses < 3) {
+      got += in.read(buf, got, buf.length - got);
+      responses = new String(buf, 0, got, "ISO-8859-1").split("HTTP/1.1 200 OK", -1).length - 1;
+    }
+    s.close();
+
+    l("Peers that stop announcing expire");
+    Thread.sleep(3500);
+    r = announce(marshal, inbox, http, 7007, 1000, "");
+    assert(((ByteBuffer) r.get(Util.s("peers"))).remaining() == 0);
+    assert(sheriff.expired() >= 4);
+
+    marshal.post(new Memo("halt", null, null));
+    sheriff.post(new Memo("halt", null, null));
+    l("All tests passed");
+  }
+
+  static String query (int port, long left, String event) {
+    return "?info_hash=" + Deputy.escapeURL(ByteBuffer.wrap(HASH))
+      + "&peer_id=" + Deputy.escapeURL("-BT0001-" + port + "abcdefgh".substring(0, 8))
+      + "&port=" + port + "&uploaded=0&downloaded=0&left=" + left + event;
+  }
+
+  static Map<?, ?> announce (Marshal marshal, TestMultiFile.Inbox inbox, String url,
+                             int port, long left, String event) throws Exception {
+    marshal.post(new Memo("get", url + query(port, left, event), inbox));
+    return decode(TestMarshal.await(inbox));
+  }
+
+  static Map<?, ?> decode (Memo m) throws Exception {
+    assert(m.getType().equals("response")) : Arrays.toString((Object[]) m.getPayload());
+    return (Map<?, ?>) BencodeReader.decode((ByteBuffer) ((Object[]) m.getPayload())[1]);
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,132 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import libbitster.ChannelStorage;
+import libbitster.FileLayout;
+import libbitster.Funnel;
+import libbitster.MappedStorage;
+import libbitster.Storage;
+
+/** Every storage backend should hold the same bytes after the same writes. */
+public class TestStorage {
+  static final String[] PATHS = { "a", "empty", "dir/b", "dir/sub/c", "d" };
+  static final long[] LENGTHS = { 3000, 0, 9000, 1, 4096 };
+
+  public static void main (String[] args) throws Exception {
+    FileLayout layout = new FileLayout(true, PATHS, LENGTHS, 4096);
+    int size = (int) layout.size();
+
+    for (String kind : Funnel.STORAGE_KINDS) {
+      l("Random writes and reads with " + kind + " storage");
+      File dir = Files.createTempDirectory("bitster-storage").toFile();
+      check(Funnel.openStorage(kind, layout, dir), size);
+      TestMultiFile.delete(dir);
+    }
+
+    l("Memory mapped storage with windows smaller than the files");
+    File dir = Files.createTempDirectory("bitster-storage").toFile();
+    check(new MappedStorage(layout, dir, 10), size);
+    assert(new File(dir, "empty").exists());
+    assert(new File(dir, "dir/sub/c").length() == 1);
+    TestMultiFile.delete(dir);
+
+    for (String kind : Funnel.STORAGE_KINDS) {
+      l("Concurrent reads and writes with " + kind + " storage");
+      dir = Files.createTempDirectory("bitster-storage").toFile();
+      Storage s = kind.equals("channel") ?
+        new ChannelStorage(layout, dir, 1) : // every read evicts someone's channel
+        Funnel.openStorage(kind, layout, dir);
+      concurrent(s, size);
+      s.close();
+      TestMultiFile.delete(dir);
+    }
+
+    l("All tests passed");
+  }
+
+  /** Makes random writes to a storage and a plain array in step, checking
+   *  random reads against the array as we go. */
+  static void check (Storage s, int size) throws Exception {
+    assert(s.size() == size);
+    byte[] model = new byte[size];
+    Random r = new Random(3);
+
+    for (int i = 0; i < 500; i++) {
+      int off = r.nextInt(size);
+      int len = r.nextInt(Math.min(size - off, 5000) + 1);
+      byte[] data = new byte[len];
+      r.nextBytes(data);
+
+      ByteBuffer src = r.nextBoolean() ? ByteBuffer.wrap(data) : ByteBuffer.allocateDirect(len).put(data);
+      src.rewind();
+      s.write(off, src);
+      assert(!src.hasRemaining());
+      System.arraycopy(data, 0, model, off, len);
+
+      off = r.nextInt(size);
+      len = r.nextInt(size - off + 1);
+      ByteBuffer dst = ByteBuffer.allocate(len);
+      s.read(off, dst);
+      assert(!dst.hasRemaining());
+      assert(Arrays.equals(dst.array(), Arrays.copyOfRange(model, off, off + len)));
+    }
+
+    boolean threw = false;
+    try { s.read(size - 1, ByteBuffer.allocate(2)); }
+    catch (IndexOutOfBoundsException e) { threw = true; }
+    assert(threw);
+
+    s.force(size / 3, size / 3);
+    s.force(0, size);
+    s.force();
+    s.close();
+  }
+
+  /** Four threads read the first half while one keeps rewriting the second. */
+  static void concurrent (final Storage s, final int size) throws Exception {
+    final int half = size / 2;
+    final byte[] data = new byte[half];
+    new Random(5).nextBytes(data);
+    s.write(0, ByteBuffer.wrap(data));
+
+    final AtomicInteger bad = new AtomicInteger();
+    Thread[] threads = new Thread[5];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        public void run () {
+          Random r = new Random(id);
+          try {
+            for (int i = 0; i < 2000; i++) {
+              if (id == 0) {
+                int off = half + r.nextInt(size - half);
+                s.write(off, ByteBuffer.allocate(Math.min(size - off, 1000)));
+                continue;
+              }
+              int off = r.nextInt(half);
+              int len = 1 + r.nextInt(Math.min(half - off, 3000));
+              ByteBuffer dst = ByteBuffer.allocate(len);
+              s.read(off, dst);
+              dst.flip();
+              if (!dst.equals(ByteBuffer.wrap(data, off, len))) bad.incrementAndGet();
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+            bad.incrementAndGet();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) t.join();
+    assert(bad.get() == 0);
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
@@ -0,0 +1,87 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import libbitster.BencodeWriter;
+import libbitster.Tracker;
+import libbitster.TorrentInfo;
+
+public class TestTracker {
+  public static void main (String[] args) throws Exception {
+    l("An announce-list is read tier by tier");
+    TorrentInfo info = new TorrentInfo(torrent("http://a/announce", Arrays.asList(
+      Arrays.asList("http://a/announce", "udp://b:80/announce"),
+      Arrays.asList("http://c:8080/announce", "not a url", "http://c:8080/announce"),
+      Arrays.asList("bogus")
+    )));
+    assert(info.announce.equals("http://a/announce"));
+    assert(info.announce_list.size() == 2);
+    assert(info.announce_list.get(0).equals(Arrays.asList("http://a/announce", "udp://b:80/announce")));
+    assert(info.announce_list.get(1).equals(Arrays.asList("http://c:8080/announce")));
+
+    l("Without an announce-list there's one tier with the announce URL");
+    info = new TorrentInfo(torrent("udp://tracker:6969/announce", null));
+    assert(info.announce_url == null);
+    assert(info.announce_list.size() == 1 && info.announce_list.get(0).get(0).equals("udp://tracker:6969/announce"));
+
+    l("Without an announce URL the first of the announce-list is used");
+    info = new TorrentInfo(torrent(null, Arrays.asList(Arrays.asList("http://d/announce"))));
+    assert(info.announce.equals("http://d/announce"));
+
+    l("Fast trackers with many peers score higher");
+    Tracker fast = new Tracker("http://fast", 0), slow = new Tracker("http://slow", 0);
+    Tracker fresh = new Tracker("http://fresh", 0);
+    fast.succeeded(20, 50, 1800);
+    slow.succeeded(2000, 50, 1800);
+    assert(fast.score() > fresh.score() && fresh.score() > slow.score());
+    Tracker sparse = new Tracker("http://sparse", 0);
+    sparse.succeeded(20, 2, 1800);
+    assert(fast.score() > sparse.score());
+    assert(fast.interval() == 1800);
+
+    l("Failing trackers back off exponentially, with jitter, up to a limit");
+    Tracker dead = new Tracker("http://dead", 0);
+    long now = 1000000;
+    assert(dead.ready(now));
+    long last = 0;
+    for (int i = 1; i <= 20; i++) {
+      long delay = dead.failed(now);
+      long cap = Math.min((long) Tracker.RETRY_MAX, (long) Tracker.RETRY_BASE << (i - 1));
+      assert(delay >= cap / 2 && delay <= cap) : i + ": " + delay;
+      assert(!dead.ready(now) && dead.ready(now + delay));
+      if (i < 8) assert(delay >= last); // each wait is at least the last
+      last = delay;
+    }
+    assert(dead.score() < fresh.score());
+
+    l("An answer ends the backoff");
+    dead.succeeded(100, 10, -1);
+    assert(dead.failures() == 0 && dead.ready(now));
+
+    l("Delays are spread out rather than all the same");
+    HashMap<Long, Boolean> delays = new HashMap<Long, Boolean>();
+    for (int i = 0; i < 20; i++) delays.put(new Tracker("http://x", 0).failed(0), true);
+    assert(delays.size() > 1);
+
+    l("All tests passed");
+  }
+
+  static byte[] torrent (String announce, List<List<String>> list) throws Exception {
+    HashMap<String, Object> infoDict = new HashMap<String, Object>();
+    infoDict.put("name", "tracker");
+    infoDict.put("length", 5);
+    infoDict.put("piece length", 16384);
+    infoDict.put("pieces", new byte[20]);
+
+    HashMap<String, Object> torrent = new HashMap<String, Object>();
+    if (announce != null) torrent.put("announce", announce);
+    if (list != null) torrent.put("announce-list", new ArrayList<Object>(list));
+    torrent.put("info", infoDict);
+    return BencodeWriter.encode(torrent);
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
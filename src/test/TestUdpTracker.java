@@ -0,0 +1,152 @@
+package test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import libbitster.Deputy;
+import libbitster.Marshal;
+import libbitster.Memo;
+
+/**
+ * Announces through the {@link Marshal} to a stand-in UDP tracker (BEP 15)
+ * on localhost.
+ */
+public class TestUdpTracker {
+  static final long CONNECTION_ID = 0x1122334455667788L;
+  static final byte[] PEERS = { 10, 0, 0, 1, 0x1A, (byte) 0xE1, (byte) 192, (byte) 168, 1, 2, (byte) 0xC8, (byte) 0xD5 };
+
+  /** A UDP tracker that hands out one connection ID and two peers. */
+  static class Tracker extends Thread {
+    final DatagramSocket socket;
+    volatile int drop = 0;  // datagrams to ignore, to make the client resend
+    volatile int connects = 0, announces = 0;
+    volatile long bytes = 0;
+
+    Tracker () throws Exception {
+      socket = new DatagramSocket(0);
+      setDaemon(true);
+      start();
+    }
+
+    int port () { return socket.getLocalPort(); }
+
+    public void run () {
+      byte[] buf = new byte[2048];
+      while (true) {
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        try { socket.receive(p); } catch (Exception e) { return; }
+        bytes += p.getLength();
+        if (drop > 0) { drop--; continue; }
+
+        ByteBuffer in = ByteBuffer.wrap(buf, 0, p.getLength());
+        long connection = in.getLong();
+        int action = in.getInt();
+        int transaction = in.getInt();
+        ByteBuffer out = ByteBuffer.allocate(1024);
+
+        if (action == 0 && connection == 0x41727101980L) {
+          connects++;
+          out.putInt(0).putInt(transaction).putLong(CONNECTION_ID);
+        } else if (action == 1 && connection != CONNECTION_ID) {
+          out.putInt(3).putInt(transaction).put("Connection ID mismatch".getBytes());
+        } else if (action == 1 && p.getLength() == 98) {
+          announces++;
+          byte[] hash = new byte[20];
+          in.get(hash);
+          if (hash[0] == (byte) 0xEE) {
+            out.putInt(3).putInt(transaction).put("unregistered torrent".getBytes());
+          } else {
+            out.putInt(1).putInt(transaction).putInt(1800).putInt(3).putInt(5).put(PEERS);
+          }
+        } else {
+          continue;
+        }
+
+        out.flip();
+        bytes += out.remaining();
+        try { socket.send(new DatagramPacket(out.array(), out.remaining(), p.getSocketAddress())); }
+        catch (Exception e) { return; }
+      }
+    }
+  }
+
+  public static void main (String[] args) throws Exception {
+    Tracker tracker = new Tracker();
+    Marshal marshal = new Marshal();
+    marshal.udp().setTimeout(200);
+    marshal.start();
+    TestMultiFile.Inbox inbox = new TestMultiFile.Inbox();
+
+    l("An announce connects, then announces, and gets compact peers back");
+    marshal.post(new Memo("get", url(tracker.port(), (byte) 1, "&event=started"), inbox));
+    Memo m = await(inbox);
+    assert(m.getType().equals("announced")) : Arrays.toString((Object[]) m.getPayload());
+    Object[] payload = (Object[]) m.getPayload();
+    assert(payload[1].equals(1800) && payload[2].equals(3) && payload[3].equals(5));
+    ByteBuffer peers = (ByteBuffer) payload[4];
+    assert(peers.remaining() == 12);
+    assert(tracker.connects == 1 && tracker.announces == 1);
+
+    l("The connection ID is reused for the next announces");
+    for (int i = 0; i < 3; i++) {
+      marshal.post(new Memo("get", url(tracker.port(), (byte) 1, ""), inbox));
+      assert(await(inbox).getType().equals("announced"));
+    }
+    assert(tracker.connects == 1 && tracker.announces == 4);
+
+    l("Lost datagrams are sent again");
+    tracker.drop = 2;
+    marshal.post(new Memo("get", url(tracker.port(), (byte) 1, ""), inbox));
+    assert(await(inbox).getType().equals("announced"));
+    assert(marshal.udp().retransmits() == 2);
+
+    l("A tracker error is reported as an error");
+    marshal.post(new Memo("get", url(tracker.port(), (byte) 0xEE, ""), inbox));
+    m = await(inbox);
+    assert(m.getType().equals("error"));
+    assert(((String) ((Object[]) m.getPayload())[1]).contains("unregistered torrent"));
+
+    l("A tracker that never answers is given up on");
+    tracker.drop = 1000;
+    marshal.udp().setTimeout(20);
+    marshal.post(new Memo("get", url(tracker.port(), (byte) 1, ""), inbox));
+    m = await(inbox);
+    assert(m.getType().equals("error"));
+
+    l("A stopped announce gives up in time for shutdown, retransmits or not");
+    marshal.udp().setTimeout(15000);
+    long start = System.currentTimeMillis();
+    marshal.post(new Memo("get", url(tracker.port(), (byte) 1, "&event=stopped"), inbox));
+    m = await(inbox);
+    assert(m.getType().equals("error"));
+    long took = System.currentTimeMillis() - start;
+    assert(took >= Marshal.STOPPED_TIMEOUT && took < Marshal.STOPPED_TIMEOUT + 2000) : took;
+
+    marshal.post(new Memo("halt", null, null));
+    l("All tests passed");
+  }
+
+  /** An announce URL for a torrent whose info hash is all `hash`. */
+  static String url (int port, byte hash, String args) {
+    byte[] infoHash = new byte[20];
+    Arrays.fill(infoHash, hash);
+    return "udp://localhost:" + port + "/announce?info_hash=" + Deputy.escapeURL(ByteBuffer.wrap(infoHash))
+      + "&peer_id=" + Deputy.escapeURL("-BT0001-abcdefghijkl")
+      + "&port=6881&uploaded=0&downloaded=0&left=1000" + args;
+  }
+
+  /** Waits up to 10 seconds for the Marshal to answer. */
+  static Memo await (TestMultiFile.Inbox inbox) throws InterruptedException {
+    for (int i = 0; i < 1000; i++) {
+      Memo m = inbox.take("announced");
+      if (m == null) m = inbox.take("error");
+      if (m != null) return m;
+      Thread.sleep(10);
+    }
+    throw new AssertionError("no answer from the Marshal");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
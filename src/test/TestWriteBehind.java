@@ -0,0 +1,165 @@
+package test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import libbitster.Memo;
+import libbitster.MemoryStorage;
+import libbitster.Piece;
+import libbitster.Storage;
+import libbitster.WriteBehind;
+import libbitster.WriteBudget;
+
+public class TestWriteBehind {
+  static final int PIECE = 1000;
+
+  public static void main (String[] args) throws Exception {
+    byte[] content = new byte[20 * PIECE - 300];
+    new Random(9).nextBytes(content);
+    Recorder s = new Recorder(content.length);
+    WriteBehind writer = new WriteBehind(s, PIECE);
+    writer.setFlushPolicy(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    l("Neighbouring pieces are joined into one write");
+    for (int p : new int[] { 5, 3, 4, 19, 9, 10 }) writer.add(memo(content, p));
+    assert(writer.depth() == 6 && writer.maxDepth() == 6);
+    assert(writer.isPending(4) && !writer.isPending(6));
+    ArrayList<Memo> failed = new ArrayList<Memo>();
+    ArrayList<Memo> written = writer.write(failed);
+    assert(written.size() == 6 && failed.isEmpty());
+    int last = -1;
+    for (Memo m : written) {
+      int p = ((Piece) m.getPayload()).getNumber();
+      assert(p > last);
+      last = p;
+    }
+    assert(writer.depth() == 0);
+    assert(s.writes.equals(list(3 * PIECE, 9 * PIECE, 19 * PIECE)));
+    assert(writer.writes() == 3 && writer.piecesWritten() == 6);
+    assert(writer.bytesWritten() == 5 * PIECE + (content.length - 19 * PIECE));
+
+    l("Only the dirty ranges are forced");
+    assert(writer.dirtyRanges() == 3);
+    writer.add(memo(content, 6));
+    writer.add(memo(content, 8)); // 3-6 and 8-10 now
+    writer.write(failed);
+    assert(writer.dirtyRanges() == 3);
+    writer.add(memo(content, 7)); // 3-10
+    writer.write(failed);
+    assert(writer.dirtyRanges() == 2);
+    assert(writer.dirtyBytes() == 8 * PIECE + (content.length - 19 * PIECE));
+    assert(!writer.flushDue());
+    writer.flush();
+    assert(s.forced.equals(list(3 * PIECE, 8 * PIECE, 19 * PIECE, content.length - 19 * PIECE)));
+    assert(writer.dirtyBytes() == 0 && writer.flushes() == 1);
+
+    ByteBuffer back = ByteBuffer.allocate(8 * PIECE);
+    s.read(3 * PIECE, back);
+    back.flip();
+    assert(back.equals(ByteBuffer.wrap(content, 3 * PIECE, 8 * PIECE).slice()));
+
+    l("Flushes once enough bytes are dirty, or they've been dirty long enough");
+    writer.setFlushPolicy(2 * PIECE, Long.MAX_VALUE);
+    writer.add(memo(content, 0));
+    writer.write(failed);
+    assert(!writer.flushDue());
+    writer.add(memo(content, 1));
+    writer.write(failed);
+    assert(writer.flushDue());
+    writer.flush();
+    writer.setFlushPolicy(Long.MAX_VALUE, 20);
+    writer.add(memo(content, 12));
+    writer.write(failed);
+    assert(!writer.flushDue());
+    Thread.sleep(30);
+    assert(writer.flushDue());
+
+    l("Runs are capped at the largest write");
+    int big = WriteBehind.MAX_WRITE / 2 + 1;
+    s = new Recorder(3L * big);
+    writer = new WriteBehind(s, big);
+    byte[] data = new byte[big];
+    for (int p = 0; p < 3; p++) writer.add(new Memo("piece", new Piece(data, new byte[20], p, 16384), null));
+    assert(writer.full());
+    writer.write(failed);
+    assert(s.writes.size() == 3);
+    assert(writer.averageLatency() >= 0 && writer.maxLatency() >= writer.averageLatency());
+    l(writer.toString());
+
+    l("Pieces that can't be written come back, so their budget is released");
+    Broken broken = new Broken(content.length);
+    writer = new WriteBehind(broken, PIECE);
+    WriteBudget budget = new WriteBudget(4 * PIECE);
+    for (int p : new int[] { 2, 3, 4, 7 }) {
+      writer.add(memo(content, p));
+      budget.add(PIECE);
+    }
+    assert(budget.throttled());
+    broken.failAt = 3 * PIECE;  // the run 2-4 fails, 7 doesn't
+    failed.clear();
+    written = writer.write(failed);
+    assert(written.size() == 1 && failed.size() == 3);
+    for (Memo m : written) budget.release(PIECE);
+    for (Memo m : failed) budget.release(PIECE);
+    assert(budget.pending() == 0 && !budget.throttled());
+    assert(writer.depth() == 0 && writer.pendingBytes() == 0);
+    assert(writer.piecesWritten() == 1 && writer.dirtyBytes() == PIECE);
+
+    l("All tests passed");
+  }
+
+  static Memo memo (byte[] content, int p) {
+    int length = Math.min(PIECE, content.length - p * PIECE);
+    byte[] data = new byte[length];
+    System.arraycopy(content, p * PIECE, data, 0, length);
+    return new Memo("piece", new Piece(data, new byte[20], p, length), null);
+  }
+
+  static ArrayList<Long> list (long... values) {
+    ArrayList<Long> a = new ArrayList<Long>();
+    for (long v : values) a.add(v);
+    return a;
+  }
+
+  /** Memory storage that remembers where each write started and what was
+   *  forced, as start and length pairs. */
+  static class Recorder extends MemoryStorage {
+    ArrayList<Long> writes = new ArrayList<Long>();
+    ArrayList<Long> forced = new ArrayList<Long>();
+
+    Recorder (long size) { super(size); }
+
+    public void write (long offset, ByteBuffer src) {
+      writes.add(offset);
+      super.write(offset, src);
+    }
+
+    public void force (long offset, long length) {
+      forced.add(offset);
+      forced.add(length);
+    }
+  }
+
+  /** Memory storage whose writes fail if they cover a given offset. */
+  static class Broken implements Storage {
+    final MemoryStorage memory;
+    long failAt = -1;
+
+    Broken (long size) { memory = new MemoryStorage(size); }
+
+    public long size () { return memory.size(); }
+    public void read (long offset, ByteBuffer dst) { memory.read(offset, dst); }
+    public void write (long offset, ByteBuffer src) throws IOException {
+      if (failAt >= offset && failAt < offset + src.remaining())
+        throw new IOException("disk full");
+      memory.write(offset, src);
+    }
+    public void force () {}
+    public void force (long offset, long length) {}
+    public void close () {}
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}
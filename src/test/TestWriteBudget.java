@@ -0,0 +1,44 @@
+package test;
+
+import libbitster.WriteBudget;
+
+public class TestWriteBudget {
+  public static void main (String[] args) throws Exception {
+    WriteBudget b = new WriteBudget(1000);
+
+    l("Requests carry on while under budget");
+    b.add(400);
+    b.add(500);
+    assert(!b.throttled());
+    assert(b.pending() == 900);
+
+    l("Going over budget throttles requests");
+    b.add(300);
+    assert(b.throttled());
+    assert(b.throttles() == 1);
+    assert(b.peak() == 1200);
+
+    l("They stay throttled until half the budget is free");
+    b.release(400);
+    assert(b.throttled());
+    Thread.sleep(20);
+    b.release(300);
+    assert(!b.throttled());
+    assert(b.pending() == 500);
+    assert(b.throttledMillis() >= 20);
+
+    l("Releasing more than is pending doesn't go negative");
+    b.release(10000);
+    assert(b.pending() == 0);
+
+    l("Shrinking the budget can throttle straight away");
+    b.add(300);
+    b.setBudget(200);
+    assert(b.throttled() && b.throttles() == 2);
+    l(b.toString());
+
+    l("All tests passed");
+  }
+
+  private static void l (String arg) { System.out.println(arg); }
+}